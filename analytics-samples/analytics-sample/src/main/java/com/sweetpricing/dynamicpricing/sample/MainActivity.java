@@ -31,7 +31,6 @@ import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
 import android.text.TextUtils;
-import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
@@ -39,7 +38,6 @@ import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 import com.sweetpricing.dynamicpricing.DynamicPricing;
-import com.sweetpricing.dynamicpricing.FetchVariantTask;
 import com.sweetpricing.dynamicpricing.Properties;
 import com.sweetpricing.dynamicpricing.Variant;
 
@@ -105,19 +103,13 @@ public class MainActivity extends Activity {
   }
 
   private void updateProductSku() {
-    // When you need to obtain a pricepoint SKU for a particular product, you must create a
-    // new FetchVariantTask...
-    FetchVariantTask fetchVariantTask = new FetchVariantTask(DynamicPricing.with(MainActivity.this)) {
-      @Override
-      protected void onPostExecute(Variant variant) {
-        // if there was an error, e will be an Exception
-        if (e != null) {
-          Log.e("MainActivity", "Error getting variant", e);
-        }
-
-        // even if there is an error, a variant object is returned
-        // if there was a problem obtaining the data, you should specify a default SKU
-        // to fall back on...
+    // When you need to obtain a pricepoint SKU for a particular product, fetch the variant of
+    // the product **GROUP** you are displaying. This fetches all the pricepoint SKUs within this
+    // group for the current user's segment, and calls back on the main thread.
+    DynamicPricing.with(this).fetchVariant(SP_STORE_ID, new DynamicPricing.Callback<Variant>() {
+      @Override public void onReady(Variant variant) {
+        // A variant is always returned, even if it couldn't be fetched in time. You should specify
+        // a default SKU to fall back on...
         String google1MonthId = variant.getProductSku(SP_1MONTH_ID, DEFAULT_1MONTH);
         String google1YearId = variant.getProductSku(SP_1YEAR_ID, DEFAULT_1YEAR);
         ((TextView) findViewById(R.id.current_sku_1month)).setText(google1MonthId);
@@ -138,11 +130,7 @@ public class MainActivity extends Activity {
                 productsList
         );
       }
-    };
-
-    // ... Execute this task with the product **GROUP** you are displaying. This will fetch
-    // all the pricepoint SKUs within this group for the current user's segment.
-    fetchVariantTask.execute(SP_STORE_ID);
+    });
   }
 
   @Override public boolean onCreateOptionsMenu(Menu menu) {
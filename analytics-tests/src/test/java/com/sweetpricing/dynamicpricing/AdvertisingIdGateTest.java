@@ -0,0 +1,97 @@
+package com.sweetpricing.dynamicpricing;
+
+import com.sweetpricing.dynamicpricing.integrations.Logger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import org.junit.Before;
+import org.junit.Test;
+
+import static com.sweetpricing.dynamicpricing.DynamicPricing.LogLevel.NONE;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdvertisingIdGateTest {
+  private List<Integer> ran;
+  /** Tasks handed to the executor, which only runs them when asked to. */
+  private Deque<Runnable> executed;
+  private Executor executor;
+
+  @Before public void setUp() {
+    ran = new ArrayList<>();
+    executed = new ArrayDeque<>();
+    executor = new Executor() {
+      @Override public void execute(Runnable task) {
+        executed.add(task);
+      }
+    };
+  }
+
+  private Runnable task(final int id) {
+    return new Runnable() {
+      @Override public void run() {
+        ran.add(id);
+      }
+    };
+  }
+
+  private void runExecuted() {
+    for (Runnable task; (task = executed.poll()) != null; ) {
+      task.run();
+    }
+  }
+
+  @Test public void parksTasksUntilOpen() {
+    AdvertisingIdGate gate = new AdvertisingIdGate(10, executor, Logger.with(NONE));
+    gate.execute(task(1));
+    gate.execute(task(2));
+    assertThat(executed).isEmpty();
+    assertThat(gate.isOpen()).isFalse();
+
+    gate.open();
+    // The tasks are handed to the executor instead of run by the thread that opened the gate.
+    assertThat(ran).isEmpty();
+    runExecuted();
+    assertThat(ran).containsExactly(1, 2);
+    gate.execute(task(3));
+    runExecuted();
+    assertThat(ran).containsExactly(1, 2, 3);
+
+    gate.open();
+    assertThat(executed).isEmpty();
+  }
+
+  @Test public void releasesOldestTaskWhenFull() {
+    AdvertisingIdGate gate = new AdvertisingIdGate(2, executor, Logger.with(NONE));
+    gate.execute(task(1));
+    gate.execute(task(2));
+    gate.execute(task(3));
+    assertThat(ran).isEmpty();
+    runExecuted();
+    assertThat(ran).containsExactly(1);
+
+    gate.open();
+    runExecuted();
+    assertThat(ran).containsExactly(1, 2, 3);
+  }
+
+  @Test public void boundsParkedEventsRatherThanTasks() {
+    AdvertisingIdGate gate = new AdvertisingIdGate(5, executor, Logger.with(NONE));
+    gate.execute(task(1), 2);
+    gate.execute(task(2), 2);
+    assertThat(executed).isEmpty();
+    gate.execute(task(3), 2); // 6 events, so the first task no longer fits.
+    runExecuted();
+    assertThat(ran).containsExactly(1);
+    gate.execute(task(4), 3); // Room is made for all 3 events.
+    runExecuted();
+    assertThat(ran).containsExactly(1, 2);
+    gate.execute(task(5), 6); // More events than the capacity, so everything is released.
+    runExecuted();
+    assertThat(ran).containsExactly(1, 2, 3, 4, 5);
+
+    gate.open();
+    assertThat(executed).isEmpty();
+  }
+}
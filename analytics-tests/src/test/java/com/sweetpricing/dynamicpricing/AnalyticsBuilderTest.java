@@ -176,6 +176,49 @@ public class AnalyticsBuilderTest {
     }
   }
 
+  @Test public void invalidFlushConcurrencyThrowsException() throws Exception {
+    try {
+      new Builder(context, "foo").flushConcurrency(0);
+      fail("flushConcurrency = 0 should throw exception.");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessage("flushConcurrency must be greater than zero.");
+    }
+
+    try {
+      new Builder(context, "foo").flushConcurrency(5);
+      fail("flushConcurrency = 5 should throw exception.");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessage("flushConcurrency must be less than or equal to 4.");
+    }
+  }
+
+  @Test public void invalidMemoryQueueMaxBytesThrowsException() throws Exception {
+    try {
+      new Builder(context, "foo").memoryQueueMaxBytes(0);
+      fail("maxBytes = 0 should throw exception.");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessage("maxBytes must be greater than zero.");
+    }
+  }
+
+  @Test public void invalidQueueStorageThrowsException() throws Exception {
+    try {
+      new Builder(context, "foo").queueStorage(null);
+      fail("null queueStorage should throw exception.");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessage("QueueStorage must not be null.");
+    }
+  }
+
+  @Test public void invalidQueueForcePolicyThrowsException() throws Exception {
+    try {
+      new Builder(context, "foo").memoryMappedQueue(null);
+      fail("null forcePolicy should throw exception.");
+    } catch (IllegalArgumentException expected) {
+      assertThat(expected).hasMessage("ForcePolicy must not be null.");
+    }
+  }
+
   @Test public void invalidOptionsThrowsException() throws Exception {
     try {
       new Builder(context, "foo").defaultOptions(null);
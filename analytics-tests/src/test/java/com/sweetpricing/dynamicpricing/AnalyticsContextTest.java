@@ -88,6 +88,35 @@ public class AnalyticsContextTest {
     }
   }
 
+  @Test public void copyIsSharedUntilChanged() {
+    AnalyticsContext copy = analyticsContext.unmodifiableCopy();
+    assertThat(analyticsContext.unmodifiableCopy()).isSameAs(copy);
+
+    analyticsContext.putValue("foo", "bar");
+    AnalyticsContext changed = analyticsContext.unmodifiableCopy();
+    assertThat(changed).isNotSameAs(copy).containsEntry("foo", "bar");
+    assertThat(copy).doesNotContainKey("foo");
+
+    analyticsContext.setTraits(Traits.create().putUserId("prateek"));
+    assertThat(analyticsContext.unmodifiableCopy()).isNotSameAs(changed);
+    assertThat(analyticsContext.unmodifiableCopy().traits().userId()).isEqualTo("prateek");
+
+    analyticsContext.remove("foo");
+    assertThat(analyticsContext.unmodifiableCopy()).doesNotContainKey("foo");
+  }
+
+  @Test public void copyWithDeviceIsSharedUntilDeviceChanged() {
+    AnalyticsContext copy = analyticsContext.unmodifiableCopyWithDevice();
+    assertThat(analyticsContext.unmodifiableCopyWithDevice()).isSameAs(copy);
+    assertThat(copy.device()).isNotSameAs(analyticsContext.device());
+
+    analyticsContext.device().putAdvertisingInfo("adId", true);
+    AnalyticsContext changed = analyticsContext.unmodifiableCopyWithDevice();
+    assertThat(changed).isNotSameAs(copy);
+    assertThat(changed.device()).containsEntry("advertisingId", "adId");
+    assertThat(copy.device()).doesNotContainKey("advertisingId");
+  }
+
   @Test public void copyIsImmutable() {
     AnalyticsContext copy = analyticsContext.unmodifiableCopy();
 
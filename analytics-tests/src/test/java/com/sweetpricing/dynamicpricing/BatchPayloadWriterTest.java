@@ -1,16 +1,19 @@
 package com.sweetpricing.dynamicpricing;
 
 import com.sweetpricing.dynamicpricing.core.tests.BuildConfig;
+import com.sweetpricing.dynamicpricing.internal.Iso8601;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.util.Date;
+import java.util.Map;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricGradleTestRunner;
 import org.robolectric.annotation.Config;
 
-import static com.sweetpricing.dynamicpricing.internal.Utils.toISO8601Date;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
 
 @RunWith(RobolectricGradleTestRunner.class)
 @Config(constants = BuildConfig.class, emulateSdk = 18, manifest = Config.NONE)
@@ -34,7 +37,7 @@ public class BatchPayloadWriterTest {
         .isEqualTo("{"
             + "\"batch\":[foobarbazqux,{},2],"
             + "\"sentAt\":\""
-            + toISO8601Date(new Date())
+            + Iso8601.format(System.currentTimeMillis())
             + "\"}");
   }
 
@@ -51,10 +54,82 @@ public class BatchPayloadWriterTest {
         .close();
 
     assertThat(byteArrayOutputStream.toString()) //
-        .isEqualTo("{\"batch\":[qaz],\"sentAt\":\"" + toISO8601Date(new Date()) + "\"}")
+        .isEqualTo("{\"batch\":[qaz],\"sentAt\":\""
+            + Iso8601.format(System.currentTimeMillis())
+            + "\"}")
         .overridingErrorMessage("its ok if this failed close to midnight!");
   }
 
+  @Test public void batchPayloadWriterCopiesPayloadBytes() throws IOException {
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    SweetpricingIntegration.BatchPayloadWriter batchPayloadWriter =
+        new SweetpricingIntegration.BatchPayloadWriter(byteArrayOutputStream);
+    StringBuilder largePayload = new StringBuilder("{\"event\":\"");
+    for (int i = 0; i < 10000; i++) {
+      largePayload.append("\u00e9");
+    }
+    largePayload.append("\"}");
+    byte[] bytes = largePayload.toString().getBytes("UTF-8");
+
+    batchPayloadWriter.beginObject()
+        .beginBatchArray()
+        .emitPayloadObject(bytes, bytes.length, null)
+        .emitPayloadObject("{}")
+        .endBatchArray()
+        .endObject()
+        .close();
+
+    assertThat(byteArrayOutputStream.toString("UTF-8")) //
+        .isEqualTo("{\"batch\":["
+            + largePayload
+            + ",{}],\"sentAt\":\""
+            + Iso8601.format(System.currentTimeMillis())
+            + "\"}")
+        .overridingErrorMessage("its ok if this failed close to midnight!");
+  }
+
+  @Test public void batchPayloadWriterRendersBinaryRecords() throws IOException {
+    ContextStore contextStore = new ContextStore();
+    String json = "{\"messageId\":\"a161304c-498c-4830-9291-fcfb8498877b\","
+        + "\"context\":{\"traits\":{}},\"event\":\"foo\"}";
+    Map<String, Object> payload = Cartographer.INSTANCE.fromJson(json);
+    int[] offsets = new int[PayloadFormat.KEYS.length * 2];
+    byte[] record = PayloadFormat.encode(
+        Cartographer.INSTANCE.toJsonBytes(payload, PayloadFormat.KEYS, offsets), offsets,
+        "a161304c-498c-4830-9291-fcfb8498877b", contextStore);
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    SweetpricingIntegration.BatchPayloadWriter batchPayloadWriter =
+        new SweetpricingIntegration.BatchPayloadWriter(byteArrayOutputStream);
+
+    batchPayloadWriter.beginObject()
+        .beginBatchArray()
+        .emitPayloadObject(record, record.length, contextStore)
+        .emitPayloadObject("{}")
+        .endBatchArray()
+        .endObject()
+        .close();
+
+    assertThat(byteArrayOutputStream.toString("UTF-8")) //
+        .isEqualTo("{\"batch\":["
+            + json
+            + ",{}],\"sentAt\":\""
+            + Iso8601.format(System.currentTimeMillis())
+            + "\"}")
+        .overridingErrorMessage("its ok if this failed close to midnight!");
+  }
+
+  @Test public void payloadWriterFailsForTruncatedPayload() throws IOException {
+    SweetpricingIntegration.PayloadWriter payloadWriter = new SweetpricingIntegration.PayloadWriter(
+        new SweetpricingIntegration.BatchPayloadWriter(new ByteArrayOutputStream()),
+        new ContextStore());
+
+    try {
+      payloadWriter.read(new ByteArrayInputStream(new byte[3]), 4);
+      fail("expected truncated payload to fail");
+    } catch (EOFException expected) {
+    }
+  }
+
   @Test public void batchPayloadWriterFailsForNoItem() throws IOException {
     ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
     SweetpricingIntegration.BatchPayloadWriter batchPayloadWriter =
@@ -3,6 +3,11 @@ package com.sweetpricing.dynamicpricing;
 import com.sweetpricing.dynamicpricing.core.tests.BuildConfig;
 import com.sweetpricing.dynamicpricing.integrations.BasePayload;
 import java.io.IOException;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -12,6 +17,7 @@ import org.robolectric.annotation.Config;
 import static com.sweetpricing.dynamicpricing.TestUtils.TRACK_PAYLOAD;
 import static com.sweetpricing.dynamicpricing.TestUtils.TRACK_PAYLOAD_JSON;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
 
 @RunWith(RobolectricGradleTestRunner.class)
 @Config(constants = BuildConfig.class, emulateSdk = 18, manifest = Config.NONE)
@@ -21,6 +27,51 @@ public class CartographerTest {
     assertThat(Cartographer.INSTANCE.toJson(TRACK_PAYLOAD)).isEqualTo(TRACK_PAYLOAD_JSON);
   }
 
+  @Test public void testSerializationToBytes() throws IOException {
+    assertThat(Cartographer.INSTANCE.toJsonBytes(TRACK_PAYLOAD)) //
+        .isEqualTo(TRACK_PAYLOAD_JSON.getBytes("UTF-8"));
+  }
+
+  @Test public void serializationToBytesMatchesJsonWriter() throws IOException {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("escapes", "\"\\\t\b\n\r\f\u0001\u001f/\u2028\u2029");
+    map.put("unicode", "\u00e9\u4e2d\ud83d\ude00\ud83d");
+    map.put("numbers", Arrays.asList(0, -1, Long.MIN_VALUE, Long.MAX_VALUE, 1.5, 2.0f,
+        new BigDecimal("1e400"), (short) 3, (byte) -4));
+    map.put("booleans", Arrays.asList(true, false, null));
+    map.put("nested", Collections.singletonMap("type", BasePayload.Type.track));
+    map.put(null, new StringBuilder("builder"));
+    map.put("\u00e9", new Properties().putValue("a", 1));
+
+    // Compared as bytes, since the unpaired surrogate is encoded as '?'.
+    assertThat(Cartographer.INSTANCE.toJsonBytes(map)) //
+        .isEqualTo(Cartographer.INSTANCE.toJson(map).getBytes("UTF-8"));
+  }
+
+  @Test public void serializationToBytesFindsTopLevelKeys() throws IOException {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("properties", Collections.singletonMap("context", "nested"));
+    map.put("context", Collections.singletonMap("name", "\u00e9"));
+    String[] keys = {"context", "missing"};
+    int[] offsets = new int[4];
+
+    byte[] json = Cartographer.INSTANCE.toJsonBytes(map, keys, offsets);
+
+    assertThat(json).isEqualTo(Cartographer.INSTANCE.toJsonBytes(map));
+    assertThat(new String(json, offsets[0], offsets[1] - offsets[0], "UTF-8")) //
+        .isEqualTo("{\"name\":\"\u00e9\"}");
+    assertThat(offsets[2]).isEqualTo(-1);
+    assertThat(offsets[3]).isEqualTo(-1);
+  }
+
+  @Test public void serializationToBytesRejectsNonFiniteNumbers() throws IOException {
+    try {
+      Cartographer.INSTANCE.toJsonBytes(Collections.singletonMap("a", Double.NaN));
+      fail("expected NaN to be rejected");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
   @Test public void testDeserialization() throws IOException {
     Map<String, Object> map = Cartographer.INSTANCE.fromJson(TRACK_PAYLOAD_JSON);
 
@@ -31,4 +82,55 @@ public class CartographerTest {
 
     assertThat(map).isEqualTo(TRACK_PAYLOAD);
   }
+
+  @Test public void variantDeserialization() throws IOException {
+    Variant variant = Cartographer.INSTANCE.variantFromJson(new StringReader("{"
+        + "\"id\":42,"
+        + "\"skus\":{\"7\":\"monthly\",\"3\":\"yearly\",\"x\":\"ignored\",\"9\":null,"
+        + "\"7\":\"weekly\",\"12\":34},"
+        + "\"meta\":{\"price\":1.5,\"count\":3,\"big\":12345678901,\"exp\":1e2,"
+        + "\"list\":[1,2.0]}"
+        + "}"));
+
+    assertThat(variant.getId()).isEqualTo(42);
+    assertThat(variant.get("id")).isEqualTo(42);
+    assertThat(variant.getProductSku(7, null)).isEqualTo("weekly");
+    assertThat(variant.getProductSku(3, null)).isEqualTo("yearly");
+    assertThat(variant.getProductSku(12, null)).isEqualTo("34");
+    assertThat(variant.getProductSku(9, "default")).isEqualTo("default");
+    assertThat(variant.getValueMap("skus")).hasSize(3)
+        .containsEntry("3", "yearly")
+        .containsEntry("7", "weekly")
+        .containsEntry("12", "34");
+
+    ValueMap meta = variant.getValueMap("meta");
+    assertThat(meta.get("price")).isEqualTo(1.5);
+    assertThat(meta.get("count")).isEqualTo(3);
+    assertThat(meta.get("big")).isEqualTo(12345678901L);
+    assertThat(meta.get("exp")).isEqualTo(100.0);
+    assertThat(meta.get("list")).isEqualTo(Arrays.<Object>asList(1, 2.0));
+  }
+
+  @Test public void variantDeserializationWithoutSkus() throws IOException {
+    Variant variant = Cartographer.INSTANCE.variantFromJson(new StringReader("{}"));
+
+    assertThat(variant.getId()).isEqualTo(0);
+    assertThat(variant.getProductSku(1, "default")).isEqualTo("default");
+    assertThat(variant.getValueMap("skus")).isEmpty();
+  }
+
+  @Test public void batchedVariantsDeserialization() throws IOException {
+    Map<Integer, Variant> variants = Cartographer.INSTANCE.variantsFromJson(new StringReader("{"
+        + "\"status\":\"ok\","
+        + "\"variants\":{\"1\":{\"id\":10,\"skus\":{\"5\":\"a\"}},\"x\":{},"
+        + "\"2\":{\"id\":20}}"
+        + "}"));
+
+    assertThat(variants.keySet()).containsExactly(1, 2);
+    assertThat(variants.get(1).getId()).isEqualTo(10);
+    assertThat(variants.get(1).getProductSku(5, null)).isEqualTo("a");
+    assertThat(variants.get(2).getId()).isEqualTo(20);
+
+    assertThat(Cartographer.INSTANCE.variantsFromJson(new StringReader("{\"id\":1}"))).isNull();
+  }
 }
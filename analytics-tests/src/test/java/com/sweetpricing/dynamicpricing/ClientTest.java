@@ -10,6 +10,8 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import org.assertj.core.api.AbstractAssert;
 import org.assertj.core.api.Assertions;
 import org.junit.Before;
@@ -23,6 +25,7 @@ import org.robolectric.annotation.Config;
 import static junit.framework.Assert.fail;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -69,6 +72,94 @@ public class ClientTest {
         .containsHeader("Authorization", "Basic Zm9vOg==");
   }
 
+  @Test public void variantIsGzippedWithoutDictionary() throws Exception {
+    Client client = new Client("foo", this.client.connectionFactory,
+        new Compressor(Compressor.DEFAULT_LEVEL, Compressor.DICTIONARY));
+    server.enqueue(new MockResponse());
+    server.enqueue(new MockResponse());
+
+    Client.Connection connection = client.upload();
+    connection.os.close();
+    connection.close();
+    RecordedRequestAssert.assertThat(server.takeRequest())
+        .containsHeader("Content-Encoding", "deflate");
+
+    connection = client.variant();
+    connection.os.close();
+    connection.close();
+    RecordedRequestAssert.assertThat(server.takeRequest())
+        .containsHeader("Content-Encoding", "gzip");
+  }
+
+  @Test public void variantNetworkSourceFetchesBatches() throws Exception {
+    AnalyticsContext context = new AnalyticsContext(new LinkedHashMap<String, Object>());
+    context.setTraits(Traits.create());
+    VariantFetcher.Network network =
+        new VariantFetcher.Network(client, Cartographer.INSTANCE, context, new Options());
+
+    server.enqueue(new MockResponse().setBody("{\"variants\":{\"1\":{\"id\":10}}}"));
+    Map<Integer, Variant> variants = network.fetchAll(new int[] { 1, 2 });
+    assertThat(variants).hasSize(1);
+    assertThat(variants.get(1).getId()).isEqualTo(10);
+    RecordedRequestAssert.assertThat(server.takeRequest())
+        .hasRequestLine("POST /v1/variant HTTP/1.1");
+
+    // A server that doesn't know batches rejects the request.
+    server.enqueue(new MockResponse().setResponseCode(400));
+    assertThat(network.fetchAll(new int[] { 1, 2 })).isNull();
+    server.takeRequest();
+
+    // So does one that answers with a single variant.
+    server.enqueue(new MockResponse().setBody("{\"id\":10}"));
+    assertThat(network.fetchAll(new int[] { 1, 2 })).isNull();
+    server.takeRequest();
+
+    server.enqueue(new MockResponse().setResponseCode(503));
+    try {
+      network.fetchAll(new int[] { 1, 2 });
+      fail("503 should be thrown");
+    } catch (Client.UploadException e) {
+      assertThat(e.isRetryable()).isTrue();
+    }
+    server.takeRequest();
+
+    // Errors that don't say anything about batch support are thrown, not taken as a rejection.
+    server.enqueue(new MockResponse().setResponseCode(401));
+    try {
+      network.fetchAll(new int[] { 1, 2 });
+      fail("401 should be thrown");
+    } catch (Client.UploadException e) {
+      assertThat(e.responseCode).isEqualTo(401);
+    }
+    server.takeRequest();
+
+    server.enqueue(new MockResponse().setBody("{\"variants\":{\"1\":"));
+    try {
+      network.fetchAll(new int[] { 1, 2 });
+      fail("truncated response should be thrown");
+    } catch (IOException expected) {
+    }
+    server.takeRequest();
+
+    server.enqueue(new MockResponse().setBody("{\"id\":20}"));
+    assertThat(network.fetch(2).getId()).isEqualTo(20);
+  }
+
+  @Test public void variantNotifiesNetworkActivityListeners() throws Exception {
+    when(mockConnection.getOutputStream()).thenReturn(mock(OutputStream.class));
+    Client.NetworkActivityListener listener = mock(Client.NetworkActivityListener.class);
+    mockClient.addNetworkActivityListener(listener);
+
+    mockClient.upload();
+    verify(listener, never()).onNetworkActivity();
+    mockClient.variant();
+    verify(listener).onNetworkActivity();
+
+    mockClient.removeNetworkActivityListener(listener);
+    mockClient.variant();
+    verify(listener).onNetworkActivity();
+  }
+
   @Test public void closingUploadConnectionClosesStreams() throws Exception {
     OutputStream os = mock(OutputStream.class);
     when(mockConnection.getOutputStream()).thenReturn(os);
@@ -79,7 +170,7 @@ public class ClientTest {
     verify(mockConnection).setChunkedStreamingMode(0);
 
     connection.close();
-    verify(mockConnection).disconnect();
+    verify(mockConnection, never()).disconnect();
     verify(os).close();
   }
 
@@ -93,7 +184,7 @@ public class ClientTest {
     verify(mockConnection).setChunkedStreamingMode(0);
 
     connection.close();
-    verify(mockConnection).disconnect();
+    verify(mockConnection, never()).disconnect();
     verify(os).close();
   }
 
@@ -117,10 +208,74 @@ public class ClientTest {
           + "Response: Could not read response body for rejected message: "
           + "java.io.IOException: Underlying input stream returned zero bytes");
     }
+    verify(mockConnection, never()).disconnect();
+    verify(is).close();
+    verify(os).close();
+  }
+
+  @Test public void failedUploadDisconnects() throws Exception {
+    OutputStream os = mock(OutputStream.class);
+    when(mockConnection.getOutputStream()).thenReturn(os);
+    when(mockConnection.getResponseCode()).thenThrow(new IOException("reset"));
+
+    Client.Connection connection = mockClient.upload();
+    try {
+      connection.close();
+      fail("a failed request should throw an exception");
+    } catch (IOException e) {
+      assertThat(e).hasMessage("reset");
+    }
     verify(mockConnection).disconnect();
     verify(os).close();
   }
 
+  @Test public void connectionsAreReused() throws Exception {
+    server.enqueue(new MockResponse());
+    server.enqueue(new MockResponse().setBody("{\"id\":1}"));
+    server.enqueue(new MockResponse().setResponseCode(400).setBody("rejected"));
+    server.enqueue(new MockResponse());
+
+    for (int i = 0; i < 4; i++) {
+      Client.Connection connection = i == 1 ? client.variant() : client.upload();
+      connection.os.write("{}".getBytes());
+      connection.os.close();
+      try {
+        connection.close();
+      } catch (Client.UploadException e) {
+        assertThat(e.responseCode).isEqualTo(400);
+      }
+    }
+
+    // Events and variants share one connection, even after a rejected upload.
+    for (int i = 0; i < 4; i++) {
+      assertThat(server.takeRequest().getSequenceNumber()).isEqualTo(i);
+    }
+  }
+
+  @Test public void uploadFailureParsesRetryAfter() throws Exception {
+    server.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "120"));
+
+    Client.Connection connection = client.upload();
+    connection.os.write("{}".getBytes());
+    try {
+      connection.close();
+      fail(">= 300 return code should throw an exception");
+    } catch (Client.UploadException e) {
+      assertThat(e.responseCode).isEqualTo(503);
+      assertThat(e.retryAfterMillis).isEqualTo(120000);
+      assertThat(e.isRetryable()).isTrue();
+    }
+  }
+
+  @Test public void uploadExceptionClassifiesResponses() {
+    assertThat(new Client.UploadException(400, "", "").isRetryable()).isFalse();
+    assertThat(new Client.UploadException(413, "", "").isRetryable()).isFalse();
+    assertThat(new Client.UploadException(408, "", "").isRetryable()).isTrue();
+    assertThat(new Client.UploadException(429, "", "").isRetryable()).isTrue();
+    assertThat(new Client.UploadException(500, "", "").isRetryable()).isTrue();
+    assertThat(new Client.UploadException(503, "", "").isRetryable()).isTrue();
+  }
+
   static class RecordedRequestAssert
       extends AbstractAssert<RecordedRequestAssert, RecordedRequest> {
 
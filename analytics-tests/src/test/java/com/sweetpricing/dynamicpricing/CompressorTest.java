@@ -0,0 +1,161 @@
+package com.sweetpricing.dynamicpricing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompressorTest {
+
+  /** Returns a batch of track events shaped like the ones the library uploads. */
+  private static byte[] batch(int count) {
+    StringBuilder batch = new StringBuilder("{\"batch\":[");
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        batch.append(',');
+      }
+      batch.append("{\"messageId\":\"").append(UUID.randomUUID()).append("\",")
+          .append("\"type\":\"track\",\"channel\":\"mobile\",\"context\":{")
+          .append("\"app\":{\"build\":42,\"name\":\"Sample\",")
+          .append("\"namespace\":\"com.example.sample\",\"version\":\"1.2.0\"},")
+          .append("\"device\":{\"adTrackingEnabled\":true,")
+          .append("\"advertisingId\":\"38400000-8cf0-11bd-b23e-10b96e40000d\",")
+          .append("\"id\":\"a1b2c3d4e5f60718\",\"manufacturer\":\"Google\",")
+          .append("\"model\":\"Pixel\",\"name\":\"sailfish\"},")
+          .append("\"library\":{\"name\":\"sweetpricing-android\",\"version\":\"1.0.0\"},")
+          .append("\"locale\":\"en-GB\",\"network\":{\"bluetooth\":false,")
+          .append("\"carrier\":\"Vodafone\",\"cellular\":true,\"wifi\":false},")
+          .append("\"os\":{\"name\":\"Android\",\"version\":\"7.1.1\"},")
+          .append("\"screen\":{\"density\":2.625,\"height\":1794,\"width\":1080},")
+          .append("\"timezone\":\"Europe/London\",")
+          .append("\"userAgent\":\"Dalvik/2.1.0 (Linux; U; Android 7.1.1; Pixel Build/NOF26V)\",")
+          .append("\"traits\":{\"anonymousId\":\"6d7ee5c0-0b6b-4b6c-8b0e-6f1e2c6b3a4d\"}},")
+          .append("\"anonymousId\":\"6d7ee5c0-0b6b-4b6c-8b0e-6f1e2c6b3a4d\",")
+          .append("\"timestamp\":\"2016-03-0").append(i % 10).append("T12:00:00.000Z\",")
+          .append("\"integrations\":{},\"event\":\"Viewed Product ").append(i).append("\",")
+          .append("\"properties\":{\"index\":").append(i).append("}}");
+    }
+    return batch.append("],\"sentAt\":\"2016-03-09T12:00:00.000Z\"}").toString().getBytes();
+  }
+
+  private static byte[] compress(Compressor compressor, byte[] body) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    OutputStream out = compressor.compress(bytes);
+    out.write(body);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private static byte[] gunzip(byte[] compressed) throws IOException {
+    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    for (int read; (read = in.read(buffer)) != -1; ) {
+      bytes.write(buffer, 0, read);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static byte[] inflate(byte[] compressed, byte[] dictionary)
+      throws DataFormatException {
+    Inflater inflater = new Inflater();
+    inflater.setInput(compressed);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    while (!inflater.finished()) {
+      int read = inflater.inflate(buffer);
+      if (read == 0 && inflater.needsDictionary()) {
+        inflater.setDictionary(dictionary);
+      } else if (read == 0 && inflater.needsInput()) {
+        throw new DataFormatException("Truncated stream.");
+      }
+      bytes.write(buffer, 0, read);
+    }
+    inflater.end();
+    return bytes.toByteArray();
+  }
+
+  @Test public void gzipsBodies() throws IOException {
+    Compressor compressor = new Compressor(Compressor.DEFAULT_LEVEL, null);
+    assertThat(compressor.contentEncoding()).isEqualTo("gzip");
+    byte[] body = batch(3);
+
+    byte[] first = compress(compressor, body);
+    assertThat(gunzip(first)).isEqualTo(body);
+    // The second stream reuses the first one's deflater.
+    assertThat(compress(compressor, body)).isEqualTo(first);
+    assertThat(gunzip(compress(compressor, new byte[0]))).isEmpty();
+  }
+
+  @Test public void deflatesBodiesWithDictionary() throws Exception {
+    Compressor compressor = new Compressor(Compressor.DEFAULT_LEVEL, Compressor.DICTIONARY);
+    assertThat(compressor.contentEncoding()).isEqualTo("deflate");
+    byte[] body = batch(3);
+
+    byte[] first = compress(compressor, body);
+    assertThat(inflate(first, Compressor.DICTIONARY)).isEqualTo(body);
+    assertThat(compress(compressor, body)).isEqualTo(first);
+  }
+
+  @Test public void withoutDictionaryGzips() throws IOException {
+    Compressor compressor = new Compressor(Compressor.DEFAULT_LEVEL, Compressor.DICTIONARY);
+    Compressor gzip = compressor.withoutDictionary();
+    assertThat(gzip.contentEncoding()).isEqualTo("gzip");
+    byte[] body = batch(3);
+    assertThat(gunzip(compress(gzip, body))).isEqualTo(body);
+    assertThat(gzip.withoutDictionary()).isSameAs(gzip);
+  }
+
+  @Test public void closedStreamReturnsDeflaterToPool() throws IOException {
+    Compressor compressor = new Compressor(Compressor.DEFAULT_LEVEL, null);
+    byte[] firstBody = batch(1);
+    byte[] secondBody = batch(2);
+    ByteArrayOutputStream first = new ByteArrayOutputStream();
+    OutputStream firstOut = compressor.compress(first);
+    firstOut.write(firstBody);
+    firstOut.close();
+    assertThat(compressor.pooledDeflaters()).isEqualTo(1);
+
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+    OutputStream secondOut = compressor.compress(second);
+    assertThat(compressor.pooledDeflaters()).isEqualTo(0); // Took the pooled deflater.
+    secondOut.write(secondBody);
+    secondOut.close();
+    assertThat(compressor.pooledDeflaters()).isEqualTo(1);
+    assertThat(gunzip(first.toByteArray())).isEqualTo(firstBody);
+    assertThat(gunzip(second.toByteArray())).isEqualTo(secondBody);
+  }
+
+  @Test public void closingTwiceReleasesDeflaterOnce() throws IOException {
+    Compressor compressor = new Compressor(Compressor.DEFAULT_LEVEL, null);
+    OutputStream first = compressor.compress(new ByteArrayOutputStream());
+    first.close();
+    first.close();
+
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+    ByteArrayOutputStream third = new ByteArrayOutputStream();
+    OutputStream secondOut = compressor.compress(second);
+    OutputStream thirdOut = compressor.compress(third);
+    secondOut.write(batch(1));
+    thirdOut.write(batch(2));
+    secondOut.close();
+    thirdOut.close();
+    assertThat(gunzip(second.toByteArray()).length).isEqualTo(batch(1).length);
+    assertThat(gunzip(third.toByteArray()).length).isEqualTo(batch(2).length);
+  }
+
+  @Test public void dictionaryShrinksSmallBatches() throws Exception {
+    byte[] body = batch(1);
+    byte[] gzipped = compress(new Compressor(Compressor.DEFAULT_LEVEL, null), body);
+    byte[] deflated =
+        compress(new Compressor(Compressor.DEFAULT_LEVEL, Compressor.DICTIONARY), body);
+    assertThat(deflated.length).isLessThan(gzipped.length * 3 / 4);
+  }
+}
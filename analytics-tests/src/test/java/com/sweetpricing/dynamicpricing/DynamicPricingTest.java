@@ -20,7 +20,6 @@ import com.sweetpricing.dynamicpricing.integrations.TrackPayload;
 import com.sweetpricing.dynamicpricing.internal.Utils.AnalyticsNetworkExecutorService;
 import java.io.IOException;
 import java.util.Collections;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicReference;
 import org.assertj.core.data.MapEntry;
@@ -33,28 +32,40 @@ import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Spy;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricGradleTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.Shadows;
 import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowApplication;
 import org.robolectric.shadows.ShadowLog;
+import org.robolectric.shadows.ShadowLooper;
 
 import static android.content.Context.MODE_PRIVATE;
 import static com.sweetpricing.dynamicpricing.DynamicPricing.LogLevel.NONE;
+import static com.sweetpricing.dynamicpricing.DynamicPricing.OverflowPolicy.DROP_OLDEST;
+import static com.sweetpricing.dynamicpricing.DynamicPricing.QueueStorage.QUEUE_FILE;
 import static com.sweetpricing.dynamicpricing.TestUtils.SynchronousExecutor;
 import static com.sweetpricing.dynamicpricing.TestUtils.mockApplication;
 import static com.sweetpricing.dynamicpricing.Utils.createContext;
+import static com.sweetpricing.dynamicpricing.internal.Utils.DEFAULT_FLUSH_CONCURRENCY;
 import static com.sweetpricing.dynamicpricing.internal.Utils.DEFAULT_FLUSH_INTERVAL;
 import static com.sweetpricing.dynamicpricing.internal.Utils.DEFAULT_FLUSH_QUEUE_SIZE;
 import static com.sweetpricing.dynamicpricing.internal.Utils.isNullOrEmpty;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.argThat;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -82,12 +93,15 @@ public class DynamicPricingTest {
   @Mock Client client;
   @Mock Stats stats;
   @Mock ProjectSettings.Cache projectSettingsCache;
+  @Mock VariantCache variantCache;
+  @Mock VariantFetcher variantFetcher;
   @Mock Integration integration;
   Integration.Factory factory;
   BooleanPreference optOut;
   Application application;
   Traits traits;
   AnalyticsContext analyticsContext;
+  AdvertisingIdGate advertisingIdGate;
 
   private DynamicPricing dynamicPricing;
 
@@ -119,11 +133,17 @@ public class DynamicPricingTest {
     SharedPreferences sharedPreferences =
         RuntimeEnvironment.application.getSharedPreferences("analytics-test", MODE_PRIVATE);
     optOut = new BooleanPreference(sharedPreferences, "opt-out-test", false);
+    advertisingIdGate = new AdvertisingIdGate(AdvertisingIdGate.DEFAULT_CAPACITY, analyticsExecutor,
+        Logger.with(NONE));
+    advertisingIdGate.open();
 
     dynamicPricing = new DynamicPricing(application, networkExecutor, stats, traitsCache, analyticsContext,
         defaultOptions, Logger.with(NONE), "qaz", Collections.singletonList(factory), client,
         Cartographer.INSTANCE, projectSettingsCache, "foo", DEFAULT_FLUSH_QUEUE_SIZE,
-        DEFAULT_FLUSH_INTERVAL, analyticsExecutor, false, new CountDownLatch(0), false, optOut);
+        DEFAULT_FLUSH_INTERVAL, DEFAULT_FLUSH_CONCURRENCY, QUEUE_FILE, null,
+        PayloadQueue.MemoryQueue.DEFAULT_MAX_BYTES, analyticsExecutor, false,
+        advertisingIdGate, false, optOut, variantCache, variantFetcher, new int[0],
+        new EventRing(EventRing.DEFAULT_CAPACITY, DROP_OLDEST));
 
     // Used by singleton tests.
     grantPermission(RuntimeEnvironment.application, Manifest.permission.INTERNET);
@@ -195,6 +215,80 @@ public class DynamicPricingTest {
     }));
   }
 
+  @Test public void eventsWaitForAdvertisingIdWithoutBlocking() {
+    advertisingIdGate = new AdvertisingIdGate(AdvertisingIdGate.DEFAULT_CAPACITY, analyticsExecutor,
+        Logger.with(NONE));
+    analyticsContext.putDevice(RuntimeEnvironment.application, false);
+    dynamicPricing = new DynamicPricing(application, networkExecutor, stats, traitsCache, analyticsContext,
+        defaultOptions, Logger.with(NONE), "qaz", Collections.singletonList(factory), client,
+        Cartographer.INSTANCE, projectSettingsCache, "foo", DEFAULT_FLUSH_QUEUE_SIZE,
+        DEFAULT_FLUSH_INTERVAL, DEFAULT_FLUSH_CONCURRENCY, QUEUE_FILE, null,
+        PayloadQueue.MemoryQueue.DEFAULT_MAX_BYTES, analyticsExecutor, false,
+        advertisingIdGate, false, optOut, variantCache, variantFetcher, new int[0],
+        new EventRing(EventRing.DEFAULT_CAPACITY, DROP_OLDEST));
+
+    dynamicPricing.track("first");
+    dynamicPricing.screen(null, "second");
+    verify(integration, never()).track(any(TrackPayload.class));
+
+    analyticsContext.device().putAdvertisingInfo("adId", true);
+    advertisingIdGate.open();
+    verify(integration).track(argThat(new NoDescriptionMatcher<TrackPayload>() {
+      @Override protected boolean matchesSafely(TrackPayload payload) {
+        return payload.context().device().get("advertisingId").equals("adId");
+      }
+    }));
+    verify(integration).screen(any(ScreenPayload.class));
+  }
+
+  @Test public void eventsReleasedEarlyDontShareTheLiveDevice() {
+    advertisingIdGate = new AdvertisingIdGate(1, analyticsExecutor, Logger.with(NONE));
+    analyticsContext.putDevice(RuntimeEnvironment.application, false);
+    dynamicPricing = new DynamicPricing(application, networkExecutor, stats, traitsCache,
+        analyticsContext, defaultOptions, Logger.with(NONE), "qaz",
+        Collections.singletonList(factory), client, Cartographer.INSTANCE, projectSettingsCache,
+        "foo", DEFAULT_FLUSH_QUEUE_SIZE, DEFAULT_FLUSH_INTERVAL, DEFAULT_FLUSH_CONCURRENCY,
+        QUEUE_FILE, null, PayloadQueue.MemoryQueue.DEFAULT_MAX_BYTES, analyticsExecutor, false,
+        advertisingIdGate, false, optOut, variantCache, variantFetcher, new int[0],
+        new EventRing(EventRing.DEFAULT_CAPACITY, DROP_OLDEST));
+
+    dynamicPricing.track("first");
+    dynamicPricing.track("second"); // The gate is full, so the first event is released early.
+    analyticsContext.device().putAdvertisingInfo("adId", true);
+    advertisingIdGate.open();
+
+    ArgumentCaptor<TrackPayload> captor = ArgumentCaptor.forClass(TrackPayload.class);
+    verify(integration, times(2)).track(captor.capture());
+    assertThat(captor.getAllValues().get(0).context().device()) //
+        .doesNotContainKey("advertisingId");
+    assertThat(captor.getAllValues().get(1).context().device()) //
+        .containsEntry("advertisingId", "adId");
+  }
+
+  @Test public void threadSafeIntegrationsRunInBackground() {
+    when(integration.isThreadSafe()).thenReturn(true);
+    dynamicPricing = new DynamicPricing(application, networkExecutor, stats, traitsCache, analyticsContext,
+        defaultOptions, Logger.with(NONE), "qaz", Collections.singletonList(factory), client,
+        Cartographer.INSTANCE, projectSettingsCache, "foo", DEFAULT_FLUSH_QUEUE_SIZE,
+        DEFAULT_FLUSH_INTERVAL, DEFAULT_FLUSH_CONCURRENCY, QUEUE_FILE, null,
+        PayloadQueue.MemoryQueue.DEFAULT_MAX_BYTES, analyticsExecutor, false,
+        advertisingIdGate, false, optOut, variantCache, variantFetcher, new int[0],
+        new EventRing(EventRing.DEFAULT_CAPACITY, DROP_OLDEST));
+
+    ShadowLooper.pauseMainLooper();
+    try {
+      int mainThreadTasks = ShadowLooper.getUiThreadScheduler().size();
+      dynamicPricing.track("wrote tests");
+      verify(integration, timeout(1000)).track(any(TrackPayload.class));
+      verify(stats, timeout(1000)).dispatchOperationRun(eq(true), anyLong(), anyLong());
+      // The operation never went through the main thread.
+      assertThat(ShadowLooper.getUiThreadScheduler().size()).isEqualTo(mainThreadTasks);
+    } finally {
+      ShadowLooper.unPauseMainLooper();
+    }
+    verify(stats, never()).dispatchOperationRun(eq(false), anyLong(), anyLong());
+  }
+
   @Test public void invalidScreen() throws Exception {
     try {
       dynamicPricing.screen(null, null);
@@ -425,6 +519,40 @@ public class DynamicPricingTest {
     }
   }
 
+  @Test public void fetchVariantReturnsCachedVariant() throws Exception {
+    Variant variant = Variant.create(new ValueMap().putValue("id", 5));
+    when(variantCache.get(any(String.class))).thenReturn(new VariantCache.Entry(variant, 0));
+    when(variantCache.isFresh(any(VariantCache.Entry.class))).thenReturn(true);
+    doAnswer(new Answer<Void>() {
+      @Override public Void answer(InvocationOnMock invocation) {
+        ((Runnable) invocation.getArguments()[0]).run();
+        return null;
+      }
+    }).when(variantFetcher).execute(any(Runnable.class));
+
+    DynamicPricing.Callback<Variant> callback = mock(DynamicPricing.Callback.class);
+    int mainThreadTasks = ShadowLooper.getUiThreadScheduler().size();
+    dynamicPricing.fetchVariant(3, callback);
+    verify(callback).onReady(variant);
+    assertThat(dynamicPricing.fetchVariant(3).get()).isSameAs(variant);
+    verify(variantFetcher, never()).fetch(3);
+    // No timeout is left waiting on the main thread when nothing was fetched.
+    assertThat(ShadowLooper.getUiThreadScheduler().size()).isEqualTo(mainThreadTasks);
+  }
+
+  @Test public void resetClearsVariantCacheOnAnalyticsExecutor() {
+    doReturn(null).when(analyticsExecutor).submit(any(Runnable.class));
+    dynamicPricing.reset();
+    verify(variantCache, never()).clear();
+
+    ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
+    verify(analyticsExecutor, atLeastOnce()).submit(captor.capture());
+    for (Runnable task : captor.getAllValues()) {
+      task.run();
+    }
+    verify(variantCache).clear();
+  }
+
   @Test public void shutdownTwice() {
     assertThat(dynamicPricing.shutdown).isFalse();
     dynamicPricing.shutdown();
@@ -528,7 +656,10 @@ public class DynamicPricingTest {
     dynamicPricing = new DynamicPricing(application, networkExecutor, stats, traitsCache, analyticsContext,
         defaultOptions, Logger.with(NONE), "qaz", Collections.singletonList(factory), client,
         Cartographer.INSTANCE, projectSettingsCache, "foo", DEFAULT_FLUSH_QUEUE_SIZE,
-        DEFAULT_FLUSH_INTERVAL, analyticsExecutor, true, new CountDownLatch(0), false, optOut);
+        DEFAULT_FLUSH_INTERVAL, DEFAULT_FLUSH_CONCURRENCY, QUEUE_FILE, null,
+        PayloadQueue.MemoryQueue.DEFAULT_MAX_BYTES, analyticsExecutor, true,
+        advertisingIdGate, false, optOut, variantCache, variantFetcher, new int[0],
+        new EventRing(EventRing.DEFAULT_CAPACITY, DROP_OLDEST));
 
     callback.get().onActivityCreated(null, null);
 
@@ -586,7 +717,10 @@ public class DynamicPricingTest {
     dynamicPricing = new DynamicPricing(application, networkExecutor, stats, traitsCache, analyticsContext,
         defaultOptions, Logger.with(NONE), "qaz", Collections.singletonList(factory), client,
         Cartographer.INSTANCE, projectSettingsCache, "foo", DEFAULT_FLUSH_QUEUE_SIZE,
-        DEFAULT_FLUSH_INTERVAL, analyticsExecutor, true, new CountDownLatch(0), false, optOut);
+        DEFAULT_FLUSH_INTERVAL, DEFAULT_FLUSH_CONCURRENCY, QUEUE_FILE, null,
+        PayloadQueue.MemoryQueue.DEFAULT_MAX_BYTES, analyticsExecutor, true,
+        advertisingIdGate, false, optOut, variantCache, variantFetcher, new int[0],
+        new EventRing(EventRing.DEFAULT_CAPACITY, DROP_OLDEST));
 
     callback.get().onActivityCreated(null, null);
 
@@ -626,7 +760,9 @@ public class DynamicPricingTest {
     dynamicPricing = new DynamicPricing(application, networkExecutor, stats, traitsCache, analyticsContext,
         defaultOptions, Logger.with(NONE), "qaz", Collections.singletonList(factory), client,
         Cartographer.INSTANCE, projectSettingsCache, "foo", DEFAULT_FLUSH_QUEUE_SIZE,
-        DEFAULT_FLUSH_INTERVAL, analyticsExecutor, false, new CountDownLatch(0), true, optOut);
+        DEFAULT_FLUSH_INTERVAL, DEFAULT_FLUSH_CONCURRENCY, QUEUE_FILE, null,
+        PayloadQueue.MemoryQueue.DEFAULT_MAX_BYTES, analyticsExecutor, false, advertisingIdGate, true, optOut, variantCache, variantFetcher, new int[0],
+        new EventRing(EventRing.DEFAULT_CAPACITY, DROP_OLDEST));
 
     Activity activity = mock(Activity.class);
     PackageManager packageManager = mock(PackageManager.class);
@@ -665,7 +801,10 @@ public class DynamicPricingTest {
     dynamicPricing = new DynamicPricing(application, networkExecutor, stats, traitsCache, analyticsContext,
         defaultOptions, Logger.with(NONE), "qaz", Collections.singletonList(factory), client,
         Cartographer.INSTANCE, projectSettingsCache, "foo", DEFAULT_FLUSH_QUEUE_SIZE,
-        DEFAULT_FLUSH_INTERVAL, analyticsExecutor, false, new CountDownLatch(0), false, optOut);
+        DEFAULT_FLUSH_INTERVAL, DEFAULT_FLUSH_CONCURRENCY, QUEUE_FILE, null,
+        PayloadQueue.MemoryQueue.DEFAULT_MAX_BYTES, analyticsExecutor, false,
+        advertisingIdGate, false, optOut, variantCache, variantFetcher, new int[0],
+        new EventRing(EventRing.DEFAULT_CAPACITY, DROP_OLDEST));
 
     Activity activity = mock(Activity.class);
     Bundle bundle = new Bundle();
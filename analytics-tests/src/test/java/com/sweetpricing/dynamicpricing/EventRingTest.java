@@ -0,0 +1,130 @@
+package com.sweetpricing.dynamicpricing;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static com.sweetpricing.dynamicpricing.DynamicPricing.OverflowPolicy.BLOCK;
+import static com.sweetpricing.dynamicpricing.DynamicPricing.OverflowPolicy.DROP_NEWEST;
+import static com.sweetpricing.dynamicpricing.DynamicPricing.OverflowPolicy.DROP_OLDEST;
+import static com.sweetpricing.dynamicpricing.integrations.BasePayload.Type.track;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EventRingTest {
+  static class Names implements EventRing.Consumer {
+    final List<String> names = new ArrayList<>();
+
+    @Override public void accept(EventRing.Slot slot) {
+      names.add(slot.name);
+    }
+  }
+
+  private static boolean offer(EventRing ring, String name) {
+    return ring.offer(track, null, name, null, null, 0, null);
+  }
+
+  @Test public void roundsCapacityUpToPowerOfTwo() {
+    assertThat(new EventRing(1, DROP_OLDEST).capacity()).isEqualTo(2);
+    assertThat(new EventRing(8, DROP_OLDEST).capacity()).isEqualTo(8);
+    assertThat(new EventRing(9, DROP_OLDEST).capacity()).isEqualTo(16);
+  }
+
+  @Test public void drainsInOrderAcrossLaps() {
+    EventRing ring = new EventRing(4, DROP_NEWEST);
+    Names consumer = new Names();
+    assertThat(ring.isEmpty()).isTrue();
+    for (int lap = 0; lap < 3; lap++) {
+      for (int i = 0; i < 3; i++) {
+        assertThat(offer(ring, lap + "-" + i)).isTrue();
+      }
+      assertThat(ring.drain(consumer, 2)).isEqualTo(2);
+      assertThat(ring.drain(consumer, 10)).isEqualTo(1);
+      assertThat(ring.isEmpty()).isTrue();
+    }
+    assertThat(consumer.names).containsExactly("0-0", "0-1", "0-2", "1-0", "1-1", "1-2", "2-0",
+        "2-1", "2-2");
+  }
+
+  @Test public void dropNewestRejectsEventsWhenFull() {
+    EventRing ring = new EventRing(2, DROP_NEWEST);
+    assertThat(offer(ring, "a")).isTrue();
+    assertThat(offer(ring, "b")).isTrue();
+    assertThat(offer(ring, "c")).isFalse();
+    assertThat(ring.takeDroppedCount()).isEqualTo(1);
+    assertThat(ring.takeDroppedCount()).isEqualTo(0);
+
+    Names consumer = new Names();
+    ring.drain(consumer, 10);
+    assertThat(consumer.names).containsExactly("a", "b");
+  }
+
+  @Test public void dropOldestMakesRoomWhenFull() {
+    EventRing ring = new EventRing(2, DROP_OLDEST);
+    assertThat(offer(ring, "a")).isTrue();
+    assertThat(offer(ring, "b")).isTrue();
+    assertThat(offer(ring, "c")).isTrue();
+    assertThat(ring.takeDroppedCount()).isEqualTo(1);
+
+    Names consumer = new Names();
+    ring.drain(consumer, 10);
+    assertThat(consumer.names).containsExactly("b", "c");
+  }
+
+  @Test public void blockWaitsForRoom() throws InterruptedException {
+    final EventRing ring = new EventRing(2, BLOCK);
+    offer(ring, "a");
+    offer(ring, "b");
+    final CountDownLatch offered = new CountDownLatch(1);
+    new Thread(new Runnable() {
+      @Override public void run() {
+        offer(ring, "c");
+        offered.countDown();
+      }
+    }).start();
+    assertThat(offered.await(100, TimeUnit.MILLISECONDS)).isFalse();
+
+    Names consumer = new Names();
+    ring.drain(consumer, 1);
+    assertThat(offered.await(5, TimeUnit.SECONDS)).isTrue();
+    ring.drain(consumer, 10);
+    assertThat(consumer.names).containsExactly("a", "b", "c");
+    assertThat(ring.takeDroppedCount()).isEqualTo(0);
+  }
+
+  @Test public void concurrentProducersLoseNothing() throws InterruptedException {
+    final EventRing ring = new EventRing(64, BLOCK);
+    final int producers = 4;
+    final int perProducer = 10000;
+    final CountDownLatch done = new CountDownLatch(producers);
+    for (int p = 0; p < producers; p++) {
+      final int producer = p;
+      new Thread(new Runnable() {
+        @Override public void run() {
+          for (int i = 0; i < perProducer; i++) {
+            offer(ring, producer + "-" + i);
+          }
+          done.countDown();
+        }
+      }).start();
+    }
+
+    final Names consumer = new Names();
+    while (done.getCount() > 0 || !ring.isEmpty()) {
+      ring.drain(consumer, 16);
+    }
+    assertThat(consumer.names).hasSize(producers * perProducer);
+    Set<String> unique = new HashSet<>(consumer.names);
+    assertThat(unique).hasSize(producers * perProducer);
+    // Each producer's events come out in the order it published them.
+    int[] next = new int[producers];
+    for (String name : consumer.names) {
+      String[] parts = name.split("-");
+      int producer = Integer.parseInt(parts[0]);
+      assertThat(Integer.parseInt(parts[1])).isEqualTo(next[producer]++);
+    }
+  }
+}
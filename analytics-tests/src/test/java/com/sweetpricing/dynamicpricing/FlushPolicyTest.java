@@ -0,0 +1,126 @@
+package com.sweetpricing.dynamicpricing;
+
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FlushPolicyTest {
+  private FakeClock clock;
+  private FakeDevice device;
+  private FakeRandom random;
+  private FlushPolicy policy;
+
+  @Before public void setUp() {
+    clock = new FakeClock();
+    device = new FakeDevice();
+    random = new FakeRandom();
+    policy = new FlushPolicy.Adaptive(30000, 20, device, clock, random);
+  }
+
+  @Test public void flushesAtQueueSize() {
+    assertThat(policy.shouldFlushOnEnqueue(19)).isFalse();
+    assertThat(policy.shouldFlushOnEnqueue(20)).isTrue();
+    assertThat(policy.nextFlushDelayMillis(1)).isEqualTo(30000);
+  }
+
+  @Test public void batchesMoreOnMeteredNetworks() {
+    device.metered = true;
+    assertThat(policy.shouldFlushOnEnqueue(20)).isFalse();
+    assertThat(policy.shouldFlushOnEnqueue(79)).isFalse();
+    assertThat(policy.shouldFlushOnEnqueue(80)).isTrue();
+    assertThat(policy.nextFlushDelayMillis(1)).isEqualTo(60000);
+  }
+
+  @Test public void waitsLongerOnLowBattery() {
+    device.batteryLow = true;
+    assertThat(policy.nextFlushDelayMillis(1)).isEqualTo(120000);
+    // An empty queue has nothing to upload, so the device isn't queried.
+    assertThat(policy.nextFlushDelayMillis(0)).isEqualTo(30000);
+  }
+
+  @Test public void backsOffExponentiallyAfterFailures() {
+    policy.onFlushFailed(0);
+    assertThat(policy.nextFlushDelayMillis(1)).isEqualTo(30000);
+    clock.now += 10000;
+    assertThat(policy.nextFlushDelayMillis(1)).isEqualTo(20000);
+    assertThat(policy.shouldFlushOnEnqueue(100)).isFalse();
+    assertThat(policy.shouldFlushOnBackground(100)).isFalse();
+    assertThat(policy.shouldFlushOnNetworkActivity(100)).isFalse();
+
+    policy.onFlushFailed(0);
+    assertThat(policy.nextFlushDelayMillis(1)).isEqualTo(60000);
+    policy.onFlushFailed(0);
+    assertThat(policy.nextFlushDelayMillis(1)).isEqualTo(120000);
+    for (int i = 0; i < 20; i++) {
+      policy.onFlushFailed(0);
+    }
+    assertThat(policy.nextFlushDelayMillis(1)).isEqualTo(FlushPolicy.Adaptive.MAX_BACKOFF_MILLIS);
+
+    clock.now += FlushPolicy.Adaptive.MAX_BACKOFF_MILLIS;
+    assertThat(policy.shouldFlushOnEnqueue(20)).isTrue();
+  }
+
+  @Test public void jitterShortensBackoff() {
+    random.next = 0.5;
+    policy.onFlushFailed(0);
+    assertThat(policy.nextFlushDelayMillis(1)).isEqualTo(22500);
+    policy.onFlushFailed(0);
+    assertThat(policy.nextFlushDelayMillis(1)).isEqualTo(45000);
+  }
+
+  @Test public void retryAfterExtendsBackoff() {
+    policy.onFlushFailed(90000);
+    assertThat(policy.nextFlushDelayMillis(1)).isEqualTo(90000);
+    // A shorter Retry-After doesn't cut the backoff short.
+    policy.onFlushFailed(1000);
+    assertThat(policy.nextFlushDelayMillis(1)).isEqualTo(60000);
+    policy.onFlushFailed(Long.MAX_VALUE);
+    assertThat(policy.nextFlushDelayMillis(1)).isEqualTo(FlushPolicy.Adaptive.MAX_BACKOFF_MILLIS);
+  }
+
+  @Test public void successResetsBackoff() {
+    policy.onFlushFailed(0);
+    policy.onFlushFailed(0);
+    policy.onFlushSucceeded();
+    assertThat(policy.nextFlushDelayMillis(1)).isEqualTo(30000);
+    assertThat(policy.shouldFlushOnEnqueue(20)).isTrue();
+  }
+
+  @Test public void flushesEarlyOnBackgroundAndNetworkActivity() {
+    assertThat(policy.shouldFlushOnBackground(0)).isFalse();
+    assertThat(policy.shouldFlushOnBackground(1)).isTrue();
+    assertThat(policy.shouldFlushOnNetworkActivity(0)).isFalse();
+    assertThat(policy.shouldFlushOnNetworkActivity(1)).isTrue();
+  }
+
+  static class FakeClock implements FlushPolicy.Clock {
+    long now = 1000;
+
+    @Override public long uptimeMillis() {
+      return now;
+    }
+  }
+
+  static class FakeRandom extends Random {
+    double next;
+
+    @Override public double nextDouble() {
+      return next;
+    }
+  }
+
+  static class FakeDevice implements FlushPolicy.Device {
+    boolean metered;
+    boolean batteryLow;
+
+    @Override public boolean isNetworkMetered() {
+      return metered;
+    }
+
+    @Override public boolean isBatteryLow() {
+      return batteryLow;
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package com.sweetpricing.dynamicpricing;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static junit.framework.Assert.fail;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MemoryQueueTest {
+  private static byte[] payload(int i, int length) {
+    byte[] data = new byte[length];
+    Arrays.fill(data, (byte) i);
+    return data;
+  }
+
+  private static List<byte[]> readAll(PayloadQueue queue) throws IOException {
+    final List<byte[]> payloads = new ArrayList<>();
+    queue.forEach(new PayloadQueue.ElementVisitor() {
+      @Override public boolean read(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        assertThat(in.read(data, 0, length)).isEqualTo(length);
+        assertThat(in.read()).isEqualTo(-1);
+        payloads.add(data);
+        return true;
+      }
+    });
+    return payloads;
+  }
+
+  @Test public void removeRemovesEldestElements() throws IOException {
+    PayloadQueue.MemoryQueue queue = new PayloadQueue.MemoryQueue(1024);
+    for (int i = 0; i < 5; i++) {
+      queue.add(payload(i, 10));
+    }
+    queue.remove(3);
+    assertThat(queue.size()).isEqualTo(2);
+    assertThat(readAll(queue)).containsExactly(payload(3, 10), payload(4, 10));
+  }
+
+  @Test public void growsAndWrapsAroundTheRing() throws IOException {
+    PayloadQueue.MemoryQueue queue = new PayloadQueue.MemoryQueue(1024 * 1024);
+    List<byte[]> expected = new ArrayList<>();
+    for (int round = 0; round < 20; round++) {
+      for (int i = 0; i < 30; i++) {
+        byte[] data = payload(round + i, 100 + round * 37 + i);
+        queue.add(data);
+        expected.add(data);
+      }
+      queue.remove(25);
+      expected.subList(0, 25).clear();
+      assertThat(readAll(queue)).containsExactly(expected.toArray(new byte[0][]));
+    }
+  }
+
+  @Test public void evictsEldestElementsOverBudget() throws IOException {
+    PayloadQueue.MemoryQueue queue = new PayloadQueue.MemoryQueue(100);
+    queue.addAll(Arrays.asList(payload(0, 40), payload(1, 40)));
+    queue.add(payload(2, 40));
+    assertThat(queue.size()).isEqualTo(2);
+    assertThat(readAll(queue)).containsExactly(payload(1, 40), payload(2, 40));
+
+    try {
+      queue.add(payload(3, 101));
+      fail();
+    } catch (IOException expected) {
+    }
+    assertThat(queue.size()).isEqualTo(2);
+  }
+
+  @Test public void removeAfterEvictionRemovesAsMany() throws IOException {
+    PayloadQueue.MemoryQueue queue = new PayloadQueue.MemoryQueue(100);
+    for (int i = 0; i < 11; i++) {
+      queue.add(payload(i, 10));
+    }
+    assertThat(queue.size()).isEqualTo(10);
+    queue.remove(1);
+    assertThat(queue.size()).isEqualTo(9);
+    assertThat(readAll(queue).get(0)).isEqualTo(payload(2, 10));
+  }
+
+  @Test public void evictionsMoveHeadSequence() throws IOException {
+    PayloadQueue.MemoryQueue queue = new PayloadQueue.MemoryQueue(100);
+    queue.add(payload(0, 40));
+    queue.add(payload(1, 40));
+    final List<byte[]> uploading = new ArrayList<>();
+    long first = queue.forEach(0, Long.MAX_VALUE, new PayloadQueue.ElementVisitor() {
+      @Override public boolean read(InputStream in, int length) throws IOException {
+        uploading.add(new byte[length]);
+        return true;
+      }
+    });
+    assertThat(first).isEqualTo(0);
+    assertThat(uploading).hasSize(2);
+
+    // Evicts payload 0 while payloads 0 and 1 are being uploaded.
+    queue.add(payload(2, 40));
+    assertThat(queue.headSequence()).isEqualTo(1);
+    assertThat(queue.removeUntil(first + uploading.size())).isEqualTo(1);
+    assertThat(queue.headSequence()).isEqualTo(2);
+    assertThat(readAll(queue)).containsExactly(payload(2, 40));
+    assertThat(queue.removeUntil(2)).isEqualTo(0);
+  }
+
+  @Test public void forEachBySequenceSkipsElementsThatLeft() throws IOException {
+    PayloadQueue.MemoryQueue queue = new PayloadQueue.MemoryQueue(1024);
+    for (int i = 0; i < 6; i++) {
+      queue.add(payload(i, 10));
+    }
+    queue.remove(2);
+    final List<byte[]> visited = new ArrayList<>();
+    PayloadQueue.ElementVisitor visitor = new PayloadQueue.ElementVisitor() {
+      @Override public boolean read(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        in.read(data, 0, length);
+        visited.add(data);
+        return true;
+      }
+    };
+
+    assertThat(queue.forEach(1, 4, visitor)).isEqualTo(2);
+    assertThat(visited).containsExactly(payload(2, 10), payload(3, 10));
+    visited.clear();
+    assertThat(queue.forEach(5, Long.MAX_VALUE, visitor)).isEqualTo(5);
+    assertThat(visited).containsExactly(payload(5, 10));
+  }
+}
@@ -0,0 +1,143 @@
+package com.sweetpricing.dynamicpricing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PayloadFormatTest {
+  private static final String MESSAGE_ID = "a161304c-498c-4830-9291-fcfb8498877b";
+  private static final String CONTEXT = "{\"app\":{\"name\":\"Sweet\"},\"traits\":{}}";
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private static byte[] bytes(String s) throws IOException {
+    return s.getBytes("UTF-8");
+  }
+
+  /** Encodes the JSON, finding the values of the keys like the cartographer would. */
+  private static byte[] encode(String json, String messageId, ContextStore contexts)
+      throws IOException {
+    int[] offsets = new int[PayloadFormat.KEYS.length * 2];
+    for (int i = 0; i < PayloadFormat.KEYS.length; i++) {
+      String name = "\"" + PayloadFormat.KEYS[i] + "\":";
+      int start = json.indexOf(name);
+      if (start == -1) {
+        offsets[i * 2] = offsets[i * 2 + 1] = -1;
+        continue;
+      }
+      start += name.length();
+      String value = i == 0 ? CONTEXT : "\"" + messageId + "\"";
+      offsets[i * 2] = bytes(json.substring(0, start)).length;
+      offsets[i * 2 + 1] = offsets[i * 2] + bytes(value).length;
+    }
+    return PayloadFormat.encode(bytes(json), offsets, messageId, contexts);
+  }
+
+  private static byte[] roundTrip(String json, String messageId, ContextStore contexts)
+      throws IOException {
+    byte[] record = encode(json, messageId, contexts);
+    assertThat(PayloadFormat.isBinary(record, record.length)).isTrue();
+    assertThat(PayloadFormat.renderedLength(record, record.length, contexts)) //
+        .isEqualTo(bytes(json).length);
+    assertThat(new String(PayloadFormat.render(record, contexts), "UTF-8")).isEqualTo(json);
+    return record;
+  }
+
+  @Test public void messageIdBeforeContext() throws IOException {
+    String json = "{\"messageId\":\"" + MESSAGE_ID + "\",\"type\":\"track\",\"context\":" + CONTEXT
+        + ",\"event\":\"\u00e9\"}";
+    byte[] record = roundTrip(json, MESSAGE_ID, new ContextStore());
+    // The 36 character message ID packs into 16 bytes, less 12 bytes for the rest of the header.
+    assertThat(record.length).isEqualTo(bytes(json).length - CONTEXT.length() - 8);
+  }
+
+  @Test public void messageIdAfterContext() throws IOException {
+    String json = "{\"context\":" + CONTEXT + ",\"messageId\":\"" + MESSAGE_ID + "\"}";
+    roundTrip(json, MESSAGE_ID, new ContextStore());
+  }
+
+  @Test public void messageIdThatIsNotAUuidIsLeftInTheBody() throws IOException {
+    String json = "{\"messageId\":\"foo\",\"context\":" + CONTEXT + "}";
+    roundTrip(json, "foo", new ContextStore());
+    String upperCase = MESSAGE_ID.toUpperCase();
+    roundTrip("{\"messageId\":\"" + upperCase + "\",\"context\":" + CONTEXT + "}", upperCase,
+        new ContextStore());
+  }
+
+  @Test public void payloadWithoutContextIsStoredAsJson() throws IOException {
+    byte[] json = bytes("{\"messageId\":\"" + MESSAGE_ID + "\"}");
+    byte[] record = encode(new String(json, "UTF-8"), MESSAGE_ID, new ContextStore());
+    assertThat(record).isEqualTo(json);
+    assertThat(PayloadFormat.isBinary(record, record.length)).isFalse();
+    assertThat(PayloadFormat.render(record, new ContextStore())).isEqualTo(json);
+  }
+
+  @Test public void readsContextHash() throws IOException {
+    ContextStore contexts = new ContextStore();
+    byte[] record = encode("{\"context\":" + CONTEXT + "}", null, contexts);
+    Set<Long> hashes = new HashSet<>();
+    PayloadFormat.readContextHash(new ByteArrayInputStream(record), hashes);
+    PayloadFormat.readContextHash(new ByteArrayInputStream(bytes("{}")), hashes);
+    assertThat(hashes).containsExactly(ContextStore.hash(bytes(CONTEXT)));
+  }
+
+  @Test public void contextStorePersistsAndCompacts() throws IOException {
+    File file = new File(folder.getRoot(), "contexts");
+    ContextStore contexts = new ContextStore(file);
+    long first = contexts.put(bytes(CONTEXT));
+    long second = contexts.put(bytes("{}"));
+    assertThat(contexts.put(bytes(CONTEXT))).isEqualTo(first);
+    assertThat(contexts.size()).isEqualTo(2);
+    contexts.close();
+
+    contexts = new ContextStore(file);
+    assertThat(contexts.get(first)).isEqualTo(bytes(CONTEXT));
+    assertThat(contexts.get(second)).isEqualTo(bytes("{}"));
+    contexts.retainAll(Collections.singleton(second));
+    assertThat(contexts.get(first)).isNull();
+    contexts.put(bytes("{\"a\":1}"));
+    contexts.close();
+
+    contexts = new ContextStore(file);
+    assertThat(contexts.size()).isEqualTo(2);
+    assertThat(contexts.get(second)).isEqualTo(bytes("{}"));
+  }
+
+  @Test public void collidingContextIsStoredUnderAnotherKey() throws IOException {
+    // A context stored under the hash of another one, as if their hashes collided.
+    File file = new File(folder.getRoot(), "contexts");
+    QueueFile queueFile = new QueueFile(file);
+    ByteArrayOutputStream element = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(element);
+    out.writeLong(ContextStore.hash(bytes(CONTEXT)));
+    out.write(bytes("{}"));
+    queueFile.add(element.toByteArray());
+    queueFile.close();
+
+    ContextStore contexts = new ContextStore(file);
+    long key = contexts.put(bytes(CONTEXT));
+    assertThat(key).isNotEqualTo(ContextStore.hash(bytes(CONTEXT)));
+    assertThat(contexts.get(key)).isEqualTo(bytes(CONTEXT));
+    assertThat(contexts.put(bytes(CONTEXT))).isEqualTo(key);
+    String json = "{\"context\":" + CONTEXT + "}";
+    roundTrip(json, null, contexts);
+    contexts.close();
+  }
+
+  @Test public void missingContextRendersAsEmpty() throws IOException {
+    String json = "{\"context\":" + CONTEXT + "}";
+    byte[] record = encode(json, null, new ContextStore());
+    assertThat(new String(PayloadFormat.render(record, new ContextStore()), "UTF-8")) //
+        .isEqualTo("{\"context\":{}}");
+  }
+}
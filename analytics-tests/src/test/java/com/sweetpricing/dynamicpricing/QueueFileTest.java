@@ -9,7 +9,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Queue;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -765,6 +768,240 @@ import static org.assertj.core.api.Assertions.assertThat;
     assertThat(queueFile2.size()).isEqualTo(queueSize);
   }
 
+  @Test public void addAllAddsElementsInOrder() throws IOException {
+    QueueFile queue = new QueueFile(file);
+    queue.add(values[1]);
+    queue.addAll(Arrays.asList(values[2], values[0], values[253]));
+    assertThat(queue.size()).isEqualTo(4);
+    queue.close();
+
+    queue = new QueueFile(file);
+    assertThat(queue.size()).isEqualTo(4);
+    assertThat(queue.peek()).isEqualTo(values[1]);
+    queue.remove();
+    assertThat(queue.peek()).isEqualTo(values[2]);
+    queue.remove();
+    assertThat(queue.peek()).isEqualTo(values[0]);
+    queue.remove();
+    assertThat(queue.peek()).isEqualTo(values[253]);
+  }
+
+  @Test public void addAllToEmptyQueueWrapsAndExpands() throws IOException {
+    Queue<byte[]> expected = new LinkedList<byte[]>();
+    QueueFile queue = new QueueFile(file);
+    for (int i = 0; i < 80; i++) {
+      expected.add(values[i]);
+      queue.add(values[i]);
+    }
+    for (int i = 1; i < 80; i++) {
+      assertThat(queue.peek()).isEqualTo(expected.remove());
+      queue.remove();
+    }
+
+    List<byte[]> batch = new ArrayList<>();
+    for (int i = 0; i < N; i++) {
+      batch.add(values[i]);
+      expected.add(values[i]);
+    }
+    queue.addAll(batch);
+    queue.close();
+
+    queue = new QueueFile(file);
+    assertThat(queue.size()).isEqualTo(expected.size());
+    while (!expected.isEmpty()) {
+      assertThat(queue.peek()).isEqualTo(expected.remove());
+      queue.remove();
+    }
+  }
+
+  @Test public void failedAddAllDoesNotCommit() throws IOException {
+    QueueFile queueFile = new QueueFile(file);
+    queueFile.add(values[253]);
+    queueFile.close();
+
+    final BrokenRandomAccessFile braf = new BrokenRandomAccessFile(file, "rwd");
+    queueFile = new QueueFile(braf);
+    try {
+      queueFile.addAll(Arrays.asList(values[252], values[251]));
+      fail();
+    } catch (IOException e) { /* expected */ }
+    queueFile.close();
+
+    queueFile = new QueueFile(file);
+    assertThat(queueFile.size()).isEqualTo(1);
+    assertThat(queueFile.peek()).isEqualTo(values[253]);
+  }
+
+  @Test public void peekAtIndex() throws IOException {
+    QueueFile queue = new QueueFile(file);
+    for (int i = 0; i < 40; i++) {
+      queue.add(values[i]);
+    }
+    assertThat(queue.peek(0)).isEqualTo(values[0]);
+    assertThat(queue.peek(17)).isEqualTo(values[17]);
+    assertThat(queue.peek(39)).isEqualTo(values[39]);
+    queue.remove(5);
+    assertThat(queue.peek(0)).isEqualTo(values[5]);
+    assertThat(queue.peek(34)).isEqualTo(values[39]);
+    try {
+      queue.peek(35);
+      fail();
+    } catch (IndexOutOfBoundsException expected) {
+    }
+    try {
+      queue.peek(-1);
+      fail();
+    } catch (IndexOutOfBoundsException expected) {
+    }
+  }
+
+  @Test public void forEachRange() throws IOException {
+    QueueFile queue = new QueueFile(file);
+    for (int i = 0; i < 10; i++) {
+      queue.add(values[i + 1]);
+    }
+    final List<byte[]> seen = new ArrayList<>();
+    PayloadQueue.ElementVisitor elementVisitor = new PayloadQueue.ElementVisitor() {
+      @Override public boolean read(InputStream in, int length) throws IOException {
+        byte[] actual = new byte[length];
+        in.read(actual);
+        seen.add(actual);
+        return seen.size() < 3;
+      }
+    };
+
+    assertThat(queue.forEach(4, 8, elementVisitor)).isEqualTo(3);
+    assertThat(seen).containsExactly(values[5], values[6], values[7]);
+    assertThat(queue.forEach(10, 10, elementVisitor)).isEqualTo(0);
+    try {
+      queue.forEach(5, 11, elementVisitor);
+      fail();
+    } catch (IndexOutOfBoundsException expected) {
+    }
+  }
+
+  @Test public void indexSurvivesWrapExpansionAndReopen() throws IOException {
+    QueueFile queue = new QueueFile(file);
+    Queue<byte[]> expected = new LinkedList<>();
+    // Fill most of the initial file, then free the front so later elements wrap around the end.
+    for (int i = 0; i < 20; i++) {
+      queue.add(values[100 + i]);
+      expected.add(values[100 + i]);
+    }
+    assertThat(queue.peek(19)).isEqualTo(values[119]);
+    queue.remove(15);
+    for (int i = 0; i < 15; i++) {
+      expected.remove();
+    }
+    // Wraps, then forces an expansion while the elements are split across the end of the file.
+    for (int i = 0; i < 60; i++) {
+      queue.add(values[150 + i % 100]);
+      expected.add(values[150 + i % 100]);
+    }
+    assertIndexMatches(queue, expected);
+    queue.remove(30);
+    for (int i = 0; i < 30; i++) {
+      expected.remove();
+    }
+    assertIndexMatches(queue, expected);
+    queue.close();
+
+    queue = new QueueFile(file);
+    assertIndexMatches(queue, expected);
+  }
+
+  @Test public void addAllGrowsIndex() throws IOException {
+    QueueFile queue = new QueueFile(file);
+    Queue<byte[]> expected = new LinkedList<>();
+    for (int i = 0; i < 10; i++) {
+      queue.add(values[i]);
+      expected.add(values[i]);
+    }
+    // Builds the index, which then has to grow twice to take the batch.
+    assertThat(queue.peek(9)).isEqualTo(values[9]);
+    List<byte[]> batch = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      batch.add(values[20 + i]);
+      expected.add(values[20 + i]);
+    }
+    queue.addAll(batch);
+    assertIndexMatches(queue, expected);
+    queue.add(values[1]);
+    expected.add(values[1]);
+    assertIndexMatches(queue, expected);
+  }
+
+  private static void assertIndexMatches(QueueFile queue, Queue<byte[]> expected)
+      throws IOException {
+    assertThat(queue.size()).isEqualTo(expected.size());
+    int i = 0;
+    for (byte[] value : expected) {
+      assertThat(queue.peek(i++)).isEqualTo(value);
+    }
+  }
+
+  @Test public void mappedQueueOpensSynchronousQueue() throws IOException {
+    QueueFile queue = new QueueFile(file);
+    for (int i = 0; i < 10; i++) {
+      queue.add(values[i]);
+    }
+    queue.close();
+
+    queue = new QueueFile(file, QueueFile.ForcePolicy.NEVER);
+    assertThat(queue.size()).isEqualTo(10);
+    assertThat(queue.peek()).isEqualTo(values[0]);
+    queue.remove(3);
+    queue.add(values[253]);
+    queue.close();
+
+    queue = new QueueFile(file);
+    assertThat(queue.size()).isEqualTo(8);
+    assertThat(queue.peek()).isEqualTo(values[3]);
+  }
+
+  @Test public void mappedQueueSurvivesSplitExpansion() throws IOException {
+    Queue<byte[]> expected = new LinkedList<byte[]>();
+    QueueFile queue = new QueueFile(file, QueueFile.ForcePolicy.ALWAYS);
+
+    for (int i = 0; i < 80; i++) {
+      expected.add(values[i]);
+      queue.add(values[i]);
+    }
+    for (int i = 1; i < 80; i++) {
+      assertThat(queue.peek()).isEqualTo(expected.remove());
+      queue.remove();
+    }
+    // This should wrap around before expanding.
+    for (int i = 0; i < N; i++) {
+      expected.add(values[i]);
+      queue.add(values[i]);
+    }
+    queue.close();
+
+    queue = new QueueFile(file, QueueFile.ForcePolicy.COMMIT);
+    assertThat(queue.size()).isEqualTo(expected.size());
+    while (!expected.isEmpty()) {
+      assertThat(queue.peek()).isEqualTo(expected.remove());
+      queue.remove();
+    }
+    queue.close();
+  }
+
+  @Test public void mappedQueueClearTruncatesFile() throws IOException {
+    QueueFile queue = new QueueFile(file, QueueFile.ForcePolicy.COMMIT);
+    for (int i = 0; i < N; i++) {
+      queue.add(values[i]);
+    }
+    assertThat(queue.fileLength).isGreaterThan(4096);
+
+    queue.clear();
+    assertThat(queue.isEmpty()).isTrue();
+    assertThat(file.length()).isEqualTo(4096);
+
+    queue.add(values[25]);
+    assertThat(queue.peek()).isEqualTo(values[25]);
+  }
+
   /*
   @Test public void testOverflow() throws IOException {
     QueueFile queueFile = new QueueFile(file);
@@ -0,0 +1,258 @@
+package com.sweetpricing.dynamicpricing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static junit.framework.Assert.fail;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SegmentedQueueTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+  private File directory;
+
+  @Before public void setUp() {
+    directory = new File(folder.getRoot(), "segments");
+  }
+
+  private static byte[] payload(int i, int length) {
+    byte[] data = new byte[length];
+    Arrays.fill(data, (byte) i);
+    return data;
+  }
+
+  private static List<byte[]> readAll(PayloadQueue queue) throws IOException {
+    final List<byte[]> payloads = new ArrayList<>();
+    queue.forEach(new PayloadQueue.ElementVisitor() {
+      @Override public boolean read(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        assertThat(in.read(data, 0, length)).isEqualTo(length);
+        assertThat(in.read()).isEqualTo(-1);
+        payloads.add(data);
+        return true;
+      }
+    });
+    return payloads;
+  }
+
+  private int segmentCount() {
+    int count = 0;
+    for (String name : directory.list()) {
+      if (name.endsWith(SegmentedQueue.SEGMENT_SUFFIX)) count++;
+    }
+    return count;
+  }
+
+  @Test public void addAndReadAcrossSegments() throws IOException {
+    SegmentedQueue queue = new SegmentedQueue(directory, 64);
+    for (int i = 0; i < 10; i++) {
+      queue.add(payload(i, 20));
+    }
+    queue.addAll(Arrays.asList(payload(10, 100), payload(11, 1)));
+
+    assertThat(queue.size()).isEqualTo(12);
+    List<byte[]> payloads = readAll(queue);
+    assertThat(payloads).hasSize(12);
+    assertThat(payloads.get(3)).isEqualTo(payload(3, 20));
+    assertThat(payloads.get(10)).isEqualTo(payload(10, 100));
+    assertThat(payloads.get(11)).isEqualTo(payload(11, 1));
+    // Two 24 byte payloads fit in each 64 byte segment, and the oversized one gets its own.
+    assertThat(segmentCount()).isEqualTo(7);
+  }
+
+  @Test public void removeDeletesConsumedSegments() throws IOException {
+    SegmentedQueue queue = new SegmentedQueue(directory, 64);
+    for (int i = 0; i < 10; i++) {
+      queue.add(payload(i, 20));
+    }
+    queue.remove(5);
+    assertThat(queue.size()).isEqualTo(5);
+    assertThat(segmentCount()).isEqualTo(3);
+    assertThat(readAll(queue).get(0)).isEqualTo(payload(5, 20));
+
+    queue.remove(5);
+    assertThat(queue.size()).isEqualTo(0);
+    assertThat(segmentCount()).isEqualTo(0);
+    assertThat(readAll(queue)).isEmpty();
+
+    queue.add(payload(20, 3));
+    assertThat(readAll(queue)).containsExactly(payload(20, 3));
+  }
+
+  @Test public void forEachFromIndexSkipsAcrossSegments() throws IOException {
+    SegmentedQueue queue = new SegmentedQueue(directory, 64);
+    for (int i = 0; i < 10; i++) {
+      queue.add(payload(i, 20));
+    }
+    queue.remove(1);
+    final List<byte[]> payloads = new ArrayList<>();
+    queue.forEach(4, new PayloadQueue.ElementVisitor() {
+      @Override public boolean read(InputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        in.read(data, 0, length);
+        payloads.add(data);
+        return payloads.size() < 2;
+      }
+    });
+    assertThat(payloads).containsExactly(payload(5, 20), payload(6, 20));
+  }
+
+  @Test public void removeValidatesCount() throws IOException {
+    SegmentedQueue queue = new SegmentedQueue(directory);
+    queue.add(payload(1, 1));
+    try {
+      queue.remove(2);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      queue.remove(-1);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test public void reopenResumesFromCheckpoint() throws IOException {
+    SegmentedQueue queue = new SegmentedQueue(directory, 64);
+    for (int i = 0; i < 9; i++) {
+      queue.add(payload(i, 20));
+    }
+    queue.remove(3);
+    queue.close();
+
+    queue = new SegmentedQueue(directory, 64);
+    assertThat(queue.size()).isEqualTo(6);
+    queue.add(payload(9, 20));
+    List<byte[]> payloads = readAll(queue);
+    assertThat(payloads).hasSize(7);
+    assertThat(payloads.get(0)).isEqualTo(payload(3, 20));
+    assertThat(payloads.get(6)).isEqualTo(payload(9, 20));
+    queue.close();
+
+    queue = new SegmentedQueue(directory, 64);
+    queue.remove(7);
+    queue.close();
+    queue = new SegmentedQueue(directory, 64);
+    assertThat(queue.size()).isEqualTo(0);
+    queue.add(payload(10, 5));
+    assertThat(readAll(queue)).containsExactly(payload(10, 5));
+  }
+
+  @Test public void partialTrailingPayloadIsDiscarded() throws IOException {
+    SegmentedQueue queue = new SegmentedQueue(directory);
+    queue.add(payload(1, 10));
+    queue.add(payload(2, 10));
+    queue.close();
+
+    // Simulate the process dying halfway through writing the second payload.
+    RandomAccessFile raf = new RandomAccessFile(new File(directory, "0.seg"), "rw");
+    raf.setLength(20);
+    raf.close();
+
+    queue = new SegmentedQueue(directory);
+    assertThat(queue.size()).isEqualTo(1);
+    queue.add(payload(3, 10));
+    assertThat(readAll(queue)).containsExactly(payload(1, 10), payload(3, 10));
+  }
+
+  private File legacyQueueFile(int count) throws IOException {
+    File file = new File(folder.getRoot(), "legacy");
+    QueueFile legacy = new QueueFile(file);
+    for (int i = 0; i < count; i++) {
+      legacy.add(payload(i, i + 1));
+    }
+    legacy.remove(1);
+    legacy.close();
+    return file;
+  }
+
+  @Test public void migrateMovesLegacyQueueFile() throws IOException {
+    File legacyFile = legacyQueueFile(5);
+
+    SegmentedQueue queue = new SegmentedQueue(directory);
+    queue.add(payload(9, 2));
+    queue.migrate(legacyFile);
+    assertThat(legacyFile.exists()).isFalse();
+    queue.add(payload(10, 2));
+
+    List<byte[]> expected = Arrays.asList(payload(9, 2), payload(1, 2), payload(2, 3),
+        payload(3, 4), payload(4, 5), payload(10, 2));
+    assertThat(readAll(queue)).containsExactlyElementsOf(expected);
+    queue.close();
+    queue = new SegmentedQueue(directory);
+    assertThat(readAll(queue)).containsExactlyElementsOf(expected);
+    assertThat(directory.list()).doesNotContain(SegmentedQueue.MIGRATING_PREFIX + "1");
+
+    // Nothing left to migrate.
+    queue.migrate(legacyFile);
+    assertThat(queue.size()).isEqualTo(6);
+  }
+
+  @Test public void migrationInterruptedBeforeCommitIsRedone() throws IOException {
+    SegmentedQueue queue = new SegmentedQueue(directory);
+    queue.add(payload(9, 2));
+    queue.close();
+    // Simulate the process dying after the legacy file was moved, while the segment was written.
+    File legacyFile = legacyQueueFile(3);
+    assertThat(legacyFile.renameTo(new File(directory, SegmentedQueue.MIGRATING_PREFIX + "1")))
+        .isTrue();
+    new File(directory, "1.seg.tmp").createNewFile();
+
+    queue = new SegmentedQueue(directory);
+    assertThat(queue.size()).isEqualTo(1);
+    queue.add(payload(10, 2));
+    queue.migrate(legacyFile);
+    assertThat(readAll(queue)).containsExactly(payload(9, 2), payload(10, 2), payload(1, 2),
+        payload(2, 3));
+    assertThat(directory.list()).containsOnly("0.seg", "2.seg");
+  }
+
+  @Test public void migrationInterruptedAfterCommitIsNotRepeated() throws IOException {
+    File legacyFile = legacyQueueFile(3);
+    SegmentedQueue queue = new SegmentedQueue(directory);
+    queue.migrate(legacyFile);
+    queue.close();
+    // Simulate the process dying after the segment was renamed into place, before the legacy file
+    // was deleted.
+    legacyFile = legacyQueueFile(3);
+    assertThat(legacyFile.renameTo(new File(directory, SegmentedQueue.MIGRATING_PREFIX + "0")))
+        .isTrue();
+
+    queue = new SegmentedQueue(directory);
+    queue.migrate(legacyFile);
+    assertThat(readAll(queue)).containsExactly(payload(1, 2), payload(2, 3));
+    assertThat(directory.list()).containsOnly("0.seg");
+  }
+
+  @Test public void failedMigrationKeepsLegacyFile() throws IOException {
+    File legacyFile = new File(folder.getRoot(), "legacy");
+    RandomAccessFile raf = new RandomAccessFile(legacyFile, "rw");
+    raf.writeInt(-1); // Not a valid queue file.
+    raf.close();
+
+    SegmentedQueue queue = new SegmentedQueue(directory);
+    try {
+      queue.migrate(legacyFile);
+      fail("A corrupt queue file should not migrate.");
+    } catch (IOException expected) {
+    }
+    assertThat(queue.size()).isEqualTo(0);
+    File pending = new File(directory, SegmentedQueue.MIGRATING_PREFIX + "0");
+    assertThat(pending.exists()).isTrue();
+
+    // Opening the segments again, or deleting them, keeps the payloads to migrate.
+    SegmentedQueue.deleteSegments(directory);
+    assertThat(pending.exists()).isTrue();
+    queue = new SegmentedQueue(directory);
+    queue.add(payload(1, 1));
+    assertThat(directory.list()).contains("1.seg");
+  }
+}
@@ -58,6 +58,18 @@ public class StatsTest {
     assertThat(stats.flushEventCount).isEqualTo(14);
   }
 
+  @Test public void performFlushRetryAndDeadLetter() throws IOException {
+    stats.performFlushRetry();
+    stats.performFlushRetry();
+    stats.performDeadLetter(3);
+    stats.performDeadLetter(4);
+
+    StatsSnapshot snapshot = stats.createSnapshot();
+    assertThat(snapshot.flushRetryCount).isEqualTo(2);
+    assertThat(snapshot.deadLetterEventCount).isEqualTo(7);
+    assertThat(snapshot.flushCount).isEqualTo(0);
+  }
+
   @Test public void performIntegrationOperation() throws IOException {
     stats.performIntegrationOperation(new Pair<>("foo", 43L));
     assertThat(stats.integrationOperationCount).isEqualTo(1);
@@ -78,6 +90,20 @@ public class StatsTest {
         .contains(MapEntry.entry("bar", 21L));
   }
 
+  @Test public void performOperationRun() throws IOException {
+    stats.performOperationRun(false, new Pair<>(4L, 10L));
+    stats.performOperationRun(false, new Pair<>(8L, 2L));
+    stats.performOperationRun(true, new Pair<>(1L, 30L));
+
+    StatsSnapshot snapshot = stats.createSnapshot();
+    assertThat(snapshot.mainThreadOperationCount).isEqualTo(2);
+    assertThat(snapshot.mainThreadOperationAverageLatency).isEqualTo(6f);
+    assertThat(snapshot.mainThreadOperationDuration).isEqualTo(12L);
+    assertThat(snapshot.backgroundOperationCount).isEqualTo(1);
+    assertThat(snapshot.backgroundOperationAverageLatency).isEqualTo(1f);
+    assertThat(snapshot.backgroundOperationDuration).isEqualTo(30L);
+  }
+
   @Test public void createSnapshot() throws IOException {
     stats.performFlush(1);
     stats.performFlush(1);
@@ -3,27 +3,40 @@ package com.sweetpricing.dynamicpricing;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.net.Uri;
 import com.sweetpricing.dynamicpricing.core.tests.BuildConfig;
+import com.sweetpricing.dynamicpricing.integrations.BasePayload;
 import com.sweetpricing.dynamicpricing.integrations.Logger;
 import com.sweetpricing.dynamicpricing.integrations.TrackPayload;
 import com.sweetpricing.dynamicpricing.internal.Utils;
 import com.sweetpricing.dynamicpricing.test.TrackPayloadBuilder;
+import com.squareup.okhttp.mockwebserver.MockResponse;
+import com.squareup.okhttp.mockwebserver.rule.MockWebServerRule;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOError;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
+import java.util.zip.GZIPInputStream;
 import org.junit.After;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.robolectric.RobolectricGradleTestRunner;
 import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowLog;
@@ -41,6 +54,7 @@ import static com.sweetpricing.dynamicpricing.Utils.createContext;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Matchers.anyMap;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
@@ -58,6 +72,7 @@ import static org.mockito.MockitoAnnotations.initMocks;
 public class SweetpricingIntegrationTest {
 
   @Rule public TemporaryFolder folder = new TemporaryFolder();
+  @Rule public MockWebServerRule server = new MockWebServerRule();
 
   private static Client.Connection mockConnection() {
     return mockConnection(mock(HttpURLConnection.class));
@@ -75,13 +90,74 @@ public class SweetpricingIntegrationTest {
     assertThat(ShadowLog.getLogs()).isEmpty();
   }
 
+  /** Returns the JSON the record added to the queue renders to. */
+  private static String addedJson(PayloadQueue payloadQueue, ContextStore contextStore)
+      throws IOException {
+    ArgumentCaptor<byte[]> captor = ArgumentCaptor.forClass(byte[].class);
+    verify(payloadQueue).add(captor.capture());
+    return new String(PayloadFormat.render(captor.getValue(), contextStore), "UTF-8");
+  }
+
   @Test public void enqueueAddsToQueueFile() throws IOException {
     PayloadQueue payloadQueue = mock(PayloadQueue.class);
-    SweetpricingIntegration sweetpricingIntegration = new SweetpricingBuilder().payloadQueue(payloadQueue).build();
+    ContextStore contextStore = new ContextStore();
+    SweetpricingIntegration sweetpricingIntegration = new SweetpricingBuilder() //
+        .payloadQueue(payloadQueue).contextStore(contextStore).build();
 
     sweetpricingIntegration.performEnqueue(TRACK_PAYLOAD);
 
-    verify(payloadQueue).add(TRACK_PAYLOAD_JSON.getBytes());
+    assertThat(addedJson(payloadQueue, contextStore)).isEqualTo(TRACK_PAYLOAD_JSON);
+  }
+
+  @Test public void enqueueStoresContextOnce() throws IOException {
+    PayloadQueue payloadQueue = new PayloadQueue.MemoryQueue(1024 * 1024);
+    ContextStore contextStore = new ContextStore();
+    SweetpricingIntegration sweetpricingIntegration = new SweetpricingBuilder() //
+        .payloadQueue(payloadQueue).contextStore(contextStore).build();
+
+    sweetpricingIntegration.performEnqueue(TRACK_PAYLOAD);
+    sweetpricingIntegration.performEnqueue(TRACK_PAYLOAD);
+
+    assertThat(contextStore.size()).isEqualTo(1);
+    final List<String> payloads = new ArrayList<>();
+    final ContextStore store = contextStore;
+    payloadQueue.forEach(new PayloadQueue.ElementVisitor() {
+      @Override public boolean read(InputStream in, int length) throws IOException {
+        byte[] record = new byte[length];
+        new DataInputStream(in).readFully(record);
+        assertThat(length).isLessThan(TRACK_PAYLOAD_JSON.length());
+        payloads.add(new String(PayloadFormat.render(record, store), "UTF-8"));
+        return true;
+      }
+    });
+    assertThat(payloads).containsExactly(TRACK_PAYLOAD_JSON, TRACK_PAYLOAD_JSON);
+  }
+
+  @Test public void contextsInUseDontMakeEveryEnqueueScanTheQueue() throws IOException {
+    PayloadQueue payloadQueue = spy(new PayloadQueue.MemoryQueue(1024 * 1024));
+    ContextStore contextStore = new ContextStore();
+    SweetpricingIntegration sweetpricingIntegration = new SweetpricingBuilder() //
+        .payloadQueue(payloadQueue).contextStore(contextStore).flushSize(MAX_QUEUE_SIZE).build();
+
+    int enqueued = 0;
+    for (; enqueued <= ContextStore.MAX_CONTEXTS; enqueued++) {
+      sweetpricingIntegration.performEnqueue(trackPayloadWithContext(enqueued));
+    }
+    // Every context is still in use, so none could be removed.
+    verify(payloadQueue, times(1)).forEach(any(PayloadQueue.ElementVisitor.class));
+    assertThat(contextStore.size()).isEqualTo(ContextStore.MAX_CONTEXTS + 1);
+
+    for (; enqueued <= 2 * (ContextStore.MAX_CONTEXTS + 1); enqueued++) {
+      sweetpricingIntegration.performEnqueue(trackPayloadWithContext(enqueued));
+    }
+    // The queue is only scanned again once the number of contexts doubled.
+    verify(payloadQueue, times(2)).forEach(any(PayloadQueue.ElementVisitor.class));
+  }
+
+  private static TrackPayload trackPayloadWithContext(int index) {
+    AnalyticsContext context = createContext(new Traits());
+    context.put("index", index);
+    return new TrackPayloadBuilder().context(context).build();
   }
 
   @Test public void enqueueWritesIntegrations() throws IOException {
@@ -90,8 +166,9 @@ public class SweetpricingIntegrationTest {
     integrations.put("Sweetpricing", false); // should ignore Segment setting in payload.
     integrations.put("foo", true); // should add new values.
     PayloadQueue payloadQueue = mock(PayloadQueue.class);
+    ContextStore contextStore = new ContextStore();
     SweetpricingIntegration sweetpricingIntegration = new SweetpricingBuilder() //
-        .payloadQueue(payloadQueue).integrations(integrations).build();
+        .payloadQueue(payloadQueue).contextStore(contextStore).integrations(integrations).build();
 
     AnalyticsContext analyticsContext = createContext(new Traits());
     TrackPayload trackPayload =
@@ -114,19 +191,52 @@ public class SweetpricingIntegrationTest {
         + "\"event\":\"foo\","
         + "\"properties\":{}"
         + "}";
-    verify(payloadQueue).add(expected.getBytes());
+    assertThat(addedJson(payloadQueue, contextStore)).isEqualTo(expected);
   }
 
   @Test public void enqueueLimitsQueueSize() throws IOException {
     PayloadQueue payloadQueue = mock(PayloadQueue.class);
     // we want to trigger a remove, but not a flush
     when(payloadQueue.size()).thenReturn(0, MAX_QUEUE_SIZE, MAX_QUEUE_SIZE, 0);
-    SweetpricingIntegration sweetpricingIntegration = new SweetpricingBuilder().payloadQueue(payloadQueue).build();
+    ContextStore contextStore = new ContextStore();
+    SweetpricingIntegration sweetpricingIntegration = new SweetpricingBuilder() //
+        .payloadQueue(payloadQueue).contextStore(contextStore).build();
 
     sweetpricingIntegration.performEnqueue(TRACK_PAYLOAD);
 
     verify(payloadQueue).remove(1); // oldest entry is removed
-    verify(payloadQueue).add(TRACK_PAYLOAD_JSON.getBytes()); // newest entry is added
+    // newest entry is added
+    assertThat(addedJson(payloadQueue, contextStore)).isEqualTo(TRACK_PAYLOAD_JSON);
+  }
+
+  @Test public void enqueueBatchIsGroupCommitted() throws IOException {
+    PayloadQueue payloadQueue = mock(PayloadQueue.class);
+    ContextStore contextStore = new ContextStore();
+    SweetpricingIntegration sweetpricingIntegration = new SweetpricingBuilder() //
+        .payloadQueue(payloadQueue).contextStore(contextStore).build();
+
+    sweetpricingIntegration.performEnqueue(
+        Arrays.<BasePayload>asList(TRACK_PAYLOAD, TRACK_PAYLOAD, TRACK_PAYLOAD));
+
+    ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+    verify(payloadQueue).addAll(captor.capture());
+    verify(payloadQueue, never()).add(any(byte[].class));
+    assertThat(captor.getValue()).hasSize(3);
+    assertThat(PayloadFormat.render((byte[]) captor.getValue().get(2), contextStore)) //
+        .isEqualTo(TRACK_PAYLOAD_JSON.getBytes());
+  }
+
+  @Test public void enqueueBatchLimitsQueueSize() throws IOException {
+    PayloadQueue payloadQueue = mock(PayloadQueue.class);
+    // we want to trigger a remove, but not a flush
+    when(payloadQueue.size()).thenReturn(0, MAX_QUEUE_SIZE, MAX_QUEUE_SIZE, 0);
+    SweetpricingIntegration sweetpricingIntegration =
+        new SweetpricingBuilder().payloadQueue(payloadQueue).build();
+
+    sweetpricingIntegration.performEnqueue(Arrays.<BasePayload>asList(TRACK_PAYLOAD, TRACK_PAYLOAD));
+
+    verify(payloadQueue).remove(2); // make room for the whole batch
+    verify(payloadQueue).addAll(anyListOf(byte[].class));
   }
 
   @Test public void exceptionIgnoredIfFailedToRemove() throws IOException {
@@ -240,6 +350,184 @@ public class SweetpricingIntegrationTest {
     verify(urlConnection, times(2)).disconnect();
   }
 
+  /** Returns a 1000 byte payload, so that exactly 475 fit in a batch. */
+  private static byte[] batchPayload(char fill) {
+    char[] chars = new char[1000 - 8];
+    Arrays.fill(chars, fill);
+    return ("{\"a\":\"" + new String(chars) + "\"}").getBytes();
+  }
+
+  /**
+   * Returns a connection that fails to upload if the body contains the given character, which
+   * must not appear in the batch envelope.
+   */
+  private static Client.Connection failingConnection(final char failOn) {
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    return new Client.Connection(mock(HttpURLConnection.class), mock(InputStream.class), body) {
+      @Override public void close() throws IOException {
+        super.close();
+        if (body.toString().indexOf(failOn) != -1) {
+          throw new IOException("Upload failed.");
+        }
+      }
+    };
+  }
+
+  @Test public void pipelinedFlushUploadsBatchesConcurrently() throws IOException {
+    PayloadQueue payloadQueue = new PayloadQueue.MemoryQueue(1024 * 1024);
+    for (int i = 0; i < 1000; i++) {
+      payloadQueue.add(batchPayload('q'));
+    }
+    Client client = mock(Client.class);
+    when(client.upload()).thenReturn(mockConnection(), mockConnection(), mockConnection());
+    SweetpricingIntegration sweetpricingIntegration = new SweetpricingBuilder() //
+        .client(client).payloadQueue(payloadQueue).flushConcurrency(2).build();
+
+    sweetpricingIntegration.submitFlush();
+
+    verify(client, times(3)).upload();
+    assertThat(payloadQueue.size()).isEqualTo(0);
+  }
+
+  @Test public void pipelinedFlushUploadsCompleteCompressedBatches() throws Exception {
+    PayloadQueue payloadQueue = new PayloadQueue.MemoryQueue(1024 * 1024);
+    for (int i = 0; i < 1000; i++) {
+      payloadQueue.add(batchPayload('q'));
+    }
+    for (int i = 0; i < 3; i++) {
+      server.enqueue(new MockResponse());
+    }
+    Client client = new Client("foo", new ConnectionFactory() {
+      @Override protected HttpURLConnection openConnection(String url) throws IOException {
+        URL mockServerURL = server.getUrl(Uri.parse(url).getPath());
+        return super.openConnection(mockServerURL.toString());
+      }
+    });
+    SweetpricingIntegration sweetpricingIntegration = new SweetpricingBuilder() //
+        .client(client).payloadQueue(payloadQueue).flushConcurrency(2).build();
+
+    sweetpricingIntegration.submitFlush();
+
+    int payloadsUploaded = 0;
+    for (int i = 0; i < 3; i++) {
+      InputStream body = new GZIPInputStream(server.takeRequest().getBody().inputStream());
+      Map<String, Object> batch = Cartographer.INSTANCE.fromJson(new InputStreamReader(body));
+      payloadsUploaded += ((List) batch.get("batch")).size();
+    }
+    assertThat(payloadsUploaded).isEqualTo(1000);
+    assertThat(payloadQueue.size()).isEqualTo(0);
+  }
+
+  @Test public void pipelinedFlushOnlyRemovesContiguousUploadedBatches() throws IOException {
+    PayloadQueue payloadQueue = new PayloadQueue.MemoryQueue(1024 * 1024);
+    for (int i = 0; i < 475; i++) {
+      payloadQueue.add(batchPayload('q'));
+    }
+    // The second batch fails, so neither it nor any batch after it may be removed.
+    for (int i = 0; i < 475; i++) {
+      payloadQueue.add(batchPayload('x'));
+    }
+    for (int i = 0; i < 100; i++) {
+      payloadQueue.add(batchPayload('y'));
+    }
+    Client client = mock(Client.class);
+    when(client.upload()).thenReturn(failingConnection('x'), failingConnection('x'),
+        failingConnection('x'));
+    SweetpricingIntegration sweetpricingIntegration = new SweetpricingBuilder() //
+        .client(client).payloadQueue(payloadQueue).flushConcurrency(2).build();
+
+    sweetpricingIntegration.submitFlush();
+
+    assertThat(payloadQueue.size()).isEqualTo(575);
+  }
+
+  /**
+   * Returns a connection whose upload fails with the given HTTP response code if the body contains
+   * the given character, which must not appear in the batch envelope.
+   */
+  private static Client.Connection rejectingConnection(final int responseCode,
+      final char failOn) {
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    return new Client.Connection(mock(HttpURLConnection.class), mock(InputStream.class), body) {
+      @Override public void close() throws IOException {
+        super.close();
+        if (body.toString().indexOf(failOn) != -1) {
+          throw new Client.UploadException(responseCode, "", "", 5000);
+        }
+      }
+    };
+  }
+
+  @Test public void rejectedPayloadsAreMovedToDeadLetterQueue() throws IOException {
+    PayloadQueue payloadQueue = new PayloadQueue.MemoryQueue(1024 * 1024);
+    PayloadQueue deadLetterQueue = new PayloadQueue.MemoryQueue(1024 * 1024);
+    for (int i = 0; i < 3; i++) {
+      payloadQueue.add(batchPayload('x'));
+    }
+    Client client = mock(Client.class);
+    when(client.upload()).thenReturn(rejectingConnection(400, 'x'));
+    Stats stats = mock(Stats.class);
+    SweetpricingIntegration sweetpricingIntegration = new SweetpricingBuilder() //
+        .client(client)
+        .stats(stats)
+        .payloadQueue(payloadQueue)
+        .deadLetterQueue(deadLetterQueue)
+        .build();
+
+    sweetpricingIntegration.submitFlush();
+
+    assertThat(payloadQueue.size()).isEqualTo(0);
+    assertThat(deadLetterQueue.size()).isEqualTo(3);
+    verify(stats).dispatchDeadLetter(3);
+  }
+
+  @Test public void retryablePayloadsStayInQueue() throws IOException {
+    PayloadQueue payloadQueue = new PayloadQueue.MemoryQueue(1024 * 1024);
+    PayloadQueue deadLetterQueue = new PayloadQueue.MemoryQueue(1024 * 1024);
+    for (int i = 0; i < 3; i++) {
+      payloadQueue.add(batchPayload('x'));
+    }
+    Client client = mock(Client.class);
+    when(client.upload()).thenReturn(rejectingConnection(503, 'x'));
+    SweetpricingIntegration sweetpricingIntegration = new SweetpricingBuilder() //
+        .client(client).payloadQueue(payloadQueue).deadLetterQueue(deadLetterQueue).build();
+
+    sweetpricingIntegration.submitFlush();
+
+    verify(client).upload();
+    assertThat(payloadQueue.size()).isEqualTo(3);
+    assertThat(deadLetterQueue.size()).isEqualTo(0);
+  }
+
+  @Test public void pipelinedFlushMovesRejectedBatchToDeadLetterQueue() throws IOException {
+    PayloadQueue payloadQueue = new PayloadQueue.MemoryQueue(2 * 1024 * 1024);
+    PayloadQueue deadLetterQueue = new PayloadQueue.MemoryQueue(1024 * 1024);
+    for (int i = 0; i < 475; i++) {
+      payloadQueue.add(batchPayload('q'));
+    }
+    // Only the second batch is rejected, the batches around it are uploaded.
+    for (int i = 0; i < 475; i++) {
+      payloadQueue.add(batchPayload('x'));
+    }
+    for (int i = 0; i < 50; i++) {
+      payloadQueue.add(batchPayload('y'));
+    }
+    Client client = mock(Client.class);
+    when(client.upload()).thenReturn(rejectingConnection(400, 'x'), rejectingConnection(400, 'x'),
+        rejectingConnection(400, 'x'));
+    SweetpricingIntegration sweetpricingIntegration = new SweetpricingBuilder() //
+        .client(client)
+        .payloadQueue(payloadQueue)
+        .deadLetterQueue(deadLetterQueue)
+        .flushConcurrency(2)
+        .build();
+
+    sweetpricingIntegration.submitFlush();
+
+    assertThat(payloadQueue.size()).isEqualTo(0);
+    assertThat(deadLetterQueue.size()).isEqualTo(475);
+  }
+
   @Test public void serializationErrorSkipsAddingPayload() throws IOException {
     PayloadQueue payloadQueue = mock(PayloadQueue.class);
     Cartographer cartographer = mock(Cartographer.class);
@@ -248,26 +536,23 @@ public class SweetpricingIntegrationTest {
         .cartographer(cartographer).payloadQueue(payloadQueue).build();
 
     // Serialized json is null.
-    when(cartographer.toJson(anyMap())).thenReturn(null);
+    when(cartographer.toJsonBytes(anyMap())).thenReturn(null);
     sweetpricingIntegration.performEnqueue(payload);
     verify(payloadQueue, never()).add((byte[]) any());
 
     // Serialized json is empty.
-    when(cartographer.toJson(anyMap())).thenReturn("");
+    when(cartographer.toJsonBytes(anyMap())).thenReturn(new byte[0]);
     sweetpricingIntegration.performEnqueue(payload);
     verify(payloadQueue, never()).add((byte[]) any());
 
     // Serialized json is too large (> 15kb).
-    StringBuilder stringBuilder = new StringBuilder();
-    for (int i = 0; i < SweetpricingIntegration.MAX_PAYLOAD_SIZE + 1; i++) {
-      stringBuilder.append('a');
-    }
-    when(cartographer.toJson(anyMap())).thenReturn(stringBuilder.toString());
+    when(cartographer.toJsonBytes(anyMap()))
+        .thenReturn(new byte[SweetpricingIntegration.MAX_PAYLOAD_SIZE + 1]);
     sweetpricingIntegration.performEnqueue(payload);
     verify(payloadQueue, never()).add((byte[]) any());
 
     // Serializing json throws exception.
-    doThrow(new IOException("mock")).when(cartographer).toJson(anyMap());
+    doThrow(new IOException("mock")).when(cartographer).toJsonBytes(anyMap());
     sweetpricingIntegration.performEnqueue(payload);
     verify(payloadQueue, never()).add((byte[]) any());
   }
@@ -283,7 +568,8 @@ public class SweetpricingIntegrationTest {
 
   @Test public void payloadVisitorReadsOnly475KB() throws IOException {
     SweetpricingIntegration.PayloadWriter payloadWriter =
-        new SweetpricingIntegration.PayloadWriter(mock(SweetpricingIntegration.BatchPayloadWriter.class));
+        new SweetpricingIntegration.PayloadWriter(mock(SweetpricingIntegration.BatchPayloadWriter.class),
+            new ContextStore());
     byte[] bytes = ("{\n"
         + "        'context': {\n"
         + "          'library': 'sweetpricing-android',\n"
@@ -355,6 +641,8 @@ public class SweetpricingIntegrationTest {
     Client client;
     Stats stats;
     PayloadQueue payloadQueue;
+    PayloadQueue deadLetterQueue;
+    ContextStore contextStore;
     Context context;
     Cartographer cartographer;
     Map<String, Boolean> integrations;
@@ -362,6 +650,7 @@ public class SweetpricingIntegrationTest {
     int flushSize = Utils.DEFAULT_FLUSH_QUEUE_SIZE;
     Logger logger = Logger.with(NONE);
     ExecutorService networkExecutor;
+    int flushConcurrency = Utils.DEFAULT_FLUSH_CONCURRENCY;
 
     SweetpricingBuilder() {
       initMocks(this);
@@ -386,6 +675,16 @@ public class SweetpricingIntegrationTest {
       return this;
     }
 
+    public SweetpricingBuilder deadLetterQueue(PayloadQueue deadLetterQueue) {
+      this.deadLetterQueue = deadLetterQueue;
+      return this;
+    }
+
+    public SweetpricingBuilder contextStore(ContextStore contextStore) {
+      this.contextStore = contextStore;
+      return this;
+    }
+
     public SweetpricingBuilder context(Context context) {
       this.context = context;
       return this;
@@ -411,6 +710,11 @@ public class SweetpricingIntegrationTest {
       return this;
     }
 
+    public SweetpricingBuilder flushConcurrency(int flushConcurrency) {
+      this.flushConcurrency = flushConcurrency;
+      return this;
+    }
+
     public SweetpricingBuilder log(Logger logger) {
       this.logger = logger;
       return this;
@@ -430,11 +734,18 @@ public class SweetpricingIntegrationTest {
       if (client == null) client = mock(Client.class);
       if (cartographer == null) cartographer = Cartographer.INSTANCE;
       if (payloadQueue == null) payloadQueue = mock(PayloadQueue.class);
+      if (deadLetterQueue == null) {
+        deadLetterQueue = new PayloadQueue.MemoryQueue(PayloadQueue.MemoryQueue.DEFAULT_MAX_BYTES);
+      }
+      if (contextStore == null) contextStore = new ContextStore();
       if (stats == null) stats = mock(Stats.class);
       if (integrations == null) integrations = Collections.emptyMap();
       if (networkExecutor == null) networkExecutor = new SynchronousExecutor();
+      FlushPolicy flushPolicy = new FlushPolicy.Adaptive(flushInterval, flushSize,
+          FlushPolicy.device(context), FlushPolicy.SYSTEM_CLOCK);
       return new SweetpricingIntegration(context, client, cartographer, networkExecutor, payloadQueue,
-          stats, integrations, flushInterval, flushSize, logger);
+          deadLetterQueue, contextStore, stats, integrations, flushPolicy, flushInterval,
+          flushConcurrency, logger);
     }
   }
 }
@@ -207,6 +207,25 @@ public class ValueMapTest {
     assertThat(jsonObject.get("foo")).isEqualTo(JSONObject.NULL);
   }
 
+  @Test public void createsRegisteredTypesWithoutReflection() {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("id", 3);
+    // Variant has no map constructor, so reflection would fail.
+    Variant variant = ValueMap.createValueMap(map, Variant.class);
+    assertThat(variant.getId()).isEqualTo(3);
+
+    valueMap.put("traits", new LinkedHashMap<>(map));
+    Traits traits = valueMap.getValueMap("traits", Traits.class);
+    assertThat(traits).containsEntry("id", 3);
+  }
+
+  @Test public void fallsBackToReflection() {
+    valueMap.put("Mixpanel", new LinkedHashMap<String, Object>());
+    MixpanelSettings first = valueMap.getValueMap("Mixpanel", MixpanelSettings.class);
+    MixpanelSettings second = valueMap.getValueMap("Mixpanel", MixpanelSettings.class);
+    assertThat(first).isNotNull().isNotSameAs(second);
+  }
+
   private enum MyEnum {
     VALUE1, VALUE2
   }
@@ -0,0 +1,117 @@
+package com.sweetpricing.dynamicpricing;
+
+import com.sweetpricing.dynamicpricing.core.tests.BuildConfig;
+import com.sweetpricing.dynamicpricing.integrations.Logger;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import static com.sweetpricing.dynamicpricing.DynamicPricing.LogLevel.NONE;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, emulateSdk = 18, manifest = Config.NONE)
+public class VariantCacheTest {
+  private static final long TTL = 1000;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+  private FakeClock clock;
+
+  static class FakeClock implements VariantCache.Clock {
+    long time = 1000000;
+
+    @Override public long currentTimeMillis() {
+      return time;
+    }
+  }
+
+  @Before public void setUp() {
+    clock = new FakeClock();
+  }
+
+  private VariantCache cache(File directory, int maxSize) {
+    return new VariantCache(directory, maxSize, TTL, Cartographer.INSTANCE, clock,
+        Logger.with(NONE));
+  }
+
+  private static Variant variant(int id) throws IOException {
+    return Cartographer.INSTANCE.variantFromJson(
+        new StringReader("{\"id\":" + id + ",\"skus\":{\"1\":\"sku" + id + "\"}}"));
+  }
+
+  @Test public void keyDependsOnProductGroupAndUser() {
+    assertThat(VariantCache.key(1, "user")).isEqualTo(VariantCache.key(1, "user"));
+    assertThat(VariantCache.key(1, "user")).isNotEqualTo(VariantCache.key(2, "user"));
+    assertThat(VariantCache.key(1, "user")).isNotEqualTo(VariantCache.key(1, "other"));
+    assertThat(VariantCache.key(1, null)).isEqualTo("1");
+  }
+
+  @Test public void evictsLeastRecentlyUsed() throws IOException {
+    VariantCache cache = cache(null, 2);
+    cache.put("a", variant(1));
+    cache.put("b", variant(2));
+    cache.get("a");
+    cache.put("c", variant(3));
+
+    assertThat(cache.get("a").variant.getId()).isEqualTo(1);
+    assertThat(cache.get("b")).isNull();
+    assertThat(cache.get("c").variant.getId()).isEqualTo(3);
+  }
+
+  @Test public void entriesGoStaleAfterTtl() throws IOException {
+    VariantCache cache = cache(null, 2);
+    cache.put("a", variant(1));
+    VariantCache.Entry entry = cache.get("a");
+    assertThat(cache.isFresh(entry)).isTrue();
+
+    clock.time += TTL;
+    assertThat(cache.isFresh(entry)).isFalse();
+    // Stale entries are still returned.
+    assertThat(cache.get("a")).isSameAs(entry);
+
+    clock.time -= 2 * TTL;
+    assertThat(cache.isFresh(entry)).isFalse();
+  }
+
+  @Test public void persistsVariants() throws IOException {
+    File directory = folder.newFolder();
+    cache(directory, 2).put("a", variant(1));
+    long fetchedAt = clock.time;
+    clock.time += 10;
+
+    VariantCache.Entry entry = cache(directory, 2).get("a");
+    assertThat(entry.fetchedAt).isEqualTo(fetchedAt);
+    assertThat(entry.variant.getId()).isEqualTo(1);
+    assertThat(entry.variant.getProductSku(1, null)).isEqualTo("sku1");
+    assertThat(directory.list()).containsOnly("a");
+  }
+
+  @Test public void ignoresCorruptFile() throws IOException {
+    File directory = folder.newFolder();
+    File file = new File(directory, "a");
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(new byte[] { 0, 0, 0, 0, 0, 0, 0, 0, '{', '"' });
+    out.close();
+
+    assertThat(cache(directory, 2).get("a")).isNull();
+    assertThat(file.exists()).isFalse();
+  }
+
+  @Test public void clearRemovesPersistedVariants() throws IOException {
+    File directory = folder.newFolder();
+    VariantCache cache = cache(directory, 2);
+    cache.put("a", variant(1));
+    cache.clear();
+
+    assertThat(cache.get("a")).isNull();
+    assertThat(directory.list()).isEmpty();
+  }
+}
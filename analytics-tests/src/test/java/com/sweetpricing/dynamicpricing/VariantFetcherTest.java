@@ -0,0 +1,147 @@
+package com.sweetpricing.dynamicpricing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class VariantFetcherTest {
+  private ScheduledExecutorService executor;
+  private FakeSource source;
+  private VariantFetcher fetcher;
+
+  static class FakeSource implements VariantFetcher.Source {
+    final List<Integer> fetched = new ArrayList<>();
+    final List<int[]> fetchedAll = new ArrayList<>();
+    boolean supportsBatches = true;
+    IOException error;
+
+    static Variant variant(int productGroupId) {
+      Map<String, Object> map = new LinkedHashMap<>();
+      map.put("id", productGroupId * 10);
+      return Variant.create(map);
+    }
+
+    @Override public Variant fetch(int productGroupId) throws IOException {
+      fetched.add(productGroupId);
+      if (error != null) {
+        throw error;
+      }
+      return variant(productGroupId);
+    }
+
+    @Override public Map<Integer, Variant> fetchAll(int[] productGroupIds) throws IOException {
+      fetchedAll.add(productGroupIds);
+      if (error != null) {
+        throw error;
+      }
+      if (!supportsBatches) {
+        return null;
+      }
+      Map<Integer, Variant> variants = new LinkedHashMap<>();
+      for (int productGroupId : productGroupIds) {
+        if (productGroupId != 404) {
+          variants.put(productGroupId, variant(productGroupId));
+        }
+      }
+      return variants;
+    }
+  }
+
+  @Before public void setUp() {
+    executor = mock(ScheduledExecutorService.class);
+    source = new FakeSource();
+    fetcher = new VariantFetcher(executor, source, 50, 1000);
+  }
+
+  @Test public void sharesCallsForTheSameGroup() throws Exception {
+    VariantFetcher.Call first = fetcher.fetch(1);
+    VariantFetcher.Call second = fetcher.fetch(1);
+    assertThat(second).isSameAs(first);
+    verify(executor).schedule(any(Runnable.class), eq(50L), eq(TimeUnit.MILLISECONDS));
+
+    fetcher.performFetch();
+    assertThat(first.await().getId()).isEqualTo(10);
+    assertThat(source.fetched).containsExactly(1);
+    assertThat(source.fetchedAll).isEmpty();
+
+    // Completed calls are not shared.
+    assertThat(fetcher.fetch(1)).isNotSameAs(first);
+  }
+
+  @Test public void batchesCallsForDifferentGroups() throws Exception {
+    VariantFetcher.Call first = fetcher.fetch(1);
+    VariantFetcher.Call second = fetcher.fetch(2);
+    VariantFetcher.Call missing = fetcher.fetch(404);
+    verify(executor).schedule(any(Runnable.class), eq(50L), eq(TimeUnit.MILLISECONDS));
+
+    fetcher.performFetch();
+    assertThat(source.fetchedAll).hasSize(1);
+    assertThat(source.fetchedAll.get(0)).containsExactly(1, 2, 404);
+    assertThat(source.fetched).isEmpty();
+    assertThat(first.await().getId()).isEqualTo(10);
+    assertThat(second.await().getId()).isEqualTo(20);
+    assertThat(missing.await().getId()).isEqualTo(0);
+
+    // The next call opens a new batch window.
+    fetcher.fetch(3);
+    verify(executor, times(2)).schedule(any(Runnable.class), eq(50L), eq(TimeUnit.MILLISECONDS));
+  }
+
+  @Test public void fallsBackToSingleFetchesWithoutBatchSupport() throws Exception {
+    source.supportsBatches = false;
+    VariantFetcher.Call first = fetcher.fetch(1);
+    VariantFetcher.Call second = fetcher.fetch(2);
+    fetcher.performFetch();
+
+    assertThat(source.fetchedAll).hasSize(1);
+    assertThat(source.fetched).containsExactly(1, 2);
+    assertThat(first.await().getId()).isEqualTo(10);
+    assertThat(second.await().getId()).isEqualTo(20);
+
+    fetcher.fetch(3);
+    fetcher.fetch(4);
+    fetcher.performFetch();
+    assertThat(source.fetchedAll).hasSize(1);
+    assertThat(source.fetched).containsExactly(1, 2, 3, 4);
+  }
+
+  @Test public void errorsAreSharedAndNotifyListeners() throws Exception {
+    source.error = new IOException("offline");
+    VariantFetcher.Call first = fetcher.fetch(1);
+    VariantFetcher.Call second = fetcher.fetch(2);
+    final List<VariantFetcher.Call> completed = new ArrayList<>();
+    VariantFetcher.Call.Listener listener = new VariantFetcher.Call.Listener() {
+      @Override public void onComplete(VariantFetcher.Call call) {
+        completed.add(call);
+      }
+    };
+    first.addListener(listener);
+    fetcher.performFetch();
+
+    for (VariantFetcher.Call call : Arrays.asList(first, second)) {
+      try {
+        call.await();
+        fail("expected the error to be thrown");
+      } catch (IOException e) {
+        assertThat(e).isSameAs(source.error);
+      }
+    }
+    second.addListener(listener);
+    assertThat(completed).containsExactly(first, second);
+  }
+}
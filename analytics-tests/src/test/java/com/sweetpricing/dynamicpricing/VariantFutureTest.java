@@ -0,0 +1,76 @@
+package com.sweetpricing.dynamicpricing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class VariantFutureTest {
+  private final Variant fallback = Variant.create(new ValueMap());
+  private final Variant variant = Variant.create(new ValueMap().putValue("id", 1));
+
+  @Test public void completesOnce() throws Exception {
+    VariantFuture future = new VariantFuture(fallback, 1000);
+    final List<Variant> completed = new ArrayList<>();
+    final VariantFuture listened = future;
+    future.addListener(new Runnable() {
+      @Override public void run() {
+        completed.add(listened.variant());
+      }
+    });
+    assertThat(future.isDone()).isFalse();
+
+    assertThat(future.complete(variant)).isTrue();
+    assertThat(future.completeWithFallback()).isFalse();
+    assertThat(future.isDone()).isTrue();
+    assertThat(future.get()).isSameAs(variant);
+    assertThat(completed).containsExactly(variant);
+  }
+
+  @Test public void getReturnsFallbackAfterDeadline() throws Exception {
+    VariantFuture future = new VariantFuture(fallback, 10);
+    assertThat(future.get()).isSameAs(fallback);
+    assertThat(future.isDone()).isTrue();
+    assertThat(future.complete(variant)).isFalse();
+  }
+
+  @Test public void getWithShorterTimeoutThrows() throws Exception {
+    VariantFuture future = new VariantFuture(fallback, 60000);
+    try {
+      future.get(10, TimeUnit.MILLISECONDS);
+      fail("expected a timeout");
+    } catch (TimeoutException expected) {
+    }
+    future.complete(variant);
+    assertThat(future.get(10, TimeUnit.MILLISECONDS)).isSameAs(variant);
+
+    // A longer timeout than the deadline returns the fallback.
+    assertThat(new VariantFuture(fallback, 10).get(1, TimeUnit.MINUTES)).isSameAs(fallback);
+  }
+
+  @Test public void cancelledFutureSkipsListeners() throws Exception {
+    VariantFuture future = new VariantFuture(fallback, 1000);
+    final List<Runnable> ran = new ArrayList<>();
+    Runnable listener = new Runnable() {
+      @Override public void run() {
+        ran.add(this);
+      }
+    };
+    future.addListener(listener);
+    assertThat(future.cancel(false)).isTrue();
+    assertThat(future.isCancelled()).isTrue();
+    assertThat(future.complete(variant)).isFalse();
+    future.addListener(listener);
+    assertThat(ran).isEmpty();
+    try {
+      future.get();
+      fail("expected the future to be cancelled");
+    } catch (CancellationException expected) {
+    }
+  }
+}
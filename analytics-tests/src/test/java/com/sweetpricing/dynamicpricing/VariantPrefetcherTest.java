@@ -0,0 +1,91 @@
+package com.sweetpricing.dynamicpricing;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import com.sweetpricing.dynamicpricing.core.tests.BuildConfig;
+import com.sweetpricing.dynamicpricing.integrations.Logger;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static android.Manifest.permission.ACCESS_NETWORK_STATE;
+import static com.sweetpricing.dynamicpricing.DynamicPricing.LogLevel.NONE;
+import static com.sweetpricing.dynamicpricing.TestUtils.SynchronousExecutor;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, emulateSdk = 18, manifest = Config.NONE)
+public class VariantPrefetcherTest {
+  private static final long TTL = 1000;
+
+  @Mock DynamicPricing dynamicPricing;
+  private VariantCacheTest.FakeClock clock;
+  private VariantCache variantCache;
+  private AdvertisingIdGate advertisingIdGate;
+
+  @Before public void setUp() {
+    initMocks(this);
+    clock = new VariantCacheTest.FakeClock();
+    advertisingIdGate = new AdvertisingIdGate(AdvertisingIdGate.DEFAULT_CAPACITY,
+        new SynchronousExecutor(), Logger.with(NONE));
+    variantCache =
+        new VariantCache(null, 16, TTL, Cartographer.INSTANCE, clock, Logger.with(NONE));
+    when(dynamicPricing.variantCacheKey(anyInt())).thenAnswer(
+        new Answer<String>() {
+          @Override public String answer(InvocationOnMock invocation) {
+            return "key-" + invocation.getArguments()[0];
+          }
+        });
+  }
+
+  private VariantPrefetcher prefetcher(int... productGroupIds) {
+    return new VariantPrefetcher(dynamicPricing, RuntimeEnvironment.application, variantCache,
+        new SynchronousExecutor(), advertisingIdGate, Logger.with(NONE), productGroupIds);
+  }
+
+  @Test public void waitsForAdvertisingIdThenRequestsMissingAndStaleVariants() {
+    variantCache.put("key-1", Variant.create(new ValueMap()));
+    variantCache.put("key-2", Variant.create(new ValueMap()));
+    clock.time += TTL;
+    variantCache.put("key-1", Variant.create(new ValueMap()));
+
+    prefetcher(1, 2, 3).queueIdle();
+    verify(dynamicPricing, never()).requestVariant(anyInt(), anyString());
+
+    advertisingIdGate.open();
+    verify(dynamicPricing, never()).requestVariant(1, "key-1");
+    verify(dynamicPricing).requestVariant(2, "key-2");
+    verify(dynamicPricing).requestVariant(3, "key-3");
+  }
+
+  @Test public void skipsPrefetchWhileOffline() {
+    shadowOf(RuntimeEnvironment.application).grantPermissions(ACCESS_NETWORK_STATE);
+    ConnectivityManager connectivityManager = (ConnectivityManager) RuntimeEnvironment.application
+        .getSystemService(Context.CONNECTIVITY_SERVICE);
+    shadowOf(connectivityManager).setActiveNetworkInfo(null);
+
+    prefetcher(1).prefetch();
+
+    verify(dynamicPricing, never()).requestVariant(anyInt(), anyString());
+  }
+
+  @Test public void skipsPrefetchAfterShutdown() {
+    dynamicPricing.shutdown = true;
+
+    prefetcher(1).prefetch();
+
+    verify(dynamicPricing, never()).requestVariant(anyInt(), anyString());
+  }
+}
@@ -0,0 +1,86 @@
+package com.sweetpricing.dynamicpricing;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class VariantTest {
+  @Test public void createIndexesSkus() {
+    Map<String, Object> skus = new LinkedHashMap<>();
+    skus.put("20", "yearly");
+    skus.put("-5", "monthly");
+    skus.put("3", 7);
+    skus.put("abc", "ignored");
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("id", 4.0);
+    map.put("skus", skus);
+    Variant variant = Variant.create(map);
+
+    assertThat(variant.getId()).isEqualTo(4);
+    assertThat(variant.getProductSku(20, null)).isEqualTo("yearly");
+    assertThat(variant.getProductSku(-5, null)).isEqualTo("monthly");
+    assertThat(variant.getProductSku(3, null)).isEqualTo("7");
+    assertThat(variant.getProductSku(4, "default")).isEqualTo("default");
+    assertThat(variant.getValueMap("skus")).isEqualTo(skus);
+  }
+
+  @Test public void createKeepsLastOfDuplicateProductIds() {
+    int[] productIds = { 5, 1, 5, 3, 1, 9, 0 };
+    String[] skus = { "a", "b", "c", "d", "e", "f", "unused" };
+    Variant variant = Variant.create(new LinkedHashMap<String, Object>(), productIds, skus, 6);
+
+    assertThat(variant.getProductSku(1, null)).isEqualTo("e");
+    assertThat(variant.getProductSku(3, null)).isEqualTo("d");
+    assertThat(variant.getProductSku(5, null)).isEqualTo("c");
+    assertThat(variant.getProductSku(9, null)).isEqualTo("f");
+    assertThat(variant.getProductSku(0, "default")).isEqualTo("default");
+    assertThat(variant.getValueMap("skus").keySet()).containsOnly("1", "3", "5", "9");
+  }
+
+  @Test public void getProductSkus() {
+    int[] productIds = { 1, 2, 3 };
+    String[] skus = { "a", "b", "c" };
+    Variant variant = Variant.create(new LinkedHashMap<String, Object>(), productIds, skus, 3);
+
+    assertThat(variant.getProductSkus(new int[] { 3, 4, 1, 1 })).containsExactly("c", null, "a",
+        "a");
+    assertThat(variant.getProductSkus(new int[0])).isEmpty();
+  }
+
+  @Test public void indexMatchesHashMap() {
+    Random random = new Random(42);
+    int count = 5000;
+    int[] productIds = new int[count];
+    String[] skus = new String[count];
+    Map<Integer, String> expected = new HashMap<>();
+    for (int i = 0; i < count; i++) {
+      // Sequential IDs, colliding IDs and extreme values.
+      int productId = i == 0 ? Integer.MIN_VALUE
+          : i % 3 == 0 ? i : i % 3 == 1 ? random.nextInt(1000) << 16 : random.nextInt();
+      productIds[i] = productId;
+      skus[i] = "sku" + i;
+      expected.put(productId, skus[i]);
+    }
+    Variant variant = Variant.create(new LinkedHashMap<String, Object>(), productIds, skus, count);
+
+    for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+      assertThat(variant.getProductSku(entry.getKey(), null)).isEqualTo(entry.getValue());
+    }
+    for (int i = 0; i < 1000; i++) {
+      int productId = random.nextInt();
+      assertThat(variant.getProductSku(productId, null)).isEqualTo(expected.get(productId));
+    }
+    assertThat(variant.getValueMap("skus")).hasSize(expected.size());
+  }
+
+  @Test public void emptyVariant() {
+    Variant variant = Variant.create(new ValueMap());
+
+    assertThat(variant.getId()).isEqualTo(0);
+    assertThat(variant.getProductSku(1, "default")).isEqualTo("default");
+  }
+}
@@ -0,0 +1,163 @@
+package com.sweetpricing.dynamicpricing.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class Iso8601Test {
+  private static final String[] TIME_ZONES = {
+      "UTC", "America/Los_Angeles", "Europe/London", "Asia/Kolkata", "Asia/Kathmandu",
+      "Australia/Lord_Howe", "Pacific/Chatham", "America/St_Johns"
+  };
+  // 1583-01-01 to 9999-12-31.
+  private static final long MIN_MILLIS = -12212553600000L;
+  private static final long MAX_MILLIS = 253402214400000L;
+
+  private TimeZone defaultTimeZone;
+
+  @Before public void setUp() {
+    defaultTimeZone = TimeZone.getDefault();
+  }
+
+  @After public void tearDown() {
+    TimeZone.setDefault(defaultTimeZone);
+  }
+
+  private static SimpleDateFormat simpleDateFormat(TimeZone timeZone) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.US);
+    format.setTimeZone(timeZone);
+    return format;
+  }
+
+  @Test public void formatsLikeSimpleDateFormat() {
+    Random random = new Random(42);
+    char[] chars = new char[Iso8601.LENGTH];
+    for (String id : TIME_ZONES) {
+      TimeZone timeZone = TimeZone.getTimeZone(id);
+      SimpleDateFormat expected = simpleDateFormat(timeZone);
+      for (int i = 0; i < 10000; i++) {
+        long millis = MIN_MILLIS + (long) (random.nextDouble() * (MAX_MILLIS - MIN_MILLIS));
+        if (i % 2 == 0) {
+          millis = millis % (100L * 365 * 24 * 3600 * 1000) + 1000000000000L; // Near today.
+        }
+        assertThat(Iso8601.format(millis, timeZone, chars)).isTrue();
+        assertThat(new String(chars)).isEqualTo(expected.format(new Date(millis)));
+      }
+    }
+  }
+
+  @Test public void formatsInDefaultTimeZone() throws IOException {
+    TimeZone.setDefault(TimeZone.getTimeZone("America/Los_Angeles"));
+    long millis = 1418675564123L;
+    assertThat(Iso8601.format(millis)).isEqualTo("2014-12-15T12:32:44-0800");
+    // The same second is formatted once.
+    assertThat(Iso8601.format(millis + 500)).isSameAs(Iso8601.format(millis));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Iso8601.write(millis, out);
+    assertThat(out.toString("US-ASCII")).isEqualTo("2014-12-15T12:32:44-0800");
+  }
+
+  @Test public void fallsBackOutOfRange() throws ParseException {
+    TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+    SimpleDateFormat expected = simpleDateFormat(TimeZone.getTimeZone("UTC"));
+    for (long millis : new long[] { MIN_MILLIS - 1000, -62135596800000L, 253402300800000L }) {
+      Date date = new Date(millis);
+      assertThat(Iso8601.format(millis)).isEqualTo(expected.format(date));
+      assertThat(Iso8601.parse(Iso8601.format(millis))).isEqualTo(
+          expected.parse(expected.format(date)).getTime());
+    }
+  }
+
+  @Test public void parsesLikeSimpleDateFormat() throws ParseException {
+    Random random = new Random(7);
+    char[] chars = new char[Iso8601.LENGTH];
+    for (String id : TIME_ZONES) {
+      TimeZone timeZone = TimeZone.getTimeZone(id);
+      SimpleDateFormat expected = simpleDateFormat(timeZone);
+      for (int i = 0; i < 10000; i++) {
+        long millis = MIN_MILLIS + (long) (random.nextDouble() * (MAX_MILLIS - MIN_MILLIS));
+        Iso8601.format(millis, timeZone, chars);
+        String text = new String(chars);
+        // Offsets of local mean time have seconds, which aren't formatted, so this is lossy.
+        assertThat(Iso8601.parse(text)).isEqualTo(expected.parse(text).getTime());
+      }
+    }
+  }
+
+  @Test public void parsesOtherOffsets() throws ParseException {
+    long millis = 1418675564000L;
+    assertThat(Iso8601.parse("2014-12-15T20:32:44Z")).isEqualTo(millis);
+    assertThat(Iso8601.parse("2014-12-15T12:32:44-08:00")).isEqualTo(millis);
+    assertThat(Iso8601.parse("2014-12-16T02:17:44+0545")).isEqualTo(millis);
+    // Handed to SimpleDateFormat.
+    assertThat(Iso8601.parse("2014-12-15T12:32:44-0800 and more")).isEqualTo(millis);
+  }
+
+  @Test public void rejectsInvalidDates() {
+    for (String text : new String[] { "", "2014-12-15", "2014-12-15T12:32:4x-0800", "tomorrow" }) {
+      try {
+        Iso8601.parse(text);
+        fail("expected " + text + " to be rejected");
+      } catch (ParseException expected) {
+      }
+    }
+  }
+
+  @Test public void isSafeAcrossThreads() throws Exception {
+    TimeZone.setDefault(TimeZone.getTimeZone("Europe/London"));
+    final SimpleDateFormat expected = simpleDateFormat(TimeZone.getTimeZone("Europe/London"));
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    List<Future<Void>> futures = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      final long start = 1400000000000L + t * 86400000L;
+      futures.add(executor.submit(new Callable<Void>() {
+        @Override public Void call() throws Exception {
+          for (int i = 0; i < 20000; i++) {
+            long millis = start + i * 997L;
+            String formatted = Iso8601.format(millis);
+            synchronized (expected) {
+              assertThat(formatted).isEqualTo(expected.format(new Date(millis)));
+            }
+            assertThat(Iso8601.parse(formatted)).isEqualTo(millis / 1000 * 1000);
+          }
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> future : futures) {
+      future.get();
+    }
+    executor.shutdown();
+  }
+
+  @SuppressWarnings("deprecation")
+  @Test public void utilsDelegatesToIso8601() throws ParseException {
+    Date date = new Date(1457524800000L);
+    String formatted = Utils.toISO8601Date(date);
+    assertThat(formatted).isEqualTo(Iso8601.format(date.getTime()));
+    assertThat(Utils.toISO8601Date(formatted)).isEqualTo(date);
+    try {
+      Utils.toISO8601Date("not a date");
+      fail("expected a ParseException");
+    } catch (ParseException expected) {
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package com.sweetpricing.dynamicpricing;
+
+import android.os.Handler;
+import com.sweetpricing.dynamicpricing.integrations.Logger;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+
+/**
+ * Holds back tasks that send the advertising ID until it has been retrieved, without blocking the
+ * thread that submits them.
+ * <p/>
+ * Retrieving the advertising ID is asynchronous, see {@link GetAdvertisingIdTask}. Payloads are
+ * created as soon as events are recorded and parked here until it completes, or until the timeout
+ * given to {@link #openAfter(Handler, long)}. A payload's context shares its {@link
+ * AnalyticsContext.Device} with the live context, so parked payloads get the advertising ID when
+ * it's attached to the live one. Tasks are parked with the number of events they send, and at most
+ * {@code capacity} events are parked; beyond that, the oldest tasks are released without waiting
+ * any longer. Such a task finds the gate still closed when it runs, and must not rely on the live
+ * device.
+ * <p/>
+ * Tasks are handed to the given executor in the order they were submitted, rather than run on the
+ * thread that submits them or opens the gate.
+ */
+class AdvertisingIdGate implements Executor {
+  static final int DEFAULT_CAPACITY = 1000;
+
+  private final int capacity;
+  private final Executor executor;
+  private final Logger logger;
+  /** Guarded by {@code this}. */
+  private final Deque<Parked> pending;
+  /** The number of events sent by the {@link #pending} tasks. Guarded by {@code this}. */
+  private int pendingEvents;
+  /** Only changed while holding {@code this}, but read without it by {@link #isOpen()}. */
+  private volatile boolean open;
+
+  AdvertisingIdGate(int capacity, Executor executor, Logger logger) {
+    this.capacity = capacity;
+    this.executor = executor;
+    this.logger = logger;
+    this.pending = new ArrayDeque<>();
+  }
+
+  /** Like {@link #execute(Runnable, int)}, for a task that counts as a single event. */
+  @Override public void execute(Runnable task) {
+    execute(task, 1);
+  }
+
+  /**
+   * Runs the task now if the advertising ID is ready, and parks it until then otherwise.
+   *
+   * @param events The number of events the task sends, which count towards the capacity.
+   */
+  synchronized void execute(Runnable task, int events) {
+    if (open) {
+      executor.execute(task);
+      return;
+    }
+    if (pendingEvents + events > capacity) {
+      logger.debug("Sending events without waiting for the advertising ID, %s are pending.",
+          pendingEvents);
+      while (!pending.isEmpty() && pendingEvents + events > capacity) {
+        Parked parked = pending.poll();
+        pendingEvents -= parked.events;
+        executor.execute(parked.task);
+      }
+      if (events > capacity) {
+        executor.execute(task);
+        return;
+      }
+    }
+    pending.add(new Parked(task, events));
+    pendingEvents += events;
+  }
+
+  /** Runs the parked tasks, and any submitted after this, in order. */
+  synchronized void open() {
+    if (open) {
+      return;
+    }
+    open = true;
+    for (Parked parked; (parked = pending.poll()) != null; ) {
+      executor.execute(parked.task);
+    }
+    pendingEvents = 0;
+  }
+
+  /** Opens the gate after {@code millis}, if the advertising ID hasn't been retrieved by then. */
+  void openAfter(Handler handler, final long millis) {
+    handler.postDelayed(new Runnable() {
+      @Override public void run() {
+        synchronized (AdvertisingIdGate.this) {
+          if (open) {
+            return;
+          }
+          logger.debug("Advertising ID may not be collected because the Advertising ID API did "
+              + "not respond within %s ms.", millis);
+          open();
+        }
+      }
+    }, millis);
+  }
+
+  boolean isOpen() {
+    return open;
+  }
+
+  private static class Parked {
+    final Runnable task;
+    final int events;
+
+    Parked(Runnable task, int events) {
+      this.task = task;
+      this.events = events;
+    }
+  }
+}
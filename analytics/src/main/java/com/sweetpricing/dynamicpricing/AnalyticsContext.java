@@ -41,7 +41,7 @@ import java.util.LinkedHashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static android.Manifest.permission.ACCESS_NETWORK_STATE;
 import static android.content.Context.CONNECTIVITY_SERVICE;
@@ -113,6 +113,27 @@ public class AnalyticsContext extends ValueMap {
   private static final String SCREEN_HEIGHT_KEY = "height";
   private static final String SCREEN_WIDTH_KEY = "width";
 
+  /** Incremented after every change to the values in this map, see {@link #unmodifiableCopy()}. */
+  private final AtomicInteger version = new AtomicInteger();
+  private volatile Snapshot snapshot;
+  private volatile Snapshot snapshotWithDevice;
+
+  /**
+   * A copy of the values in this map, and the {@link #version} they were copied at, along with the
+   * version of the {@link Device} if it was copied too.
+   */
+  private static class Snapshot {
+    final int version;
+    final int deviceVersion;
+    final AnalyticsContext context;
+
+    Snapshot(int version, int deviceVersion, AnalyticsContext context) {
+      this.version = version;
+      this.deviceVersion = deviceVersion;
+      this.context = context;
+    }
+  }
+
   /**
    * Create a new {@link AnalyticsContext} instance filled in with information from the given
    * {@link Context}. The {@link DynamicPricing} client can be called from anywhere, so the returned
@@ -149,29 +170,96 @@ public class AnalyticsContext extends ValueMap {
     super(delegate);
   }
 
-  void attachAdvertisingId(Context context, CountDownLatch latch, Logger logger) {
+  static final Factory<AnalyticsContext> FACTORY = new Factory<AnalyticsContext>() {
+    @Override public AnalyticsContext create(Map<String, Object> map) {
+      return new AnalyticsContext(map);
+    }
+  };
+
+  void attachAdvertisingId(Context context, AdvertisingIdGate gate, Logger logger) {
     // This is done as an extra step so we don't run into errors like this for testing
     // http://pastebin.com/gyWJKWiu.
     if (isOnClassPath("com.google.android.gms.ads.identifier.AdvertisingIdClient")) {
       // This needs to be done each time since the settings may have been updated.
-      new GetAdvertisingIdTask(this, latch, logger).execute(context);
+      new GetAdvertisingIdTask(this, gate, logger).execute(context);
     } else {
       logger.debug("Not collecting advertising ID because "
           + "com.google.android.gms.ads.identifier.AdvertisingIdClient "
           + "was not found on the classpath.");
-      latch.countDown();
+      gate.open();
     }
   }
 
+  @Override public Object put(String key, Object value) {
+    Object previous = super.put(key, value);
+    version.incrementAndGet();
+    return previous;
+  }
+
+  @Override public void putAll(Map<? extends String, ?> map) {
+    super.putAll(map);
+    version.incrementAndGet();
+  }
+
+  @Override public Object remove(Object key) {
+    Object previous = super.remove(key);
+    version.incrementAndGet();
+    return previous;
+  }
+
+  @Override public void clear() {
+    super.clear();
+    version.incrementAndGet();
+  }
+
   @Override public AnalyticsContext putValue(String key, Object value) {
     super.putValue(key, value);
+    version.incrementAndGet();
     return this;
   }
 
-  /** Returns an unmodifiable shallow copy of the values in this map. */
+  /**
+   * Returns an unmodifiable shallow copy of the values in this map.
+   * <p/>
+   * Every payload carries one, so the copy is made once and shared until this map is changed
+   * again, such as when the traits are set. Values that are maps themselves, like {@link
+   * #device()}, are shared with this instance rather than copied.
+   */
   public AnalyticsContext unmodifiableCopy() {
+    // Read the version first: if this map changes while it's copied, the copy is made again.
+    int current = version.get();
+    Snapshot snapshot = this.snapshot;
+    if (snapshot != null && snapshot.version == current) {
+      return snapshot.context;
+    }
+    LinkedHashMap<String, Object> map = new LinkedHashMap<>(this);
+    AnalyticsContext context = new AnalyticsContext(unmodifiableMap(map));
+    this.snapshot = new Snapshot(current, 0, context);
+    return context;
+  }
+
+  /**
+   * Returns an unmodifiable shallow copy of the values in this map, like {@link
+   * #unmodifiableCopy()}, except that the {@link #device()} is copied too rather than shared, so
+   * later changes to it, like the advertising ID being attached, don't show in the copy. The copy
+   * is shared until this map or the device is changed again.
+   */
+  AnalyticsContext unmodifiableCopyWithDevice() {
+    int current = version.get();
+    Device device = device();
+    int deviceVersion = device == null ? 0 : device.version.get();
+    Snapshot snapshot = this.snapshotWithDevice;
+    if (snapshot != null && snapshot.version == current
+        && snapshot.deviceVersion == deviceVersion) {
+      return snapshot.context;
+    }
     LinkedHashMap<String, Object> map = new LinkedHashMap<>(this);
-    return new AnalyticsContext(unmodifiableMap(map));
+    if (device != null) {
+      map.put(DEVICE_KEY, new Device(new LinkedHashMap<>(device)));
+    }
+    AnalyticsContext context = new AnalyticsContext(unmodifiableMap(map));
+    this.snapshotWithDevice = new Snapshot(current, deviceVersion, context);
+    return context;
   }
 
   /**
@@ -341,6 +429,12 @@ public class AnalyticsContext extends ValueMap {
       super(map);
     }
 
+    static final Factory<Campaign> FACTORY = new Factory<Campaign>() {
+      @Override public Campaign create(Map<String, Object> map) {
+        return new Campaign(map);
+      }
+    };
+
     @Override public Campaign putValue(String key, Object value) {
       super.putValue(key, value);
       return this;
@@ -403,6 +497,12 @@ public class AnalyticsContext extends ValueMap {
     private static final String DEVICE_ADVERTISING_ID_KEY = "advertisingId";
     private static final String DEVICE_AD_TRACKING_ENABLED_KEY = "adTrackingEnabled";
 
+    /**
+     * Incremented after every change to the values in this map, see {@link
+     * AnalyticsContext#unmodifiableCopyWithDevice()}.
+     */
+    private final AtomicInteger version = new AtomicInteger();
+
     private Device() {
     }
 
@@ -411,8 +511,37 @@ public class AnalyticsContext extends ValueMap {
       super(map);
     }
 
+    static final Factory<Device> FACTORY = new Factory<Device>() {
+      @Override public Device create(Map<String, Object> map) {
+        return new Device(map);
+      }
+    };
+
+    @Override public Object put(String key, Object value) {
+      Object previous = super.put(key, value);
+      version.incrementAndGet();
+      return previous;
+    }
+
+    @Override public void putAll(Map<? extends String, ?> map) {
+      super.putAll(map);
+      version.incrementAndGet();
+    }
+
+    @Override public Object remove(Object key) {
+      Object previous = super.remove(key);
+      version.incrementAndGet();
+      return previous;
+    }
+
+    @Override public void clear() {
+      super.clear();
+      version.incrementAndGet();
+    }
+
     @Override public Device putValue(String key, Object value) {
       super.putValue(key, value);
+      version.incrementAndGet();
       return this;
     }
 
@@ -446,6 +575,12 @@ public class AnalyticsContext extends ValueMap {
       super(map);
     }
 
+    static final Factory<Location> FACTORY = new Factory<Location>() {
+      @Override public Location create(Map<String, Object> map) {
+        return new Location(map);
+      }
+    };
+
     @Override public Location putValue(String key, Object value) {
       super.putValue(key, value);
       return this;
@@ -497,6 +632,12 @@ public class AnalyticsContext extends ValueMap {
       super(map);
     }
 
+    static final Factory<Referrer> FACTORY = new Factory<Referrer>() {
+      @Override public Referrer create(Map<String, Object> map) {
+        return new Referrer(map);
+      }
+    };
+
     @Override public Referrer putValue(String key, Object value) {
       super.putValue(key, value);
       return this;
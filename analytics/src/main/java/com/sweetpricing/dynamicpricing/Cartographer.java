@@ -33,6 +33,7 @@ import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -44,6 +45,7 @@ import java.util.Map;
 class Cartographer {
 
   static final Cartographer INSTANCE = new Cartographer();
+  private static final String VARIANTS_KEY = "variants";
 
   private Cartographer() {
   }
@@ -63,7 +65,57 @@ class Cartographer {
   Map<String, Object> fromJson(Reader reader) throws IOException {
     JsonReader jsonReader = new JsonReader(reader);
     try {
-      return readerToMap(jsonReader);
+      return readerToMap(jsonReader, false);
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Deserializes the json read from the specified {@link Reader} into a {@link Variant}. Unlike
+   * {@link #fromJson(Reader)}, the SKUs are bound straight into the variant's index instead of a
+   * map of strings, and integral numbers are read as {@link Integer} or {@link Long} rather than
+   * {@link Double}.
+   */
+  Variant variantFromJson(Reader reader) throws IOException {
+    JsonReader jsonReader = new JsonReader(reader);
+    try {
+      return readVariant(jsonReader);
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Deserializes the response to a batched variant request, which holds the variant of each
+   * product group by ID under {@code variants}, like {@link #variantFromJson(Reader)} does. Returns
+   * {@code null} if the response has no {@code variants}.
+   */
+  Map<Integer, Variant> variantsFromJson(Reader reader) throws IOException {
+    JsonReader jsonReader = new JsonReader(reader);
+    try {
+      Map<Integer, Variant> variants = null;
+      jsonReader.beginObject();
+      while (jsonReader.hasNext()) {
+        if (!VARIANTS_KEY.equals(jsonReader.nextName())
+            || jsonReader.peek() != JsonToken.BEGIN_OBJECT) {
+          jsonReader.skipValue();
+          continue;
+        }
+        variants = new LinkedHashMap<>();
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+          String productGroupId = jsonReader.nextName();
+          try {
+            variants.put(Integer.parseInt(productGroupId), readVariant(jsonReader));
+          } catch (NumberFormatException ignored) {
+            jsonReader.skipValue();
+          }
+        }
+        jsonReader.endObject();
+      }
+      jsonReader.endObject();
+      return variants;
     } finally {
       reader.close();
     }
@@ -80,6 +132,33 @@ class Cartographer {
     return stringWriter.toString();
   }
 
+  /**
+   * Serializes the map into it's json representation and returns it as UTF-8 encoded bytes. This
+   * is the same json as {@link #toJson(Map)}, but it's written straight into a buffer reused by the
+   * calling thread, without going through a {@link String}.
+   */
+  byte[] toJsonBytes(Map<?, ?> map) throws IOException {
+    if (map == null) {
+      throw new IllegalArgumentException("map == null");
+    }
+    return JsonByteWriter.toJson(map);
+  }
+
+  /**
+   * Serializes the map like {@link #toJsonBytes(Map)}, and also finds where the values of the given
+   * top level keys are in the json. The value of {@code keys[i]} starts at {@code offsets[2 * i]}
+   * and ends before {@code offsets[2 * i + 1]}, or both are -1 if the map has no such key.
+   */
+  byte[] toJsonBytes(Map<?, ?> map, String[] keys, int[] offsets) throws IOException {
+    if (map == null) {
+      throw new IllegalArgumentException("map == null");
+    }
+    if (offsets.length < keys.length * 2) {
+      throw new IllegalArgumentException("offsets must hold two offsets for each key.");
+    }
+    return JsonByteWriter.toJson(map, keys, offsets);
+  }
+
   /**
    * Serializes the map into it's json representation into the provided {@link Writer}. If you want
    * to retrieve the json as a string, use {@link #toJson(Map)} instead.
@@ -99,44 +178,89 @@ class Cartographer {
 
   // Decoding
 
-  /** Reads the {@link JsonReader} into a {@link Map}. */
-  private Map<String, Object> readerToMap(JsonReader reader) throws IOException {
+  /** Reads a variant from the {@link JsonReader}, see {@link #variantFromJson(Reader)}. */
+  private Variant readVariant(JsonReader reader) throws IOException {
+    Map<String, Object> fields = new LinkedHashMap<>();
+    int[] productIds = new int[16];
+    String[] skus = new String[16];
+    int count = 0;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String name = reader.nextName();
+      if (!Variant.SKUS_KEY.equals(name) || reader.peek() != JsonToken.BEGIN_OBJECT) {
+        fields.put(name, readValue(reader, true));
+        continue;
+      }
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String productId = reader.nextName();
+        JsonToken token = reader.peek();
+        if (token != JsonToken.STRING && token != JsonToken.NUMBER
+            && token != JsonToken.BOOLEAN) {
+          reader.skipValue();
+          continue;
+        }
+        String sku = token == JsonToken.BOOLEAN ? String.valueOf(reader.nextBoolean())
+            : reader.nextString();
+        try {
+          productIds[count] = Integer.parseInt(productId);
+        } catch (NumberFormatException ignored) {
+          continue; // Can't be looked up by Variant.getProductSku(int, String).
+        }
+        skus[count++] = sku;
+        if (count == productIds.length) {
+          productIds = Arrays.copyOf(productIds, count * 2);
+          skus = Arrays.copyOf(skus, count * 2);
+        }
+      }
+      reader.endObject();
+    }
+    reader.endObject();
+    return Variant.create(fields, productIds, skus, count);
+  }
+
+  /**
+   * Reads the {@link JsonReader} into a {@link Map}. If {@code exactNumbers} is {@code false}, all
+   * numbers are read as {@link Double}, see {@link #readNumber(JsonReader)} otherwise.
+   */
+  private Map<String, Object> readerToMap(JsonReader reader, boolean exactNumbers)
+      throws IOException {
     Map<String, Object> map = new LinkedHashMap<>();
     reader.beginObject();
     while (reader.hasNext()) {
-      map.put(reader.nextName(), readValue(reader));
+      map.put(reader.nextName(), readValue(reader, exactNumbers));
     }
     reader.endObject();
     return map;
   }
 
   /** Reads the {@link JsonReader} into a {@link List}. */
-  private List<Object> readerToList(JsonReader reader) throws IOException {
+  private List<Object> readerToList(JsonReader reader, boolean exactNumbers) throws IOException {
     // todo: try to infer the type of the List?
     List<Object> list = new ArrayList<>();
     reader.beginArray();
     while (reader.hasNext()) {
-      list.add(readValue(reader));
+      list.add(readValue(reader, exactNumbers));
     }
     reader.endArray();
     return list;
   }
 
   /** Reads the next value in the {@link JsonReader}. */
-  private Object readValue(JsonReader reader) throws IOException {
+  private Object readValue(JsonReader reader, boolean exactNumbers) throws IOException {
     JsonToken token = reader.peek();
     switch (token) {
       case BEGIN_OBJECT:
-        return readerToMap(reader);
+        return readerToMap(reader, exactNumbers);
       case BEGIN_ARRAY:
-        return readerToList(reader);
+        return readerToList(reader, exactNumbers);
       case BOOLEAN:
         return reader.nextBoolean();
       case NULL:
         reader.nextNull(); // consume the null token
         return null;
       case NUMBER:
-        return reader.nextDouble();
+        return exactNumbers ? readNumber(reader) : reader.nextDouble();
       case STRING:
         return reader.nextString();
       default:
@@ -144,6 +268,32 @@ class Cartographer {
     }
   }
 
+  /**
+   * Reads the next number in the {@link JsonReader}. Numbers written without a fraction or
+   * exponent are read as an {@link Integer}, or a {@link Long} if they don't fit, and all others as
+   * a {@link Double}.
+   */
+  private static Number readNumber(JsonReader reader) throws IOException {
+    String number = reader.nextString();
+    boolean integral = true;
+    for (int i = 0, length = number.length(); i < length && integral; i++) {
+      char c = number.charAt(i);
+      integral = c == '-' || (c >= '0' && c <= '9');
+    }
+    if (integral) {
+      try {
+        long value = Long.parseLong(number);
+        if (value == (int) value) {
+          return (int) value;
+        }
+        return value;
+      } catch (NumberFormatException ignored) {
+        // Too large for a long.
+      }
+    }
+    return Double.parseDouble(number);
+  }
+
   // Encoding
 
   /** Encode the given {@link Map} into the {@link JsonWriter}. */
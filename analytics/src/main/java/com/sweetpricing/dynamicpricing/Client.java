@@ -31,7 +31,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.util.zip.GZIPOutputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static com.sweetpricing.dynamicpricing.internal.Utils.readFully;
 
@@ -42,72 +43,152 @@ class Client {
 
   final ConnectionFactory connectionFactory;
   final String writeKey;
-
-  private static Connection createPostConnection(HttpURLConnection connection) throws IOException {
+  final Compressor compressor;
+  /** Compresses variant requests, which the preset dictionary of uploads doesn't apply to. */
+  private final Compressor variantCompressor;
+  private final List<NetworkActivityListener> networkActivityListeners =
+      new CopyOnWriteArrayList<>();
+
+  private Connection createPostConnection(HttpURLConnection connection, Compressor compressor)
+      throws IOException {
     final OutputStream outputStream;
     // Clients may have opted out of gzip compression via a custom connection factory.
     String contentEncoding = connection.getRequestProperty("Content-Encoding");
     if (TextUtils.equals("gzip", contentEncoding)) {
-      outputStream = new GZIPOutputStream(connection.getOutputStream());
+      connection.setRequestProperty("Content-Encoding", compressor.contentEncoding());
+      outputStream = compressor.compress(connection.getOutputStream());
     } else {
       outputStream = connection.getOutputStream();
     }
     return new Connection(connection, null, outputStream) {
       @Override public void close() throws IOException {
         try {
-          int responseCode = connection.getResponseCode();
-          if (responseCode >= 300) {
-            String responseBody;
-            try {
-              responseBody = readFully(connection.getInputStream());
-            } catch (IOException e) {
-              responseBody = "Could not read response body for rejected message: " + e.toString();
+          int responseCode;
+          try {
+            responseCode = connection.getResponseCode();
+          } catch (IOException e) {
+            super.close(); // There is no response, the connection can't be reused.
+            throw e;
+          }
+          try {
+            if (responseCode >= 300) {
+              String responseBody;
+              try {
+                responseBody = readFully(connection.getInputStream());
+              } catch (IOException e) {
+                responseBody =
+                    "Could not read response body for rejected message: " + e.toString();
+              }
+              throw new UploadException(responseCode, connection.getResponseMessage(),
+                  responseBody, retryAfterMillis(connection));
             }
-            throw new UploadException(responseCode, connection.getResponseMessage(), responseBody);
+          } finally {
+            connectionFactory.release(connection);
           }
         } finally {
-          super.close();
           os.close();
         }
       }
     };
   }
 
-  private static Connection createGetConnection(HttpURLConnection connection) throws IOException {
+  private Connection createGetConnection(HttpURLConnection connection) throws IOException {
     return new Connection(connection, connection.getInputStream(), null) {
       @Override public void close() throws IOException {
-        super.close();
-        is.close();
+        connectionFactory.release(connection);
       }
     };
   }
 
+  /**
+   * Returns the delay asked for by the {@code Retry-After} header of a response, in milliseconds.
+   * The header holds either a number of seconds or an HTTP date. Returns {@code 0} if the header is
+   * missing or invalid.
+   */
+  static long retryAfterMillis(HttpURLConnection connection) {
+    String retryAfter = connection.getHeaderField("Retry-After");
+    if (retryAfter == null) {
+      return 0;
+    }
+    try {
+      return Math.max(Long.parseLong(retryAfter.trim()), 0) * 1000;
+    } catch (NumberFormatException ignored) {
+    }
+    long date = connection.getHeaderFieldDate("Retry-After", 0);
+    return date == 0 ? 0 : Math.max(date - System.currentTimeMillis(), 0);
+  }
+
   Client(String writeKey, ConnectionFactory connectionFactory) {
+    this(writeKey, connectionFactory, new Compressor(Compressor.DEFAULT_LEVEL, null));
+  }
+
+  Client(String writeKey, ConnectionFactory connectionFactory, Compressor compressor) {
     this.writeKey = writeKey;
     this.connectionFactory = connectionFactory;
+    this.compressor = compressor;
+    this.variantCompressor = compressor.withoutDictionary();
   }
 
   Connection upload() throws IOException {
     HttpURLConnection connection = connectionFactory.upload(writeKey);
-    return createPostConnection(connection);
+    return createPostConnection(connection, compressor);
   }
 
   Connection variant() throws IOException {
     HttpURLConnection connection = connectionFactory.variant(writeKey);
-    return createPostConnection(connection);
+    Connection variantConnection = createPostConnection(connection, variantCompressor);
+    for (NetworkActivityListener listener : networkActivityListeners) {
+      listener.onNetworkActivity();
+    }
+    return variantConnection;
+  }
+
+  void addNetworkActivityListener(NetworkActivityListener listener) {
+    networkActivityListeners.add(listener);
   }
 
-  /** Represents an exception during uploading events that should not be retried. */
+  void removeNetworkActivityListener(NetworkActivityListener listener) {
+    networkActivityListeners.remove(listener);
+  }
+
+  /**
+   * Notified when the client opens a connection for anything other than uploading payloads, which
+   * means the radio is awake.
+   */
+  interface NetworkActivityListener {
+    void onNetworkActivity();
+  }
+
+  /**
+   * Represents an exception during uploading events because the server returned an error. Only
+   * {@link #isRetryable() retryable} errors should be retried.
+   */
   static class UploadException extends IOException {
     final int responseCode;
     final String responseMessage;
     final String responseBody;
+    /** Delay the server asked for before retrying, in milliseconds, or {@code 0}. */
+    final long retryAfterMillis;
 
     UploadException(int responseCode, String responseMessage, String responseBody) {
+      this(responseCode, responseMessage, responseBody, 0);
+    }
+
+    UploadException(int responseCode, String responseMessage, String responseBody,
+        long retryAfterMillis) {
       super("HTTP " + responseCode + ": " + responseMessage + ". Response: " + responseBody);
       this.responseCode = responseCode;
       this.responseMessage = responseMessage;
       this.responseBody = responseBody;
+      this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Returns {@code true} if the request may succeed later: on a timeout (408), when throttled
+     * (429), or on a server error (5xx). Other errors reject the request itself.
+     */
+    boolean isRetryable() {
+      return responseCode == 408 || responseCode == 429 || responseCode >= 500;
     }
   }
 
@@ -130,6 +211,10 @@ class Client {
       this.os = os;
     }
 
+    /**
+     * Closes the underlying connection. Connections opened by the {@link Client} override this to
+     * {@link ConnectionFactory#release(HttpURLConnection) release} it instead, so it can be reused.
+     */
     @Override public void close() throws IOException {
       connection.disconnect();
     }
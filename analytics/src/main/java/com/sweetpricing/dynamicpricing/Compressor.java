@@ -0,0 +1,175 @@
+package com.sweetpricing.dynamicpricing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Compresses request bodies, reusing {@link Deflater}s across requests rather than allocating
+ * their native buffers for every upload.
+ * <p/>
+ * Bodies are gzipped by default. With a preset {@link #DICTIONARY}, they are zlib streams that
+ * reference it instead (sent as {@code Content-Encoding: deflate}), which gzip can't express. A
+ * batch of events repeats the same keys and context, so even the first event of a batch then
+ * compresses to a fraction of its size. The dictionary is only meant for uploads, see {@link
+ * #withoutDictionary()}.
+ */
+class Compressor {
+  static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+  /** Deflaters kept for reuse. Enough for the uploads and variant requests made at once. */
+  private static final int MAX_POOL_SIZE = 4;
+  private static final int BUFFER_SIZE = 4096;
+  private static final byte[] GZIP_HEADER = new byte[] {
+      0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+  };
+
+  /**
+   * The JSON every batch has in common: the keys of {@link
+   * com.sweetpricing.dynamicpricing.integrations.BasePayload} and its subclasses, of {@link
+   * AnalyticsContext}, and values that rarely change. Deflate finds matches at the end of the
+   * dictionary quickest, so the keys of every payload come last.
+   */
+  static final byte[] DICTIONARY = ("\"referrer\":{\"campaign\":{\"content\":\"\",\"medium\":\"\","
+      + "\"source\":\"\",\"term\":\"\"},\"link\":\"\",\"url\":\"\"},\"location\":{"
+      + "\"latitude\":0,\"longitude\":0,\"speed\":0},\"traits\":{\"address\":{\"city\":\"\","
+      + "\"country\":\"\",\"postalCode\":\"\",\"state\":\"\",\"street\":\"\"},\"age\":0,"
+      + "\"avatar\":\"\",\"birthday\":\"\",\"createdAt\":\"\",\"description\":\"\","
+      + "\"email\":\"\",\"firstName\":\"\",\"gender\":\"\",\"lastName\":\"\",\"name\":\"\","
+      + "\"phone\":\"\",\"title\":\"\",\"username\":\"\",\"website\":\"\",\"userId\":\"\"},"
+      + "\"type\":\"identify\",\"type\":\"screen\",\"name\":\"\",\"category\":\"\","
+      + "\"event\":\"View Variant\",\"properties\":{\"variantId\":0,\"products\":[{"
+      + "\"price\":0,\"currencyCode\":\"USD\",\"productId\":\"\"}]},"
+      + "{\"sentAt\":\"\",\"batch\":[{\"messageId\":\"\",\"type\":\"track\","
+      + "\"channel\":\"mobile\",\"context\":{\"app\":{\"build\":0,\"name\":\"\","
+      + "\"namespace\":\"\",\"version\":\"\"},\"device\":{\"adTrackingEnabled\":true,"
+      + "\"advertisingId\":\"\",\"id\":\"\",\"manufacturer\":\"\",\"model\":\"\","
+      + "\"name\":\"\"},\"library\":{\"name\":\"sweetpricing-android\",\"version\":\"\"},"
+      + "\"locale\":\"en-US\",\"network\":{\"bluetooth\":false,\"carrier\":\"\","
+      + "\"cellular\":false,\"wifi\":true},\"os\":{\"name\":\"Android\",\"version\":\"\"},"
+      + "\"screen\":{\"density\":0,\"height\":0,\"width\":0},\"timezone\":\"\","
+      + "\"userAgent\":\"Dalvik/2.1.0 (Linux; U; Android \",\"traits\":{\"anonymousId\":\"\"}},"
+      + "\"anonymousId\":\"\",\"timestamp\":\"\",\"integrations\":{},\"event\":\"\","
+      + "\"properties\":{}},{\"messageId\":\"").getBytes(Charset.forName("UTF-8"));
+
+  private final int level;
+  private final byte[] dictionary;
+  private final Deque<Deflater> pool = new ArrayDeque<>(MAX_POOL_SIZE);
+
+  /**
+   * @param level The compression level, from {@link Deflater#BEST_SPEED} to {@link
+   * Deflater#BEST_COMPRESSION}, or {@link Deflater#DEFAULT_COMPRESSION}.
+   * @param dictionary The preset dictionary, or {@code null} to gzip.
+   */
+  Compressor(int level, byte[] dictionary) {
+    this.level = level;
+    this.dictionary = dictionary;
+  }
+
+  /** Returns a compressor with the same level that gzips, or this one if it gzips already. */
+  Compressor withoutDictionary() {
+    return dictionary == null ? this : new Compressor(level, null);
+  }
+
+  /** Returns the {@code Content-Encoding} of the streams returned by {@link #compress}. */
+  String contentEncoding() {
+    return dictionary == null ? "gzip" : "deflate";
+  }
+
+  /**
+   * Returns a stream that compresses what's written to it into {@code out}. The stream must be
+   * closed, which also closes {@code out}, for its deflater to be reused.
+   */
+  OutputStream compress(OutputStream out) throws IOException {
+    Deflater deflater;
+    synchronized (pool) {
+      deflater = pool.poll();
+    }
+    if (deflater == null) {
+      // Gzip writes its own header and trailer around raw deflate data.
+      deflater = new Deflater(level, dictionary == null);
+    }
+    if (dictionary != null) {
+      deflater.setDictionary(dictionary);
+    }
+    return new CompressingStream(out, deflater);
+  }
+
+  /** Returns the number of deflaters kept for reuse. Visible for testing. */
+  int pooledDeflaters() {
+    synchronized (pool) {
+      return pool.size();
+    }
+  }
+
+  private void release(Deflater deflater) {
+    deflater.reset();
+    synchronized (pool) {
+      if (pool.size() < MAX_POOL_SIZE) {
+        pool.push(deflater);
+        return;
+      }
+    }
+    deflater.end();
+  }
+
+  /** A deflater stream that writes gzip's header and trailer if there's no dictionary. */
+  private class CompressingStream extends DeflaterOutputStream {
+    private final CRC32 crc;
+    private boolean closed;
+
+    CompressingStream(OutputStream out, Deflater deflater) throws IOException {
+      super(out, deflater, BUFFER_SIZE);
+      if (dictionary == null) {
+        crc = new CRC32();
+        out.write(GZIP_HEADER);
+      } else {
+        crc = null;
+      }
+    }
+
+    @Override public void write(byte[] b, int off, int len) throws IOException {
+      super.write(b, off, len);
+      if (crc != null) {
+        crc.update(b, off, len);
+      }
+    }
+
+    @Override public void finish() throws IOException {
+      if (def.finished()) {
+        return;
+      }
+      super.finish();
+      if (crc != null) {
+        writeIntLittleEndian(crc.getValue());
+        writeIntLittleEndian(def.getBytesRead());
+      }
+    }
+
+    private void writeIntLittleEndian(long value) throws IOException {
+      out.write((int) value & 0xff);
+      out.write((int) (value >> 8) & 0xff);
+      out.write((int) (value >> 16) & 0xff);
+      out.write((int) (value >> 24) & 0xff);
+    }
+
+    @Override public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      // Not DeflaterOutputStream.close(), which ends the deflater on Android even though it was
+      // passed in, so it couldn't be reused.
+      try {
+        finish();
+        out.close();
+      } finally {
+        release(def);
+      }
+    }
+  }
+}
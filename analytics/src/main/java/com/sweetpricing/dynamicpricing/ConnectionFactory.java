@@ -2,12 +2,19 @@ package com.sweetpricing.dynamicpricing;
 
 import android.util.Base64;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 
 /**
- * Abstraction to customize how connections are created. This is can be used to point our SDK at
- * your proxy server for instance.
+ * Abstraction to customize how connections are created and released. This is can be used to point
+ * our SDK at your proxy server for instance.
+ * <p/>
+ * Connections are kept alive once released, so that events and variants sent to the same host
+ * share a few pooled connections rather than paying a TCP and TLS handshake for each request.
+ * To use another HTTP stack, for instance one that speaks HTTP/2, return its {@link
+ * HttpURLConnection} implementation from {@link #openConnection(String)}, and override {@link
+ * #release(HttpURLConnection)} if it pools connections differently.
  */
 public class ConnectionFactory {
 
@@ -42,6 +49,33 @@ public class ConnectionFactory {
     return connection;
   }
 
+  /**
+   * Releases a connection once its response was read, or rejected. The rest of the response is
+   * read, which lets {@link HttpURLConnection} return the connection to its pool for the next
+   * request to the same host. Connections that can't be drained are closed.
+   * <p/>
+   * Override this and call {@link HttpURLConnection#disconnect()} to never reuse connections.
+   */
+  protected void release(HttpURLConnection connection) {
+    try {
+      InputStream in;
+      if (connection.getResponseCode() >= 400) {
+        in = connection.getErrorStream();
+      } else {
+        in = connection.getInputStream();
+      }
+      if (in != null) {
+        byte[] buffer = new byte[1024];
+        //noinspection StatementWithEmptyBody
+        while (in.read(buffer) > 0) {
+        }
+        in.close();
+      }
+    } catch (IOException e) {
+      connection.disconnect();
+    }
+  }
+
   /**
    * Configures defaults for connections opened with {@link #upload(String)}
    */
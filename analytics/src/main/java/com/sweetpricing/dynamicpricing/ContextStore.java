@@ -0,0 +1,170 @@
+package com.sweetpricing.dynamicpricing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The distinct contexts of the payloads in a queue, keyed by a hash of their JSON. See {@link
+ * PayloadFormat}. The JSON is compared on every hit, so contexts whose hashes collide are kept
+ * under different keys rather than mixed up.
+ * <p/>
+ * Contexts are kept in memory, and if a file is given, also appended to a {@link QueueFile} as
+ * the key (8 bytes) followed by the JSON, so that payloads that outlive the process can still be
+ * rendered. Contexts are never removed on their own. Once there are more than {@link
+ * #MAX_CONTEXTS}, the owner of the queue should call {@link #retainAll(Set)} with the keys its
+ * payloads still refer to, and wait for the store to grow again before the next call.
+ */
+class ContextStore implements Closeable {
+  /** Number of contexts above which unused contexts should be removed. */
+  static final int MAX_CONTEXTS = 64;
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final File file;
+  private QueueFile queueFile;
+  private final Map<Long, byte[]> contexts = new LinkedHashMap<>();
+
+  /** Creates a store that is only kept in memory. */
+  ContextStore() {
+    this.file = null;
+  }
+
+  /** Creates a store backed by the given file, and loads the contexts already in it. */
+  ContextStore(File file) throws IOException {
+    this.file = file;
+    this.queueFile = new QueueFile(file);
+    queueFile.forEach(new PayloadQueue.ElementVisitor() {
+      @Override public boolean read(InputStream in, int length) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        long hash = data.readLong();
+        byte[] context = new byte[length - 8];
+        data.readFully(context);
+        contexts.put(hash, context);
+        return true;
+      }
+    });
+  }
+
+  /** Returns the 64 bit FNV-1a hash of the given bytes. */
+  static long hash(byte[] bytes) {
+    return hash(bytes, 0, bytes.length);
+  }
+
+  /** Returns the 64 bit FNV-1a hash of {@code length} bytes starting at {@code offset}. */
+  static long hash(byte[] bytes, int offset, int length) {
+    long hash = FNV_OFFSET_BASIS;
+    for (int i = offset, end = offset + length; i < end; i++) {
+      hash ^= bytes[i] & 0xff;
+      hash *= FNV_PRIME;
+    }
+    return hash;
+  }
+
+  /** Adds the given context JSON if it's not in the store already, and returns its key. */
+  synchronized long put(byte[] context) throws IOException {
+    return put(context, 0, context.length);
+  }
+
+  /**
+   * Adds the context JSON of {@code length} bytes starting at {@code offset} if it's not in the
+   * store already, and returns its key. The key is the hash of the JSON, or if a different context
+   * has that hash, the next key that is free or holds the same JSON.
+   */
+  synchronized long put(byte[] bytes, int offset, int length) throws IOException {
+    long key = hash(bytes, offset, length);
+    byte[] existing;
+    while ((existing = contexts.get(key)) != null) {
+      if (equals(existing, bytes, offset, length)) {
+        return key;
+      }
+      key++;
+    }
+    byte[] context = Arrays.copyOfRange(bytes, offset, offset + length);
+    if (queueFile != null) {
+      queueFile.add(element(key, context));
+    }
+    contexts.put(key, context);
+    return key;
+  }
+
+  private static boolean equals(byte[] context, byte[] bytes, int offset, int length) {
+    if (context.length != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (context[i] != bytes[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Returns the context JSON with the given key, or {@code null} if it's not in the store. */
+  synchronized byte[] get(long key) {
+    return contexts.get(key);
+  }
+
+  synchronized int size() {
+    return contexts.size();
+  }
+
+  /**
+   * Removes every context whose key is not in the given set. The file is rewritten to a
+   * temporary file first, which then replaces it, so contexts are never lost halfway through.
+   */
+  synchronized void retainAll(Set<Long> hashes) throws IOException {
+    boolean changed = false;
+    for (Iterator<Long> i = contexts.keySet().iterator(); i.hasNext(); ) {
+      if (!hashes.contains(i.next())) {
+        i.remove();
+        changed = true;
+      }
+    }
+    if (!changed || queueFile == null) {
+      return;
+    }
+
+    File tmp = new File(file.getPath() + ".tmp");
+    //noinspection ResultOfMethodCallIgnored
+    tmp.delete();
+    QueueFile tmpQueueFile = new QueueFile(tmp);
+    try {
+      for (Map.Entry<Long, byte[]> entry : contexts.entrySet()) {
+        tmpQueueFile.add(element(entry.getKey(), entry.getValue()));
+      }
+    } finally {
+      tmpQueueFile.close();
+    }
+    queueFile.close();
+    if (!tmp.renameTo(file)) {
+      queueFile = new QueueFile(file);
+      throw new IOException("Could not replace context file " + file + ".");
+    }
+    queueFile = new QueueFile(file);
+  }
+
+  private static byte[] element(long hash, byte[] context) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + context.length);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeLong(hash);
+    out.write(context);
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  @Override public synchronized void close() throws IOException {
+    if (queueFile != null) {
+      queueFile.close();
+    }
+  }
+}
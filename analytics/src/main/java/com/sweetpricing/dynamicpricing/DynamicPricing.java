@@ -36,6 +36,7 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 
@@ -48,18 +49,26 @@ import com.sweetpricing.dynamicpricing.integrations.TrackPayload;
 import com.sweetpricing.dynamicpricing.internal.Utils;
 import com.sweetpricing.dynamicpricing.internal.Utils.AnalyticsNetworkExecutorService;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
 
+import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
 import static com.sweetpricing.dynamicpricing.internal.Utils.getResourceString;
 import static com.sweetpricing.dynamicpricing.internal.Utils.getSweetpricingSharedPreferences;
 import static com.sweetpricing.dynamicpricing.internal.Utils.hasPermission;
@@ -91,12 +100,15 @@ public class DynamicPricing {
     }
   };
   private static final String OPT_OUT_PREFERENCE_KEY = "opt-out";
+  private static final String DISPATCHER_THREAD_NAME = Utils.THREAD_PREFIX + "Dispatcher";
   static final String WRITE_KEY_RESOURCE_IDENTIFIER = "analytics_write_key";
   static final List<String> INSTANCES = new ArrayList<>(1);
   volatile static DynamicPricing singleton = null;
   private static final Properties EMPTY_PROPERTIES = new Properties();
   private static final String VERSION_KEY = "version";
   private static final String BUILD_KEY = "build";
+  private static final long ADVERTISING_ID_TIMEOUT_MILLIS = 15 * 1000; // 15 seconds
+  private static final int DRAIN_BATCH_SIZE = 64;
 
   private final Application application;
   final ExecutorService networkExecutor;
@@ -114,16 +126,52 @@ public class DynamicPricing {
   private final String writeKey;
   final int flushQueueSize;
   final long flushIntervalInMillis;
-  // Retrieving the advertising ID is asynchronous. This latch helps us wait to ensure the
-  // advertising ID is ready.
-  final CountDownLatch advertisingIdLatch;
+  final int flushConcurrency;
+  /**
+   * When changes to queue files are forced to storage, or {@code null} to write them
+   * synchronously. See {@link Builder#memoryMappedQueue}.
+   */
+  final QueueFile.ForcePolicy queueForcePolicy;
+  final QueueStorage queueStorage;
+  /** Budget for the bytes of events queued in memory, if the disk can't be used. */
+  final int memoryQueueMaxBytes;
+  // Retrieving the advertising ID is asynchronous. Payloads wait at this gate until it's ready,
+  // without blocking the analyticsExecutor.
+  final AdvertisingIdGate advertisingIdGate;
   final ExecutorService analyticsExecutor;
+  /** Events recorded on any thread, waiting to be made into payloads on the analyticsExecutor. */
+  final EventRing eventRing;
+  private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+  private final Runnable drainEvents = new Runnable() {
+    @Override public void run() {
+      performDrainEvents();
+    }
+  };
   final BooleanPreference optOut;
+  final VariantCache variantCache;
+  final VariantFetcher variantFetcher;
+  final VariantPrefetcher variantPrefetcher;
+  /** Keys of the variants being fetched, which are cached once fetched. */
+  private final Set<String> fetchingVariants =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
   final Map<String, Boolean> bundledIntegrations = new ConcurrentHashMap<>();
   private List<Integration.Factory> factories;
   // todo: use lightweight map implementation.
   private Map<String, Integration<?>> integrations;
+  /** Integrations that run operations on the main thread, a subset of {@link #integrations}. */
+  private Map<String, Integration<?>> mainThreadIntegrations;
+  /**
+   * Integrations that run operations on the {@link #dispatcher}, see {@link
+   * Integration#isThreadSafe()}.
+   */
+  private Map<String, Integration<?>> backgroundIntegrations;
+  private final HandlerThread dispatcherThread;
+  /**
+   * Receives every operation off the main thread, runs it on thread-safe integrations and posts it
+   * to the main thread for the others.
+   */
+  private final Handler dispatcher;
   volatile boolean shutdown;
 
   /**
@@ -184,9 +232,14 @@ public class DynamicPricing {
                  Traits.Cache traitsCache, AnalyticsContext analyticsContext, Options defaultOptions,
                  Logger logger, String tag, final List<Integration.Factory> factories, Client client,
                  Cartographer cartographer, ProjectSettings.Cache projectSettingsCache, String writeKey,
-                 int flushQueueSize, long flushIntervalInMillis, final ExecutorService analyticsExecutor,
-                 final boolean shouldTrackApplicationLifecycleEvents, CountDownLatch advertisingIdLatch,
-                 final boolean shouldRecordScreenViews, BooleanPreference optOut) {
+                 int flushQueueSize, long flushIntervalInMillis, int flushConcurrency,
+                 QueueStorage queueStorage, QueueFile.ForcePolicy queueForcePolicy,
+                 int memoryQueueMaxBytes, final ExecutorService analyticsExecutor,
+                 final boolean shouldTrackApplicationLifecycleEvents,
+                 AdvertisingIdGate advertisingIdGate,
+                 final boolean shouldRecordScreenViews, BooleanPreference optOut,
+                 VariantCache variantCache, VariantFetcher variantFetcher,
+                 int[] prefetchProductGroupIds, EventRing eventRing) {
     this.application = application;
     this.networkExecutor = networkExecutor;
     this.stats = stats;
@@ -201,10 +254,22 @@ public class DynamicPricing {
     this.writeKey = writeKey;
     this.flushQueueSize = flushQueueSize;
     this.flushIntervalInMillis = flushIntervalInMillis;
-    this.advertisingIdLatch = advertisingIdLatch;
+    this.flushConcurrency = flushConcurrency;
+    this.queueStorage = queueStorage;
+    this.queueForcePolicy = queueForcePolicy;
+    this.memoryQueueMaxBytes = memoryQueueMaxBytes;
+    this.advertisingIdGate = advertisingIdGate;
     this.optOut = optOut;
+    this.variantCache = variantCache;
+    this.variantFetcher = variantFetcher;
+    this.variantPrefetcher = new VariantPrefetcher(this, application, variantCache,
+        analyticsExecutor, advertisingIdGate, logger, prefetchProductGroupIds);
     this.factories = Collections.unmodifiableList(factories);
     this.analyticsExecutor = analyticsExecutor;
+    this.eventRing = eventRing;
+    dispatcherThread = new HandlerThread(DISPATCHER_THREAD_NAME, THREAD_PRIORITY_BACKGROUND);
+    dispatcherThread.start();
+    dispatcher = new Handler(dispatcherThread.getLooper());
 
     analyticsExecutor.submit(new Runnable() {
       @Override public void run() {
@@ -216,9 +281,21 @@ public class DynamicPricing {
         }
 
 
+        final CountDownLatch integrationsInitialized = new CountDownLatch(1);
         HANDLER.post(new Runnable() {
           @Override public void run() {
             performInitializeIntegrations(projectSettings);
+            integrationsInitialized.countDown();
+          }
+        });
+        // Operations are posted to the dispatcher after this, so they find the integrations.
+        dispatcher.post(new Runnable() {
+          @Override public void run() {
+            try {
+              integrationsInitialized.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
           }
         });
       }
@@ -234,34 +311,35 @@ public class DynamicPricing {
             && shouldTrackApplicationLifecycleEvents) {
           trackApplicationLifecycleEvents();
         }
-        runOnMainThread(IntegrationOperation.onActivityCreated(activity, savedInstanceState));
+        dispatch(IntegrationOperation.onActivityCreated(activity, savedInstanceState));
       }
 
       @Override public void onActivityStarted(Activity activity) {
         if (shouldRecordScreenViews) {
           recordScreenViews(activity);
         }
-        runOnMainThread(IntegrationOperation.onActivityStarted(activity));
+        dispatch(IntegrationOperation.onActivityStarted(activity));
       }
 
       @Override public void onActivityResumed(Activity activity) {
-        runOnMainThread(IntegrationOperation.onActivityResumed(activity));
+        variantPrefetcher.onActivityResumed();
+        dispatch(IntegrationOperation.onActivityResumed(activity));
       }
 
       @Override public void onActivityPaused(Activity activity) {
-        runOnMainThread(IntegrationOperation.onActivityPaused(activity));
+        dispatch(IntegrationOperation.onActivityPaused(activity));
       }
 
       @Override public void onActivityStopped(Activity activity) {
-        runOnMainThread(IntegrationOperation.onActivityStopped(activity));
+        dispatch(IntegrationOperation.onActivityStopped(activity));
       }
 
       @Override public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
-        runOnMainThread(IntegrationOperation.onActivitySaveInstanceState(activity, outState));
+        dispatch(IntegrationOperation.onActivitySaveInstanceState(activity, outState));
       }
 
       @Override public void onActivityDestroyed(Activity activity) {
-        runOnMainThread(IntegrationOperation.onActivityDestroyed(activity));
+        dispatch(IntegrationOperation.onActivityDestroyed(activity));
       }
     });
   }
@@ -322,14 +400,15 @@ public class DynamicPricing {
     }
   }
 
-  private void runOnMainThread(final IntegrationOperation operation) {
+  private void dispatch(final IntegrationOperation operation) {
+    final long dispatchedAt = System.nanoTime();
     analyticsExecutor.submit(new Runnable() {
       @Override
       public void run() {
-        HANDLER.post(new Runnable() {
+        dispatcher.post(new Runnable() {
           @Override
           public void run() {
-            performRun(operation);
+            performRun(operation, dispatchedAt);
           }
         });
       }
@@ -395,21 +474,7 @@ public class DynamicPricing {
     traitsCache.set(traits); // Save the new traits
     analyticsContext.setTraits(traits); // Update the references
 
-    analyticsExecutor.submit(new Runnable() {
-      @Override public void run() {
-        final Options finalOptions;
-        if (options == null) {
-          finalOptions = defaultOptions;
-        } else {
-          finalOptions = options;
-        }
-
-        waitForAdvertisingId();
-        IdentifyPayload payload =
-            new IdentifyPayload(analyticsContext, finalOptions, traitsCache.get());
-        enqueue(payload);
-      }
-    });
+    publish(BasePayload.Type.identify, null, null, null, options);
   }
 
   /**
@@ -472,6 +537,88 @@ public class DynamicPricing {
     track("View Variant", props);
   }
 
+  /**
+   * Fetch the price variant of a product group for the current user. The variant is fetched on
+   * a thread owned by this client, and {@code callback} is invoked on the main thread with it.
+   * <p/>
+   * A cached variant is returned straight away, and fetched again in the background if it's
+   * older than {@link Builder#variantCacheTtl(long, TimeUnit)}. If the variant can't be fetched,
+   * or not within {@link Builder#variantTimeout(long, TimeUnit)}, the callback gets an empty
+   * variant, whose {@link Variant#getProductSku(int, String)} returns the default SKUs.
+   *
+   * @param productGroupId The ID of the product <b>group</b> you are displaying.
+   */
+  public void fetchVariant(int productGroupId, final Callback<Variant> callback) {
+    if (callback == null) {
+      throw new IllegalArgumentException("callback must not be null.");
+    }
+    final VariantFuture future = performFetchVariant(productGroupId);
+    future.addListener(new Runnable() {
+      @Override public void run() {
+        HANDLER.post(new Runnable() {
+          @Override public void run() {
+            callback.onReady(future.variant());
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Fetch the price variant of a product group for the current user, like {@link
+   * #fetchVariant(int, Callback)}. The returned future never fails: once the timeout passed,
+   * {@link Future#get()} returns an empty variant instead. Cancelling the future doesn't cancel
+   * the request, whose result is still cached for next time.
+   *
+   * @param productGroupId The ID of the product <b>group</b> you are displaying.
+   */
+  public Future<Variant> fetchVariant(int productGroupId) {
+    return performFetchVariant(productGroupId);
+  }
+
+  VariantFuture performFetchVariant(final int productGroupId) {
+    if (shutdown) {
+      throw new IllegalStateException("Cannot fetch variants after client is shutdown.");
+    }
+    final VariantFuture future =
+        new VariantFuture(Variant.create(new ValueMap()), variantFetcher.timeoutMillis);
+    final String key = variantCacheKey(productGroupId);
+    final long startedAt = System.nanoTime();
+    variantFetcher.execute(new Runnable() {
+      @Override public void run() {
+        VariantCache.Entry cached = variantCache.get(key);
+        if (cached != null) {
+          future.complete(cached.variant);
+          if (!variantCache.isFresh(cached)) {
+            requestVariant(productGroupId, key); // Refreshed for next time.
+          }
+          return;
+        }
+        final Runnable timeout = new Runnable() {
+          @Override public void run() {
+            if (future.completeWithFallback()) {
+              logger.info("Timed out fetching variant of product group %s.", productGroupId);
+            }
+          }
+        };
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+        // The main thread is never busy for long, unlike the threads fetching variants.
+        HANDLER.postDelayed(timeout, Math.max(0, variantFetcher.timeoutMillis - elapsedMillis));
+        requestVariant(productGroupId, key).addListener(new VariantFetcher.Call.Listener() {
+          @Override public void onComplete(VariantFetcher.Call call) {
+            HANDLER.removeCallbacks(timeout);
+            try {
+              future.complete(call.result());
+            } catch (IOException e) {
+              future.completeWithFallback();
+            }
+          }
+        });
+      }
+    });
+    return future;
+  }
+
   /**
    * The track method is how you record any actions your users perform. Each action is known by a
    * name, like 'Purchased a T-Shirt'. You can also record properties specific to those actions.
@@ -491,28 +638,7 @@ public class DynamicPricing {
       throw new IllegalArgumentException("event must not be null or empty.");
     }
 
-    analyticsExecutor.submit(new Runnable() {
-      @Override public void run() {
-        final Options finalOptions;
-        if (options == null) {
-          finalOptions = defaultOptions;
-        } else {
-          finalOptions = options;
-        }
-
-        final Properties finalProperties;
-        if (properties == null) {
-          finalProperties = EMPTY_PROPERTIES;
-        } else {
-          finalProperties = properties;
-        }
-
-        waitForAdvertisingId();
-        TrackPayload payload =
-            new TrackPayload(analyticsContext, finalOptions, event, finalProperties);
-        enqueue(payload);
-      }
-    });
+    publish(BasePayload.Type.track, null, event, properties, options);
   }
 
   /** @see #screen(String, String, Properties, Options) */
@@ -547,42 +673,106 @@ public class DynamicPricing {
       throw new IllegalArgumentException("either category or name must be provided.");
     }
 
-    analyticsExecutor.submit(new Runnable() {
-      @Override public void run() {
-        final Options finalOptions;
-        if (options == null) {
-          finalOptions = defaultOptions;
-        } else {
-          finalOptions = options;
-        }
+    publish(BasePayload.Type.screen, category, name, properties, options);
+  }
 
-        final Properties finalProperties;
-        if (properties == null) {
-          finalProperties = EMPTY_PROPERTIES;
-        } else {
-          finalProperties = properties;
-        }
+  /**
+   * Records an event in the {@link #eventRing}, and makes sure it's drained. The payload is
+   * created on the {@link #analyticsExecutor}, with the time the event was recorded. Until the
+   * advertising ID is ready, a copy of the context is taken here too, on the caller's thread, in
+   * case the payload is released from the {@link #advertisingIdGate} before then.
+   */
+  private void publish(BasePayload.Type type, String category, String name,
+      Properties properties, Options options) {
+    AnalyticsContext context =
+        advertisingIdGate.isOpen() ? null : analyticsContext.unmodifiableCopyWithDevice();
+    if (eventRing.offer(type, category, name, properties, options, System.currentTimeMillis(),
+        context)) {
+      scheduleDrain();
+    }
+  }
 
-        waitForAdvertisingId();
-        ScreenPayload payload =
-            new ScreenPayload(analyticsContext, finalOptions, category, name, finalProperties);
-        enqueue(payload);
-      }
-    });
+  private void scheduleDrain() {
+    if (drainScheduled.compareAndSet(false, true)) {
+      analyticsExecutor.submit(drainEvents);
+    }
   }
 
-  void waitForAdvertisingId() {
-    try {
-      advertisingIdLatch.await(15, TimeUnit.SECONDS);
-    } catch (InterruptedException e) {
-      logger.error(e, "Thread interrupted while waiting for advertising ID.");
+  /**
+   * Makes the events in the {@link #eventRing} into payloads, {@link #DRAIN_BATCH_SIZE} at a time,
+   * until it's empty.
+   */
+  void performDrainEvents() {
+    for (; ; ) {
+      for (; ; ) {
+        final List<BasePayload> batch = new ArrayList<>(DRAIN_BATCH_SIZE);
+        final List<AnalyticsContext> contexts = new ArrayList<>(DRAIN_BATCH_SIZE);
+        eventRing.drain(new EventRing.Consumer() {
+          @Override public void accept(EventRing.Slot slot) {
+            batch.add(createPayload(slot));
+            contexts.add(slot.context);
+          }
+        }, DRAIN_BATCH_SIZE);
+        if (batch.isEmpty()) {
+          break;
+        }
+        enqueueWhenAdvertisingIdReady(batch, contexts);
+      }
+      long dropped = eventRing.takeDroppedCount();
+      if (dropped > 0) {
+        logger.info("Dropped %s events because more than %s were waiting to be processed.",
+            dropped, eventRing.capacity());
+      }
+      drainScheduled.set(false);
+      // An event published since the ring was drained may have seen drainScheduled still set.
+      if (eventRing.isEmpty() || !drainScheduled.compareAndSet(false, true)) {
+        return;
+      }
     }
-    if (advertisingIdLatch.getCount() == 1) {
-      logger.debug("Advertising ID may not be collected because the Advertising ID API did not "
-          + "respond within 15 seconds.");
+  }
+
+  private BasePayload createPayload(EventRing.Slot slot) {
+    Options options = slot.options == null ? defaultOptions : slot.options;
+    Properties properties = slot.properties == null ? EMPTY_PROPERTIES : slot.properties;
+    Date timestamp = new Date(slot.timestamp);
+    switch (slot.type) {
+      case identify:
+        return new IdentifyPayload(analyticsContext, options, traitsCache.get(), timestamp);
+      case track:
+        return new TrackPayload(analyticsContext, options, slot.name, properties, timestamp);
+      case screen:
+        return new ScreenPayload(analyticsContext, options, slot.category, slot.name, properties,
+            timestamp);
+      default:
+        throw new AssertionError("unknown type " + slot.type);
     }
   }
 
+  /**
+   * Enqueues the payloads once the advertising ID has been attached to their context, see {@link
+   * AdvertisingIdGate}. Returns immediately either way.
+   *
+   * @param contexts The {@link EventRing.Slot#context} each payload was recorded with, which it's
+   * sent with instead if the gate releases it early.
+   */
+  void enqueueWhenAdvertisingIdReady(final List<BasePayload> payloads,
+      final List<AnalyticsContext> contexts) {
+    advertisingIdGate.execute(new Runnable() {
+      @Override public void run() {
+        // Released early, the advertising ID may still be attached to the live device.
+        boolean early = !advertisingIdGate.isOpen();
+        for (int i = 0; i < payloads.size(); i++) {
+          BasePayload payload = payloads.get(i);
+          AnalyticsContext context = contexts.get(i);
+          if (early && context != null) {
+            payload.put("context", context);
+          }
+          enqueue(payload);
+        }
+      }
+    }, payloads.size());
+  }
+
   void enqueue(BasePayload payload) {
     if (optOut.get()) {
       return;
@@ -603,9 +793,10 @@ public class DynamicPricing {
       default:
         throw new AssertionError("unknown type " + payload.type());
     }
-    HANDLER.post(new Runnable() {
+    final long dispatchedAt = System.nanoTime();
+    dispatcher.post(new Runnable() {
       @Override public void run() {
-        performRun(operation);
+        performRun(operation, dispatchedAt);
       }
     });
   }
@@ -618,7 +809,7 @@ public class DynamicPricing {
     if (shutdown) {
       throw new IllegalStateException("Cannot enqueue messages after client is shutdown.");
     }
-    runOnMainThread(IntegrationOperation.FLUSH);
+    dispatch(IntegrationOperation.FLUSH);
   }
 
   /** Get the {@link AnalyticsContext} used by this instance. */
@@ -634,6 +825,33 @@ public class DynamicPricing {
     return client;
   }
 
+  /** Returns the key of the cached variant of a product group, for the current user. */
+  String variantCacheKey(int productGroupId) {
+    return VariantCache.key(productGroupId, traitsCache.get().currentId());
+  }
+
+  /**
+   * Fetches the variant of a product group and caches it under the given key once fetched. The
+   * fetch is shared with other callers, see {@link VariantFetcher}.
+   */
+  VariantFetcher.Call requestVariant(final int productGroupId, final String key) {
+    VariantFetcher.Call call = variantFetcher.fetch(productGroupId);
+    if (fetchingVariants.add(key)) {
+      call.addListener(new VariantFetcher.Call.Listener() {
+        @Override public void onComplete(VariantFetcher.Call call) {
+          try {
+            variantCache.put(key, call.result());
+          } catch (IOException e) {
+            logger.error(e, "Could not fetch variant of product group %s.", productGroupId);
+          } finally {
+            fetchingVariants.remove(key);
+          }
+        }
+      });
+    }
+    return call;
+  }
+
   /** Creates a {@link StatsSnapshot} of the current stats for this instance. */
   public StatsSnapshot getSnapshot() {
     return stats.createSnapshot();
@@ -666,7 +884,12 @@ public class DynamicPricing {
     traitsCache.delete();
     traitsCache.set(Traits.create());
     analyticsContext.setTraits(traitsCache.get());
-    runOnMainThread(IntegrationOperation.RESET);
+    analyticsExecutor.submit(new Runnable() {
+      @Override public void run() {
+        variantCache.clear(); // Deletes the cached files, so not on the caller's thread.
+      }
+    });
+    dispatch(IntegrationOperation.RESET);
   }
 
   /**
@@ -759,6 +982,8 @@ public class DynamicPricing {
       networkExecutor.shutdown();
     }
     stats.shutdown();
+    variantFetcher.shutdown();
+    dispatcherThread.quit();
     shutdown = true;
     synchronized (INSTANCES) {
       INSTANCES.remove(tag);
@@ -781,6 +1006,30 @@ public class DynamicPricing {
     }
   }
 
+  /**
+   * Controls what happens to an event recorded while too many are waiting to be processed, see
+   * {@link Builder#eventBuffer(int, OverflowPolicy)}.
+   */
+  public enum OverflowPolicy {
+    /** Drop the oldest event waiting, to make room for the new one. */
+    DROP_OLDEST,
+    /** Drop the new event. */
+    DROP_NEWEST,
+    /** Block the calling thread until there's room for the new event. */
+    BLOCK
+  }
+
+  /** How queued events are stored on disk, see {@link Builder#queueStorage(QueueStorage)}. */
+  public enum QueueStorage {
+    /** A single {@link QueueFile}, which is used as a ring and grows as needed. */
+    QUEUE_FILE,
+    /**
+     * A log of append-only segment files, which are deleted once they've been uploaded rather than
+     * zeroed out, and aren't limited to 2GB.
+     */
+    SEGMENTED
+  }
+
   /**
    * A callback interface that is invoked when the DynamicPricing client initializes bundled
    * integrations.
@@ -802,14 +1051,25 @@ public class DynamicPricing {
     private boolean collectDeviceID = Utils.DEFAULT_COLLECT_DEVICE_ID;
     private int flushQueueSize = Utils.DEFAULT_FLUSH_QUEUE_SIZE;
     private long flushIntervalInMillis = Utils.DEFAULT_FLUSH_INTERVAL;
+    private int flushConcurrency = Utils.DEFAULT_FLUSH_CONCURRENCY;
+    private QueueStorage queueStorage = QueueStorage.QUEUE_FILE;
+    private QueueFile.ForcePolicy queueForcePolicy;
+    private int memoryQueueMaxBytes = PayloadQueue.MemoryQueue.DEFAULT_MAX_BYTES;
     private Options defaultOptions;
     private String tag;
     private LogLevel logLevel;
     private ExecutorService networkExecutor;
     private ConnectionFactory connectionFactory;
+    private int compressionLevel = Compressor.DEFAULT_LEVEL;
+    private boolean compressionDictionary = false;
     private List<Integration.Factory> factories;
     private boolean trackApplicationLifecycleEvents = false;
     private boolean recordScreenViews = false;
+    private long variantCacheTtlInMillis = VariantCache.DEFAULT_TTL_MILLIS;
+    private long variantTimeoutInMillis = VariantFetcher.DEFAULT_TIMEOUT_MILLIS;
+    private int[] prefetchProductGroupIds = new int[0];
+    private int eventBufferCapacity = EventRing.DEFAULT_CAPACITY;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
 
     /** Start building a new {@link DynamicPricing} instance. */
     public Builder(Context context, String writeKey) {
@@ -869,6 +1129,68 @@ public class DynamicPricing {
       return this;
     }
 
+    /**
+     * Set the maximum number of batches the client uploads at once when flushing events. With a
+     * value greater than one, the next batch is read from the queue and uploaded while earlier
+     * ones are still in flight, which drains a large backlog faster. Defaults to one batch at a
+     * time.
+     *
+     * @throws IllegalArgumentException if the flushConcurrency is less than one or greater than 4.
+     */
+    public Builder flushConcurrency(int flushConcurrency) {
+      if (flushConcurrency < 1) {
+        throw new IllegalArgumentException("flushConcurrency must be greater than zero.");
+      }
+      if (flushConcurrency > 4) {
+        throw new IllegalArgumentException("flushConcurrency must be less than or equal to 4.");
+      }
+      this.flushConcurrency = flushConcurrency;
+      return this;
+    }
+
+    /**
+     * Set how queued events are stored on disk. Defaults to {@link QueueStorage#QUEUE_FILE}.
+     * <p/>
+     * Switching to {@link QueueStorage#SEGMENTED} moves the events already queued in the queue
+     * file to the segments. Switching back doesn't, and events left in the segments are only
+     * uploaded if segments are used again.
+     */
+    public Builder queueStorage(QueueStorage queueStorage) {
+      if (queueStorage == null) {
+        throw new IllegalArgumentException("QueueStorage must not be null.");
+      }
+      this.queueStorage = queueStorage;
+      return this;
+    }
+
+    /**
+     * Set how many bytes of events are kept in memory if the queue can't be stored on disk. Once
+     * they don't fit, the oldest events are dropped to make room for new ones. Defaults to 4MB.
+     *
+     * @throws IllegalArgumentException if maxBytes is less than or equal to zero.
+     */
+    public Builder memoryQueueMaxBytes(int maxBytes) {
+      if (maxBytes <= 0) {
+        throw new IllegalArgumentException("maxBytes must be greater than zero.");
+      }
+      this.memoryQueueMaxBytes = maxBytes;
+      return this;
+    }
+
+    /**
+     * Write queue files through a memory mapping, and only force changes to storage at the points
+     * chosen by the {@link QueueFile.ForcePolicy}, instead of writing every change synchronously.
+     * This makes queueing an event much faster, at the cost of the guarantees the policy gives
+     * up. Applies to the queues kept in a single {@link QueueFile}.
+     */
+    public Builder memoryMappedQueue(QueueFile.ForcePolicy forcePolicy) {
+      if (forcePolicy == null) {
+        throw new IllegalArgumentException("ForcePolicy must not be null.");
+      }
+      this.queueForcePolicy = forcePolicy;
+      return this;
+    }
+
     /**
      * Enable or disable collection of {@link android.provider.Settings.Secure#ANDROID_ID},
      * {@link android.os.Build#SERIAL} or the Telephony Identifier retrieved via
@@ -956,6 +1278,109 @@ public class DynamicPricing {
       return this;
     }
 
+    /**
+     * Set how hard uploads are compressed, from {@link Deflater#BEST_SPEED} (1) to {@link
+     * Deflater#BEST_COMPRESSION} (9). Higher levels send fewer bytes for more CPU time. Defaults to
+     * {@link Deflater#DEFAULT_COMPRESSION}, which is level 6.
+     *
+     * @throws IllegalArgumentException if the level is not a valid compression level.
+     */
+    public Builder compressionLevel(int level) {
+      if ((level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+          && level != Deflater.DEFAULT_COMPRESSION) {
+        throw new IllegalArgumentException("level must be between 1 and 9.");
+      }
+      this.compressionLevel = level;
+      return this;
+    }
+
+    /**
+     * Compress uploads with a preset dictionary of the keys and values every batch has in
+     * common, which makes small batches much smaller. Uploads are then sent with {@code
+     * Content-Encoding: deflate} rather than gzip, so only enable this if your endpoint decodes
+     * them with the same dictionary. Variant requests are gzipped either way.
+     */
+    public Builder compressionDictionary() {
+      this.compressionDictionary = true;
+      return this;
+    }
+
+    /**
+     * Set how long a fetched variant is used before it's fetched again. A variant older than this
+     * is still used while a new one is fetched in the background, so the store never waits for
+     * the network once a variant was fetched. Defaults to one hour.
+     *
+     * @throws IllegalArgumentException if the ttl is less than or equal to zero.
+     */
+    public Builder variantCacheTtl(long ttl, TimeUnit timeUnit) {
+      if (timeUnit == null) {
+        throw new IllegalArgumentException("timeUnit must not be null.");
+      }
+      if (ttl <= 0) {
+        throw new IllegalArgumentException("ttl must be greater than zero.");
+      }
+      this.variantCacheTtlInMillis = timeUnit.toMillis(ttl);
+      return this;
+    }
+
+    /**
+     * Set how long {@link DynamicPricing#fetchVariant(int, Callback)} waits for a variant that
+     * isn't cached before it gives up and returns an empty one, so the store can show its default
+     * prices. The variant is still cached once fetched. Defaults to 10 seconds.
+     *
+     * @throws IllegalArgumentException if the timeout is less than or equal to zero.
+     */
+    public Builder variantTimeout(long timeout, TimeUnit timeUnit) {
+      if (timeUnit == null) {
+        throw new IllegalArgumentException("timeUnit must not be null.");
+      }
+      if (timeout <= 0) {
+        throw new IllegalArgumentException("timeout must be greater than zero.");
+      }
+      this.variantTimeoutInMillis = timeUnit.toMillis(timeout);
+      return this;
+    }
+
+    /**
+     * Fetch the variants of the given product groups in the background once the app is started,
+     * so that {@link DynamicPricing#fetchVariant(int, Callback)} returns them without waiting for
+     * the network when the store is opened. Variants are fetched again whenever an activity is
+     * resumed after they went stale, see {@link #variantCacheTtl(long, TimeUnit)}.
+     *
+     * @param productGroupIds The IDs of the product <b>groups</b> your store displays.
+     */
+    public Builder prefetchVariants(int... productGroupIds) {
+      if (productGroupIds == null) {
+        throw new IllegalArgumentException("productGroupIds must not be null.");
+      }
+      this.prefetchProductGroupIds = productGroupIds.clone();
+      return this;
+    }
+
+    /**
+     * Set how many events can wait to be processed, and what happens to events recorded when that
+     * many are. Events are recorded without taking a lock, and processed in batches in the
+     * background. The capacity is rounded up to a power of two, and defaults to {@value
+     * EventRing#DEFAULT_CAPACITY}; by default the oldest events are dropped.
+     *
+     * @throws IllegalArgumentException if the capacity is not greater than zero or the policy is
+     * null.
+     */
+    public Builder eventBuffer(int capacity, OverflowPolicy overflowPolicy) {
+      if (capacity <= 0) {
+        throw new IllegalArgumentException("capacity must be greater than zero.");
+      }
+      if (capacity > 1 << 20) {
+        throw new IllegalArgumentException("capacity must be less than or equal to 2^20.");
+      }
+      if (overflowPolicy == null) {
+        throw new IllegalArgumentException("overflowPolicy must not be null.");
+      }
+      this.eventBufferCapacity = capacity;
+      this.overflowPolicy = overflowPolicy;
+      return this;
+    }
+
     /** TODO: docs */
     public Builder use(Integration.Factory factory) {
       if (factory == null) {
@@ -1010,7 +1435,8 @@ public class DynamicPricing {
 
       final Stats stats = new Stats();
       final Cartographer cartographer = Cartographer.INSTANCE;
-      final Client client = new Client(writeKey, connectionFactory);
+      final Client client = new Client(writeKey, connectionFactory, new Compressor(
+          compressionLevel, compressionDictionary ? Compressor.DICTIONARY : null));
 
       ProjectSettings.Cache projectSettingsCache =
               new ProjectSettings.Cache(application, cartographer, tag);
@@ -1027,19 +1453,41 @@ public class DynamicPricing {
       }
 
       Logger logger = Logger.with(logLevel);
+      File variantCacheDirectory =
+          new File(application.getDir("sweetpricing-variants", Context.MODE_PRIVATE), tag);
+      if (!variantCacheDirectory.exists() && !variantCacheDirectory.mkdirs()) {
+        logger.info("Could not create %s, only caching variants in memory.",
+            variantCacheDirectory);
+        variantCacheDirectory = null;
+      }
+      VariantCache variantCache = new VariantCache(variantCacheDirectory,
+          VariantCache.DEFAULT_MAX_SIZE, variantCacheTtlInMillis, cartographer,
+          VariantCache.SYSTEM_CLOCK, logger);
       AnalyticsContext analyticsContext =
           AnalyticsContext.create(application, traitsCache.get(), collectDeviceID);
-      CountDownLatch advertisingIdLatch = new CountDownLatch(1);
-      analyticsContext.attachAdvertisingId(application, advertisingIdLatch, logger);
+      ExecutorService analyticsExecutor = Executors.newSingleThreadExecutor();
+      AdvertisingIdGate advertisingIdGate =
+          new AdvertisingIdGate(AdvertisingIdGate.DEFAULT_CAPACITY, analyticsExecutor, logger);
+      analyticsContext.attachAdvertisingId(application, advertisingIdGate, logger);
+      advertisingIdGate.openAfter(HANDLER, ADVERTISING_ID_TIMEOUT_MILLIS);
 
       List<Integration.Factory> factories = new ArrayList<>(1 + this.factories.size());
       factories.add(SweetpricingIntegration.FACTORY);
       factories.addAll(this.factories);
 
+      VariantFetcher variantFetcher = new VariantFetcher(
+          new ScheduledThreadPoolExecutor(VariantFetcher.THREAD_COUNT,
+              new Utils.AnalyticsThreadFactory()),
+          new VariantFetcher.Network(client, cartographer, analyticsContext, defaultOptions),
+          VariantFetcher.DEFAULT_BATCH_WINDOW_MILLIS, variantTimeoutInMillis);
+
       return new DynamicPricing(application, networkExecutor, stats, traitsCache, analyticsContext,
           defaultOptions, logger, tag, factories, client, cartographer, projectSettingsCache,
-          writeKey, flushQueueSize, flushIntervalInMillis, Executors.newSingleThreadExecutor(),
-          trackApplicationLifecycleEvents, advertisingIdLatch, recordScreenViews, optOut);
+          writeKey, flushQueueSize, flushIntervalInMillis, flushConcurrency, queueStorage,
+          queueForcePolicy, memoryQueueMaxBytes, analyticsExecutor,
+          trackApplicationLifecycleEvents, advertisingIdGate, recordScreenViews, optOut,
+          variantCache, variantFetcher, prefetchProductGroupIds,
+          new EventRing(eventBufferCapacity, overflowPolicy));
     }
   }
 
@@ -1070,6 +1518,8 @@ public class DynamicPricing {
   void performInitializeIntegrations(ProjectSettings projectSettings) {
     ValueMap integrationSettings = projectSettings.integrations();
     integrations = new LinkedHashMap<>(factories.size());
+    mainThreadIntegrations = new LinkedHashMap<>(factories.size());
+    backgroundIntegrations = new LinkedHashMap<>(factories.size());
     for (int i = 0; i < factories.size(); i++) {
       Integration.Factory factory = factories.get(i);
       String key = factory.key();
@@ -1083,14 +1533,42 @@ public class DynamicPricing {
         logger.info("Factory %s couldn't create integration.", factory);
       } else {
         integrations.put(key, integration);
+        if (integration.isThreadSafe()) {
+          backgroundIntegrations.put(key, integration);
+        } else {
+          mainThreadIntegrations.put(key, integration);
+        }
         bundledIntegrations.put(key, false);
       }
     }
     factories = null;
   }
 
-  /** Runs the given operation on all integrations. */
-  void performRun(IntegrationOperation operation) {
+  /**
+   * Runs the given operation on the thread-safe integrations, and hands it to the main thread for
+   * the others. Operations go through the {@link #dispatcher} either way, so both kinds of
+   * integrations see them in the order they were made, and the main thread only hears of them
+   * when an integration needs it.
+   *
+   * @param dispatchedAt When the operation was made, from {@link System#nanoTime()}.
+   */
+  void performRun(final IntegrationOperation operation, final long dispatchedAt) {
+    if (!mainThreadIntegrations.isEmpty()) {
+      HANDLER.post(new Runnable() {
+        @Override public void run() {
+          performRun(operation, mainThreadIntegrations, false, dispatchedAt);
+        }
+      });
+    }
+    performRun(operation, backgroundIntegrations, true, dispatchedAt);
+  }
+
+  private void performRun(IntegrationOperation operation,
+      Map<String, Integration<?>> integrations, boolean background, long dispatchedAt) {
+    if (integrations.isEmpty()) {
+      return;
+    }
+    long runStartTime = System.nanoTime();
     for (Map.Entry<String, Integration<?>> entry : integrations.entrySet()) {
       String key = entry.getKey();
       long startTime = System.nanoTime();
@@ -1099,6 +1577,9 @@ public class DynamicPricing {
       long duration = TimeUnit.NANOSECONDS.toMillis(endTime - startTime);
       stats.dispatchIntegrationOperation(key, duration);
     }
+    stats.dispatchOperationRun(background,
+        TimeUnit.NANOSECONDS.toMillis(runStartTime - dispatchedAt),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - runStartTime));
   }
 
   private <T> void performCallback(String key, Callback<T> callback) {
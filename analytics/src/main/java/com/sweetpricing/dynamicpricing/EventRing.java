@@ -0,0 +1,168 @@
+package com.sweetpricing.dynamicpricing;
+
+import com.sweetpricing.dynamicpricing.integrations.BasePayload;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded ring of reusable event slots that any thread can publish to without taking a lock,
+ * drained by one consumer that turns them into payloads.
+ * <p/>
+ * Slots are allocated up front and overwritten, so recording an event allocates nothing here.
+ * Each slot carries a sequence number that says whose turn it is: a producer claims the next
+ * free slot with a CAS on {@link #tail}, fills it, and publishes it by advancing its sequence; the
+ * consumer does the same with {@link #head}. When the ring is full, {@link
+ * DynamicPricing.OverflowPolicy} decides whether the oldest event is dropped, the new one is, or
+ * the producer waits for room.
+ */
+class EventRing {
+  static final int DEFAULT_CAPACITY = 1024;
+  private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+  /** An event waiting to be made into a payload. Only valid during {@link Consumer#accept}. */
+  static class Slot {
+    /** {@code position} when it can be filled, {@code position + 1} when it can be read. */
+    volatile long sequence;
+    BasePayload.Type type;
+    String category;
+    /** The event of a track call, or the name of a screen call. */
+    String name;
+    Properties properties;
+    Options options;
+    long timestamp;
+    /**
+     * A copy of the context, device included, taken if the event was recorded before the
+     * advertising ID was ready, see {@link AdvertisingIdGate}. {@code null} otherwise.
+     */
+    AnalyticsContext context;
+
+    Slot(long sequence) {
+      this.sequence = sequence;
+    }
+
+    private void clear() {
+      type = null;
+      category = null;
+      name = null;
+      properties = null;
+      options = null;
+      context = null;
+    }
+  }
+
+  interface Consumer {
+    void accept(Slot slot);
+  }
+
+  private static final Consumer DISCARD = new Consumer() {
+    @Override public void accept(Slot slot) {
+    }
+  };
+
+  private final Slot[] slots;
+  private final int mask;
+  private final DynamicPricing.OverflowPolicy overflowPolicy;
+  /** The position of the next slot to publish. */
+  private final AtomicLong tail = new AtomicLong();
+  /** The position of the next slot to consume. */
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  /** @param capacity The number of slots, rounded up to a power of two. */
+  EventRing(int capacity, DynamicPricing.OverflowPolicy overflowPolicy) {
+    int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+    slots = new Slot[size];
+    for (int i = 0; i < size; i++) {
+      slots[i] = new Slot(i);
+    }
+    mask = size - 1;
+    this.overflowPolicy = overflowPolicy;
+  }
+
+  int capacity() {
+    return slots.length;
+  }
+
+  /**
+   * Publishes an event, applying the overflow policy if the ring is full. Returns false if the
+   * event was dropped because of it.
+   */
+  boolean offer(BasePayload.Type type, String category, String name, Properties properties,
+      Options options, long timestamp, AnalyticsContext context) {
+    for (; ; ) {
+      long position = tail.get();
+      Slot slot = slots[(int) position & mask];
+      long difference = slot.sequence - position;
+      if (difference == 0) {
+        if (tail.compareAndSet(position, position + 1)) {
+          slot.type = type;
+          slot.category = category;
+          slot.name = name;
+          slot.properties = properties;
+          slot.options = options;
+          slot.timestamp = timestamp;
+          slot.context = context;
+          slot.sequence = position + 1;
+          return true;
+        }
+      } else if (difference < 0) {
+        // Full: the slot still holds the event published a lap ago.
+        switch (overflowPolicy) {
+          case DROP_NEWEST:
+            dropped.incrementAndGet();
+            return false;
+          case DROP_OLDEST:
+            // The oldest slot may only be waiting for the consumer to finish reading it.
+            if (position - head.get() < slots.length) {
+              Thread.yield();
+            } else if (drain(DISCARD, 1) == 1) {
+              dropped.incrementAndGet();
+            }
+            break;
+          case BLOCK:
+            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+            break;
+          default:
+            throw new AssertionError("unknown policy " + overflowPolicy);
+        }
+      }
+      // Otherwise another producer claimed this slot first, try the next one.
+    }
+  }
+
+  /** Hands up to {@code max} published events to the consumer in order. Returns how many. */
+  int drain(Consumer consumer, int max) {
+    int count = 0;
+    while (count < max) {
+      long position = head.get();
+      Slot slot = slots[(int) position & mask];
+      long difference = slot.sequence - (position + 1);
+      if (difference == 0) {
+        if (head.compareAndSet(position, position + 1)) {
+          try {
+            consumer.accept(slot);
+          } finally {
+            slot.clear();
+            slot.sequence = position + slots.length;
+          }
+          count++;
+        }
+      } else if (difference < 0) {
+        break; // Empty, or the next event is still being written.
+      }
+    }
+    return count;
+  }
+
+  /** Returns true unless the next event to consume has been published. */
+  boolean isEmpty() {
+    long position = head.get();
+    return slots[(int) position & mask].sequence != position + 1;
+  }
+
+  /** Returns the number of events dropped since this was last called. */
+  long takeDroppedCount() {
+    return dropped.getAndSet(0);
+  }
+}
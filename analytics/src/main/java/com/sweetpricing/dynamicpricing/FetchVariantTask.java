@@ -1,24 +1,17 @@
 package com.sweetpricing.dynamicpricing;
 
 import android.os.AsyncTask;
-import android.util.Log;
 
-import com.sweetpricing.dynamicpricing.Client;
-import com.sweetpricing.dynamicpricing.integrations.VariantRequestPayload;
-
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.util.Map;
-
-import static com.sweetpricing.dynamicpricing.internal.Utils.buffer;
-import static com.sweetpricing.dynamicpricing.internal.Utils.closeQuietly;
 
+/**
+ * Fetches the variant of a product group on the shared {@link AsyncTask} executor.
+ *
+ * @deprecated Use {@link DynamicPricing#fetchVariant(int, DynamicPricing.Callback)}, which fetches
+ * on threads owned by the client and gives up after a timeout.
+ */
+@Deprecated
 public class FetchVariantTask extends AsyncTask<Integer, Void, Variant> {
-    final Cartographer cartographer = Cartographer.INSTANCE;
     private final DynamicPricing dynamicPricing;
     protected Exception e = null;
     private Variant defaultVariant = Variant.create(new ValueMap());
@@ -27,51 +20,34 @@ public class FetchVariantTask extends AsyncTask<Integer, Void, Variant> {
         this.dynamicPricing = dynamicPricing;
     }
 
+    /**
+     * Returns the cached variant of the product group if there is one, even if it's stale, in which
+     * case it's fetched again in the background for next time. Otherwise fetches it, together with
+     * any other requests for variants made at the same time, see {@link VariantFetcher}.
+     */
     @Override
     protected Variant doInBackground(Integer... params) {
         int productGroupId = params[0];
-        Client client = dynamicPricing.getClient();
+        VariantCache variantCache = dynamicPricing.variantCache;
+        String key = dynamicPricing.variantCacheKey(productGroupId);
 
-        VariantRequestPayload payload = new VariantRequestPayload(
-                dynamicPricing.getAnalyticsContext(), dynamicPricing.getDefaultOptions(), productGroupId);
-        String payloadJson = null;
+        VariantCache.Entry cached = variantCache.get(key);
+        if (cached != null) {
+            if (!variantCache.isFresh(cached)) {
+                dynamicPricing.requestVariant(productGroupId, key);
+            }
+            return cached.variant;
+        }
 
         try {
-            payloadJson = cartographer.toJson(payload);
+            return dynamicPricing.requestVariant(productGroupId, key).await();
         } catch (IOException e) {
             this.e = e;
             return defaultVariant;
-        }
-
-        Client.Connection connection = null;
-
-        try {
-            // Open a connection.
-            connection = client.variant();
-
-            // Write the payloads into the OutputStream.
-            BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(connection.os));
-            bufferedWriter.write(payloadJson);
-            bufferedWriter.close();
-
-            InputStream is = connection.connection.getInputStream();
-            Map<String, Object> respMap = cartographer.fromJson(buffer(is));
-            is.close();
-
-            try {
-                // Upload the payloads.
-                connection.close();
-            } catch (Client.UploadException e) {
-                this.e = e;
-                return defaultVariant;
-            }
-
-            return Variant.create(respMap);
-        } catch (IOException e) {
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             this.e = e;
             return defaultVariant;
-        } finally {
-            closeQuietly(connection);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,160 @@
+package com.sweetpricing.dynamicpricing;
+
+import android.content.Context;
+import android.os.SystemClock;
+import com.sweetpricing.dynamicpricing.internal.Utils;
+import java.util.Random;
+
+/**
+ * Decides when {@link SweetpricingIntegration} uploads its queue. Only called from the dispatcher
+ * thread.
+ */
+abstract class FlushPolicy {
+  /** Source of time, replaceable in tests. */
+  interface Clock {
+    long uptimeMillis();
+  }
+
+  /** Answers questions about the state of the device. Only queried when the answer matters. */
+  interface Device {
+    /** Returns {@code true} if the active network may cost the user money, like mobile data. */
+    boolean isNetworkMetered();
+
+    /** Returns {@code true} if the battery is low and not charging. */
+    boolean isBatteryLow();
+  }
+
+  static final Clock SYSTEM_CLOCK = new Clock() {
+    @Override public long uptimeMillis() {
+      return SystemClock.uptimeMillis();
+    }
+  };
+
+  /** Returns a {@link Device} that queries the system services of the given context. */
+  static Device device(final Context context) {
+    return new Device() {
+      @Override public boolean isNetworkMetered() {
+        return Utils.isNetworkMetered(context);
+      }
+
+      @Override public boolean isBatteryLow() {
+        return Utils.isBatteryLow(context);
+      }
+    };
+  }
+
+  /** Returns {@code true} to flush right after payloads were enqueued. */
+  abstract boolean shouldFlushOnEnqueue(int queueSize);
+
+  /**
+   * Returns {@code true} to flush because another connection just woke up the radio, which makes
+   * uploading now cheaper than waking it up again later.
+   */
+  abstract boolean shouldFlushOnNetworkActivity(int queueSize);
+
+  /** Returns {@code true} to flush because the app went to the background. */
+  abstract boolean shouldFlushOnBackground(int queueSize);
+
+  /** Returns the delay until the next scheduled flush, in milliseconds. */
+  abstract long nextFlushDelayMillis(int queueSize);
+
+  abstract void onFlushSucceeded();
+
+  /**
+   * Called when a flush failed and its payloads should be retried. {@code retryAfterMillis} is the
+   * delay the server asked for before retrying, or {@code 0}.
+   */
+  abstract void onFlushFailed(long retryAfterMillis);
+
+  /**
+   * The default policy. Flushes every {@code flushIntervalInMillis}, or once the queue reaches
+   * {@code flushQueueSize} payloads, adjusted for the state of the device:
+   * <ul>
+   * <li>On a metered network, waits for {@link #METERED_MULTIPLIER} times as many payloads, and
+   * twice as long, so each wake up of the radio uploads a larger batch.</li>
+   * <li>On a low battery, waits {@link #LOW_BATTERY_MULTIPLIER} times as long.</li>
+   * <li>After failed flushes, backs off exponentially up to {@link #MAX_BACKOFF_MILLIS}, without
+   * flushing early. Up to {@link #JITTER} of each backoff is randomly taken off, so that devices
+   * which failed together don't all retry at the same time. The server may ask for a longer
+   * backoff with {@code Retry-After}.</li>
+   * <li>Otherwise flushes early when other network activity woke up the radio, or when the app
+   * goes to the background.</li>
+   * </ul>
+   */
+  static class Adaptive extends FlushPolicy {
+    static final int METERED_MULTIPLIER = 4;
+    static final int LOW_BATTERY_MULTIPLIER = 4;
+    static final long MAX_BACKOFF_MILLIS = 60 * 60 * 1000; // 1 hour.
+    static final double JITTER = 0.5;
+
+    private final long flushIntervalInMillis;
+    private final int flushQueueSize;
+    private final Device device;
+    private final Clock clock;
+    private final Random random;
+    private int failures;
+    private long backoffUntil;
+
+    Adaptive(long flushIntervalInMillis, int flushQueueSize, Device device, Clock clock) {
+      this(flushIntervalInMillis, flushQueueSize, device, clock, new Random());
+    }
+
+    Adaptive(long flushIntervalInMillis, int flushQueueSize, Device device, Clock clock,
+        Random random) {
+      this.flushIntervalInMillis = flushIntervalInMillis;
+      this.flushQueueSize = flushQueueSize;
+      this.device = device;
+      this.clock = clock;
+      this.random = random;
+    }
+
+    private boolean isBackingOff() {
+      return failures > 0 && clock.uptimeMillis() < backoffUntil;
+    }
+
+    @Override boolean shouldFlushOnEnqueue(int queueSize) {
+      if (queueSize < flushQueueSize || isBackingOff()) {
+        return false;
+      }
+      return queueSize >= flushQueueSize * METERED_MULTIPLIER || !device.isNetworkMetered();
+    }
+
+    @Override boolean shouldFlushOnNetworkActivity(int queueSize) {
+      return queueSize > 0 && !isBackingOff();
+    }
+
+    @Override boolean shouldFlushOnBackground(int queueSize) {
+      return queueSize > 0 && !isBackingOff();
+    }
+
+    @Override long nextFlushDelayMillis(int queueSize) {
+      if (isBackingOff()) {
+        return backoffUntil - clock.uptimeMillis();
+      }
+      if (queueSize == 0) {
+        return flushIntervalInMillis;
+      }
+      long delay = flushIntervalInMillis;
+      if (device.isNetworkMetered()) {
+        delay *= 2;
+      }
+      if (device.isBatteryLow()) {
+        delay *= LOW_BATTERY_MULTIPLIER;
+      }
+      return delay;
+    }
+
+    @Override void onFlushSucceeded() {
+      failures = 0;
+    }
+
+    @Override void onFlushFailed(long retryAfterMillis) {
+      failures++;
+      long backoff = Math.min(flushIntervalInMillis << Math.min(failures - 1, 16),
+          MAX_BACKOFF_MILLIS);
+      backoff -= (long) (backoff * JITTER * random.nextDouble());
+      backoff = Math.max(backoff, Math.min(retryAfterMillis, MAX_BACKOFF_MILLIS));
+      backoffUntil = clock.uptimeMillis() + backoff;
+    }
+  }
+}
@@ -4,21 +4,21 @@ import android.content.Context;
 import android.os.AsyncTask;
 import android.util.Pair;
 import com.sweetpricing.dynamicpricing.integrations.Logger;
-import java.util.concurrent.CountDownLatch;
 
 /**
- * An {@link AsyncTask} that fetches the advertising info and attaches it to the given {@link
- * AnalyticsContext} instance.
+ * An {@link AsyncTask} that fetches the advertising info, attaches it to the given {@link
+ * AnalyticsContext} instance and opens the {@link AdvertisingIdGate}.
  */
 class GetAdvertisingIdTask extends AsyncTask<Context, Void, Pair<String, Boolean>> {
 
   final AnalyticsContext analyticsContext;
-  final CountDownLatch latch;
+  final AdvertisingIdGate gate;
   final Logger logger;
 
-  GetAdvertisingIdTask(AnalyticsContext analyticsContext, CountDownLatch latch, Logger logger) {
+  GetAdvertisingIdTask(AnalyticsContext analyticsContext, AdvertisingIdGate gate,
+      Logger logger) {
     this.analyticsContext = analyticsContext;
-    this.latch = latch;
+    this.gate = gate;
     this.logger = logger;
   }
 
@@ -61,7 +61,7 @@ class GetAdvertisingIdTask extends AsyncTask<Context, Void, Pair<String, Boolean
       }
       device.putAdvertisingInfo(info.first, info.second);
     } finally {
-      latch.countDown();
+      gate.open();
     }
   }
 }
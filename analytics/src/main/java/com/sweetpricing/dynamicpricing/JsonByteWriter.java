@@ -0,0 +1,348 @@
+package com.sweetpricing.dynamicpricing;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes maps as UTF-8 encoded JSON straight into a byte buffer, for {@link
+ * Cartographer#toJsonBytes(Map)}. The output is the same as {@link android.util.JsonWriter}'s, but
+ * there is no {@link java.io.Writer}, {@link String} or charset encoder in between.
+ * <p/>
+ * Names of the keys our payloads always contain are escaped once up front. The kind of each value
+ * is looked up by its class in a table, which is filled in the first time a class is seen, rather
+ * than tried against every type in turn.
+ * <p/>
+ * Each thread reuses one writer and its buffer, see {@link #toJson(Map)}.
+ */
+final class JsonByteWriter {
+  private static final int INITIAL_CAPACITY = 1024;
+  /** Buffers that grew past this size are not kept by their thread once it's done with them. */
+  private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final byte[] NULL = "null".getBytes(UTF_8);
+  private static final byte[] TRUE = "true".getBytes(UTF_8);
+  private static final byte[] FALSE = "false".getBytes(UTF_8);
+  private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(UTF_8);
+  /** Long.MIN_VALUE can't be negated, so it's written from its string. */
+  private static final byte[] MIN_LONG = String.valueOf(Long.MIN_VALUE).getBytes(UTF_8);
+
+  private static final int TYPE_STRING = 0;
+  private static final int TYPE_INTEGRAL = 1;
+  private static final int TYPE_NUMBER = 2;
+  private static final int TYPE_BOOLEAN = 3;
+  private static final int TYPE_MAP = 4;
+  private static final int TYPE_LIST = 5;
+  private static final int TYPE_OTHER = 6;
+
+  /** The escaped and quoted names of well known keys, followed by a colon. */
+  private static final Map<String, byte[]> KNOWN_NAMES = new HashMap<>();
+  /** The kind of value of each class seen so far. */
+  private static final Map<Class<?>, Integer> TYPES = new ConcurrentHashMap<>();
+
+  static {
+    String[] names = {
+        // BasePayload and its subclasses.
+        "messageId", "type", "channel", "context", "anonymousId", "userId", "timestamp",
+        "integrations", "event", "properties", "name", "category", "traits",
+        // AnalyticsContext.
+        "app", "build", "namespace", "version", "campaign", "source", "medium", "term", "content",
+        "device", "id", "manufacturer", "model", "advertisingId", "adTrackingEnabled", "library",
+        "locale", "location", "latitude", "longitude", "speed", "network", "bluetooth", "carrier",
+        "cellular", "wifi", "os", "referrer", "link", "url", "screen", "density", "height",
+        "width", "timezone", "userAgent"
+    };
+    for (String name : names) {
+      JsonByteWriter writer = new JsonByteWriter();
+      writer.writeString(name);
+      writer.writeByte(':');
+      KNOWN_NAMES.put(name, Arrays.copyOf(writer.buffer, writer.size));
+    }
+
+    TYPES.put(String.class, TYPE_STRING);
+    TYPES.put(Integer.class, TYPE_INTEGRAL);
+    TYPES.put(Long.class, TYPE_INTEGRAL);
+    TYPES.put(Short.class, TYPE_INTEGRAL);
+    TYPES.put(Byte.class, TYPE_INTEGRAL);
+    TYPES.put(Double.class, TYPE_NUMBER);
+    TYPES.put(Float.class, TYPE_NUMBER);
+    TYPES.put(Boolean.class, TYPE_BOOLEAN);
+  }
+
+  private static final ThreadLocal<JsonByteWriter> WRITERS = new ThreadLocal<JsonByteWriter>() {
+    @Override protected JsonByteWriter initialValue() {
+      return new JsonByteWriter();
+    }
+  };
+
+  private byte[] buffer = new byte[INITIAL_CAPACITY];
+  private int size;
+  private boolean inUse;
+
+  /** Returns the JSON of the given map as UTF-8 encoded bytes. */
+  static byte[] toJson(Map<?, ?> map) {
+    return toJson(map, null, null);
+  }
+
+  /**
+   * Returns the JSON of the given map as UTF-8 encoded bytes, and finds the values of the given top
+   * level keys in it, see {@link Cartographer#toJsonBytes(Map, String[], int[])}.
+   */
+  static byte[] toJson(Map<?, ?> map, String[] keys, int[] offsets) {
+    JsonByteWriter writer = WRITERS.get();
+    if (writer.inUse) {
+      // Only if a value's toString() serializes JSON itself.
+      writer = new JsonByteWriter();
+    }
+    writer.inUse = true;
+    try {
+      if (keys == null) {
+        writer.writeMap(map);
+      } else {
+        Arrays.fill(offsets, 0, keys.length * 2, -1);
+        writer.writeMap(map, keys, offsets);
+      }
+      return Arrays.copyOf(writer.buffer, writer.size);
+    } finally {
+      writer.size = 0;
+      writer.inUse = false;
+      if (writer.buffer.length > MAX_RETAINED_CAPACITY) {
+        writer.buffer = new byte[INITIAL_CAPACITY];
+      }
+    }
+  }
+
+  private static int typeOf(Object value) {
+    Class<?> type = value.getClass();
+    Integer known = TYPES.get(type);
+    if (known != null) {
+      return known;
+    }
+    int resolved;
+    if (value instanceof Number) {
+      resolved = TYPE_NUMBER;
+    } else if (value instanceof List) {
+      resolved = TYPE_LIST;
+    } else if (value instanceof Map) {
+      resolved = TYPE_MAP;
+    } else {
+      resolved = TYPE_OTHER;
+    }
+    TYPES.put(type, resolved);
+    return resolved;
+  }
+
+  private void writeMap(Map<?, ?> map) {
+    writeMap(map, null, null);
+  }
+
+  private void writeMap(Map<?, ?> map, String[] keys, int[] offsets) {
+    writeByte('{');
+    boolean first = true;
+    for (Map.Entry<?, ?> entry : map.entrySet()) {
+      if (first) {
+        first = false;
+      } else {
+        writeByte(',');
+      }
+      String name = String.valueOf(entry.getKey());
+      byte[] knownName = KNOWN_NAMES.get(name);
+      if (knownName != null) {
+        writeBytes(knownName);
+      } else {
+        writeString(name);
+        writeByte(':');
+      }
+      int key = keys == null ? -1 : indexOf(keys, name);
+      if (key == -1) {
+        writeValue(entry.getValue());
+      } else {
+        offsets[key * 2] = size;
+        writeValue(entry.getValue());
+        offsets[key * 2 + 1] = size;
+      }
+    }
+    writeByte('}');
+  }
+
+  private static int indexOf(String[] keys, String name) {
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void writeList(List<?> list) {
+    writeByte('[');
+    for (int i = 0, length = list.size(); i < length; i++) {
+      if (i > 0) {
+        writeByte(',');
+      }
+      writeValue(list.get(i));
+    }
+    writeByte(']');
+  }
+
+  private void writeValue(Object value) {
+    if (value == null) {
+      writeBytes(NULL);
+      return;
+    }
+    switch (typeOf(value)) {
+      case TYPE_STRING:
+        writeString((String) value);
+        break;
+      case TYPE_INTEGRAL:
+        writeLong(((Number) value).longValue());
+        break;
+      case TYPE_NUMBER:
+        writeNumber((Number) value);
+        break;
+      case TYPE_BOOLEAN:
+        writeBytes((Boolean) value ? TRUE : FALSE);
+        break;
+      case TYPE_MAP:
+        writeMap((Map<?, ?>) value);
+        break;
+      case TYPE_LIST:
+        writeList((List<?>) value);
+        break;
+      default:
+        writeString(String.valueOf(value));
+        break;
+    }
+  }
+
+  private void writeNumber(Number value) {
+    String string = value.toString();
+    if (string.equals("-Infinity") || string.equals("Infinity") || string.equals("NaN")) {
+      throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+    }
+    for (int i = 0, length = string.length(); i < length; i++) {
+      writeByte(string.charAt(i));
+    }
+  }
+
+  private void writeLong(long value) {
+    if (value == Long.MIN_VALUE) {
+      writeBytes(MIN_LONG);
+      return;
+    }
+    if (value < 0) {
+      writeByte('-');
+      value = -value;
+    }
+    int digits = 1;
+    for (long remaining = value / 10; remaining > 0; remaining /= 10) {
+      digits++;
+    }
+    ensureCapacity(digits);
+    for (int i = size + digits - 1; i >= size; i--) {
+      buffer[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    size += digits;
+  }
+
+  /** Writes a quoted string, escaped like {@link android.util.JsonWriter} does. */
+  private void writeString(String value) {
+    int length = value.length();
+    // Most strings are ASCII and need no escaping, and then take one byte per character.
+    ensureCapacity(length + 2);
+    writeByte('"');
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        switch (c) {
+          case '"':
+          case '\\':
+            writeByte('\\');
+            writeByte(c);
+            break;
+          case '\t':
+            writeEscape('t');
+            break;
+          case '\b':
+            writeEscape('b');
+            break;
+          case '\n':
+            writeEscape('n');
+            break;
+          case '\r':
+            writeEscape('r');
+            break;
+          case '\f':
+            writeEscape('f');
+            break;
+          default:
+            if (c <= 0x1f) {
+              writeUnicodeEscape(c);
+            } else {
+              writeByte(c);
+            }
+            break;
+        }
+      } else if (c < 0x800) {
+        ensureCapacity(2);
+        buffer[size++] = (byte) (0xc0 | (c >> 6));
+        buffer[size++] = (byte) (0x80 | (c & 0x3f));
+      } else if (c == '\u2028' || c == '\u2029') {
+        writeUnicodeEscape(c);
+      } else if (Character.isHighSurrogate(c) && i + 1 < length
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        ensureCapacity(4);
+        buffer[size++] = (byte) (0xf0 | (codePoint >> 18));
+        buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        buffer[size++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        // Like String.getBytes(), replace an unpaired surrogate.
+        writeByte('?');
+      } else {
+        ensureCapacity(3);
+        buffer[size++] = (byte) (0xe0 | (c >> 12));
+        buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buffer[size++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    writeByte('"');
+  }
+
+  private void writeEscape(char c) {
+    writeByte('\\');
+    writeByte(c);
+  }
+
+  private void writeUnicodeEscape(char c) {
+    ensureCapacity(6);
+    buffer[size++] = '\\';
+    buffer[size++] = 'u';
+    buffer[size++] = HEX_DIGITS[(c >> 12) & 0xf];
+    buffer[size++] = HEX_DIGITS[(c >> 8) & 0xf];
+    buffer[size++] = HEX_DIGITS[(c >> 4) & 0xf];
+    buffer[size++] = HEX_DIGITS[c & 0xf];
+  }
+
+  private void writeByte(int b) {
+    ensureCapacity(1);
+    buffer[size++] = (byte) b;
+  }
+
+  private void writeBytes(byte[] bytes) {
+    ensureCapacity(bytes.length);
+    System.arraycopy(bytes, 0, buffer, size, bytes.length);
+    size += bytes.length;
+  }
+
+  private void ensureCapacity(int extra) {
+    if (size + extra > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+    }
+  }
+}
@@ -0,0 +1,241 @@
+package com.sweetpricing.dynamicpricing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * The compact binary format of payloads in the queue.
+ * <p/>
+ * Most of a payload's JSON is its context, which is the same for every payload until the device
+ * or the user changes. A record stores the context once in a {@link ContextStore} and only refers
+ * to it by hash. The message ID is packed from 36 characters into the 16 bytes of its UUID. What's
+ * left of the JSON is stored as is, and the two values are spliced back in at their offsets when
+ * the payload is uploaded, which reproduces the original JSON byte for byte:
+ * <pre>
+ *   byte     {@link #VERSION}
+ *   long     Key of the context in the store, see {@link ContextStore#put(byte[], int, int)}.
+ *   varint   Offset of the context in the body.
+ *   byte     Flags, {@link #FLAG_MESSAGE_ID} and {@link #FLAG_MESSAGE_ID_FIRST}.
+ *   varint   Offset of the message ID in the body, if packed.
+ *   long     Most and least significant bits of the message ID, if packed.
+ *   long
+ *   ...      The body, the JSON of the payload without its context and message ID.
+ * </pre>
+ * <p/>
+ * Payloads without a context are stored as plain JSON. Plain JSON records, like those written by
+ * older versions, start with {@code '{'} and are uploaded as they are.
+ */
+final class PayloadFormat {
+  static final int VERSION = 1;
+  /** The top level keys whose values {@link #encode} needs to find in a payload's JSON. */
+  static final String[] KEYS = {"context", "messageId"};
+  private static final int FLAG_MESSAGE_ID = 1;
+  private static final int FLAG_MESSAGE_ID_FIRST = 1 << 1;
+  private static final int UUID_LENGTH = 36;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final byte[] EMPTY_CONTEXT = "{}".getBytes(UTF_8);
+  private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(UTF_8);
+
+  private PayloadFormat() {
+    throw new AssertionError("No instances");
+  }
+
+  /**
+   * Encodes the JSON of a payload into a record, adding its context to the given store. Returns
+   * the JSON itself if it has no context.
+   *
+   * @param json The JSON of the whole payload.
+   * @param offsets Where the values of {@link #KEYS} are in {@code json}, as found by {@link
+   * Cartographer#toJsonBytes(java.util.Map, String[], int[])}.
+   * @param messageId The payload's message ID, or {@code null}.
+   */
+  static byte[] encode(byte[] json, int[] offsets, String messageId, ContextStore contexts)
+      throws IOException {
+    int contextStart = offsets[0];
+    if (contextStart == -1) {
+      return json;
+    }
+    int contextEnd = offsets[1];
+    int contextLength = contextEnd - contextStart;
+
+    UUID uuid = null;
+    int idStart = -1;
+    if (messageId != null && messageId.length() == UUID_LENGTH && offsets[2] != -1) {
+      try {
+        uuid = UUID.fromString(messageId);
+      } catch (IllegalArgumentException ignored) {
+      }
+      // Only pack IDs that render back to the same string, which then need no escaping.
+      if (uuid != null && uuid.toString().equals(messageId)) {
+        idStart = offsets[2] + 1; // Skip the opening quote.
+      }
+    }
+
+    long hash = contexts.put(json, contextStart, contextLength);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(json.length - contextLength + 32);
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(VERSION);
+    out.writeLong(hash);
+    if (idStart == -1) {
+      writeVarint(out, contextStart);
+      out.writeByte(0);
+      out.write(json, 0, contextStart);
+      out.write(json, contextEnd, json.length - contextEnd);
+    } else if (idStart < contextStart) {
+      writeVarint(out, contextStart - UUID_LENGTH);
+      out.writeByte(FLAG_MESSAGE_ID | FLAG_MESSAGE_ID_FIRST);
+      writeVarint(out, idStart);
+      out.writeLong(uuid.getMostSignificantBits());
+      out.writeLong(uuid.getLeastSignificantBits());
+      out.write(json, 0, idStart);
+      out.write(json, idStart + UUID_LENGTH, contextStart - idStart - UUID_LENGTH);
+      out.write(json, contextEnd, json.length - contextEnd);
+    } else {
+      writeVarint(out, contextStart);
+      out.writeByte(FLAG_MESSAGE_ID);
+      writeVarint(out, idStart - contextLength);
+      out.writeLong(uuid.getMostSignificantBits());
+      out.writeLong(uuid.getLeastSignificantBits());
+      out.write(json, 0, contextStart);
+      out.write(json, contextEnd, idStart - contextEnd);
+      out.write(json, idStart + UUID_LENGTH, json.length - idStart - UUID_LENGTH);
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  /** Returns {@code true} if the record is in the binary format, rather than plain JSON. */
+  static boolean isBinary(byte[] record, int length) {
+    return length > 0 && record[0] == VERSION;
+  }
+
+  /** Returns the length of the JSON the first {@code length} bytes of a record render to. */
+  static int renderedLength(byte[] record, int length, ContextStore contexts) {
+    if (!isBinary(record, length)) {
+      return length;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(record, 0, length);
+    buffer.get();
+    byte[] context = context(contexts, buffer.getLong());
+    readVarint(buffer);
+    int flags = buffer.get();
+    int packed = 0;
+    if ((flags & FLAG_MESSAGE_ID) != 0) {
+      readVarint(buffer);
+      buffer.position(buffer.position() + 16);
+      packed = UUID_LENGTH;
+    }
+    return buffer.remaining() + context.length + packed;
+  }
+
+  /** Writes the JSON the first {@code length} bytes of a record render to. */
+  static void render(byte[] record, int length, ContextStore contexts, OutputStream out)
+      throws IOException {
+    if (!isBinary(record, length)) {
+      out.write(record, 0, length);
+      return;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(record, 0, length);
+    buffer.get();
+    byte[] context = context(contexts, buffer.getLong());
+    int contextOffset = readVarint(buffer);
+    int flags = buffer.get();
+    if ((flags & FLAG_MESSAGE_ID) == 0) {
+      int body = buffer.position();
+      out.write(record, body, contextOffset);
+      out.write(context);
+      out.write(record, body + contextOffset, length - body - contextOffset);
+      return;
+    }
+
+    int idOffset = readVarint(buffer);
+    long mostSignificantBits = buffer.getLong();
+    long leastSignificantBits = buffer.getLong();
+    int body = buffer.position();
+    if ((flags & FLAG_MESSAGE_ID_FIRST) != 0) {
+      out.write(record, body, idOffset);
+      writeUuid(out, mostSignificantBits, leastSignificantBits);
+      out.write(record, body + idOffset, contextOffset - idOffset);
+      out.write(context);
+      out.write(record, body + contextOffset, length - body - contextOffset);
+    } else {
+      out.write(record, body, contextOffset);
+      out.write(context);
+      out.write(record, body + contextOffset, idOffset - contextOffset);
+      writeUuid(out, mostSignificantBits, leastSignificantBits);
+      out.write(record, body + idOffset, length - body - idOffset);
+    }
+  }
+
+  /** Returns the JSON a record renders to. */
+  static byte[] render(byte[] record, ContextStore contexts) throws IOException {
+    if (!isBinary(record, record.length)) {
+      return record;
+    }
+    ByteArrayOutputStream out =
+        new ByteArrayOutputStream(renderedLength(record, record.length, contexts));
+    render(record, record.length, contexts, out);
+    return out.toByteArray();
+  }
+
+  /** Adds the hash of the context the record read from {@code in} refers to, if any. */
+  static void readContextHash(InputStream in, Set<Long> hashes) throws IOException {
+    if (in.read() == VERSION) {
+      hashes.add(new DataInputStream(in).readLong());
+    }
+  }
+
+  private static byte[] context(ContextStore contexts, long hash) {
+    byte[] context = contexts.get(hash);
+    // The store can only lose a context if its file was lost or corrupted. Uploading the payload
+    // without its context is better than not uploading it at all.
+    return context == null ? EMPTY_CONTEXT : context;
+  }
+
+  private static void writeVarint(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7f) != 0) {
+      out.writeByte((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  private static int readVarint(ByteBuffer buffer) {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = buffer.get();
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+  }
+
+  /** Writes a UUID in the same form as {@link UUID#toString()}, without allocating a string. */
+  private static void writeUuid(OutputStream out, long mostSignificantBits,
+      long leastSignificantBits) throws IOException {
+    writeHex(out, mostSignificantBits >>> 32, 8);
+    out.write('-');
+    writeHex(out, mostSignificantBits >>> 16, 4);
+    out.write('-');
+    writeHex(out, mostSignificantBits, 4);
+    out.write('-');
+    writeHex(out, leastSignificantBits >>> 48, 4);
+    out.write('-');
+    writeHex(out, leastSignificantBits, 12);
+  }
+
+  private static void writeHex(OutputStream out, long value, int digits) throws IOException {
+    for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+      out.write(HEX_DIGITS[(int) (value >>> shift) & 0xf]);
+    }
+  }
+}
@@ -24,10 +24,10 @@
 
 package com.sweetpricing.dynamicpricing;
 
-import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 abstract class PayloadQueue implements Closeable {
@@ -37,7 +37,64 @@ abstract class PayloadQueue implements Closeable {
 
   abstract void add(byte[] data) throws IOException;
 
-  abstract void forEach(ElementVisitor visitor) throws IOException;
+  /** Adds all the given payloads in order, as a single atomic operation where supported. */
+  abstract void addAll(List<byte[]> data) throws IOException;
+
+  /** Visits every element, from eldest to most recently added. */
+  void forEach(ElementVisitor visitor) throws IOException {
+    forEach(0, visitor);
+  }
+
+  /**
+   * Visits the elements from the given index onwards, where {@code 0} is the eldest element.
+   * Elements may be added, but not removed, between calls that continue reading from a later
+   * index.
+   */
+  abstract void forEach(int fromIndex, ElementVisitor visitor) throws IOException;
+
+  /**
+   * Returns the sequence number of the eldest element. Elements are numbered in the order they
+   * are added, starting from {@code 0} when the queue is opened, so this is also the number of
+   * elements that have left the queue since, whether removed or evicted.
+   * <p/>
+   * Readers refer to elements by sequence number rather than by index when elements may leave the
+   * queue while they are working with them.
+   */
+  abstract long headSequence();
+
+  /**
+   * Visits the elements with sequence numbers from {@code fromSequence} up to, but not including,
+   * {@code toSequence}, skipping any that have left the queue already. Returns the sequence number
+   * of the first element visited.
+   */
+  synchronized long forEach(long fromSequence, final long toSequence,
+      final ElementVisitor visitor) throws IOException {
+    long head = headSequence();
+    final long first = Math.max(fromSequence, head);
+    if (first < toSequence && first - head < size()) {
+      forEach((int) (first - head), new ElementVisitor() {
+        long sequence = first;
+
+        @Override public boolean read(InputStream in, int length) throws IOException {
+          return visitor.read(in, length) && ++sequence < toSequence;
+        }
+      });
+    }
+    return first;
+  }
+
+  /**
+   * Removes the elements with sequence numbers before {@code sequence}, unless they have left the
+   * queue already. Returns the number of elements removed.
+   */
+  synchronized int removeUntil(long sequence) throws IOException {
+    int count = (int) Math.min(sequence - headSequence(), size());
+    if (count <= 0) {
+      return 0;
+    }
+    remove(count);
+    return count;
+  }
 
   interface ElementVisitor {
     /**
@@ -55,6 +112,7 @@ abstract class PayloadQueue implements Closeable {
 
   static class PersistentQueue extends PayloadQueue {
     final QueueFile queueFile;
+    private long headSequence;
 
     PersistentQueue(QueueFile queueFile) {
       this.queueFile = queueFile;
@@ -64,7 +122,7 @@ abstract class PayloadQueue implements Closeable {
       return queueFile.size();
     }
 
-    @Override void remove(int n) throws IOException {
+    @Override synchronized void remove(int n) throws IOException {
       try {
         queueFile.remove(n);
       } catch (ArrayIndexOutOfBoundsException e) {
@@ -72,14 +130,23 @@ abstract class PayloadQueue implements Closeable {
         // Ref: https://github.com/segmentio/analytics-android/issues/449.
         throw new IOException(e);
       }
+      headSequence += n;
+    }
+
+    @Override synchronized long headSequence() {
+      return headSequence;
     }
 
     @Override void add(byte[] data) throws IOException {
       queueFile.add(data);
     }
 
-    @Override void forEach(ElementVisitor visitor) throws IOException {
-      queueFile.forEach(visitor);
+    @Override void addAll(List<byte[]> data) throws IOException {
+      queueFile.addAll(data);
+    }
+
+    @Override void forEach(int fromIndex, ElementVisitor visitor) throws IOException {
+      queueFile.forEach(fromIndex, queueFile.size(), visitor);
     }
 
     @Override public void close() throws IOException {
@@ -87,29 +154,173 @@ abstract class PayloadQueue implements Closeable {
     }
   }
 
+  /**
+   * An in-memory queue, used when the disk is unavailable. Payloads are copied into a single
+   * direct {@link ByteBuffer} used as a ring, with their positions and lengths kept in a primitive
+   * index, so queued payloads don't add to the garbage collected heap.
+   * <p/>
+   * The buffer grows as needed up to {@code maxBytes}. Adding a payload that doesn't fit evicts the
+   * eldest payloads first, which moves the {@link #headSequence()} like removing them does.
+   */
   static class MemoryQueue extends PayloadQueue {
-    final List<byte[]> queue;
+    /** Default budget for the bytes of queued payloads. */
+    static final int DEFAULT_MAX_BYTES = 4 * 1024 * 1024; // 4MB.
+    private static final int INITIAL_CAPACITY = 16 * 1024; // 16KB.
+    private static final int INITIAL_INDEX_CAPACITY = 16;
 
-    MemoryQueue(List<byte[]> queue) {
-      this.queue = queue;
+    private final int maxBytes;
+    private ByteBuffer buffer;
+    /** Position of the eldest payload in {@link #buffer}. */
+    private int head;
+    /** Number of bytes of queued payloads. */
+    private int usedBytes;
+    /** Position and length of every payload, eldest first, stored as pairs in a ring. */
+    private int[] index = new int[INITIAL_INDEX_CAPACITY * 2];
+    /** Ring offset, in payloads, of the eldest payload in {@link #index}. */
+    private int indexHead;
+    private int count;
+    private long headSequence;
+
+    MemoryQueue(int maxBytes) {
+      if (maxBytes <= 0) {
+        throw new IllegalArgumentException("maxBytes must be positive.");
+      }
+      this.maxBytes = maxBytes;
+      this.buffer = ByteBuffer.allocateDirect(Math.min(INITIAL_CAPACITY, maxBytes));
     }
 
-    @Override int size() {
-      return queue.size();
+    @Override synchronized int size() {
+      return count;
+    }
+
+    @Override synchronized void remove(int n) throws IOException {
+      if (n < 0) {
+        throw new IllegalArgumentException("Cannot remove negative (" + n + ") number of elements.");
+      }
+      if (n > count) {
+        throw new IllegalArgumentException(
+            "Cannot remove more elements (" + n + ") than present in queue (" + count + ").");
+      }
+      removeFirst(n);
     }
 
-    @Override void remove(int n) throws IOException {
-      queue.remove(n);
+    @Override synchronized void add(byte[] data) throws IOException {
+      checkLength(data);
+      append(data);
     }
 
-    @Override void add(byte[] data) throws IOException {
-      queue.add(data);
+    @Override synchronized void addAll(List<byte[]> data) throws IOException {
+      for (int i = 0; i < data.size(); i++) {
+        checkLength(data.get(i));
+      }
+      for (int i = 0; i < data.size(); i++) {
+        append(data.get(i));
+      }
+    }
+
+    private void checkLength(byte[] data) throws IOException {
+      if (data == null) {
+        throw new NullPointerException("data == null");
+      }
+      if (data.length > maxBytes) {
+        throw new IOException(
+            "Payload of " + data.length + " bytes exceeds the " + maxBytes + " byte budget.");
+      }
+    }
+
+    private void append(byte[] data) {
+      int length = data.length;
+      while (usedBytes + length > maxBytes) {
+        removeFirst(1);
+      }
+      ensureCapacity(usedBytes + length);
+
+      int capacity = buffer.capacity();
+      int position = (head + usedBytes) % capacity;
+      int firstPart = Math.min(length, capacity - position);
+      buffer.position(position);
+      buffer.put(data, 0, firstPart);
+      if (firstPart < length) {
+        buffer.position(0);
+        buffer.put(data, firstPart, length - firstPart);
+      }
+
+      int indexCapacity = index.length / 2;
+      if (count == indexCapacity) {
+        int[] newIndex = new int[index.length * 2];
+        for (int i = 0; i < count; i++) {
+          int slot = indexSlot(i);
+          newIndex[i * 2] = index[slot];
+          newIndex[i * 2 + 1] = index[slot + 1];
+        }
+        index = newIndex;
+        indexHead = 0;
+      }
+      int slot = indexSlot(count);
+      index[slot] = position;
+      index[slot + 1] = length;
+      usedBytes += length;
+      count++;
+    }
+
+    /** Grows the buffer to hold at least {@code required} bytes, unwrapping the payloads. */
+    private void ensureCapacity(int required) {
+      int capacity = buffer.capacity();
+      if (required <= capacity) return;
+
+      int newCapacity = capacity;
+      while (newCapacity < required) {
+        newCapacity = newCapacity > maxBytes / 2 ? maxBytes : newCapacity * 2;
+      }
+      ByteBuffer newBuffer = ByteBuffer.allocateDirect(newCapacity);
+      ByteBuffer source = buffer.duplicate();
+      int firstPart = Math.min(usedBytes, capacity - head);
+      source.limit(head + firstPart).position(head);
+      newBuffer.put(source);
+      source.limit(usedBytes - firstPart).position(0);
+      newBuffer.put(source);
+      for (int i = 0; i < count; i++) {
+        int slot = indexSlot(i);
+        index[slot] = (index[slot] - head + capacity) % capacity;
+      }
+      buffer = newBuffer;
+      head = 0;
+    }
+
+    private void removeFirst(int n) {
+      headSequence += n;
+      if (n == count) {
+        head = 0;
+        usedBytes = 0;
+        indexHead = 0;
+        count = 0;
+        return;
+      }
+      int removedBytes = 0;
+      for (int i = 0; i < n; i++) {
+        removedBytes += index[indexSlot(i) + 1];
+      }
+      head = index[indexSlot(n)];
+      usedBytes -= removedBytes;
+      indexHead = (indexHead + n) & (index.length / 2 - 1);
+      count -= n;
     }
 
-    @Override void forEach(ElementVisitor visitor) throws IOException {
-      for (int i = 0; i < queue.size(); i++) {
-        byte[] data = queue.get(i);
-        boolean shouldContinue = visitor.read(new ByteArrayInputStream(data), data.length);
+    private int indexSlot(int i) {
+      return ((indexHead + i) & (index.length / 2 - 1)) * 2;
+    }
+
+    @Override synchronized long headSequence() {
+      return headSequence;
+    }
+
+    @Override synchronized void forEach(int fromIndex, ElementVisitor visitor)
+        throws IOException {
+      for (int i = fromIndex; i < count; i++) {
+        int slot = indexSlot(i);
+        int length = index[slot + 1];
+        boolean shouldContinue =
+            visitor.read(new BufferInputStream(buffer.duplicate(), index[slot], length), length);
         if (!shouldContinue) {
           return;
         }
@@ -119,5 +330,46 @@ abstract class PayloadQueue implements Closeable {
     @Override public void close() throws IOException {
       // no-op
     }
+
+    /** Reads a single payload from the ring buffer. */
+    private static class BufferInputStream extends InputStream {
+      private final ByteBuffer buffer;
+      private int position;
+      private int remaining;
+
+      BufferInputStream(ByteBuffer buffer, int position, int length) {
+        this.buffer = buffer;
+        this.position = position;
+        this.remaining = length;
+      }
+
+      @Override public int read(byte[] bytes, int offset, int length) throws IOException {
+        if ((offset | length) < 0 || length > bytes.length - offset) {
+          throw new ArrayIndexOutOfBoundsException();
+        }
+        if (remaining == 0) {
+          return -1;
+        }
+        if (length > remaining) length = remaining;
+        int firstPart = Math.min(length, buffer.capacity() - position);
+        buffer.position(position);
+        buffer.get(bytes, offset, firstPart);
+        if (firstPart < length) {
+          buffer.position(0);
+          buffer.get(bytes, offset + firstPart, length - firstPart);
+        }
+        position = (position + length) % buffer.capacity();
+        remaining -= length;
+        return length;
+      }
+
+      @Override public int read() throws IOException {
+        if (remaining == 0) return -1;
+        int b = buffer.get(position) & 0xff;
+        position = (position + 1) % buffer.capacity();
+        remaining--;
+        return b;
+      }
+    }
   }
 }
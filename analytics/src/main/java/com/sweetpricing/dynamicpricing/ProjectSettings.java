@@ -46,6 +46,12 @@ class ProjectSettings extends ValueMap {
     super(unmodifiableMap(map));
   }
 
+  static final Factory<ProjectSettings> FACTORY = new Factory<ProjectSettings>() {
+    @Override public ProjectSettings create(Map<String, Object> map) {
+      return new ProjectSettings(map);
+    }
+  };
+
   long timestamp() {
     return getLong(TIMESTAMP_KEY, 0L);
   }
@@ -49,6 +49,12 @@ public class Properties extends ValueMap {
     super(delegate);
   }
 
+  static final Factory<Properties> FACTORY = new Factory<Properties>() {
+    @Override public Properties create(Map<String, Object> map) {
+      return new Properties(map);
+    }
+  };
+
   @Override public Properties putValue(String key, Object value) {
     super.putValue(key, value);
     return this;
@@ -22,7 +22,11 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -47,6 +51,10 @@ import static java.lang.Math.min;
  * power goes out while writing a segment, the segment will contain garbage and the file will be
  * corrupt. We'll add journaling support so this class can be used with more file systems later.
  *
+ * <p>Queues created with {@link #QueueFile(File, ForcePolicy)} write through a memory mapping of
+ * the file instead of synchronous writes, and only force changes to storage at the points chosen
+ * by the {@link ForcePolicy}. Both modes use the same file format.
+ *
  * @author Bob Lee (bob@squareup.com)
  */
 public class QueueFile implements Closeable {
@@ -103,6 +111,23 @@ public class QueueFile implements Closeable {
   /** In-memory buffer. Big enough to hold the header. */
   private final byte[] buffer = new byte[16];
 
+  /** When to force the memory mapping to storage, or {@code null} if writes are synchronous. */
+  private final ForcePolicy forcePolicy;
+
+  /** Memory mapping of {@link #raf}. Only used if {@link #forcePolicy} is not {@code null}. */
+  private MappedByteBuffer mappedBuffer;
+
+  /**
+   * Position and length of every element, eldest first, stored as pairs in a ring. Built by {@link
+   * #ensureIndex()} the first time it is needed, and kept up to date by every change after that,
+   * so random access and bulk removal don't need to walk the element headers on disk. {@code null}
+   * until built.
+   */
+  private int[] index;
+
+  /** Ring offset, in elements, of the eldest element in {@link #index}. */
+  private int indexHead;
+
   /**
    * Constructs a new queue backed by the given file. Only one instance should access a given file
    * at a time.
@@ -112,11 +137,33 @@ public class QueueFile implements Closeable {
       initialize(file);
     }
     raf = open(file);
+    forcePolicy = null;
+    readHeader();
+  }
+
+  /**
+   * Constructs a new queue backed by a memory mapping of the given file. Files written by {@link
+   * #QueueFile(File)} can be opened by this constructor and vice versa. Only one instance should
+   * access a given file at a time.
+   *
+   * @param forcePolicy when changes should be forced to storage
+   */
+  public QueueFile(File file, ForcePolicy forcePolicy) throws IOException {
+    if (forcePolicy == null) {
+      throw new NullPointerException("forcePolicy == null");
+    }
+    if (!file.exists()) {
+      initialize(file);
+    }
+    raf = new RandomAccessFile(file, "rw");
+    this.forcePolicy = forcePolicy;
+    map();
     readHeader();
   }
 
   QueueFile(RandomAccessFile raf) throws IOException {
     this.raf = raf;
+    forcePolicy = null;
     readHeader();
   }
 
@@ -138,8 +185,7 @@ public class QueueFile implements Closeable {
   }
 
   private void readHeader() throws IOException {
-    raf.seek(0);
-    raf.readFully(buffer);
+    read(0, buffer, 0, HEADER_LENGTH);
     fileLength = readInt(buffer, 0);
     if (fileLength > raf.length()) {
       throw new IOException(
@@ -167,8 +213,25 @@ public class QueueFile implements Closeable {
     writeInt(buffer, 4, elementCount);
     writeInt(buffer, 8, firstPosition);
     writeInt(buffer, 12, lastPosition);
-    raf.seek(0);
-    raf.write(buffer);
+    if (mappedBuffer == null) {
+      raf.seek(0);
+      raf.write(buffer);
+    } else {
+      write(0, buffer, 0, HEADER_LENGTH);
+      if (forcePolicy != ForcePolicy.NEVER) {
+        mappedBuffer.force();
+      }
+    }
+  }
+
+  /**
+   * Forces data that is about to be referenced by a header write, so that the header can never
+   * reach storage before the data it points to. Only {@link ForcePolicy#ALWAYS} does this.
+   */
+  private void forceBeforeCommit() {
+    if (forcePolicy == ForcePolicy.ALWAYS) {
+      mappedBuffer.force();
+    }
   }
 
   private Element readElement(int position) throws IOException {
@@ -203,6 +266,80 @@ public class QueueFile implements Closeable {
     return new RandomAccessFile(file, "rwd");
   }
 
+  /** Maps the whole of {@link #raf} into memory. Must be called again when the length changes. */
+  private void map() throws IOException {
+    MappedByteBuffer previous = mappedBuffer;
+    mappedBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+    if (previous != null) {
+      unmap(previous);
+    }
+  }
+
+  /**
+   * Releases a memory mapping that is no longer used, rather than waiting for it to be garbage
+   * collected. There is no public API for this, so it relies on the platform's hidden one, and
+   * leaves the mapping to the garbage collector if that isn't available.
+   */
+  private static void unmap(MappedByteBuffer buffer) {
+    try {
+      // Android.
+      Class.forName("java.nio.NioUtils")
+          .getMethod("freeDirectBuffer", ByteBuffer.class)
+          .invoke(null, buffer);
+      return;
+    } catch (Exception ignored) {
+    }
+    try {
+      // Java 9 and later.
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      unsafeClass.getMethod("invokeCleaner", ByteBuffer.class)
+          .invoke(theUnsafe.get(null), buffer);
+    } catch (Exception ignored) {
+    }
+  }
+
+  /**
+   * Reads count bytes into buffer from the given position in the file. Does not wrap.
+   *
+   * @param position in file to read from
+   * @param buffer to read into
+   * @param count # of bytes to read
+   */
+  private void read(int position, byte[] buffer, int offset, int count) throws IOException {
+    if (mappedBuffer == null) {
+      raf.seek(position);
+      raf.readFully(buffer, offset, count);
+    } else {
+      if (position + count > mappedBuffer.capacity()) {
+        throw new EOFException();
+      }
+      mappedBuffer.position(position);
+      mappedBuffer.get(buffer, offset, count);
+    }
+  }
+
+  /**
+   * Writes count bytes from buffer to the given position in the file. Does not wrap.
+   *
+   * @param position in file to write to
+   * @param buffer to write from
+   * @param count # of bytes to write
+   */
+  private void write(int position, byte[] buffer, int offset, int count) throws IOException {
+    if (mappedBuffer == null) {
+      raf.seek(position);
+      raf.write(buffer, offset, count);
+    } else {
+      if (position + count > mappedBuffer.capacity()) {
+        throw new EOFException();
+      }
+      mappedBuffer.position(position);
+      mappedBuffer.put(buffer, offset, count);
+    }
+  }
+
   /** Wraps the position if it exceeds the end of the file. */
   private int wrapPosition(int position) {
     return position < fileLength ? position : HEADER_LENGTH + position - fileLength;
@@ -219,16 +356,13 @@ public class QueueFile implements Closeable {
   private void ringWrite(int position, byte[] buffer, int offset, int count) throws IOException {
     position = wrapPosition(position);
     if (position + count <= fileLength) {
-      raf.seek(position);
-      raf.write(buffer, offset, count);
+      write(position, buffer, offset, count);
     } else {
       // The write overlaps the EOF.
       // # of bytes to write before the EOF.
       int beforeEof = fileLength - position;
-      raf.seek(position);
-      raf.write(buffer, offset, beforeEof);
-      raf.seek(HEADER_LENGTH);
-      raf.write(buffer, offset + beforeEof, count - beforeEof);
+      write(position, buffer, offset, beforeEof);
+      write(HEADER_LENGTH, buffer, offset + beforeEof, count - beforeEof);
     }
   }
 
@@ -251,16 +385,13 @@ public class QueueFile implements Closeable {
   private void ringRead(int position, byte[] buffer, int offset, int count) throws IOException {
     position = wrapPosition(position);
     if (position + count <= fileLength) {
-      raf.seek(position);
-      raf.readFully(buffer, offset, count);
+      read(position, buffer, offset, count);
     } else {
       // The read overlaps the EOF.
       // # of bytes to read before the EOF.
       int beforeEof = fileLength - position;
-      raf.seek(position);
-      raf.readFully(buffer, offset, beforeEof);
-      raf.seek(HEADER_LENGTH);
-      raf.readFully(buffer, offset + beforeEof, count - beforeEof);
+      read(position, buffer, offset, beforeEof);
+      read(HEADER_LENGTH, buffer, offset + beforeEof, count - beforeEof);
     }
   }
 
@@ -304,15 +435,84 @@ public class QueueFile implements Closeable {
 
     // Write data.
     ringWrite(newLast.position + Element.HEADER_LENGTH, data, offset, count);
+    forceBeforeCommit();
 
     // Commit the addition. If wasEmpty, first == last.
     int firstPosition = wasEmpty ? newLast.position : first.position;
     writeHeader(fileLength, elementCount + 1, firstPosition, newLast.position);
+    appendToIndex(elementCount, newLast.position, count);
     last = newLast;
     elementCount++;
     if (wasEmpty) first = last; // first element
   }
 
+  /**
+   * Adds all the given elements to the end of the queue, in order. The elements are written with a
+   * single ring write and committed with a single header write, so either all of them are added or
+   * none are.
+   *
+   * @param elements to copy bytes from
+   */
+  public synchronized void addAll(List<byte[]> elements) throws IOException {
+    if (elements == null) {
+      throw new NullPointerException("elements == null");
+    }
+    int count = elements.size();
+    if (count == 0) {
+      return;
+    }
+
+    int totalLength = 0;
+    for (int i = 0; i < count; i++) {
+      byte[] data = elements.get(i);
+      if (data == null) {
+        throw new NullPointerException("elements[" + i + "] == null");
+      }
+      totalLength += Element.HEADER_LENGTH + data.length;
+      if (totalLength < 0) {
+        throw new EOFException("Cannot add " + count + " elements, too many bytes.");
+      }
+    }
+
+    // expandIfNecessary accounts for the header of a single element.
+    expandIfNecessary(totalLength - Element.HEADER_LENGTH);
+
+    // Lay out all the elements back to back, so they can be written in one go.
+    byte[] span = new byte[totalLength];
+    int offset = 0;
+    for (int i = 0; i < count; i++) {
+      byte[] data = elements.get(i);
+      writeInt(span, offset, data.length);
+      System.arraycopy(data, 0, span, offset + Element.HEADER_LENGTH, data.length);
+      offset += Element.HEADER_LENGTH + data.length;
+    }
+
+    boolean wasEmpty = isEmpty();
+    int position = wasEmpty ? HEADER_LENGTH
+        : wrapPosition(last.position + Element.HEADER_LENGTH + last.length);
+    ringWrite(position, span, 0, totalLength);
+    forceBeforeCommit();
+
+    int lastLength = elements.get(count - 1).length;
+    Element newLast = new Element(
+        wrapPosition(position + totalLength - Element.HEADER_LENGTH - lastLength), lastLength);
+
+    // Commit the additions.
+    int firstPosition = wasEmpty ? position : first.position;
+    writeHeader(fileLength, elementCount + count, firstPosition, newLast.position);
+    if (index != null) {
+      int elementPosition = position;
+      for (int i = 0; i < count; i++) {
+        int length = elements.get(i).length;
+        appendToIndex(elementCount + i, elementPosition, length);
+        elementPosition = wrapPosition(elementPosition + Element.HEADER_LENGTH + length);
+      }
+    }
+    last = newLast;
+    elementCount += count;
+    if (wasEmpty) first = new Element(position, elements.get(0).length);
+  }
+
   private int usedBytes() {
     if (elementCount == 0) return HEADER_LENGTH;
 
@@ -375,6 +575,7 @@ public class QueueFile implements Closeable {
         throw new AssertionError("Copied insufficient number of bytes!");
       }
       ringErase(HEADER_LENGTH, count);
+      forceBeforeCommit();
     }
 
     // Commit the expansion.
@@ -382,6 +583,15 @@ public class QueueFile implements Closeable {
       int newLastPosition = fileLength + last.position - HEADER_LENGTH;
       writeHeader(newLength, elementCount, first.position, newLastPosition);
       last = new Element(newLastPosition, last.length);
+      if (index != null) {
+        // Elements that had wrapped around were moved after the old end of the file.
+        for (int i = 0; i < elementCount; i++) {
+          int slot = indexSlot(i);
+          if (index[slot] < first.position) {
+            index[slot] += fileLength - HEADER_LENGTH;
+          }
+        }
+      }
     } else {
       writeHeader(newLength, elementCount, first.position, last.position);
     }
@@ -394,6 +604,9 @@ public class QueueFile implements Closeable {
     // Set new file length (considered metadata) and sync it to storage.
     raf.setLength(newLength);
     raf.getChannel().force(true);
+    if (mappedBuffer != null) {
+      map();
+    }
   }
 
   /** Reads the eldest element. Returns null if the queue is empty. */
@@ -405,6 +618,23 @@ public class QueueFile implements Closeable {
     return data;
   }
 
+  /**
+   * Reads the element at the given index, where {@code 0} is the eldest element.
+   *
+   * @throws IndexOutOfBoundsException if {@code i < 0} or {@code i >= size()}
+   */
+  public synchronized byte[] peek(int i) throws IOException {
+    if (i < 0 || i >= elementCount) {
+      throw new IndexOutOfBoundsException("index " + i + ", size " + elementCount);
+    }
+    ensureIndex();
+    int slot = indexSlot(i);
+    int length = index[slot + 1];
+    byte[] data = new byte[length];
+    ringRead(index[slot] + Element.HEADER_LENGTH, data, 0, length);
+    return data;
+  }
+
   /**
    * Invokes the given reader once for each element in the queue, from eldest to most recently
    * added. Continues until all elements are read or {@link PayloadQueue.ElementVisitor#read
@@ -414,16 +644,83 @@ public class QueueFile implements Closeable {
    * @return number of elements visited
    */
   public synchronized int forEach(PayloadQueue.ElementVisitor reader) throws IOException {
-    int position = first.position;
-    for (int i = 0; i < elementCount; i++) {
-      Element current = readElement(position);
+    return forEach(0, elementCount, reader);
+  }
+
+  /**
+   * Invokes the given reader once for each element with an index from {@code fromIndex},
+   * inclusive, to {@code toIndex}, exclusive, where {@code 0} is the eldest element. Continues
+   * until all those elements are read or {@link PayloadQueue.ElementVisitor#read reader.read()}
+   * returns {@code false}.
+   *
+   * @return number of elements visited
+   * @throws IndexOutOfBoundsException if {@code fromIndex < 0}, {@code toIndex > size()} or {@code
+   * fromIndex > toIndex}
+   */
+  public synchronized int forEach(int fromIndex, int toIndex, PayloadQueue.ElementVisitor reader)
+      throws IOException {
+    if (fromIndex < 0 || toIndex > elementCount || fromIndex > toIndex) {
+      throw new IndexOutOfBoundsException(
+          "fromIndex " + fromIndex + ", toIndex " + toIndex + ", size " + elementCount);
+    }
+    ensureIndex();
+    for (int i = fromIndex; i < toIndex; i++) {
+      int slot = indexSlot(i);
+      Element current = new Element(index[slot], index[slot + 1]);
       boolean shouldContinue = reader.read(new ElementInputStream(current), current.length);
       if (!shouldContinue) {
-        return i + 1;
+        return i - fromIndex + 1;
       }
+    }
+    return toIndex - fromIndex;
+  }
+
+  /** Builds {@link #index} by walking the element headers, unless it is built already. */
+  private void ensureIndex() throws IOException {
+    if (index != null) return;
+
+    int capacity = 16;
+    while (capacity < elementCount) {
+      capacity <<= 1;
+    }
+    int[] newIndex = new int[capacity * 2];
+    int position = first.position;
+    for (int i = 0; i < elementCount; i++) {
+      Element current = readElement(position);
+      newIndex[i * 2] = current.position;
+      newIndex[i * 2 + 1] = current.length;
       position = wrapPosition(current.position + Element.HEADER_LENGTH + current.length);
     }
-    return elementCount;
+    index = newIndex;
+    indexHead = 0;
+  }
+
+  /** Returns the offset in {@link #index} of the element at the given queue index. */
+  private int indexSlot(int i) {
+    return ((indexHead + i) & (index.length / 2 - 1)) * 2;
+  }
+
+  /**
+   * Records an element added as the element at queue index {@code i}, if the index has been built.
+   * Every element before it must have been recorded already.
+   */
+  private void appendToIndex(int i, int position, int length) {
+    if (index == null) return;
+
+    int capacity = index.length / 2;
+    if (i == capacity) {
+      int[] newIndex = new int[capacity * 4];
+      for (int j = 0; j < i; j++) {
+        int slot = indexSlot(j);
+        newIndex[j * 2] = index[slot];
+        newIndex[j * 2 + 1] = index[slot + 1];
+      }
+      index = newIndex;
+      indexHead = 0;
+    }
+    int slot = indexSlot(i);
+    index[slot] = position;
+    index[slot + 1] = length;
   }
 
   private final class ElementInputStream extends InputStream {
@@ -451,8 +748,8 @@ public class QueueFile implements Closeable {
 
     @Override public int read() throws IOException {
       if (remaining == 0) return -1;
-      raf.seek(position);
-      int b = raf.read();
+      QueueFile.this.read(position, buffer, 0, 1);
+      int b = buffer[0] & 0xff;
       position = wrapPosition(position + 1);
       remaining--;
       return b;
@@ -498,21 +795,22 @@ public class QueueFile implements Closeable {
     }
 
     final int eraseStartPosition = first.position;
-    int eraseTotalLength = 0;
 
-    // Read the position and length of the new first element.
-    int newFirstPosition = first.position;
-    int newFirstLength = first.length;
-    for (int i = 0; i < n; i++) {
-      eraseTotalLength += Element.HEADER_LENGTH + newFirstLength;
-      newFirstPosition = wrapPosition(newFirstPosition + Element.HEADER_LENGTH + newFirstLength);
-      ringRead(newFirstPosition, buffer, 0, Element.HEADER_LENGTH);
-      newFirstLength = readInt(buffer, 0);
+    // Look up the position and length of the new first element.
+    ensureIndex();
+    int slot = indexSlot(n);
+    int newFirstPosition = index[slot];
+    int newFirstLength = index[slot + 1];
+    int eraseTotalLength = newFirstPosition - eraseStartPosition;
+    if (eraseTotalLength < 0) {
+      // The removed elements wrap around the end of the file.
+      eraseTotalLength += fileLength - HEADER_LENGTH;
     }
 
     // Commit the header.
     writeHeader(fileLength, elementCount - n, newFirstPosition, last.position);
     elementCount -= n;
+    indexHead = (indexHead + n) & (index.length / 2 - 1);
     first = new Element(newFirstPosition, newFirstLength);
 
     // Commit the erase.
@@ -525,18 +823,26 @@ public class QueueFile implements Closeable {
     writeHeader(INITIAL_LENGTH, 0, 0, 0);
 
     // Zero out data.
-    raf.seek(HEADER_LENGTH);
-    raf.write(ZEROES, 0, INITIAL_LENGTH - HEADER_LENGTH);
+    write(HEADER_LENGTH, ZEROES, 0, INITIAL_LENGTH - HEADER_LENGTH);
 
     elementCount = 0;
+    indexHead = 0;
     first = Element.NULL;
     last = Element.NULL;
     if (fileLength > INITIAL_LENGTH) setLength(INITIAL_LENGTH);
     fileLength = INITIAL_LENGTH;
   }
 
-  /** Closes the underlying file. */
+  /**
+   * Closes the underlying file. Memory mapped changes are forced to storage first, and the mapping
+   * is released.
+   */
   @Override public synchronized void close() throws IOException {
+    if (mappedBuffer != null) {
+      mappedBuffer.force();
+      unmap(mappedBuffer);
+      mappedBuffer = null;
+    }
     raf.close();
   }
 
@@ -569,6 +875,25 @@ public class QueueFile implements Closeable {
     return builder.toString();
   }
 
+  /** Controls when changes to a memory mapped {@link QueueFile} are forced to storage. */
+  public enum ForcePolicy {
+    /**
+     * Force element data before writing the header, and force the header after. This gives the
+     * same guarantees as synchronous writes, with two forces per change.
+     */
+    ALWAYS,
+    /**
+     * Force once after the header is written. Changes survive a system crash once the operation
+     * returns, but data and header may reach storage in any order.
+     */
+    COMMIT,
+    /**
+     * Only force when the queue is closed. Changes still survive a process crash since they live
+     * in the page cache, but may be lost or corrupted if the system goes down.
+     */
+    NEVER
+  }
+
   /** A pointer to an element. */
   static class Element {
     static final Element NULL = new Element(0, 0);
@@ -0,0 +1,592 @@
+package com.sweetpricing.dynamicpricing;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static com.sweetpricing.dynamicpricing.internal.Utils.closeQuietly;
+import static com.sweetpricing.dynamicpricing.internal.Utils.createDirectory;
+
+/**
+ * A {@link PayloadQueue} stored as a log of append-only segment files in a directory.
+ * <p/>
+ * Payloads are appended to the newest segment, each preceded by a 4 byte length header, until
+ * adding another would grow the segment past {@code segmentSize} bytes and a new segment is
+ * started. A small checkpoint file records the segment and offset of the eldest payload. Removing
+ * payloads only moves the checkpoint, and segments that have been read completely are deleted
+ * whole. Unlike {@link QueueFile}, no bytes are ever zeroed out or moved, and the queue is not
+ * limited to a single 2GB file.
+ * <p/>
+ * Segment files are named after their sequence number:
+ * <pre>
+ *   checkpoint   Sequence number (8 bytes) and offset (4 bytes) of the eldest payload.
+ *   0.seg        Payloads, each as length (4 bytes) followed by data.
+ *   1.seg
+ *   ...
+ *   migrating-2  A legacy queue file, while its payloads are moved to 2.seg.
+ * </pre>
+ * <p/>
+ * A write interrupted by the process dying leaves a partial payload at the end of the newest
+ * segment, which is discarded the next time the queue is opened. Like a {@link QueueFile} with
+ * {@link QueueFile.ForcePolicy#NEVER}, writes are left to the operating system to flush.
+ */
+class SegmentedQueue extends PayloadQueue {
+  /** Default size at which a segment is closed and a new one started. */
+  static final int DEFAULT_SEGMENT_SIZE = 256 * 1024; // 256KB.
+  static final String SEGMENT_SUFFIX = ".seg";
+  static final String CHECKPOINT_NAME = "checkpoint";
+  /**
+   * Prefix of a legacy {@link QueueFile} being migrated, followed by the sequence number reserved
+   * for the segment its payloads are written to.
+   */
+  static final String MIGRATING_PREFIX = "migrating-";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final int CHECKPOINT_LENGTH = 12;
+  /** Length of the header preceding each payload. */
+  private static final int HEADER_LENGTH = 4;
+
+  private final File directory;
+  private final File checkpointFile;
+  private final int segmentSize;
+  /** Segments holding unread payloads, eldest first. */
+  private final List<Segment> segments = new ArrayList<>();
+  /** Index of the eldest unread payload in the first segment. */
+  private int headIndex;
+  /** Number of unread payloads across all segments. */
+  private int size;
+  /** Sequence number of the eldest unread payload, see {@link #headSequence()}. */
+  private long headSequence;
+  /** Sequence number for the next segment. */
+  private long nextSequence;
+  /** Stream appending to the last segment. Opened lazily. */
+  private FileOutputStream tailStream;
+  private final byte[] buffer = new byte[CHECKPOINT_LENGTH];
+
+  SegmentedQueue(File directory) throws IOException {
+    this(directory, DEFAULT_SEGMENT_SIZE);
+  }
+
+  SegmentedQueue(File directory, int segmentSize) throws IOException {
+    if (segmentSize <= HEADER_LENGTH) {
+      throw new IllegalArgumentException("segmentSize must be greater than " + HEADER_LENGTH);
+    }
+    createDirectory(directory);
+    this.directory = directory;
+    this.checkpointFile = new File(directory, CHECKPOINT_NAME);
+    this.segmentSize = segmentSize;
+    open();
+  }
+
+  /** Reads the checkpoint and scans the segments still holding unread payloads. */
+  private void open() throws IOException {
+    long checkpointSequence = -1;
+    int headOffset = 0;
+    if (checkpointFile.exists()) {
+      RandomAccessFile raf = new RandomAccessFile(checkpointFile, "r");
+      try {
+        if (raf.length() != CHECKPOINT_LENGTH) {
+          throw new IOException("Checkpoint is corrupt; length is " + raf.length() + ".");
+        }
+        raf.readFully(buffer, 0, CHECKPOINT_LENGTH);
+      } finally {
+        raf.close();
+      }
+      checkpointSequence = ((long) readInt(buffer, 0) << 32) | (readInt(buffer, 4) & 0xffffffffL);
+      headOffset = readInt(buffer, 8);
+    }
+
+    List<Long> sequences = new ArrayList<>();
+    long reservedSequence = -1;
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        if (name.endsWith(SEGMENT_SUFFIX + TEMP_SUFFIX)) {
+          // Left by a migration that didn't finish, which writes it again.
+          //noinspection ResultOfMethodCallIgnored
+          file.delete();
+        } else if (name.endsWith(SEGMENT_SUFFIX)) {
+          long sequence = parseSequence(name, 0, name.length() - SEGMENT_SUFFIX.length());
+          if (sequence >= 0) sequences.add(sequence);
+        } else if (name.startsWith(MIGRATING_PREFIX)) {
+          reservedSequence = Math.max(reservedSequence,
+              parseSequence(name, MIGRATING_PREFIX.length(), name.length()));
+        }
+      }
+    }
+    Collections.sort(sequences);
+
+    nextSequence = Math.max(Math.max(checkpointSequence, 0), reservedSequence + 1);
+    for (long sequence : sequences) {
+      File file = segmentFile(sequence);
+      nextSequence = Math.max(nextSequence, sequence + 1);
+      if (sequence < checkpointSequence) {
+        // Read completely before the last run, but not yet deleted.
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        continue;
+      }
+      Segment segment = scan(sequence, file);
+      if (segments.isEmpty() && sequence == checkpointSequence) {
+        while (headIndex < segment.count && segment.offsets[headIndex] < headOffset) {
+          headIndex++;
+        }
+      }
+      segments.add(segment);
+    }
+
+    for (int i = 0; i < segments.size(); i++) {
+      size += segments.get(i).count;
+    }
+    size -= headIndex;
+  }
+
+  /** Returns the sequence number in the given part of a file name, or -1 if there is none. */
+  private static long parseSequence(String name, int start, int end) {
+    try {
+      return Long.parseLong(name.substring(start, end));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** Reads the payload headers of a segment, discarding a trailing partial payload. */
+  private Segment scan(long sequence, File file) throws IOException {
+    Segment segment = new Segment(sequence, file);
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      long fileLength = raf.length();
+      int offset = 0;
+      while (offset + HEADER_LENGTH <= fileLength) {
+        raf.seek(offset);
+        raf.readFully(buffer, 0, HEADER_LENGTH);
+        int length = readInt(buffer, 0);
+        if (length < 0 || offset + HEADER_LENGTH + (long) length > fileLength) {
+          break;
+        }
+        segment.append(offset);
+        offset += HEADER_LENGTH + length;
+      }
+      if (offset < fileLength) {
+        raf.setLength(offset);
+      }
+      segment.length = offset;
+    } finally {
+      raf.close();
+    }
+    return segment;
+  }
+
+  @Override synchronized int size() {
+    return size;
+  }
+
+  @Override synchronized void add(byte[] data) throws IOException {
+    addAll(Collections.singletonList(data));
+  }
+
+  @Override synchronized void addAll(List<byte[]> data) throws IOException {
+    if (data == null) {
+      throw new NullPointerException("data == null");
+    }
+    for (int i = 0; i < data.size(); i++) {
+      if (data.get(i) == null) {
+        throw new NullPointerException("data[" + i + "] == null");
+      }
+    }
+
+    ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+    int chunkCount = 0;
+    for (int i = 0; i < data.size(); i++) {
+      byte[] payload = data.get(i);
+      Segment tail = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+      long tailLength = tail == null ? 0 : tail.length + chunk.size();
+      if (tail == null || (tailLength > 0
+          && tailLength + HEADER_LENGTH + payload.length > segmentSize)) {
+        if (chunkCount > 0) {
+          append(tail, chunk, chunkCount);
+          chunk.reset();
+          chunkCount = 0;
+        }
+        roll();
+      }
+      writeInt(buffer, 0, payload.length);
+      chunk.write(buffer, 0, HEADER_LENGTH);
+      chunk.write(payload, 0, payload.length);
+      chunkCount++;
+    }
+    if (chunkCount > 0) {
+      append(segments.get(segments.size() - 1), chunk, chunkCount);
+    }
+  }
+
+  /** Writes a chunk of {@code count} encoded payloads to the end of the given segment. */
+  private void append(Segment segment, ByteArrayOutputStream chunk, int count) throws IOException {
+    byte[] bytes = chunk.toByteArray();
+    try {
+      if (tailStream == null) {
+        tailStream = new FileOutputStream(segment.file, true);
+      }
+      tailStream.write(bytes);
+    } catch (IOException e) {
+      // Don't leave a partial chunk that later payloads would be appended after.
+      closeQuietly(tailStream);
+      tailStream = null;
+      RandomAccessFile raf = new RandomAccessFile(segment.file, "rw");
+      try {
+        raf.setLength(segment.length);
+      } finally {
+        raf.close();
+      }
+      throw e;
+    }
+
+    int offset = segment.length;
+    for (int i = 0; i < count; i++) {
+      segment.append(offset);
+      offset += HEADER_LENGTH + readInt(bytes, offset - segment.length);
+    }
+    segment.length = offset;
+    size += count;
+  }
+
+  /** Closes the current tail segment for appends, and starts a new one. */
+  private void roll() throws IOException {
+    closeQuietly(tailStream);
+    tailStream = null;
+    long sequence = nextSequence++;
+    File file = segmentFile(sequence);
+    if (!file.createNewFile()) {
+      throw new IOException("Segment " + file + " already exists.");
+    }
+    segments.add(new Segment(sequence, file));
+  }
+
+  @Override synchronized void remove(int n) throws IOException {
+    if (n < 0) {
+      throw new IllegalArgumentException("Cannot remove negative (" + n + ") number of elements.");
+    }
+    if (n == 0) {
+      return;
+    }
+    if (size == 0) {
+      throw new NoSuchElementException();
+    }
+    if (n > size) {
+      throw new IllegalArgumentException(
+          "Cannot remove more elements (" + n + ") than present in queue (" + size + ").");
+    }
+
+    // Find the new head, counting the segments that are read completely.
+    int newHeadIndex = headIndex;
+    int consumed = 0;
+    int remaining = n;
+    while (remaining > 0) {
+      int available = segments.get(consumed).count - newHeadIndex;
+      if (remaining < available) {
+        newHeadIndex += remaining;
+        remaining = 0;
+      } else {
+        remaining -= available;
+        newHeadIndex = 0;
+        consumed++;
+      }
+    }
+
+    // Commit the new head before deleting anything it no longer points to.
+    if (consumed < segments.size()) {
+      Segment head = segments.get(consumed);
+      writeCheckpoint(head.sequence, head.offsets[newHeadIndex]);
+    } else {
+      writeCheckpoint(nextSequence, 0);
+      closeQuietly(tailStream);
+      tailStream = null;
+    }
+    for (int i = 0; i < consumed; i++) {
+      //noinspection ResultOfMethodCallIgnored
+      segments.remove(0).file.delete();
+    }
+    headIndex = newHeadIndex;
+    size -= n;
+    headSequence += n;
+  }
+
+  @Override synchronized long headSequence() {
+    return headSequence;
+  }
+
+  /** Atomically replaces the checkpoint. */
+  private void writeCheckpoint(long sequence, int offset) throws IOException {
+    writeInt(buffer, 0, (int) (sequence >>> 32));
+    writeInt(buffer, 4, (int) sequence);
+    writeInt(buffer, 8, offset);
+    File tmp = new File(directory, CHECKPOINT_NAME + ".tmp");
+    FileOutputStream out = new FileOutputStream(tmp);
+    try {
+      out.write(buffer, 0, CHECKPOINT_LENGTH);
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(checkpointFile)) {
+      throw new IOException("Could not replace checkpoint " + checkpointFile + ".");
+    }
+  }
+
+  @Override synchronized void forEach(int fromIndex, ElementVisitor visitor) throws IOException {
+    int skip = fromIndex;
+    for (int i = 0; i < segments.size(); i++) {
+      Segment segment = segments.get(i);
+      int start = i == 0 ? headIndex : 0;
+      if (skip >= segment.count - start) {
+        skip -= segment.count - start;
+        continue;
+      }
+      start += skip;
+      skip = 0;
+
+      RandomAccessFile raf = new RandomAccessFile(segment.file, "r");
+      try {
+        for (int j = start; j < segment.count; j++) {
+          int length = segment.lengthOf(j);
+          InputStream in = new SegmentInputStream(raf, segment.offsets[j] + HEADER_LENGTH, length);
+          if (!visitor.read(in, length)) {
+            return;
+          }
+        }
+      } finally {
+        raf.close();
+      }
+    }
+  }
+
+  /**
+   * Moves the payloads of the given legacy {@link QueueFile} into this queue, after the ones
+   * already in it, and deletes the file. Does nothing if the file doesn't exist.
+   * <p/>
+   * The file is first moved into this queue's directory, named after the sequence number of the
+   * segment its payloads will be written to. That segment is written under a temporary name and
+   * renamed into place, which adds all the payloads at once. If the process dies or the migration
+   * fails part way, the moved file is kept, and the next call finishes the migration without
+   * adding any payload twice.
+   */
+  synchronized void migrate(File legacyFile) throws IOException {
+    for (; ; ) {
+      File pending = pendingMigration();
+      if (pending == null) {
+        if (!legacyFile.exists()) {
+          return;
+        }
+        pending = new File(directory, MIGRATING_PREFIX + nextSequence);
+        if (!legacyFile.renameTo(pending)) {
+          throw new IOException("Could not move " + legacyFile + " to " + pending + ".");
+        }
+      }
+      finishMigration(pending);
+    }
+  }
+
+  /** Returns the legacy file being migrated with the lowest sequence number, if any. */
+  private File pendingMigration() {
+    File pending = null;
+    long pendingSequence = Long.MAX_VALUE;
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        if (!name.startsWith(MIGRATING_PREFIX)) continue;
+        long sequence = parseSequence(name, MIGRATING_PREFIX.length(), name.length());
+        if (sequence >= 0 && sequence < pendingSequence) {
+          pending = file;
+          pendingSequence = sequence;
+        }
+      }
+    }
+    return pending;
+  }
+
+  private void finishMigration(File pending) throws IOException {
+    String name = pending.getName();
+    long sequence = parseSequence(name, MIGRATING_PREFIX.length(), name.length());
+    if (!segmentFile(sequence).exists()) {
+      // Segments may have been added after the sequence was reserved, or the queue emptied past
+      // it, so the payloads go in a new segment at the end of the queue.
+      if (sequence != nextSequence) {
+        File reserved = new File(directory, MIGRATING_PREFIX + nextSequence);
+        if (!pending.renameTo(reserved)) {
+          throw new IOException("Could not move " + pending + " to " + reserved + ".");
+        }
+        pending = reserved;
+        sequence = nextSequence;
+      }
+      nextSequence++;
+      writeMigratedSegment(pending, sequence);
+    }
+
+    if (!pending.delete()) {
+      // Don't let the next call add these payloads again.
+      QueueFile legacy = new QueueFile(pending);
+      try {
+        legacy.clear();
+      } finally {
+        legacy.close();
+      }
+      throw new IOException("Could not delete " + pending + " after migrating it.");
+    }
+  }
+
+  /** Copies every payload of the legacy file into a new segment, and adds it to the queue. */
+  private void writeMigratedSegment(File pending, long sequence) throws IOException {
+    File file = segmentFile(sequence);
+    File tmp = new File(directory, file.getName() + TEMP_SUFFIX);
+    QueueFile legacy = new QueueFile(pending);
+    FileOutputStream out = new FileOutputStream(tmp);
+    try {
+      final OutputStream buffered = new BufferedOutputStream(out);
+      final byte[] header = new byte[HEADER_LENGTH];
+      final byte[] chunk = new byte[4096];
+      legacy.forEach(new ElementVisitor() {
+        @Override public boolean read(InputStream in, int length) throws IOException {
+          writeInt(header, 0, length);
+          buffered.write(header);
+          int remaining = length;
+          while (remaining > 0) {
+            int count = in.read(chunk, 0, Math.min(chunk.length, remaining));
+            if (count == -1) throw new IOException("Payload ended " + remaining + " bytes early.");
+            buffered.write(chunk, 0, count);
+            remaining -= count;
+          }
+          return true;
+        }
+      });
+      buffered.flush();
+      // The legacy file is deleted once the segment is in place, so it must reach storage first.
+      out.getFD().sync();
+    } finally {
+      out.close();
+      legacy.close();
+    }
+    if (!tmp.renameTo(file)) {
+      throw new IOException("Could not rename " + tmp + " to " + file + ".");
+    }
+
+    // Later payloads are appended to the new segment.
+    closeQuietly(tailStream);
+    tailStream = null;
+    Segment segment = scan(sequence, file);
+    segments.add(segment);
+    size += segment.count;
+  }
+
+  /**
+   * Deletes the segments and checkpoint in the given directory, such as when they can't be
+   * opened. Legacy files being migrated are kept.
+   */
+  static void deleteSegments(File directory) {
+    File[] files = directory.listFiles();
+    if (files == null) return;
+    for (File file : files) {
+      if (!file.getName().startsWith(MIGRATING_PREFIX)) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      }
+    }
+  }
+
+  @Override public synchronized void close() throws IOException {
+    if (tailStream != null) {
+      tailStream.close();
+      tailStream = null;
+    }
+  }
+
+  private File segmentFile(long sequence) {
+    return new File(directory, sequence + SEGMENT_SUFFIX);
+  }
+
+  private static void writeInt(byte[] buffer, int offset, int value) {
+    buffer[offset] = (byte) (value >> 24);
+    buffer[offset + 1] = (byte) (value >> 16);
+    buffer[offset + 2] = (byte) (value >> 8);
+    buffer[offset + 3] = (byte) value;
+  }
+
+  private static int readInt(byte[] buffer, int offset) {
+    return ((buffer[offset] & 0xff) << 24) + ((buffer[offset + 1] & 0xff) << 16) + ((buffer[offset
+        + 2] & 0xff) << 8) + (buffer[offset + 3] & 0xff);
+  }
+
+  /** A segment file and the offsets of the payloads in it. */
+  private static class Segment {
+    final long sequence;
+    final File file;
+    int[] offsets = new int[16];
+    int count;
+    /** Length of the complete payloads in the file, in bytes. */
+    int length;
+
+    Segment(long sequence, File file) {
+      this.sequence = sequence;
+      this.file = file;
+    }
+
+    void append(int offset) {
+      if (count == offsets.length) {
+        int[] newOffsets = new int[count * 2];
+        System.arraycopy(offsets, 0, newOffsets, 0, count);
+        offsets = newOffsets;
+      }
+      offsets[count++] = offset;
+    }
+
+    int lengthOf(int i) {
+      int end = i + 1 < count ? offsets[i + 1] : length;
+      return end - offsets[i] - HEADER_LENGTH;
+    }
+  }
+
+  /** Reads a single payload from a segment. Not buffered. */
+  private static class SegmentInputStream extends InputStream {
+    private final RandomAccessFile raf;
+    private long position;
+    private int remaining;
+
+    SegmentInputStream(RandomAccessFile raf, long position, int length) {
+      this.raf = raf;
+      this.position = position;
+      this.remaining = length;
+    }
+
+    @Override public int read(byte[] buffer, int offset, int length) throws IOException {
+      if ((offset | length) < 0 || length > buffer.length - offset) {
+        throw new ArrayIndexOutOfBoundsException();
+      }
+      if (remaining == 0) {
+        return -1;
+      }
+      if (length > remaining) length = remaining;
+      raf.seek(position);
+      raf.readFully(buffer, offset, length);
+      position += length;
+      remaining -= length;
+      return length;
+    }
+
+    @Override public int read() throws IOException {
+      if (remaining == 0) return -1;
+      raf.seek(position);
+      int b = raf.read();
+      position++;
+      remaining--;
+      return b;
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package com.sweetpricing.dynamicpricing;
+
+/**
+ * An immutable map from product IDs to SKUs, for {@link Variant}. The IDs are kept in an open
+ * addressing table of primitive ints with linear probing, so looking a SKU up neither boxes the ID
+ * nor formats it as a string.
+ */
+final class SkuIndex {
+  /** Slots are at most half full, which keeps probe sequences short. */
+  private static final int LOAD_FACTOR_INVERSE = 2;
+
+  private final int[] keys;
+  /** The SKU of the ID in the same slot of {@link #keys}, or {@code null} if the slot is empty. */
+  private final String[] values;
+  private final int mask;
+  private final int shift;
+  private final int size;
+
+  /**
+   * Indexes the first {@code count} product IDs and SKUs. A later SKU replaces an earlier one for
+   * the same product ID. SKUs must not be {@code null}.
+   */
+  SkuIndex(int[] productIds, String[] skus, int count) {
+    int capacity = 1;
+    while (capacity < count * LOAD_FACTOR_INVERSE) {
+      capacity <<= 1;
+    }
+    keys = new int[capacity];
+    values = new String[capacity];
+    mask = capacity - 1;
+    shift = Integer.SIZE - Integer.numberOfTrailingZeros(capacity);
+    int size = 0;
+    for (int i = 0; i < count; i++) {
+      int slot = slot(productIds[i]);
+      while (values[slot] != null && keys[slot] != productIds[i]) {
+        slot = (slot + 1) & mask;
+      }
+      if (values[slot] == null) {
+        size++;
+      }
+      keys[slot] = productIds[i];
+      values[slot] = skus[i];
+    }
+    this.size = size;
+  }
+
+  private int slot(int key) {
+    // Fibonacci hashing spreads sequential IDs, the common case, across the table. The mask is
+    // only needed for a table of one slot, where the shift is 32 and so a no-op.
+    return key * 0x9e3779b9 >>> shift & mask;
+  }
+
+  /** Returns the SKU of the given product, or {@code null} if there is none. */
+  String get(int productId) {
+    for (int slot = slot(productId); ; slot = (slot + 1) & mask) {
+      String value = values[slot];
+      if (value == null || keys[slot] == productId) {
+        return value;
+      }
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  /** Returns the number of slots, for iterating with {@link #keyAt} and {@link #valueAt}. */
+  int capacity() {
+    return values.length;
+  }
+
+  int keyAt(int slot) {
+    return keys[slot];
+  }
+
+  /** Returns the SKU in the given slot, or {@code null} if the slot is empty. */
+  String valueAt(int slot) {
+    return values[slot];
+  }
+}
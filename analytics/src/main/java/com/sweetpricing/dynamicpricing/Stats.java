@@ -21,9 +21,17 @@ class Stats {
 
   long flushCount;
   long flushEventCount;
+  long flushRetryCount;
+  long deadLetterEventCount;
   long integrationOperationCount;
   long integrationOperationDuration;
   Map<String, Long> integrationOperationDurationByIntegration = new HashMap<>();
+  long mainThreadOperationCount;
+  long mainThreadOperationLatency;
+  long mainThreadOperationDuration;
+  long backgroundOperationCount;
+  long backgroundOperationLatency;
+  long backgroundOperationDuration;
 
   Stats() {
     statsThread = new HandlerThread(STATS_THREAD_NAME, THREAD_PRIORITY_BACKGROUND);
@@ -45,6 +53,23 @@ class Stats {
     flushEventCount += eventCount;
   }
 
+  void dispatchFlushRetry() {
+    handler.sendMessage(handler.obtainMessage(StatsHandler.TRACK_FLUSH_RETRY));
+  }
+
+  void performFlushRetry() {
+    flushRetryCount++;
+  }
+
+  void dispatchDeadLetter(int eventCount) {
+    handler.sendMessage(handler //
+        .obtainMessage(StatsHandler.TRACK_DEAD_LETTER, eventCount, 0));
+  }
+
+  void performDeadLetter(int eventCount) {
+    deadLetterEventCount += eventCount;
+  }
+
   void dispatchIntegrationOperation(String key, long duration) {
     handler.sendMessage(handler //
         .obtainMessage(StatsHandler.TRACK_INTEGRATION_OPERATION, new Pair<>(key, duration)));
@@ -63,16 +88,47 @@ class Stats {
     }
   }
 
+  /**
+   * Records an operation run on all integrations on the main thread, or on all thread-safe
+   * integrations in the background.
+   *
+   * @param latency How long the operation waited before it ran, in milliseconds.
+   * @param duration How long the integrations took to run it, in milliseconds.
+   */
+  void dispatchOperationRun(boolean background, long latency, long duration) {
+    handler.sendMessage(handler //
+        .obtainMessage(StatsHandler.TRACK_OPERATION_RUN, background ? 1 : 0, 0,
+            new Pair<>(latency, duration)));
+  }
+
+  void performOperationRun(boolean background, Pair<Long, Long> latencyAndDuration) {
+    if (background) {
+      backgroundOperationCount++;
+      backgroundOperationLatency += latencyAndDuration.first;
+      backgroundOperationDuration += latencyAndDuration.second;
+    } else {
+      mainThreadOperationCount++;
+      mainThreadOperationLatency += latencyAndDuration.first;
+      mainThreadOperationDuration += latencyAndDuration.second;
+    }
+  }
+
   StatsSnapshot createSnapshot() {
     return new StatsSnapshot(System.currentTimeMillis(), flushCount, flushEventCount,
-        integrationOperationCount, integrationOperationDuration,
-        Collections.unmodifiableMap(integrationOperationDurationByIntegration));
+        flushRetryCount, deadLetterEventCount, integrationOperationCount,
+        integrationOperationDuration,
+        Collections.unmodifiableMap(integrationOperationDurationByIntegration),
+        mainThreadOperationCount, mainThreadOperationLatency, mainThreadOperationDuration,
+        backgroundOperationCount, backgroundOperationLatency, backgroundOperationDuration);
   }
 
   private static class StatsHandler extends Handler {
 
     private static final int TRACK_FLUSH = 1;
     private static final int TRACK_INTEGRATION_OPERATION = 2;
+    private static final int TRACK_FLUSH_RETRY = 3;
+    private static final int TRACK_DEAD_LETTER = 4;
+    private static final int TRACK_OPERATION_RUN = 5;
 
     private final Stats stats;
 
@@ -86,10 +142,20 @@ class Stats {
         case TRACK_FLUSH:
           stats.performFlush(msg.arg1);
           break;
+        case TRACK_FLUSH_RETRY:
+          stats.performFlushRetry();
+          break;
+        case TRACK_DEAD_LETTER:
+          stats.performDeadLetter(msg.arg1);
+          break;
         case TRACK_INTEGRATION_OPERATION:
           //noinspection unchecked
           stats.performIntegrationOperation((Pair<String, Long>) msg.obj);
           break;
+        case TRACK_OPERATION_RUN:
+          //noinspection unchecked
+          stats.performOperationRun(msg.arg1 == 1, (Pair<Long, Long>) msg.obj);
+          break;
         default:
           throw new AssertionError("Unknown Stats handler message: " + msg);
       }
@@ -11,6 +11,10 @@ public class StatsSnapshot {
   public final long flushCount;
   /** Number of events we've flushed to our servers. */
   public final long flushEventCount;
+  /** Number of times a flush failed and will be retried. */
+  public final long flushRetryCount;
+  /** Number of events the server rejected and that were moved to the dead-letter queue. */
+  public final long deadLetterEventCount;
   /**
    * Number of operations sent to all bundled integrations, including lifecycle events and flushes.
    */
@@ -27,18 +31,63 @@ public class StatsSnapshot {
   public final float integrationOperationAverageDuration;
   /** Total time to run operations, including lifecycle events and flushes, by integration. */
   public final Map<String, Long> integrationOperationDurationByIntegration;
+  /** Number of operations run on integrations that need the main thread. */
+  public final long mainThreadOperationCount;
+  /** Average time operations waited for the main thread before they ran on integrations. */
+  public final float mainThreadOperationAverageLatency;
+  /** Total time integrations that need the main thread spent running operations on it. */
+  public final long mainThreadOperationDuration;
+  /**
+   * Number of operations run on thread-safe integrations, in the background. See {@link
+   * com.sweetpricing.dynamicpricing.integrations.Integration#isThreadSafe()}.
+   */
+  public final long backgroundOperationCount;
+  /** Average time operations waited before they ran on thread-safe integrations. */
+  public final float backgroundOperationAverageLatency;
+  /** Total time thread-safe integrations spent running operations in the background. */
+  public final long backgroundOperationDuration;
 
   public StatsSnapshot(long timestamp, long flushCount, long flushEventCount,
       long integrationOperationCount, long integrationOperationDuration,
       Map<String, Long> integrationOperationDurationByIntegration) {
+    this(timestamp, flushCount, flushEventCount, 0, 0, integrationOperationCount,
+        integrationOperationDuration, integrationOperationDurationByIntegration);
+  }
+
+  public StatsSnapshot(long timestamp, long flushCount, long flushEventCount,
+      long flushRetryCount, long deadLetterEventCount, long integrationOperationCount,
+      long integrationOperationDuration,
+      Map<String, Long> integrationOperationDurationByIntegration) {
+    this(timestamp, flushCount, flushEventCount, flushRetryCount, deadLetterEventCount,
+        integrationOperationCount, integrationOperationDuration,
+        integrationOperationDurationByIntegration, 0, 0, 0, 0, 0, 0);
+  }
+
+  public StatsSnapshot(long timestamp, long flushCount, long flushEventCount,
+      long flushRetryCount, long deadLetterEventCount, long integrationOperationCount,
+      long integrationOperationDuration,
+      Map<String, Long> integrationOperationDurationByIntegration, long mainThreadOperationCount,
+      long mainThreadOperationLatency, long mainThreadOperationDuration,
+      long backgroundOperationCount, long backgroundOperationLatency,
+      long backgroundOperationDuration) {
     this.timestamp = timestamp;
     this.flushCount = flushCount;
     this.flushEventCount = flushEventCount;
+    this.flushRetryCount = flushRetryCount;
+    this.deadLetterEventCount = deadLetterEventCount;
     this.integrationOperationCount = integrationOperationCount;
     this.integrationOperationDuration = integrationOperationDuration;
     this.integrationOperationAverageDuration = (integrationOperationCount == 0) ? 0
         : ((float) integrationOperationDuration / integrationOperationCount);
     this.integrationOperationDurationByIntegration = integrationOperationDurationByIntegration;
+    this.mainThreadOperationCount = mainThreadOperationCount;
+    this.mainThreadOperationAverageLatency = (mainThreadOperationCount == 0) ? 0
+        : ((float) mainThreadOperationLatency / mainThreadOperationCount);
+    this.mainThreadOperationDuration = mainThreadOperationDuration;
+    this.backgroundOperationCount = backgroundOperationCount;
+    this.backgroundOperationAverageLatency = (backgroundOperationCount == 0) ? 0
+        : ((float) backgroundOperationLatency / backgroundOperationCount);
+    this.backgroundOperationDuration = backgroundOperationDuration;
   }
 
   @Override public String toString() {
@@ -49,6 +98,10 @@ public class StatsSnapshot {
         + flushCount
         + ", flushEventCount="
         + flushEventCount
+        + ", flushRetryCount="
+        + flushRetryCount
+        + ", deadLetterEventCount="
+        + deadLetterEventCount
         +
         ", integrationOperationCount="
         + integrationOperationCount
@@ -61,7 +114,18 @@ public class StatsSnapshot {
         +
         ", integrationOperationDurationByIntegration="
         + integrationOperationDurationByIntegration
-        +
-        '}';
+        + ", mainThreadOperationCount="
+        + mainThreadOperationCount
+        + ", mainThreadOperationAverageLatency="
+        + mainThreadOperationAverageLatency
+        + ", mainThreadOperationDuration="
+        + mainThreadOperationDuration
+        + ", backgroundOperationCount="
+        + backgroundOperationCount
+        + ", backgroundOperationAverageLatency="
+        + backgroundOperationAverageLatency
+        + ", backgroundOperationDuration="
+        + backgroundOperationDuration
+        + '}';
   }
 }
@@ -1,52 +1,63 @@
 package com.sweetpricing.dynamicpricing;
 
+import android.app.Activity;
 import android.content.Context;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
-import android.util.JsonWriter;
 import com.sweetpricing.dynamicpricing.integrations.BasePayload;
 import com.sweetpricing.dynamicpricing.integrations.IdentifyPayload;
 import com.sweetpricing.dynamicpricing.integrations.Integration;
 import com.sweetpricing.dynamicpricing.integrations.Logger;
 import com.sweetpricing.dynamicpricing.integrations.ScreenPayload;
 import com.sweetpricing.dynamicpricing.integrations.TrackPayload;
+import com.sweetpricing.dynamicpricing.internal.Iso8601;
 import com.sweetpricing.dynamicpricing.internal.Utils.AnalyticsThreadFactory;
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
 import static com.sweetpricing.dynamicpricing.internal.Utils.THREAD_PREFIX;
 import static com.sweetpricing.dynamicpricing.internal.Utils.closeQuietly;
 import static com.sweetpricing.dynamicpricing.internal.Utils.createDirectory;
 import static com.sweetpricing.dynamicpricing.internal.Utils.isConnected;
-import static com.sweetpricing.dynamicpricing.internal.Utils.isNullOrEmpty;
-import static com.sweetpricing.dynamicpricing.internal.Utils.toISO8601Date;
 
-/** Entity that queues payloads on disks and uploads them periodically. */
+/**
+ * Entity that queues payloads on disks and uploads them periodically. Payloads are queued in the
+ * compact {@link PayloadFormat}, and only rendered back to JSON when they are uploaded.
+ */
 class SweetpricingIntegration extends Integration<Void> {
   static final Integration.Factory FACTORY = new Integration.Factory() {
     @Override public Integration<?> create(ValueMap settings, DynamicPricing dynamicPricing) {
       return SweetpricingIntegration.create(dynamicPricing.getApplication(), dynamicPricing.client,
           dynamicPricing.cartographer, dynamicPricing.networkExecutor, dynamicPricing.stats,
           Collections.unmodifiableMap(dynamicPricing.bundledIntegrations), dynamicPricing.tag,
-          dynamicPricing.flushIntervalInMillis, dynamicPricing.flushQueueSize, dynamicPricing.getLogger());
+          dynamicPricing.flushIntervalInMillis, dynamicPricing.flushQueueSize,
+          dynamicPricing.flushConcurrency, dynamicPricing.queueStorage,
+          dynamicPricing.queueForcePolicy, dynamicPricing.memoryQueueMaxBytes,
+          dynamicPricing.getLogger());
     }
 
     @Override public String key() {
@@ -60,6 +71,13 @@ class SweetpricingIntegration extends Integration<Void> {
    * QueueFile's 2GB limit.
    */
   static final int MAX_QUEUE_SIZE = 1000;
+  /**
+   * Drop old payloads if the dead-letter queue contains more than 1000 items. It only keeps
+   * rejected payloads around to be inspected, so the newest ones are the most useful.
+   */
+  static final int MAX_DEAD_LETTER_SIZE = 1000;
+  /** Returned by a flush that uploaded every payload it read, or had nothing to upload. */
+  private static final long FLUSH_SUCCEEDED = -1;
   /** Our servers only accept payloads < 15KB. */
   static final int MAX_PAYLOAD_SIZE = 15000; // 15KB.
   /**
@@ -73,8 +91,17 @@ class SweetpricingIntegration extends Integration<Void> {
   static final String SWEETPRICING_KEY = "Sweetpricing";
   private final Context context;
   private final PayloadQueue payloadQueue;
+  /** Payloads the server rejected, which would fail the same way if they were uploaded again. */
+  private final PayloadQueue deadLetterQueue;
+  /** Contexts of the payloads in {@link #payloadQueue}. */
+  private final ContextStore contextStore;
+  /**
+   * Number of contexts above which {@link #compactContexts()} runs, twice as many as were left by
+   * the last one, so that contexts the queue still refers to don't make every enqueue scan it.
+   */
+  private int compactContextsThreshold = ContextStore.MAX_CONTEXTS;
   private final Client client;
-  private final int flushQueueSize;
+  private final FlushPolicy flushPolicy;
   private final Stats stats;
   private final Handler handler;
   private final HandlerThread sweetpricingThread;
@@ -82,7 +109,23 @@ class SweetpricingIntegration extends Integration<Void> {
   private final Map<String, Boolean> bundledIntegrations;
   private final Cartographer cartographer;
   private final ExecutorService networkExecutor;
-  private final ScheduledExecutorService flushScheduler;
+  /** Maximum number of batches uploaded at once. */
+  private final int flushConcurrency;
+  /** Uploads batches for a pipelined flush. Only created if {@link #flushConcurrency} > 1. */
+  private final ExecutorService uploadExecutor;
+  /** Tells the dispatcher when a variant request or similar woke up the radio. */
+  private final Client.NetworkActivityListener networkActivityListener =
+      new Client.NetworkActivityListener() {
+        @Override public void onNetworkActivity() {
+          handler.sendMessage(
+              handler.obtainMessage(SweetpricingDispatcherHandler.REQUEST_NETWORK_ACTIVITY));
+        }
+      };
+  /**
+   * Number of started activities, to tell when the app goes to the background. Dispatcher thread
+   * only.
+   */
+  private int startedActivities;
   /**
    * We don't want to stop adding payloads to our disk queue when we're uploading payloads. So we
    * upload payloads on a network executor instead.
@@ -109,69 +152,179 @@ class SweetpricingIntegration extends Integration<Void> {
    * uploading.
    */
   private final Object flushLock = new Object();
+  /**
+   * Payloads waiting to be enqueued by the dispatcher thread. A burst of calls is drained in one go
+   * and written to the queue as a single group commit. Guarded by itself.
+   */
+  private final List<BasePayload> pendingPayloads = new ArrayList<>();
+
+  /**
+   * Create a {@link SegmentedQueue} in the given folder with the given name. If the underlying
+   * files are somehow corrupted, we'll delete them, and try to recreate the queue. This method will
+   * throw an {@link IOException} if the directory doesn't exist and could not be created.
+   * <p/>
+   * Payloads left in a legacy {@link QueueFile} with the same name are moved into the new queue.
+   * If that fails, the legacy file is kept, and moved on the next start.
+   */
+  private static SegmentedQueue createSegmentedQueue(File folder, String name, Logger logger)
+      throws IOException {
+    createDirectory(folder);
+    File directory = new File(folder, name + "-segments");
+    SegmentedQueue queue;
+    try {
+      queue = new SegmentedQueue(directory);
+    } catch (IOException e) {
+      logger.error(e, "Could not open queue (%s), deleting its segments.", name);
+      SegmentedQueue.deleteSegments(directory);
+      queue = new SegmentedQueue(directory);
+    }
+
+    try {
+      queue.migrate(new File(folder, name));
+    } catch (IOException e) {
+      logger.error(e, "Could not migrate queue file (%s), will retry on the next start.", name);
+    }
+    return queue;
+  }
 
   /**
-   * Create a {@link QueueFile} in the given folder with the given name. If the underlying file is
-   * somehow corrupted, we'll delete it, and try to recreate the file. This method will throw an
-   * {@link IOException} if the directory doesn't exist and could not be created.
+   * Create a {@link QueueFile} in the given folder with the given name, memory mapped if there is
+   * a {@code forcePolicy}. If the underlying file is somehow corrupted, we'll delete it, and try to
+   * recreate the queue.
    */
-  private static QueueFile createQueueFile(File folder, String name) throws IOException {
+  private static QueueFile createQueueFile(File folder, String name,
+      QueueFile.ForcePolicy forcePolicy) throws IOException {
     createDirectory(folder);
     File file = new File(folder, name);
     try {
-      return new QueueFile(file);
+      return openQueueFile(file, forcePolicy);
     } catch (IOException e) {
       //noinspection ResultOfMethodCallIgnored
       if (file.delete()) {
-        return new QueueFile(file);
+        return openQueueFile(file, forcePolicy);
       } else {
         throw new IOException("Could not create queue file (" + name + ") in " + folder + ".");
       }
     }
   }
 
+  private static QueueFile openQueueFile(File file, QueueFile.ForcePolicy forcePolicy)
+      throws IOException {
+    return forcePolicy == null ? new QueueFile(file) : new QueueFile(file, forcePolicy);
+  }
+
+  /**
+   * Create a {@link ContextStore} in the given folder with the given name. If the underlying file
+   * is somehow corrupted, we'll delete it and try again. If that fails too, contexts are only kept
+   * in memory, and payloads left over from a previous process are uploaded without their context.
+   */
+  private static ContextStore createContextStore(File folder, String name, Logger logger) {
+    File file = new File(folder, name);
+    try {
+      return new ContextStore(file);
+    } catch (IOException e) {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+      try {
+        return new ContextStore(file);
+      } catch (IOException again) {
+        logger.error(again, "Falling back to memory context store.");
+        return new ContextStore();
+      }
+    }
+  }
+
   static synchronized SweetpricingIntegration create(Context context, Client client,
       Cartographer cartographer, ExecutorService networkExecutor, Stats stats,
       Map<String, Boolean> bundledIntegrations, String tag, long flushIntervalInMillis,
-      int flushQueueSize, Logger logger) {
+      int flushQueueSize, int flushConcurrency, DynamicPricing.QueueStorage queueStorage,
+      QueueFile.ForcePolicy forcePolicy, int memoryQueueMaxBytes, Logger logger) {
     PayloadQueue payloadQueue;
+    File folder = context.getDir("sweetpricing-disk-queue", Context.MODE_PRIVATE);
     try {
-      File folder = context.getDir("sweetpricing-disk-queue", Context.MODE_PRIVATE);
-      QueueFile queueFile = createQueueFile(folder, tag);
-      payloadQueue = new PayloadQueue.PersistentQueue(queueFile);
+      if (queueStorage == DynamicPricing.QueueStorage.SEGMENTED) {
+        payloadQueue = createSegmentedQueue(folder, tag, logger);
+      } else {
+        payloadQueue = new PayloadQueue.PersistentQueue(createQueueFile(folder, tag, forcePolicy));
+      }
     } catch (IOException e) {
       logger.error(e, "Falling back to memory queue.");
-      payloadQueue = new PayloadQueue.MemoryQueue(new ArrayList<byte[]>());
+      payloadQueue = new PayloadQueue.MemoryQueue(memoryQueueMaxBytes);
     }
+    ContextStore contextStore;
+    if (payloadQueue instanceof PayloadQueue.MemoryQueue) {
+      contextStore = new ContextStore();
+    } else {
+      contextStore = createContextStore(folder, tag + "-contexts", logger);
+    }
+    PayloadQueue deadLetterQueue;
+    try {
+      deadLetterQueue = new PayloadQueue.PersistentQueue(
+          createQueueFile(folder, tag + "-dead-letter", forcePolicy));
+    } catch (IOException e) {
+      logger.error(e, "Falling back to memory dead-letter queue.");
+      deadLetterQueue = new PayloadQueue.MemoryQueue(memoryQueueMaxBytes);
+    }
+    FlushPolicy flushPolicy = new FlushPolicy.Adaptive(flushIntervalInMillis, flushQueueSize,
+        FlushPolicy.device(context), FlushPolicy.SYSTEM_CLOCK);
     return new SweetpricingIntegration(context, client, cartographer, networkExecutor, payloadQueue,
-            stats, bundledIntegrations, flushIntervalInMillis, flushQueueSize, logger);
+            deadLetterQueue, contextStore, stats, bundledIntegrations, flushPolicy,
+            flushIntervalInMillis, flushConcurrency, logger);
   }
 
   SweetpricingIntegration(Context context, Client client, Cartographer cartographer,
-      ExecutorService networkExecutor, PayloadQueue payloadQueue, Stats stats,
-      Map<String, Boolean> bundledIntegrations, long flushIntervalInMillis, int flushQueueSize,
+      ExecutorService networkExecutor, PayloadQueue payloadQueue, PayloadQueue deadLetterQueue,
+      ContextStore contextStore, Stats stats, Map<String, Boolean> bundledIntegrations,
+      FlushPolicy flushPolicy, long initialFlushDelayInMillis, int flushConcurrency,
       Logger logger) {
     this.context = context;
     this.client = client;
     this.networkExecutor = networkExecutor;
     this.payloadQueue = payloadQueue;
+    this.deadLetterQueue = deadLetterQueue;
+    this.contextStore = contextStore;
     this.stats = stats;
     this.logger = logger;
     this.bundledIntegrations = bundledIntegrations;
     this.cartographer = cartographer;
-    this.flushQueueSize = flushQueueSize;
-    this.flushScheduler = Executors.newScheduledThreadPool(1, new AnalyticsThreadFactory());
+    this.flushPolicy = flushPolicy;
+    this.flushConcurrency = flushConcurrency;
+    this.uploadExecutor = flushConcurrency > 1 ? Executors.newFixedThreadPool(flushConcurrency,
+        new AnalyticsThreadFactory()) : null;
 
     sweetpricingThread = new HandlerThread(SWEETPRICING_THREAD_NAME, THREAD_PRIORITY_BACKGROUND);
     sweetpricingThread.start();
     handler = new SweetpricingDispatcherHandler(sweetpricingThread.getLooper(), this);
+    client.addNetworkActivityListener(networkActivityListener);
 
-    long initialDelay = payloadQueue.size() >= flushQueueSize ? 0L : flushIntervalInMillis;
-    flushScheduler.scheduleAtFixedRate(new Runnable() {
-      @Override public void run() {
-        flush();
-      }
-    }, initialDelay, flushIntervalInMillis, TimeUnit.MILLISECONDS);
+    // Later flushes are scheduled by the flush policy, from the dispatcher thread.
+    scheduleFlush(flushPolicy.shouldFlushOnEnqueue(payloadQueue.size()) ? 0L
+        : initialFlushDelayInMillis);
+  }
+
+  /** Replaces the pending scheduled flush, if any, with one after the given delay. */
+  private void scheduleFlush(long delayMillis) {
+    handler.removeMessages(SweetpricingDispatcherHandler.REQUEST_SCHEDULED_FLUSH);
+    handler.sendMessageDelayed(
+        handler.obtainMessage(SweetpricingDispatcherHandler.REQUEST_SCHEDULED_FLUSH), delayMillis);
+  }
+
+  /** Payloads are handed to the dispatcher thread, and lifecycle callbacks come in order. */
+  @Override public boolean isThreadSafe() {
+    return true;
+  }
+
+  @Override public void onActivityStarted(Activity activity) {
+    startedActivities++;
+  }
+
+  @Override public void onActivityStopped(Activity activity) {
+    // Activities started before this integration was created are never counted, so don't go below
+    // zero when they stop.
+    startedActivities = Math.max(startedActivities - 1, 0);
+    if (startedActivities == 0) {
+      handler.sendMessage(handler.obtainMessage(SweetpricingDispatcherHandler.REQUEST_BACKGROUND));
+    }
   }
 
   @Override public void identify(IdentifyPayload identify) {
@@ -187,34 +340,89 @@ class SweetpricingIntegration extends Integration<Void> {
   }
 
   private void dispatchEnqueue(BasePayload payload) {
-    handler.sendMessage(handler.obtainMessage(SweetpricingDispatcherHandler.REQUEST_ENQUEUE,
-            payload));
+    boolean wasEmpty;
+    synchronized (pendingPayloads) {
+      wasEmpty = pendingPayloads.isEmpty();
+      pendingPayloads.add(payload);
+    }
+    // Only the first payload of a burst needs to wake up the dispatcher, it will pick up the rest.
+    if (wasEmpty) {
+      handler.sendMessage(handler.obtainMessage(SweetpricingDispatcherHandler.REQUEST_ENQUEUE));
+    }
+  }
+
+  /** Enqueues all the payloads that have been dispatched so far in a single group commit. */
+  void performEnqueuePending() {
+    List<BasePayload> payloads;
+    synchronized (pendingPayloads) {
+      if (pendingPayloads.isEmpty()) {
+        return;
+      }
+      payloads = new ArrayList<>(pendingPayloads);
+      pendingPayloads.clear();
+    }
+    performEnqueue(payloads);
   }
 
   void performEnqueue(BasePayload original) {
-    // Override any user provided values with anything that was bundled.
-    // e.g. If user did Mixpanel: true and it was bundled, this would correctly override it with
-    // false so that the server doesn't send that event as well.
-    ValueMap providedIntegrations = original.integrations();
-    LinkedHashMap<String, Object> combinedIntegrations =
-        new LinkedHashMap<>(providedIntegrations.size() + bundledIntegrations.size());
-    combinedIntegrations.putAll(providedIntegrations);
-    combinedIntegrations.putAll(bundledIntegrations);
-    combinedIntegrations.remove("Sweetpricing"); // don't include the Segment integration.
-    // Make a copy of the payload so we don't mutate the original.
-    ValueMap payload = new ValueMap();
-    payload.putAll(original);
-    payload.put("integrations", combinedIntegrations);
-
-    if (payloadQueue.size() >= MAX_QUEUE_SIZE) {
+    performEnqueue(Collections.singletonList(original));
+  }
+
+  void performEnqueue(List<BasePayload> originals) {
+    List<byte[]> serialized = new ArrayList<>(originals.size());
+    for (int i = 0; i < originals.size(); i++) {
+      BasePayload original = originals.get(i);
+      // Override any user provided values with anything that was bundled.
+      // e.g. If user did Mixpanel: true and it was bundled, this would correctly override it with
+      // false so that the server doesn't send that event as well.
+      ValueMap providedIntegrations = original.integrations();
+      LinkedHashMap<String, Object> combinedIntegrations =
+          new LinkedHashMap<>(providedIntegrations.size() + bundledIntegrations.size());
+      combinedIntegrations.putAll(providedIntegrations);
+      combinedIntegrations.putAll(bundledIntegrations);
+      combinedIntegrations.remove("Sweetpricing"); // don't include the Segment integration.
+      // Make a copy of the payload so we don't mutate the original.
+      ValueMap payload = new ValueMap();
+      payload.putAll(original);
+      payload.put("integrations", combinedIntegrations);
+
+      try {
+        // The context is found while the payload is serialized, rather than serialized again.
+        int[] offsets = new int[PayloadFormat.KEYS.length * 2];
+        byte[] json = cartographer.toJsonBytes(payload, PayloadFormat.KEYS, offsets);
+        if (json == null || json.length == 0 || json.length > MAX_PAYLOAD_SIZE) {
+          throw new IOException("Could not serialize payload " + payload);
+        }
+        if (payload.get("context") instanceof Map) {
+          serialized.add(PayloadFormat.encode(json, offsets, payload.getString("messageId"),
+              contextStore));
+        } else {
+          serialized.add(json);
+        }
+      } catch (IOException e) {
+        logger.error(e, "Could not add payload %s to queue: %s.", payload, payloadQueue);
+      }
+    }
+    if (serialized.isEmpty()) {
+      return;
+    }
+    if (serialized.size() > MAX_QUEUE_SIZE) {
+      // The burst alone is over capacity, only keep the newest payloads.
+      serialized = serialized.subList(serialized.size() - MAX_QUEUE_SIZE, serialized.size());
+    }
+
+    int count = serialized.size();
+    if (payloadQueue.size() + count > MAX_QUEUE_SIZE) {
       synchronized (flushLock) {
         // Double checked locking, the network executor could have removed payload from the queue
         // to bring it below our capacity while we were waiting.
-        if (payloadQueue.size() >= MAX_QUEUE_SIZE) {
-          logger.info("Queue is at max capacity (%s), removing oldest payload.",
-              payloadQueue.size());
+        int queueSize = payloadQueue.size();
+        if (queueSize + count > MAX_QUEUE_SIZE) {
+          int overflow = Math.min(queueSize + count - MAX_QUEUE_SIZE, queueSize);
+          logger.info("Queue is at max capacity (%s), removing %s oldest payload(s).", queueSize,
+              overflow);
           try {
-            payloadQueue.remove(1);
+            payloadQueue.remove(overflow);
           } catch (IOException e) {
             logger.error(e, "Unable to remove oldest payload from queue.");
             return;
@@ -224,22 +432,75 @@ class SweetpricingIntegration extends Integration<Void> {
     }
 
     try {
-      String payloadJson = cartographer.toJson(payload);
-      if (isNullOrEmpty(payloadJson) || payloadJson.length() > MAX_PAYLOAD_SIZE) {
-        throw new IOException("Could not serialize payload " + payload);
+      if (count == 1) {
+        payloadQueue.add(serialized.get(0));
+      } else {
+        payloadQueue.addAll(serialized);
       }
-      payloadQueue.add(payloadJson.getBytes(UTF_8));
     } catch (IOException e) {
-      logger.error(e, "Could not add payload %s to queue: %s.", payload, payloadQueue);
+      logger.error(e, "Could not add %s payload(s) to queue: %s.", count, payloadQueue);
       return;
     }
 
-    logger.verbose("Enqueued %s payload. %s elements in the queue.", payload, payloadQueue.size());
-    if (payloadQueue.size() >= flushQueueSize) {
+    logger.verbose("Enqueued %s payload(s). %s elements in the queue.", count,
+        payloadQueue.size());
+    if (contextStore.size() > compactContextsThreshold) {
+      compactContexts();
+    }
+    if (flushPolicy.shouldFlushOnEnqueue(payloadQueue.size())) {
       submitFlush();
     }
   }
 
+  /** Removes the contexts no payload in the queue refers to any more. */
+  private void compactContexts() {
+    final Set<Long> hashes = new HashSet<>();
+    try {
+      payloadQueue.forEach(new PayloadQueue.ElementVisitor() {
+        @Override public boolean read(InputStream in, int length) throws IOException {
+          PayloadFormat.readContextHash(in, hashes);
+          return true;
+        }
+      });
+      contextStore.retainAll(hashes);
+    } catch (IOException e) {
+      logger.error(e, "Unable to remove unused contexts.");
+    }
+    compactContextsThreshold = Math.max(ContextStore.MAX_CONTEXTS, 2 * contextStore.size());
+  }
+
+  /** Runs a flush scheduled by the flush policy, and schedules the next one. */
+  void performScheduledFlush() {
+    submitFlush();
+    scheduleFlush(flushPolicy.nextFlushDelayMillis(payloadQueue.size()));
+  }
+
+  void performNetworkActivity() {
+    if (flushPolicy.shouldFlushOnNetworkActivity(payloadQueue.size())) {
+      submitFlush();
+    }
+  }
+
+  void performBackground() {
+    if (flushPolicy.shouldFlushOnBackground(payloadQueue.size())) {
+      submitFlush();
+    }
+  }
+
+  /**
+   * Tells the flush policy how a flush went. Failures reschedule the next flush to back off, for at
+   * least the given {@code retryAfterMillis}.
+   */
+  void performFlushResult(long retryAfterMillis) {
+    if (retryAfterMillis == FLUSH_SUCCEEDED) {
+      flushPolicy.onFlushSucceeded();
+    } else {
+      stats.dispatchFlushRetry();
+      flushPolicy.onFlushFailed(retryAfterMillis);
+      scheduleFlush(flushPolicy.nextFlushDelayMillis(payloadQueue.size()));
+    }
+  }
+
   /** Enqueues a flush message to the handler. */
   @Override public void flush() {
     handler.sendMessage(handler.obtainMessage(SweetpricingDispatcherHandler.REQUEST_FLUSH));
@@ -253,9 +514,16 @@ class SweetpricingIntegration extends Integration<Void> {
 
     networkExecutor.submit(new Runnable() {
       @Override public void run() {
+        long result;
         synchronized (flushLock) {
-          performFlush();
+          if (uploadExecutor == null) {
+            result = performFlush();
+          } else {
+            result = performPipelinedFlush();
+          }
         }
+        handler.sendMessage(
+            handler.obtainMessage(SweetpricingDispatcherHandler.REQUEST_FLUSH_RESULT, result));
       }
     });
   }
@@ -264,14 +532,21 @@ class SweetpricingIntegration extends Integration<Void> {
     return payloadQueue.size() > 0 && isConnected(context);
   }
 
-  /** Upload payloads to our servers and remove them from the queue file. */
-  private void performFlush() {
+  /**
+   * Upload payloads to our servers and remove them from the queue file. Payloads the server
+   * rejects are moved to the dead-letter queue instead of being retried.
+   * <p/>
+   * Returns {@link #FLUSH_SUCCEEDED}, or if the flush failed and should be retried later, the delay
+   * the server asked for before retrying, which may be {@code 0}.
+   */
+  private long performFlush() {
     // Conditions could have changed between enqueuing the task and when it is run.
     if (!shouldFlush()) {
-      return;
+      return FLUSH_SUCCEEDED;
     }
 
     logger.verbose("Uploading payloads in queue to Sweetpricing.");
+    long firstSequence;
     int payloadsUploaded;
 
     Client.Connection connection = null;
@@ -283,8 +558,9 @@ class SweetpricingIntegration extends Integration<Void> {
       BatchPayloadWriter writer = new BatchPayloadWriter(connection.os) //
           .beginObject() //
           .beginBatchArray();
-      PayloadWriter payloadWriter = new PayloadWriter(writer);
-      payloadQueue.forEach(payloadWriter);
+      PayloadWriter payloadWriter = new PayloadWriter(writer, contextStore);
+      // Payloads are referred to by sequence number, since the queue may evict some meanwhile.
+      firstSequence = payloadQueue.forEach(0, Long.MAX_VALUE, payloadWriter);
       writer.endBatchArray().endObject().close();
       // Don't use the result of QueueFiles#forEach, since we may not read the last element.
       payloadsUploaded = payloadWriter.payloadCount;
@@ -293,93 +569,317 @@ class SweetpricingIntegration extends Integration<Void> {
         // Upload the payloads.
         connection.close();
       } catch (Client.UploadException e) {
-        // Simply log and proceed to remove the rejected payloads from the queue.
-        logger.error(e, "Payloads were rejected by server. Marked for removal.");
+        if (e.isRetryable()) {
+          logger.error(e, "Payloads could not be uploaded. Retrying later.");
+          return e.retryAfterMillis;
+        }
+        // Retrying would fail the same way, so set the payloads aside and remove them.
+        logger.error(e, "Payloads were rejected by server. Moving them to dead-letter queue.");
+        quarantine(firstSequence, payloadsUploaded);
       }
     } catch (IOException e) {
       logger.error(e, "Error while uploading payloads");
-      return;
+      return 0;
     } finally {
       closeQuietly(connection);
     }
 
     try {
-      payloadQueue.remove(payloadsUploaded);
+      payloadQueue.removeUntil(firstSequence + payloadsUploaded);
     } catch (IOException e) {
       logger.error(e, "Unable to remove " + payloadsUploaded + " payload(s) from queue.");
-      return;
+      return 0;
     }
 
     logger.verbose("Uploaded %s payloads. %s remain in the queue.", payloadsUploaded,
         payloadQueue.size());
     stats.dispatchFlush(payloadsUploaded);
     if (payloadQueue.size() > 0) {
-      performFlush(); // Flush any remaining items.
+      return performFlush(); // Flush any remaining items.
+    }
+    return FLUSH_SUCCEEDED;
+  }
+
+  /**
+   * Upload payloads to our servers over up to {@link #flushConcurrency} connections at once, and
+   * remove them from the queue file.
+   * <p/>
+   * Each batch covers a distinct range of the queue, and the next range is read while earlier
+   * batches are still uploading. Batches can finish in any order, but payloads are only removed
+   * once every batch before them has finished too, so the queue head only moves over a contiguous
+   * run of uploaded payloads. Once a batch fails no new batches are started, and payloads after it
+   * are left in the queue to be uploaded again by a later flush. Batches the server rejects count
+   * as finished, and are moved to the dead-letter queue when they are removed.
+   * <p/>
+   * Returns the same as {@link #performFlush()}.
+   */
+  private long performPipelinedFlush() {
+    if (!shouldFlush()) {
+      return FLUSH_SUCCEEDED;
+    }
+
+    logger.verbose("Uploading payloads in queue to Sweetpricing over %s connections.",
+        flushConcurrency);
+    CompletionService<UploadBatch> completionService =
+        new ExecutorCompletionService<>(uploadExecutor);
+    // Batches that are uploading or waiting for an earlier batch, eldest first.
+    LinkedList<UploadBatch> batches = new LinkedList<>();
+    int inFlight = 0;
+    // Sequence number of the first payload not read into a batch yet.
+    long readSequence = payloadQueue.headSequence();
+    boolean failed = false;
+    long retryAfterMillis = 0;
+
+    while (true) {
+      while (!failed && inFlight < flushConcurrency
+          && readSequence - payloadQueue.headSequence() < payloadQueue.size()) {
+        UploadBatch batch;
+        try {
+          batch = readBatch(readSequence);
+        } catch (IOException e) {
+          logger.error(e, "Error while reading payloads");
+          failed = true;
+          break;
+        }
+        if (batch.payloadCount == 0) {
+          break;
+        }
+        readSequence = batch.firstSequence + batch.payloadCount;
+        batches.add(batch);
+        completionService.submit(batch);
+        inFlight++;
+      }
+      if (inFlight == 0) {
+        break;
+      }
+
+      try {
+        UploadBatch batch = completionService.take().get();
+        if (!batch.isFinished()) {
+          failed = true;
+          retryAfterMillis = Math.max(retryAfterMillis, batch.retryAfterMillis);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return 0;
+      } catch (ExecutionException e) {
+        logger.error(e, "Error while uploading payloads");
+        return 0;
+      }
+      inFlight--;
+
+      // Commit the contiguous run of finished batches at the head of the queue.
+      int payloadsUploaded = 0;
+      long uploadedSequence = 0;
+      while (!batches.isEmpty() && batches.getFirst().isFinished()) {
+        UploadBatch batch = batches.removeFirst();
+        if (batch.rejected) {
+          quarantine(batch.firstSequence, batch.payloadCount);
+        }
+        payloadsUploaded += batch.payloadCount;
+        uploadedSequence = batch.firstSequence + batch.payloadCount;
+      }
+      if (payloadsUploaded == 0) {
+        continue;
+      }
+      try {
+        payloadQueue.removeUntil(uploadedSequence);
+      } catch (IOException e) {
+        logger.error(e, "Unable to remove " + payloadsUploaded + " payload(s) from queue.");
+        // The queue may be in any state, so don't commit the remaining batches.
+        batches.clear();
+        failed = true;
+        continue;
+      }
+      logger.verbose("Uploaded %s payloads. %s remain in the queue.", payloadsUploaded,
+          payloadQueue.size());
+      stats.dispatchFlush(payloadsUploaded);
+    }
+    return failed ? retryAfterMillis : FLUSH_SUCCEEDED;
+  }
+
+  /**
+   * Copies {@code count} payloads, starting at the given sequence number in the queue, to the
+   * dead-letter queue. Payloads that can't be copied are dropped, since they would be rejected
+   * again anyway.
+   */
+  private void quarantine(long fromSequence, int count) {
+    final List<byte[]> rejected = new ArrayList<>(count);
+    try {
+      payloadQueue.forEach(fromSequence, fromSequence + count, new PayloadQueue.ElementVisitor() {
+        @Override public boolean read(InputStream in, int length) throws IOException {
+          byte[] record = new byte[length];
+          new DataInputStream(in).readFully(record);
+          // Store plain JSON, which doesn't depend on the contexts of the payload queue.
+          rejected.add(PayloadFormat.render(record, contextStore));
+          return true;
+        }
+      });
+      int overflow = deadLetterQueue.size() + rejected.size() - MAX_DEAD_LETTER_SIZE;
+      if (overflow > 0) {
+        deadLetterQueue.remove(Math.min(overflow, deadLetterQueue.size()));
+      }
+      if (rejected.size() > MAX_DEAD_LETTER_SIZE) {
+        rejected.subList(0, rejected.size() - MAX_DEAD_LETTER_SIZE).clear();
+      }
+      deadLetterQueue.addAll(rejected);
+    } catch (IOException e) {
+      logger.error(e, "Unable to move %s payload(s) to dead-letter queue, dropping them.", count);
+      return;
+    }
+    stats.dispatchDeadLetter(count);
+  }
+
+  /** Serializes a batch of payloads starting at the given sequence number in the queue. */
+  private UploadBatch readBatch(long fromSequence) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    BatchPayloadWriter writer = new BatchPayloadWriter(bytes) //
+        .beginObject() //
+        .beginBatchArray();
+    PayloadWriter payloadWriter = new PayloadWriter(writer, contextStore);
+    long firstSequence = payloadQueue.forEach(fromSequence, Long.MAX_VALUE, payloadWriter);
+    writer.endBatchArray().endObject().close();
+    return new UploadBatch(firstSequence, payloadWriter.payloadCount, bytes.toByteArray());
+  }
+
+  /** A serialized batch of payloads, uploaded on the {@link #uploadExecutor}. */
+  class UploadBatch implements Callable<UploadBatch> {
+    /** Sequence number in the queue of the first payload in the batch. */
+    final long firstSequence;
+    final int payloadCount;
+    final byte[] body;
+    boolean uploaded;
+    /** The server rejected the batch, so it must not be retried. */
+    boolean rejected;
+    /** Delay the server asked for before retrying, if the batch may be retried. */
+    long retryAfterMillis;
+
+    UploadBatch(long firstSequence, int payloadCount, byte[] body) {
+      this.firstSequence = firstSequence;
+      this.payloadCount = payloadCount;
+      this.body = body;
+    }
+
+    /** Returns {@code true} if the batch can be removed from the queue. */
+    boolean isFinished() {
+      return uploaded || rejected;
+    }
+
+    @Override public UploadBatch call() {
+      Client.Connection connection = null;
+      try {
+        connection = client.upload();
+        connection.os.write(body);
+        // Finish the compressed body before the response is read.
+        connection.os.close();
+        connection.close();
+        uploaded = true;
+      } catch (Client.UploadException e) {
+        if (e.isRetryable()) {
+          logger.error(e, "Payloads could not be uploaded. Retrying later.");
+          retryAfterMillis = e.retryAfterMillis;
+        } else {
+          logger.error(e, "Payloads were rejected by server. Moving them to dead-letter queue.");
+          rejected = true;
+        }
+      } catch (IOException e) {
+        logger.error(e, "Error while uploading payloads");
+      } finally {
+        closeQuietly(connection);
+      }
+      return this;
     }
   }
 
   void shutdown() {
-    flushScheduler.shutdownNow();
+    client.removeNetworkActivityListener(networkActivityListener);
+    if (uploadExecutor != null) {
+      uploadExecutor.shutdownNow();
+    }
     sweetpricingThread.quit();
     closeQuietly(payloadQueue);
+    closeQuietly(deadLetterQueue);
+    closeQuietly(contextStore);
   }
 
   static class PayloadWriter implements PayloadQueue.ElementVisitor {
 
     final BatchPayloadWriter writer;
+    final ContextStore contextStore;
+    /** Reused to read every record from the queue. */
+    private byte[] record = new byte[1024];
     int size;
     int payloadCount;
 
-    PayloadWriter(BatchPayloadWriter writer) {
+    PayloadWriter(BatchPayloadWriter writer, ContextStore contextStore) {
       this.writer = writer;
+      this.contextStore = contextStore;
     }
 
     @Override public boolean read(InputStream in, int length) throws IOException {
-      final int newSize = size + length;
+      if (record.length < length) {
+        record = new byte[Math.max(length, record.length * 2)];
+      }
+      new DataInputStream(in).readFully(record, 0, length);
+      final int newSize = size + PayloadFormat.renderedLength(record, length, contextStore);
       if (newSize > MAX_BATCH_SIZE) return false;
       size = newSize;
-      byte[] data = new byte[length];
-      //noinspection ResultOfMethodCallIgnored
-      in.read(data, 0, length);
-      writer.emitPayloadObject(new String(data, UTF_8));
+      writer.emitPayloadObject(record, length, contextStore);
       payloadCount++;
       return true;
     }
   }
 
-  /** A wrapper that emits a JSON formatted batch payload to the underlying writer. */
+  /**
+   * A wrapper that emits a JSON formatted batch payload to the underlying stream. Payloads are
+   * stored on disk as UTF-8 encoded JSON already, or as records that render to it, so they are
+   * written into the stream as raw bytes, and the batch framing around them is written as
+   * precomputed bytes too.
+   */
   static class BatchPayloadWriter implements Closeable {
 
-    private final JsonWriter jsonWriter;
-    /** Keep around for writing payloads as Strings. */
-    private final BufferedWriter bufferedWriter;
+    private static final byte[] BATCH_NAME = "\"batch\":".getBytes(UTF_8);
+    private static final byte[] SENT_AT_NAME = ",\"sentAt\":".getBytes(UTF_8);
+    private static final int BUFFER_SIZE = 8192;
+
+    private final OutputStream stream;
     private boolean needsComma = false;
 
     BatchPayloadWriter(OutputStream stream) {
-      bufferedWriter = new BufferedWriter(new OutputStreamWriter(stream));
-      jsonWriter = new JsonWriter(bufferedWriter);
+      this.stream = new BufferedOutputStream(stream, BUFFER_SIZE);
     }
 
     BatchPayloadWriter beginObject() throws IOException {
-      jsonWriter.beginObject();
+      stream.write('{');
       return this;
     }
 
     BatchPayloadWriter beginBatchArray() throws IOException {
-      jsonWriter.name("batch").beginArray();
+      stream.write(BATCH_NAME);
+      stream.write('[');
       needsComma = false;
       return this;
     }
 
     BatchPayloadWriter emitPayloadObject(String payload) throws IOException {
+      byte[] bytes = payload.getBytes(UTF_8);
+      return emitPayloadObject(bytes, bytes.length, null);
+    }
+
+    /**
+     * Writes the JSON of the first {@code length} bytes of a queued record. The store is only used
+     * by records in the binary {@link PayloadFormat}.
+     */
+    BatchPayloadWriter emitPayloadObject(byte[] record, int length, ContextStore contextStore)
+        throws IOException {
       // Payloads already serialized into json when storing on disk. No need to waste cycles
       // deserializing them.
       if (needsComma) {
-        bufferedWriter.write(',');
+        stream.write(',');
       } else {
         needsComma = true;
       }
-      bufferedWriter.write(payload);
+      PayloadFormat.render(record, length, contextStore, stream);
       return this;
     }
 
@@ -387,7 +887,7 @@ class SweetpricingIntegration extends Integration<Void> {
       if (!needsComma) {
         throw new IOException("At least one payload must be provided.");
       }
-      jsonWriter.endArray();
+      stream.write(']');
       return this;
     }
 
@@ -399,12 +899,16 @@ class SweetpricingIntegration extends Integration<Void> {
        * assumed to have occurred at the same time, and therefore the difference is the local clock
        * skew.
        */
-      jsonWriter.name("sentAt").value(toISO8601Date(new Date())).endObject();
+      stream.write(SENT_AT_NAME);
+      stream.write('"');
+      Iso8601.write(System.currentTimeMillis(), stream);
+      stream.write('"');
+      stream.write('}');
       return this;
     }
 
     @Override public void close() throws IOException {
-      jsonWriter.close();
+      stream.close();
     }
   }
 
@@ -412,6 +916,10 @@ class SweetpricingIntegration extends Integration<Void> {
 
     static final int REQUEST_FLUSH = 1;
     private static final int REQUEST_ENQUEUE = 0;
+    static final int REQUEST_SCHEDULED_FLUSH = 2;
+    static final int REQUEST_FLUSH_RESULT = 3;
+    static final int REQUEST_NETWORK_ACTIVITY = 4;
+    static final int REQUEST_BACKGROUND = 5;
     private final SweetpricingIntegration sweetpricingIntegration;
 
     SweetpricingDispatcherHandler(Looper looper, SweetpricingIntegration sweetpricingIntegration) {
@@ -422,12 +930,23 @@ class SweetpricingIntegration extends Integration<Void> {
     @Override public void handleMessage(final Message msg) {
       switch (msg.what) {
         case REQUEST_ENQUEUE:
-          BasePayload payload = (BasePayload) msg.obj;
-          sweetpricingIntegration.performEnqueue(payload);
+          sweetpricingIntegration.performEnqueuePending();
           break;
         case REQUEST_FLUSH:
           sweetpricingIntegration.submitFlush();
           break;
+        case REQUEST_SCHEDULED_FLUSH:
+          sweetpricingIntegration.performScheduledFlush();
+          break;
+        case REQUEST_FLUSH_RESULT:
+          sweetpricingIntegration.performFlushResult((Long) msg.obj);
+          break;
+        case REQUEST_NETWORK_ACTIVITY:
+          sweetpricingIntegration.performNetworkActivity();
+          break;
+        case REQUEST_BACKGROUND:
+          sweetpricingIntegration.performBackground();
+          break;
         default:
           throw new AssertionError("Unknown dispatcher message: " + msg.what);
       }
@@ -26,6 +26,7 @@
 package com.sweetpricing.dynamicpricing;
 
 import android.content.Context;
+import com.sweetpricing.dynamicpricing.internal.Iso8601;
 import java.text.ParseException;
 import java.util.Date;
 import java.util.LinkedHashMap;
@@ -34,7 +35,6 @@ import java.util.UUID;
 
 import static com.sweetpricing.dynamicpricing.internal.Utils.NullableConcurrentHashMap;
 import static com.sweetpricing.dynamicpricing.internal.Utils.isNullOrEmpty;
-import static com.sweetpricing.dynamicpricing.internal.Utils.toISO8601Date;
 import static java.util.Collections.unmodifiableMap;
 
 /**
@@ -88,6 +88,12 @@ public class Traits extends ValueMap {
     super(delegate);
   }
 
+  static final Factory<Traits> FACTORY = new Factory<Traits>() {
+    @Override public Traits create(Map<String, Object> map) {
+      return new Traits(map);
+    }
+  };
+
   // Public Constructor
   public Traits() {
   }
@@ -159,14 +165,14 @@ public class Traits extends ValueMap {
 
   /** Set the user's birthday. */
   public Traits putBirthday(Date birthday) {
-    return putValue(BIRTHDAY_KEY, toISO8601Date(birthday));
+    return putValue(BIRTHDAY_KEY, Iso8601.format(birthday.getTime()));
   }
 
   public Date birthday() {
     try {
       String birthday = getString(BIRTHDAY_KEY);
       if (isNullOrEmpty(birthday)) return null;
-      return toISO8601Date(birthday);
+      return new Date(Iso8601.parse(birthday));
     } catch (ParseException e) {
       return null;
     }
@@ -355,6 +361,12 @@ public class Traits extends ValueMap {
       super(map);
     }
 
+    static final Factory<Address> FACTORY = new Factory<Address>() {
+      @Override public Address create(Map<String, Object> map) {
+        return new Address(map);
+      }
+    };
+
     @Override public Address putValue(String key, Object value) {
       super.putValue(key, value);
       return this;
@@ -12,6 +12,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import org.json.JSONObject;
 
 import static com.sweetpricing.dynamicpricing.internal.Utils.getSweetpricingSharedPreferences;
@@ -33,18 +34,69 @@ public class ValueMap implements Map<String, Object> {
 
   private final Map<String, Object> delegate;
 
+  /** Creates instances of a subclass of {@link ValueMap} that wrap the given map. */
+  interface Factory<T extends ValueMap> {
+    T create(Map<String, Object> map);
+  }
+
   /**
-   * Uses reflection to create an instance of a subclass of {@link ValueMap}. The subclass
-   * <b>must</b> declare a map constructor.
+   * The factories of this library's subclasses, and a reflective one for each other subclass seen
+   * so far. Held in their own class so that they're registered once every subclass is loaded.
+   */
+  private static class Factories {
+    static final Map<Class<?>, Factory<?>> FACTORIES = new ConcurrentHashMap<>();
+
+    static {
+      FACTORIES.put(AnalyticsContext.class, AnalyticsContext.FACTORY);
+      FACTORIES.put(AnalyticsContext.Campaign.class, AnalyticsContext.Campaign.FACTORY);
+      FACTORIES.put(AnalyticsContext.Device.class, AnalyticsContext.Device.FACTORY);
+      FACTORIES.put(AnalyticsContext.Location.class, AnalyticsContext.Location.FACTORY);
+      FACTORIES.put(AnalyticsContext.Referrer.class, AnalyticsContext.Referrer.FACTORY);
+      FACTORIES.put(ProjectSettings.class, ProjectSettings.FACTORY);
+      FACTORIES.put(Properties.class, Properties.FACTORY);
+      FACTORIES.put(Traits.class, Traits.FACTORY);
+      FACTORIES.put(Traits.Address.class, Traits.Address.FACTORY);
+      FACTORIES.put(Variant.class, Variant.FACTORY);
+    }
+  }
+
+  /**
+   * Creates an instance of a subclass of {@link ValueMap} with its registered {@link Factory}. Other
+   * subclasses are created by reflection, and <b>must</b> declare a map constructor, which is
+   * looked up once.
    */
   static <T extends ValueMap> T createValueMap(Map map, Class<T> clazz) {
-    try {
-      Constructor<T> constructor = clazz.getDeclaredConstructor(Map.class);
-      constructor.setAccessible(true);
-      return constructor.newInstance(map);
-    } catch (Exception e) {
-      throw new AssertionError(
-          "Could not create instance of " + clazz.getCanonicalName() + ".\n" + e);
+    @SuppressWarnings("unchecked") // Factories are registered under the class they create.
+    Factory<T> factory = (Factory<T>) Factories.FACTORIES.get(clazz);
+    if (factory == null) {
+      factory = new ReflectiveFactory<>(clazz);
+      Factories.FACTORIES.put(clazz, factory);
+    }
+    @SuppressWarnings("unchecked") Map<String, Object> values = (Map<String, Object>) map;
+    return factory.create(values);
+  }
+
+  /** Creates instances of a subclass through its map constructor. */
+  private static class ReflectiveFactory<T extends ValueMap> implements Factory<T> {
+    private final Constructor<T> constructor;
+
+    ReflectiveFactory(Class<T> clazz) {
+      try {
+        constructor = clazz.getDeclaredConstructor(Map.class);
+        constructor.setAccessible(true);
+      } catch (Exception e) {
+        throw new AssertionError(
+            "Could not create instance of " + clazz.getCanonicalName() + ".\n" + e);
+      }
+    }
+
+    @Override public T create(Map<String, Object> map) {
+      try {
+        return constructor.newInstance(map);
+      } catch (Exception e) {
+        throw new AssertionError("Could not create instance of "
+            + constructor.getDeclaringClass().getCanonicalName() + ".\n" + e);
+      }
     }
   }
 
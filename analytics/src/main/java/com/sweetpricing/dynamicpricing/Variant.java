@@ -25,41 +25,157 @@
 
 package com.sweetpricing.dynamicpricing;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 import static java.util.Collections.unmodifiableMap;
 
+/**
+ * The price variant of a product group. The SKUs of its products are indexed by product ID in a
+ * {@link SkuIndex} when the variant is created, so that looking them up doesn't allocate.
+ */
 public class Variant extends ValueMap {
 
-    private static final String ID_KEY = "id";
-    private static final String SKUS_KEY = "skus";
+    static final String ID_KEY = "id";
+    static final String SKUS_KEY = "skus";
+
+    private final SkuIndex skuIndex;
 
     static Variant create(Map<String, Object> map) {
-        return new Variant(map);
+        ValueMap skusValueMap = new ValueMap(map).getValueMap(SKUS_KEY);
+        int size = skusValueMap == null ? 0 : skusValueMap.size();
+        int[] productIds = new int[size];
+        String[] skus = new String[size];
+        int count = 0;
+        if (skusValueMap != null) {
+            for (Map.Entry<String, Object> entry : skusValueMap.entrySet()) {
+                String sku = skusValueMap.getString(entry.getKey());
+                if (sku == null) {
+                    continue;
+                }
+                try {
+                    productIds[count] = Integer.parseInt(entry.getKey());
+                } catch (NumberFormatException ignored) {
+                    continue;
+                }
+                skus[count++] = sku;
+            }
+        }
+        return new Variant(map, new SkuIndex(productIds, skus, count));
+    }
+
+    /**
+     * Creates a variant from fields decoded by {@link Cartographer#variantFromJson}. The first
+     * {@code count} product IDs and SKUs are in the order they were read, later ones replacing
+     * earlier ones with the same product ID. The {@code skus} field of the map is set to a read
+     * only view of the index.
+     */
+    static Variant create(Map<String, Object> fields, int[] productIds, String[] skus, int count) {
+        SkuIndex skuIndex = new SkuIndex(productIds, skus, count);
+        fields.put(SKUS_KEY, new ValueMap(new SkuMap(skuIndex)));
+        return new Variant(fields, skuIndex);
     }
 
-    private Variant(Map<String, Object> map) {
+    private Variant(Map<String, Object> map, SkuIndex skuIndex) {
         super(unmodifiableMap(map));
+        this.skuIndex = skuIndex;
     }
 
+    static final Factory<Variant> FACTORY = new Factory<Variant>() {
+        @Override public Variant create(Map<String, Object> map) {
+            return Variant.create(map);
+        }
+    };
+
     public int getId() {
         return getInt(ID_KEY, 0);
     }
 
     public String getProductSku(int productId, String defaultValue) {
-        String sku = null;
-        String productIdStr = Integer.toString(productId);
+        String sku = skuIndex.get(productId);
+        return sku == null ? defaultValue : sku;
+    }
 
-        ValueMap skusValueMap = getValueMap(SKUS_KEY);
+    /**
+     * Returns the SKUs of the given products, in the same order. The SKU of a product this variant
+     * has no SKU for is {@code null}.
+     */
+    public String[] getProductSkus(int[] productIds) {
+        String[] skus = new String[productIds.length];
+        for (int i = 0; i < productIds.length; i++) {
+            skus[i] = skuIndex.get(productIds[i]);
+        }
+        return skus;
+    }
 
-        if (skusValueMap != null) {
-            sku = skusValueMap.getString(productIdStr);
+    /** A read only {@link Map} view of a {@link SkuIndex}, keyed by the product IDs as strings. */
+    private static class SkuMap extends AbstractMap<String, Object> {
+        final SkuIndex skuIndex;
+
+        SkuMap(SkuIndex skuIndex) {
+            this.skuIndex = skuIndex;
+        }
+
+        @Override public Object get(Object key) {
+            if (!(key instanceof String)) {
+                return null;
+            }
+            try {
+                return skuIndex.get(Integer.parseInt((String) key));
+            } catch (NumberFormatException e) {
+                return null;
+            }
         }
 
-        if (sku == null) {
-            sku = defaultValue;
+        @Override public boolean containsKey(Object key) {
+            return get(key) != null;
         }
 
-        return sku;
+        @Override public int size() {
+            return skuIndex.size();
+        }
+
+        @Override public Set<Entry<String, Object>> entrySet() {
+            return new AbstractSet<Entry<String, Object>>() {
+                @Override public Iterator<Entry<String, Object>> iterator() {
+                    return new Iterator<Entry<String, Object>>() {
+                        int slot = nextSlot(0);
+
+                        private int nextSlot(int from) {
+                            while (from < skuIndex.capacity() && skuIndex.valueAt(from) == null) {
+                                from++;
+                            }
+                            return from;
+                        }
+
+                        @Override public boolean hasNext() {
+                            return slot < skuIndex.capacity();
+                        }
+
+                        @Override public Entry<String, Object> next() {
+                            if (!hasNext()) {
+                                throw new NoSuchElementException();
+                            }
+                            Entry<String, Object> entry = new SimpleImmutableEntry<String, Object>(
+                                    Integer.toString(skuIndex.keyAt(slot)), skuIndex.valueAt(slot));
+                            slot = nextSlot(slot + 1);
+                            return entry;
+                        }
+
+                        @Override public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+
+                @Override public int size() {
+                    return skuIndex.size();
+                }
+            };
+        }
     }
 }
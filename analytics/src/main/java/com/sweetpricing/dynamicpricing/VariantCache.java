@@ -0,0 +1,182 @@
+package com.sweetpricing.dynamicpricing;
+
+import com.sweetpricing.dynamicpricing.integrations.Logger;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.sweetpricing.dynamicpricing.internal.Utils.closeQuietly;
+
+/**
+ * Keeps the variants fetched for each product group and user, so that the store can show prices
+ * without waiting for the network.
+ * <p/>
+ * Variants are kept in memory, up to {@code maxSize} of the most recently used ones, and if a
+ * directory is given, also in a file each so they survive the process. A variant fetched more
+ * than {@code ttlMillis} ago is stale: it's still returned, but should be fetched again in the
+ * background, see {@link DynamicPricing#fetchVariant(int)}.
+ */
+class VariantCache {
+  /** Source of wall clock time, replaceable in tests. */
+  interface Clock {
+    long currentTimeMillis();
+  }
+
+  static final Clock SYSTEM_CLOCK = new Clock() {
+    @Override public long currentTimeMillis() {
+      return System.currentTimeMillis();
+    }
+  };
+
+  static final int DEFAULT_MAX_SIZE = 16;
+  static final long DEFAULT_TTL_MILLIS = 60 * 60 * 1000; // 1 hour.
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /** A cached variant, and when it was fetched. */
+  static class Entry {
+    final Variant variant;
+    final long fetchedAt;
+
+    Entry(Variant variant, long fetchedAt) {
+      this.variant = variant;
+      this.fetchedAt = fetchedAt;
+    }
+  }
+
+  private final File directory;
+  private final long ttlMillis;
+  private final Cartographer cartographer;
+  private final Clock clock;
+  private final Logger logger;
+  private final Map<String, Entry> entries;
+
+  /**
+   * @param directory The directory to keep variants in across processes, or {@code null} to only
+   * keep them in memory.
+   */
+  VariantCache(File directory, final int maxSize, long ttlMillis, Cartographer cartographer,
+      Clock clock, Logger logger) {
+    this.directory = directory;
+    this.ttlMillis = ttlMillis;
+    this.cartographer = cartographer;
+    this.clock = clock;
+    this.logger = logger;
+    this.entries = new LinkedHashMap<String, Entry>(maxSize, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /** Returns the key of the variant of a product group, for the user with the given ID. */
+  static String key(int productGroupId, String userId) {
+    // The user ID is hashed, since it goes in a file name.
+    if (userId == null) {
+      return Integer.toString(productGroupId);
+    }
+    return productGroupId + "-" + Long.toHexString(ContextStore.hash(userId.getBytes(UTF_8)));
+  }
+
+  /**
+   * Returns the cached variant with the given key, fresh or stale, or {@code null} if there is
+   * none.
+   */
+  synchronized Entry get(String key) {
+    Entry entry = entries.get(key);
+    if (entry == null && directory != null) {
+      entry = read(key);
+      if (entry != null) {
+        entries.put(key, entry);
+      }
+    }
+    return entry;
+  }
+
+  /** Returns {@code true} if the entry was fetched less than the TTL ago. */
+  boolean isFresh(Entry entry) {
+    long age = clock.currentTimeMillis() - entry.fetchedAt;
+    // A clock set back makes the age negative, and then it's not known how old the entry is.
+    return age >= 0 && age < ttlMillis;
+  }
+
+  /** Caches a variant that was just fetched. */
+  synchronized void put(String key, Variant variant) {
+    Entry entry = new Entry(variant, clock.currentTimeMillis());
+    entries.put(key, entry);
+    if (directory != null) {
+      write(key, entry);
+    }
+  }
+
+  /** Removes all variants, from memory and disk. */
+  synchronized void clear() {
+    entries.clear();
+    if (directory == null) {
+      return;
+    }
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      }
+    }
+  }
+
+  /** Reads the entry from its file: the time it was fetched, followed by the variant's JSON. */
+  private Entry read(String key) {
+    File file = new File(directory, key);
+    if (!file.exists()) {
+      return null;
+    }
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      long fetchedAt = in.readLong();
+      Variant variant = cartographer.variantFromJson(new InputStreamReader(in, UTF_8));
+      return new Entry(variant, fetchedAt);
+    } catch (IOException | RuntimeException e) {
+      logger.error(e, "Could not read cached variant %s.", key);
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+      return null;
+    } finally {
+      closeQuietly(in);
+    }
+  }
+
+  /**
+   * Writes the entry to a temporary file first, which then replaces the old one, so a process
+   * killed halfway through never leaves a partial variant behind.
+   */
+  private void write(String key, Entry entry) {
+    File file = new File(directory, key);
+    File tmp = new File(directory, key + ".tmp");
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      out.writeLong(entry.fetchedAt);
+      out.write(cartographer.toJsonBytes(entry.variant));
+      out.close();
+      out = null;
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Could not replace " + file + ".");
+      }
+    } catch (IOException e) {
+      logger.error(e, "Could not write cached variant %s.", key);
+      //noinspection ResultOfMethodCallIgnored
+      tmp.delete();
+    } finally {
+      closeQuietly(out);
+    }
+  }
+}
@@ -0,0 +1,276 @@
+package com.sweetpricing.dynamicpricing;
+
+import com.sweetpricing.dynamicpricing.integrations.VariantRequestPayload;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.sweetpricing.dynamicpricing.internal.Utils.buffer;
+import static com.sweetpricing.dynamicpricing.internal.Utils.closeQuietly;
+
+/**
+ * Fetches variants from the server, sharing requests between callers.
+ * <p/>
+ * A request for a product group that is already being fetched joins the call in flight rather
+ * than making another one. Requests for different groups made within {@link
+ * #DEFAULT_BATCH_WINDOW_MILLIS} of each other are sent as a single request for all of them. If
+ * the server doesn't support batched requests, every group is fetched on its own instead, and
+ * batching is not tried again.
+ * <p/>
+ * Variants are fetched on a small pool of threads owned by the client, rather than a shared
+ * executor where they could queue behind unrelated work.
+ */
+class VariantFetcher {
+  static final long DEFAULT_BATCH_WINDOW_MILLIS = 50;
+  static final long DEFAULT_TIMEOUT_MILLIS = 10 * 1000;
+  /**
+   * Threads to fetch variants on. A thread blocked on a slow request doesn't hold up variants
+   * that are read from the cache, or the next batch.
+   */
+  static final int THREAD_COUNT = 2;
+
+  /** Fetches variants, see {@link Network}. */
+  interface Source {
+    Variant fetch(int productGroupId) throws IOException;
+
+    /**
+     * Returns the variants of the given product groups by ID, or {@code null} if the server
+     * doesn't support fetching them in one request. Errors that a later batch could recover from
+     * are thrown instead.
+     */
+    Map<Integer, Variant> fetchAll(int[] productGroupIds) throws IOException;
+  }
+
+  /** The variant of a product group being fetched, shared by everyone who asked for it. */
+  static class Call {
+    interface Listener {
+      /** Called on the fetching thread once the call completed. */
+      void onComplete(Call call);
+    }
+
+    final int productGroupId;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<Listener> listeners = new ArrayList<>(1);
+    private Variant variant;
+    private IOException error;
+
+    Call(int productGroupId) {
+      this.productGroupId = productGroupId;
+    }
+
+    /** Waits for the call to complete and returns the variant, or throws why it couldn't. */
+    Variant await() throws IOException, InterruptedException {
+      done.await();
+      return result();
+    }
+
+    /** Returns the variant of a completed call, or throws why it couldn't be fetched. */
+    synchronized Variant result() throws IOException {
+      if (error != null) {
+        throw error;
+      }
+      return variant;
+    }
+
+    /** Calls the listener once the call completed, right away if it already has. */
+    void addListener(Listener listener) {
+      synchronized (this) {
+        if (done.getCount() > 0) {
+          listeners.add(listener);
+          return;
+        }
+      }
+      listener.onComplete(this);
+    }
+
+    void complete(Variant variant, IOException error) {
+      List<Listener> listeners;
+      synchronized (this) {
+        this.variant = variant;
+        this.error = error;
+        listeners = new ArrayList<>(this.listeners);
+        this.listeners.clear();
+        done.countDown();
+      }
+      for (Listener listener : listeners) {
+        listener.onComplete(this);
+      }
+    }
+  }
+
+  private final ScheduledExecutorService executor;
+  private final Source source;
+  private final long batchWindowMillis;
+  /** How long callers wait for a variant, see {@link DynamicPricing#fetchVariant(int)}. */
+  final long timeoutMillis;
+  /** Calls not completed yet, by product group ID. */
+  private final Map<Integer, Call> calls = new HashMap<>();
+  /** Calls waiting for the batch window to close. */
+  private final List<Call> pending = new ArrayList<>();
+  private volatile boolean batchingSupported = true;
+
+  VariantFetcher(ScheduledExecutorService executor, Source source, long batchWindowMillis,
+      long timeoutMillis) {
+    this.executor = executor;
+    this.source = source;
+    this.batchWindowMillis = batchWindowMillis;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /** Returns the call fetching the variant of the product group, starting one if needed. */
+  synchronized Call fetch(int productGroupId) {
+    Call call = calls.get(productGroupId);
+    if (call != null) {
+      return call;
+    }
+    call = new Call(productGroupId);
+    calls.put(productGroupId, call);
+    pending.add(call);
+    if (pending.size() == 1) {
+      executor.schedule(new Runnable() {
+        @Override public void run() {
+          performFetch();
+        }
+      }, batchWindowMillis, TimeUnit.MILLISECONDS);
+    }
+    return call;
+  }
+
+  /** Runs the task on the executor the variants are fetched on. */
+  void execute(Runnable task) {
+    executor.execute(task);
+  }
+
+  /** Stops the executor the variants are fetched on. */
+  void shutdown() {
+    executor.shutdown();
+  }
+
+  void performFetch() {
+    List<Call> batch;
+    synchronized (this) {
+      batch = new ArrayList<>(pending);
+      pending.clear();
+    }
+    if (batch.size() > 1 && batchingSupported) {
+      int[] productGroupIds = new int[batch.size()];
+      for (int i = 0; i < productGroupIds.length; i++) {
+        productGroupIds[i] = batch.get(i).productGroupId;
+      }
+      Map<Integer, Variant> variants;
+      try {
+        variants = source.fetchAll(productGroupIds);
+      } catch (IOException e) {
+        for (Call call : batch) {
+          complete(call, null, e);
+        }
+        return;
+      }
+      if (variants != null) {
+        for (Call call : batch) {
+          Variant variant = variants.get(call.productGroupId);
+          if (variant == null) {
+            variant = Variant.create(new ValueMap());
+          }
+          complete(call, variant, null);
+        }
+        return;
+      }
+      batchingSupported = false;
+    }
+    for (Call call : batch) {
+      try {
+        complete(call, source.fetch(call.productGroupId), null);
+      } catch (IOException e) {
+        complete(call, null, e);
+      }
+    }
+  }
+
+  private void complete(Call call, Variant variant, IOException error) {
+    synchronized (this) {
+      calls.remove(call.productGroupId);
+    }
+    call.complete(variant, error);
+  }
+
+  /** Fetches variants with {@link Client#variant()}. */
+  static class Network implements Source {
+    private final Client client;
+    private final Cartographer cartographer;
+    private final AnalyticsContext analyticsContext;
+    private final Options defaultOptions;
+
+    Network(Client client, Cartographer cartographer, AnalyticsContext analyticsContext,
+        Options defaultOptions) {
+      this.client = client;
+      this.cartographer = cartographer;
+      this.analyticsContext = analyticsContext;
+      this.defaultOptions = defaultOptions;
+    }
+
+    @Override public Variant fetch(int productGroupId) throws IOException {
+      Client.Connection connection = client.variant();
+      try {
+        write(connection,
+            new VariantRequestPayload(analyticsContext, defaultOptions, productGroupId));
+        Variant variant =
+            cartographer.variantFromJson(buffer(connection.connection.getInputStream()));
+        // Throws if the server responded with an error.
+        connection.close();
+        return variant;
+      } finally {
+        closeQuietly(connection);
+      }
+    }
+
+    @Override public Map<Integer, Variant> fetchAll(int[] productGroupIds) throws IOException {
+      Client.Connection connection = client.variant();
+      try {
+        write(connection,
+            new VariantRequestPayload(analyticsContext, defaultOptions, productGroupIds));
+        Map<Integer, Variant> variants;
+        try {
+          variants = cartographer.variantsFromJson(buffer(connection.connection.getInputStream()));
+        } catch (IOException e) {
+          // An error response has no body to read, it's reported by close(). Otherwise reading the
+          // response failed on its own, and the batch may succeed next time.
+          connection.close();
+          throw e;
+        }
+        connection.close();
+        // Null if the response has the shape of a single variant.
+        return variants;
+      } catch (Client.UploadException e) {
+        if (rejectsBatches(e.responseCode)) {
+          return null;
+        }
+        throw e;
+      } finally {
+        closeQuietly(connection);
+      }
+    }
+
+    /**
+     * Returns {@code true} if the response code means the server doesn't understand batched
+     * requests, rather than that this request failed.
+     */
+    private static boolean rejectsBatches(int responseCode) {
+      return responseCode == 400 || responseCode == 404 || responseCode == 501;
+    }
+
+    private void write(Client.Connection connection, VariantRequestPayload payload)
+        throws IOException {
+      BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(connection.os));
+      writer.write(cartographer.toJson(payload));
+      writer.close();
+    }
+  }
+}
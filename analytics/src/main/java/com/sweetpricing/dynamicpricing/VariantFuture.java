@@ -0,0 +1,127 @@
+package com.sweetpricing.dynamicpricing;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of {@link DynamicPricing#fetchVariant(int)}. Completes with the fetched or cached
+ * variant, or with the fallback variant if the fetch failed or the deadline passed first. It never
+ * completes exceptionally, so a store can always show its default prices.
+ */
+class VariantFuture implements Future<Variant> {
+  private final Variant fallback;
+  private final long deadlineNanos;
+  private final CountDownLatch done = new CountDownLatch(1);
+  private final List<Runnable> listeners = new ArrayList<>(1);
+  private Variant variant;
+  private boolean cancelled;
+
+  VariantFuture(Variant fallback, long timeoutMillis) {
+    this.fallback = fallback;
+    this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+  }
+
+  /**
+   * Completes the future with the given variant, unless it's done already. Returns {@code true}
+   * if it wasn't.
+   */
+  boolean complete(Variant variant) {
+    List<Runnable> listeners;
+    synchronized (this) {
+      if (done.getCount() == 0) {
+        return false;
+      }
+      this.variant = variant;
+      listeners = new ArrayList<>(this.listeners);
+      this.listeners.clear();
+      done.countDown();
+    }
+    for (Runnable listener : listeners) {
+      listener.run();
+    }
+    return true;
+  }
+
+  /** Completes the future with the fallback variant, unless it's done already. */
+  boolean completeWithFallback() {
+    return complete(fallback);
+  }
+
+  /**
+   * Runs the listener once the future completed with a variant, right away if it already has.
+   * Listeners are not run if the future is cancelled.
+   */
+  void addListener(Runnable listener) {
+    synchronized (this) {
+      if (done.getCount() > 0) {
+        listeners.add(listener);
+        return;
+      }
+      if (cancelled) {
+        return;
+      }
+    }
+    listener.run();
+  }
+
+  @Override public boolean cancel(boolean mayInterruptIfRunning) {
+    synchronized (this) {
+      if (done.getCount() == 0) {
+        return false;
+      }
+      cancelled = true;
+      listeners.clear();
+      done.countDown();
+      return true;
+    }
+  }
+
+  @Override public synchronized boolean isCancelled() {
+    return cancelled;
+  }
+
+  @Override public boolean isDone() {
+    return done.getCount() == 0;
+  }
+
+  /** Waits until the future completes or its deadline passes, and returns the variant. */
+  @Override public Variant get() throws InterruptedException {
+    if (!done.await(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+      completeWithFallback();
+    }
+    return result();
+  }
+
+  /**
+   * Waits at most the given time for the future to complete, and returns the variant. Returns the
+   * fallback variant if the deadline passes first.
+   */
+  @Override public Variant get(long timeout, TimeUnit unit)
+      throws InterruptedException, TimeoutException {
+    long remainingNanos = deadlineNanos - System.nanoTime();
+    if (unit.toNanos(timeout) < remainingNanos) {
+      if (!done.await(timeout, unit)) {
+        throw new TimeoutException();
+      }
+      return result();
+    }
+    return get();
+  }
+
+  /** Returns the variant the future completed with. */
+  synchronized Variant variant() {
+    return variant;
+  }
+
+  private synchronized Variant result() {
+    if (cancelled) {
+      throw new CancellationException();
+    }
+    return variant;
+  }
+}
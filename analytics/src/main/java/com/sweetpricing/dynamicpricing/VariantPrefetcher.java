@@ -0,0 +1,91 @@
+package com.sweetpricing.dynamicpricing;
+
+import android.content.Context;
+import android.os.Looper;
+import android.os.MessageQueue;
+import com.sweetpricing.dynamicpricing.integrations.Logger;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.sweetpricing.dynamicpricing.internal.Utils.isConnected;
+
+/**
+ * Fetches the variants of the product groups given to {@link
+ * DynamicPricing.Builder#prefetchVariants(int...)} ahead of time, so that the store can show them
+ * from the {@link VariantCache} without waiting for the network.
+ * <p/>
+ * A prefetch is started the next time the main thread is idle after an activity is resumed, so it
+ * doesn't compete with the activity being drawn. It waits at the {@link AdvertisingIdGate}, since
+ * the advertising ID is sent with the request, and is skipped while the device is offline, in
+ * which case it's tried again when the next activity is resumed. Only variants that are missing
+ * or stale are fetched, all in one batch, see {@link VariantFetcher}.
+ */
+class VariantPrefetcher implements MessageQueue.IdleHandler {
+  private final DynamicPricing dynamicPricing;
+  private final Context context;
+  private final VariantCache variantCache;
+  private final ExecutorService executor;
+  private final Executor advertisingIdGate;
+  private final Logger logger;
+  private final int[] productGroupIds;
+  /** Whether a prefetch is waiting for the main thread to be idle, or running. */
+  private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+  VariantPrefetcher(DynamicPricing dynamicPricing, Context context, VariantCache variantCache,
+      ExecutorService executor, Executor advertisingIdGate, Logger logger, int[] productGroupIds) {
+    this.dynamicPricing = dynamicPricing;
+    this.context = context;
+    this.variantCache = variantCache;
+    this.executor = executor;
+    this.advertisingIdGate = advertisingIdGate;
+    this.logger = logger;
+    this.productGroupIds = productGroupIds;
+  }
+
+  /** Schedules a prefetch for when the main thread is idle, unless one is scheduled already. */
+  void onActivityResumed() {
+    if (productGroupIds.length == 0 || !scheduled.compareAndSet(false, true)) {
+      return;
+    }
+    Looper.myQueue().addIdleHandler(this);
+  }
+
+  @Override public boolean queueIdle() {
+    advertisingIdGate.execute(new Runnable() {
+      @Override public void run() {
+        executor.submit(new Runnable() {
+          @Override public void run() {
+            try {
+              prefetch();
+            } finally {
+              scheduled.set(false);
+            }
+          }
+        });
+      }
+    });
+    return false; // Only run once.
+  }
+
+  /** Requests the variants that aren't cached or are stale. */
+  void prefetch() {
+    if (dynamicPricing.shutdown) {
+      return;
+    }
+    if (!isConnected(context)) {
+      logger.debug("Not prefetching variants while offline.");
+      return;
+    }
+    int requested = 0;
+    for (int productGroupId : productGroupIds) {
+      String key = dynamicPricing.variantCacheKey(productGroupId);
+      VariantCache.Entry cached = variantCache.get(key);
+      if (cached == null || !variantCache.isFresh(cached)) {
+        dynamicPricing.requestVariant(productGroupId, key);
+        requested++;
+      }
+    }
+    logger.verbose("Prefetching %s of %s variants.", requested, productGroupIds.length);
+  }
+}
@@ -27,12 +27,13 @@ package com.sweetpricing.dynamicpricing.integrations;
 
 import com.sweetpricing.dynamicpricing.AnalyticsContext;
 import com.sweetpricing.dynamicpricing.Options;
+import com.sweetpricing.dynamicpricing.Traits;
 import com.sweetpricing.dynamicpricing.ValueMap;
+import com.sweetpricing.dynamicpricing.internal.Iso8601;
 import java.util.Date;
 import java.util.UUID;
 
 import static com.sweetpricing.dynamicpricing.internal.Utils.isNullOrEmpty;
-import static com.sweetpricing.dynamicpricing.internal.Utils.toISO8601Date;
 
 /**
  * A payload object that will be sent to the server. Clients will not decode instances of this
@@ -52,17 +53,23 @@ public abstract class BasePayload extends ValueMap {
   protected static final String USER_ID_KEY = "userId";
 
   public BasePayload(Type type, AnalyticsContext context, Options options) {
+    this(type, context, options, new Date());
+  }
+
+  /** @param timestamp When the message took place, if it's made into a payload later. */
+  public BasePayload(Type type, AnalyticsContext context, Options options, Date timestamp) {
     AnalyticsContext contextCopy = context.unmodifiableCopy();
     put(MESSAGE_ID, UUID.randomUUID().toString());
     put(TYPE_KEY, type);
     put(CHANNEL_KEY, Channel.mobile);
     put(CONTEXT_KEY, contextCopy);
-    put(ANONYMOUS_ID_KEY, contextCopy.traits().anonymousId());
-    String userId = contextCopy.traits().userId();
+    Traits traits = contextCopy.traits();
+    put(ANONYMOUS_ID_KEY, traits.anonymousId());
+    String userId = traits.userId();
     if (!isNullOrEmpty(userId)) {
       put(USER_ID_KEY, userId);
     }
-    put(TIMESTAMP_KEY, toISO8601Date(new Date()));
+    put(TIMESTAMP_KEY, Iso8601.format(timestamp.getTime()));
     put(INTEGRATIONS_KEY, options.integrations()); // uses a copy
   }
 
@@ -28,12 +28,18 @@ package com.sweetpricing.dynamicpricing.integrations;
 import com.sweetpricing.dynamicpricing.AnalyticsContext;
 import com.sweetpricing.dynamicpricing.Options;
 import com.sweetpricing.dynamicpricing.Traits;
+import java.util.Date;
 
 public class IdentifyPayload extends BasePayload {
   private static final String TRAITS_KEY = "traits";
 
   public IdentifyPayload(AnalyticsContext context, Options options, Traits traits) {
-    super(Type.identify, context, options);
+    this(context, options, traits, new Date());
+  }
+
+  public IdentifyPayload(AnalyticsContext context, Options options, Traits traits,
+      Date timestamp) {
+    super(Type.identify, context, options, timestamp);
     put(TRAITS_KEY, traits);
   }
 
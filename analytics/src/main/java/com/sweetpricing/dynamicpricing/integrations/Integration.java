@@ -85,6 +85,16 @@ public abstract class Integration<T> {
   public void reset() {
   }
 
+  /**
+   * Returns {@code true} if this integration can be called from any thread. Operations on
+   * thread-safe integrations, including the activity lifecycle callbacks, run in order on a
+   * background thread rather than the main thread, so they don't hold up drawing the UI. Defaults
+   * to {@code false}.
+   */
+  public boolean isThreadSafe() {
+    return false;
+  }
+
   /**
    * The underlying instance for this provider - used for integration specific actions. This will
    * return {@code null} for SDK's that only provide interactions with static methods
@@ -28,6 +28,7 @@ package com.sweetpricing.dynamicpricing.integrations;
 import com.sweetpricing.dynamicpricing.AnalyticsContext;
 import com.sweetpricing.dynamicpricing.Options;
 import com.sweetpricing.dynamicpricing.Properties;
+import java.util.Date;
 
 import static com.sweetpricing.dynamicpricing.internal.Utils.isNullOrEmpty;
 
@@ -41,7 +42,12 @@ public class ScreenPayload extends BasePayload {
 
   public ScreenPayload(AnalyticsContext context, Options options, String category, String name,
       Properties properties) {
-    super(Type.screen, context, options);
+    this(context, options, category, name, properties, new Date());
+  }
+
+  public ScreenPayload(AnalyticsContext context, Options options, String category, String name,
+      Properties properties, Date timestamp) {
+    super(Type.screen, context, options, timestamp);
     put(CATEGORY_KEY, category);
     put(NAME_KEY, name);
     put(PROPERTIES_KEY, properties);
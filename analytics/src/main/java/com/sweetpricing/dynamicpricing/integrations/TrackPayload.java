@@ -28,6 +28,7 @@ package com.sweetpricing.dynamicpricing.integrations;
 import com.sweetpricing.dynamicpricing.AnalyticsContext;
 import com.sweetpricing.dynamicpricing.Options;
 import com.sweetpricing.dynamicpricing.Properties;
+import java.util.Date;
 
 public class TrackPayload extends BasePayload {
   private static final String EVENT_KEY = "event";
@@ -35,7 +36,12 @@ public class TrackPayload extends BasePayload {
 
   public TrackPayload(AnalyticsContext context, Options options, String event,
       Properties properties) {
-    super(Type.track, context, options);
+    this(context, options, event, properties, new Date());
+  }
+
+  public TrackPayload(AnalyticsContext context, Options options, String event,
+      Properties properties, Date timestamp) {
+    super(Type.track, context, options, timestamp);
     put(EVENT_KEY, event);
     put(PROPERTIES_KEY, properties);
   }
@@ -2,18 +2,35 @@ package com.sweetpricing.dynamicpricing.integrations;
 
 import com.sweetpricing.dynamicpricing.AnalyticsContext;
 import com.sweetpricing.dynamicpricing.Options;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by brendonboshell on 11/04/2016.
  */
 public class VariantRequestPayload extends BasePayload {
     private static final String PRODUCT_GROUP_ID_KEY = "productGroupId";
+    private static final String PRODUCT_GROUP_IDS_KEY = "productGroupIds";
 
     public VariantRequestPayload(AnalyticsContext context, Options options, int productGroupId) {
         super(Type.variantRequest, context, options);
         put(PRODUCT_GROUP_ID_KEY, productGroupId);
     }
 
+    /**
+     * Creates a request for the variants of several product groups at once. The response holds
+     * each variant by product group ID under {@code variants}.
+     */
+    public VariantRequestPayload(AnalyticsContext context, Options options,
+            int[] productGroupIds) {
+        super(Type.variantRequest, context, options);
+        List<Integer> ids = new ArrayList<>(productGroupIds.length);
+        for (int productGroupId : productGroupIds) {
+            ids.add(productGroupId);
+        }
+        put(PRODUCT_GROUP_IDS_KEY, ids);
+    }
+
     public int productGroupId() {
         return getInt(PRODUCT_GROUP_ID_KEY, 0);
     }
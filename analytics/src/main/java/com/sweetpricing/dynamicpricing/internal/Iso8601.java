@@ -0,0 +1,236 @@
+package com.sweetpricing.dynamicpricing.internal;
+
+import android.annotation.SuppressLint;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Formats and parses dates as ISO-8601 strings such as {@code 2016-03-09T12:00:00+0000}, in the
+ * default time zone, from any thread.
+ * <p/>
+ * Most dates are timestamps of events recorded in the same second, so the last one formatted is
+ * kept and reused until the second changes. Others are computed from the epoch milliseconds
+ * directly into a {@code char[]}, without a {@link java.util.Calendar}. Dates before the
+ * Gregorian calendar was adopted or after the year 9999, and strings in other forms, are handed
+ * to a {@link SimpleDateFormat} with the same pattern under a lock.
+ */
+public final class Iso8601 {
+  /** The length of a formatted date. */
+  public static final int LENGTH = 24;
+  private static final long MILLIS_PER_SECOND = 1000;
+  private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+  // The first full year of the Gregorian calendar, before which SimpleDateFormat uses the Julian.
+  private static final int MIN_YEAR = 1583;
+  private static final int MAX_YEAR = 9999;
+
+  /** Guarded by itself. */
+  @SuppressLint("SimpleDateFormat") private static final DateFormat FALLBACK_FORMAT =
+      new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.US);
+
+  /** A formatted date, and the second it's for. */
+  private static class Formatted {
+    final long second;
+    final String text;
+    final byte[] bytes;
+
+    Formatted(long second, char[] chars) {
+      this.second = second;
+      this.text = new String(chars);
+      this.bytes = new byte[chars.length];
+      for (int i = 0; i < chars.length; i++) {
+        bytes[i] = (byte) chars[i];
+      }
+    }
+  }
+
+  /** The last date formatted. Changes to the default time zone apply from the next second. */
+  private static volatile Formatted last;
+
+  private Iso8601() {
+    throw new AssertionError("No instances.");
+  }
+
+  /** Returns the date at {@code millis} since the epoch as a string. */
+  public static String format(long millis) {
+    Formatted formatted = formatted(millis);
+    return formatted == null ? fallbackFormat(millis) : formatted.text;
+  }
+
+  /** Writes the date at {@code millis} since the epoch to the stream, as ASCII. */
+  public static void write(long millis, OutputStream out) throws IOException {
+    Formatted formatted = formatted(millis);
+    if (formatted == null) {
+      out.write(fallbackFormat(millis).getBytes("US-ASCII"));
+    } else {
+      out.write(formatted.bytes);
+    }
+  }
+
+  private static Formatted formatted(long millis) {
+    long second = floorDiv(millis, MILLIS_PER_SECOND);
+    Formatted formatted = last;
+    if (formatted != null && formatted.second == second) {
+      return formatted;
+    }
+    char[] chars = new char[LENGTH];
+    if (!format(second * MILLIS_PER_SECOND, TimeZone.getDefault(), chars)) {
+      return null;
+    }
+    formatted = new Formatted(second, chars);
+    last = formatted;
+    return formatted;
+  }
+
+  /**
+   * Writes the date into {@code chars}, which must hold {@link #LENGTH} characters. Returns false,
+   * leaving it incomplete, if the date is out of range.
+   */
+  static boolean format(long millis, TimeZone timeZone, char[] chars) {
+    int offsetMillis = timeZone.getOffset(millis);
+    long local = floorDiv(millis + offsetMillis, MILLIS_PER_SECOND);
+    long days = floorDiv(local, SECONDS_PER_DAY);
+    int secondOfDay = (int) (local - days * SECONDS_PER_DAY);
+
+    // Converts days since the epoch to a Gregorian date, from
+    // http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+    long z = days + 719468;
+    long era = floorDiv(z, 146097);
+    int dayOfEra = (int) (z - era * 146097);
+    int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    int shiftedMonth = (5 * dayOfYear + 2) / 153; // Starting in March.
+    int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+    int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+    long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+    if (year < MIN_YEAR || year > MAX_YEAR) {
+      return false;
+    }
+
+    writeDigits(chars, 0, (int) year, 4);
+    chars[4] = '-';
+    writeDigits(chars, 5, month, 2);
+    chars[7] = '-';
+    writeDigits(chars, 8, day, 2);
+    chars[10] = 'T';
+    writeDigits(chars, 11, secondOfDay / 3600, 2);
+    chars[13] = ':';
+    writeDigits(chars, 14, secondOfDay / 60 % 60, 2);
+    chars[16] = ':';
+    writeDigits(chars, 17, secondOfDay % 60, 2);
+    int offsetMinutes = offsetMillis / 60000;
+    chars[19] = offsetMinutes < 0 ? '-' : '+';
+    offsetMinutes = Math.abs(offsetMinutes);
+    writeDigits(chars, 20, offsetMinutes / 60, 2);
+    writeDigits(chars, 22, offsetMinutes % 60, 2);
+    return true;
+  }
+
+  private static void writeDigits(char[] chars, int offset, int value, int count) {
+    for (int i = offset + count - 1; i >= offset; i--) {
+      chars[i] = (char) ('0' + value % 10);
+      value /= 10;
+    }
+  }
+
+  /**
+   * Returns the milliseconds since the epoch of the date in the string. Takes dates with an offset
+   * such as {@code +0100} or {@code +01:00}, or {@code Z}, and anything {@link SimpleDateFormat}
+   * would.
+   */
+  public static long parse(String text) throws ParseException {
+    long millis = fastParse(text);
+    if (millis != Long.MIN_VALUE) {
+      return millis;
+    }
+    synchronized (FALLBACK_FORMAT) {
+      FALLBACK_FORMAT.setTimeZone(TimeZone.getDefault());
+      return FALLBACK_FORMAT.parse(text).getTime();
+    }
+  }
+
+  /** Returns {@link Long#MIN_VALUE} if the string isn't in the form this writes. */
+  private static long fastParse(String text) {
+    int length = text.length();
+    if (length < 20 || text.charAt(4) != '-' || text.charAt(7) != '-' || text.charAt(10) != 'T'
+        || text.charAt(13) != ':' || text.charAt(16) != ':') {
+      return Long.MIN_VALUE;
+    }
+    int year = readDigits(text, 0, 4);
+    int month = readDigits(text, 5, 2);
+    int day = readDigits(text, 8, 2);
+    int hour = readDigits(text, 11, 2);
+    int minute = readDigits(text, 14, 2);
+    int second = readDigits(text, 17, 2);
+    if (year < MIN_YEAR || month < 1 || month > 12 || day < 1 || day > 31 || hour < 0
+        || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+      return Long.MIN_VALUE; // Also when a digit is missing.
+    }
+
+    int offsetMinutes;
+    char sign = text.charAt(19);
+    if (sign == 'Z' && length == 20) {
+      offsetMinutes = 0;
+    } else if ((sign == '+' || sign == '-') && (length == 24 || length == 25)) {
+      int minutesAt = length == 24 ? 22 : 23;
+      if (length == 25 && text.charAt(22) != ':') {
+        return Long.MIN_VALUE;
+      }
+      int offsetHours = readDigits(text, 20, 2);
+      int offsetMinutesOfHour = readDigits(text, minutesAt, 2);
+      if (offsetHours < 0 || offsetMinutesOfHour < 0 || offsetMinutesOfHour > 59) {
+        return Long.MIN_VALUE;
+      }
+      offsetMinutes = offsetHours * 60 + offsetMinutesOfHour;
+      if (sign == '-') {
+        offsetMinutes = -offsetMinutes;
+      }
+    } else {
+      return Long.MIN_VALUE;
+    }
+
+    // Converts a Gregorian date to days since the epoch, from
+    // http://howardhinnant.github.io/date_algorithms.html#days_from_civil
+    int y = month <= 2 ? year - 1 : year;
+    int era = y / 400;
+    int yearOfEra = y - era * 400;
+    int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    long days = era * 146097L + dayOfEra - 719468;
+    long seconds = days * SECONDS_PER_DAY + hour * 3600 + minute * 60 + second;
+    return (seconds - offsetMinutes * 60L) * MILLIS_PER_SECOND;
+  }
+
+  /** Returns -1 if the characters aren't all digits. */
+  private static int readDigits(String text, int offset, int count) {
+    int value = 0;
+    for (int i = offset; i < offset + count; i++) {
+      char c = text.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  private static String fallbackFormat(long millis) {
+    synchronized (FALLBACK_FORMAT) {
+      FALLBACK_FORMAT.setTimeZone(TimeZone.getDefault());
+      return FALLBACK_FORMAT.format(new Date(millis));
+    }
+  }
+
+  private static long floorDiv(long x, long y) {
+    long quotient = x / y;
+    if ((x % y != 0) && ((x ^ y) < 0)) {
+      quotient--;
+    }
+    return quotient;
+  }
+}
@@ -27,9 +27,12 @@ package com.sweetpricing.dynamicpricing.internal;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Process;
 import android.telephony.TelephonyManager;
@@ -44,15 +47,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.reflect.Array;
-import java.text.DateFormat;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -82,9 +82,8 @@ public final class Utils {
   public static final String THREAD_PREFIX = "Sweetpricing-";
   public static final int DEFAULT_FLUSH_INTERVAL = 30 * 1000; // 30s
   public static final int DEFAULT_FLUSH_QUEUE_SIZE = 20;
+  public static final int DEFAULT_FLUSH_CONCURRENCY = 1;
   public static final boolean DEFAULT_COLLECT_DEVICE_ID = true;
-  @SuppressLint("SimpleDateFormat") private static final DateFormat ISO_8601_DATE_FORMAT =
-      new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ", Locale.US);
 
   /** Creates a mutable HashSet instance containing the given elements in unspecified order */
   public static <T> Set<T> newSet(T... values) {
@@ -93,14 +92,22 @@ public final class Utils {
     return set;
   }
 
-  /** Returns the date as a string formatted with {@link #ISO_8601_DATE_FORMAT}. */
-  public static String toISO8601Date(Date date) {
-    return ISO_8601_DATE_FORMAT.format(date);
+  /**
+   * Returns the date as an ISO 8601 string.
+   *
+   * @deprecated Use {@link Iso8601#format(long)}.
+   */
+  @Deprecated public static String toISO8601Date(Date date) {
+    return Iso8601.format(date.getTime());
   }
 
-  /** Returns the string as a date parsed with {@link #ISO_8601_DATE_FORMAT}. */
-  public static Date toISO8601Date(String date) throws ParseException {
-    return ISO_8601_DATE_FORMAT.parse(date);
+  /**
+   * Returns the ISO 8601 string as a date.
+   *
+   * @deprecated Use {@link Iso8601#parse(String)}.
+   */
+  @Deprecated public static Date toISO8601Date(String date) throws ParseException {
+    return new Date(Iso8601.parse(date));
   }
 
   //TODO: Migrate other coercion methods.
@@ -215,6 +222,37 @@ public final class Utils {
     return activeNetwork != null && activeNetwork.isConnectedOrConnecting();
   }
 
+  /**
+   * Returns {@code true} if the active network may cost the user money, like mobile data. Always
+   * {@code false} before Jelly Bean, or without the network state permission.
+   */
+  @SuppressLint("NewApi")
+  public static boolean isNetworkMetered(Context context) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN
+        || !hasPermission(context, ACCESS_NETWORK_STATE)) {
+      return false;
+    }
+    ConnectivityManager cm = getSystemService(context, CONNECTIVITY_SERVICE);
+    return cm.isActiveNetworkMetered();
+  }
+
+  /** Returns {@code true} if the battery is at or below 15% and not charging. */
+  public static boolean isBatteryLow(Context context) {
+    Intent battery =
+        context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+    if (battery == null) {
+      return false;
+    }
+    int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+    if (status == BatteryManager.BATTERY_STATUS_CHARGING
+        || status == BatteryManager.BATTERY_STATUS_FULL) {
+      return false;
+    }
+    int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+    int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+    return level >= 0 && scale > 0 && level * 100 / scale <= 15;
+  }
+
   /** Return {@code true} if a class with the given name is found. */
   public static boolean isOnClassPath(String className) {
     try {